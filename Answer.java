@@ -3,16 +3,18 @@ import java.time.LocalDateTime;
 public class Answer {
     private int id;
     private int questionId;
-    private String content;
+    private final BodyText content = new BodyText();
     private String author;
     private LocalDateTime createdAt;
     private boolean isAccepted;
+    // Incremented by the store on every change, for conditional updates
+    private int version = 1;
 
     public Answer(int id, int questionId, String content, String author, 
                  LocalDateTime createdAt, boolean isAccepted) {
         this.id = id;
         this.questionId = questionId;
-        this.content = content;
+        this.content.set(content);
         this.author = author;
         this.createdAt = createdAt;
         this.isAccepted = isAccepted;
@@ -25,8 +27,13 @@ public class Answer {
     public int getQuestionId() { return questionId; }
     public void setQuestionId(int questionId) { this.questionId = questionId; }
 
-    public String getContent() { return content; }
-    public void setContent(String content) { this.content = content; }
+    public String getContent() { return content.get(); }
+    public void setContent(String content) { this.content.set(content); }
+
+    public void moveContentOffHeap(OffHeapBodyStore store) { content.moveOffHeap(store); }
+    public boolean isContentOffHeap() { return content.isOffHeap(); }
+    // Frees the off-heap copy; the content stays readable from the heap
+    public void releaseOffHeapContent() { content.releaseOffHeap(); }
 
     public String getAuthor() { return author; }
     public void setAuthor(String author) { this.author = author; }
@@ -36,4 +43,8 @@ public class Answer {
 
     public boolean isAccepted() { return isAccepted; }
     public void setAccepted(boolean accepted) { isAccepted = accepted; }
+
+    public int getVersion() { return version; }
+    public void setVersion(int version) { this.version = version; }
+    public void incrementVersion() { version++; }
 }
\ No newline at end of file
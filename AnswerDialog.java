@@ -2,10 +2,16 @@ import javax.swing.*;
 import java.awt.*;
 
 public class AnswerDialog extends JDialog {
+    // Choices offered by resolveConflict; anything else means keep editing
+    static final int OVERWRITE = 0;
+    static final int USE_THEIRS = 1;
+
     private final Answer answer;
     private final String currentUser;
     private final Question question;
     private final Runnable onUpdate;
+    // The version the user started editing from, updated by saveAnswerEdit
+    private final int[] baseVersion;
 
     public AnswerDialog(Frame owner, Answer answer, Question question, String currentUser, Runnable onUpdate) {
         super(owner, "Edit Answer", true);
@@ -13,6 +19,7 @@ public class AnswerDialog extends JDialog {
         this.question = question;
         this.currentUser = currentUser;
         this.onUpdate = onUpdate;
+        this.baseVersion = new int[] { answer.getVersion() };
 
         setupUI();
     }
@@ -58,7 +65,9 @@ public class AnswerDialog extends JDialog {
                 return;
             }
 
-            MemoryStorage.updateAnswer(answer.getId(), contentArea.getText().trim());
+            if (!saveAnswerEdit(this, answer, baseVersion, contentArea)) {
+                return;
+            }
             onUpdate.run();
             dispose();
         });
@@ -106,7 +115,12 @@ public class AnswerDialog extends JDialog {
         }
     }
 
-    public static void acceptAnswer(Component parent, Answer answer, Question question, String currentUser, Runnable onAccept) {
+    /**
+     * Accepts the answer if it is still at {@code shownVersion}, the version the user was
+     * shown; if it has changed since, the user is asked to review it first.
+     */
+    public static void acceptAnswer(Component parent, Answer answer, int shownVersion, Question question,
+                                    String currentUser, Runnable onAccept) {
         if (!question.getAuthor().equals(currentUser)) {
             JOptionPane.showMessageDialog(parent,
                 "Only the question author can accept answers.",
@@ -115,7 +129,63 @@ public class AnswerDialog extends JDialog {
             return;
         }
 
-        MemoryStorage.acceptAnswer(answer.getId(), question.getId());
+        UpdateResult<Answer> result = MemoryStorage.acceptAnswerIfVersion(answer.getId(), question.getId(), shownVersion);
+        if (result.isConflict()) {
+            JOptionPane.showMessageDialog(parent,
+                "This answer has changed since it was shown. Please review it before accepting.",
+                "Answer Changed",
+                JOptionPane.INFORMATION_MESSAGE);
+        }
         onAccept.run();
     }
+
+    /**
+     * Saves the text of {@code editor} as the answer's content if the answer is still at
+     * {@code baseVersion[0]}, the version the user started editing from. On a conflict the
+     * user can overwrite the other version, take it into the editor (which also moves
+     * {@code baseVersion[0]} to it) or keep editing. Returns true once the editor can close:
+     * the edit was saved, or the answer has been deleted.
+     */
+    static boolean saveAnswerEdit(Component parent, Answer answer, int[] baseVersion, JTextArea editor) {
+        String content = editor.getText().trim();
+        UpdateResult<Answer> result = MemoryStorage.updateAnswerIfVersion(answer.getId(), baseVersion[0], content);
+        while (result.isConflict()) {
+            int theirVersion = result.current.getVersion();
+            String theirs = result.current.getContent();
+            int choice = resolveConflict(parent, "answer", theirs);
+            if (choice != OVERWRITE) {
+                if (choice == USE_THEIRS) {
+                    editor.setText(theirs);
+                    baseVersion[0] = theirVersion;
+                }
+                return false;
+            }
+            result = MemoryStorage.updateAnswerIfVersion(answer.getId(), theirVersion, content);
+        }
+        if (result.status == UpdateResult.Status.NOT_FOUND) {
+            JOptionPane.showMessageDialog(parent, "This answer has been deleted.");
+        }
+        return true;
+    }
+
+    /**
+     * Tells the user that someone else changed the {@code what} they are editing, shows the
+     * other version and asks what to do. Returns {@link #OVERWRITE}, {@link #USE_THEIRS}, or
+     * anything else to keep editing.
+     */
+    static int resolveConflict(Component parent, String what, String theirs) {
+        JTextArea theirArea = new JTextArea(theirs, 8, 40);
+        theirArea.setEditable(false);
+        theirArea.setLineWrap(true);
+        theirArea.setWrapStyleWord(true);
+
+        JPanel message = new JPanel(new BorderLayout(0, 5));
+        message.add(new JLabel("This " + what + " was changed by someone else while you were editing it."),
+                    BorderLayout.NORTH);
+        message.add(new JScrollPane(theirArea), BorderLayout.CENTER);
+
+        Object[] options = {"Overwrite", "Use Their Version", "Keep Editing"};
+        return JOptionPane.showOptionDialog(parent, message, "Edit Conflict",
+            JOptionPane.DEFAULT_OPTION, JOptionPane.WARNING_MESSAGE, null, options, options[2]);
+    }
 }
\ No newline at end of file
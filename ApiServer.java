@@ -0,0 +1,395 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Headless HTTP/JSON front end for the mail and forum, for running without the Swing UI.
+ *
+ * Register and login return a session token, which every other call passes as
+ * {@code Authorization: Bearer <token>}. Entities are returned in their {@link DataTransfer}
+ * record form. Routes, all under /api:
+ *
+ * <pre>
+ * POST   /register, /login                 {"username","password"}
+ * POST   /logout
+ * GET    /emails/inbox, /emails/sent, /emails/drafts
+ * POST   /emails                           {"to","subject","content"}; 507 if over quota
+ * POST   /emails/drafts                    {"to","subject","content"}; 507 if over quota
+ * POST   /emails/{id}/send, /emails/{id}/read
+ * DELETE /emails/{id}
+ * GET    /questions?q=...
+ * POST   /questions                        {"title","content"}
+ * GET    /questions/{id}                   the question and its answers
+ * PUT    /questions/{id}                   {"title","content"}
+ * DELETE /questions/{id}
+ * POST   /questions/{id}/answers           {"content"}
+ * PUT    /questions/{id}/answers/{aid}     {"content"}
+ * DELETE /questions/{id}/answers/{aid}
+ * POST   /questions/{id}/answers/{aid}/accept
+ * </pre>
+ *
+ * Request bodies over 1 MB are refused with 413.
+ *
+ * Question and answer records carry a {@code version}. A PUT or accept whose body includes
+ * the version the client read is applied only if nobody has changed the entity since, and
+ * fails with 409 otherwise; without a version the change is applied unconditionally.
+ *
+ * Each request runs on its own virtual thread when the JVM supports them (Java 21+), so
+ * blocked requests cost no platform thread; older JVMs fall back to a cached thread pool.
+ */
+public class ApiServer {
+    // Largest request body accepted; anything bigger is refused with 413
+    private static final int MAX_BODY_BYTES = 1 << 20;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final StorageBackend storage;
+    private final UserManager userManager;
+
+    public ApiServer(int port, StorageBackend storage) throws IOException {
+        this.storage = storage;
+        this.userManager = new UserManager(storage);
+        this.executor = newRequestExecutor();
+        this.server = HttpServer.create(new InetSocketAddress(port), 4096);
+        this.server.createContext("/api/", this::handle);
+        this.server.setExecutor(executor);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        ApiServer server = new ApiServer(port, MemoryStorageBackend.INSTANCE);
+        server.start();
+        System.out.println("API server listening on port " + server.getPort());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static class ApiException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        ApiException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Object response;
+            int status = 200;
+            try {
+                response = route(exchange);
+            } catch (ApiException e) {
+                status = e.status;
+                response = Map.of("error", e.getMessage());
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                response = Map.of("error", String.valueOf(e.getMessage()));
+            } catch (RuntimeException e) {
+                status = 500;
+                response = Map.of("error", "Internal error");
+                e.printStackTrace();
+            }
+            byte[] body = Json.write(response).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private Object route(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().substring("/api/".length()).split("/");
+        Map<String, Object> body = readBody(exchange);
+
+        switch (path[0]) {
+            case "register":
+                requireMethod(method, "POST");
+                return authResult(userManager.registerUser(optionalField(body, "username"), optionalField(body, "password")));
+            case "login":
+                requireMethod(method, "POST");
+                return authResult(userManager.login(optionalField(body, "username"), optionalField(body, "password")));
+            case "logout":
+                requireMethod(method, "POST");
+                authenticate(exchange);
+                storage.logout(token(exchange));
+                return Map.of("success", true);
+            case "emails":
+                return routeEmails(method, path, body, authenticate(exchange));
+            case "questions":
+                return routeQuestions(exchange, method, path, body, authenticate(exchange));
+            default:
+                throw new ApiException(404, "Not found");
+        }
+    }
+
+    private Object routeEmails(String method, String[] path, Map<String, Object> body, String user) {
+        if (path.length == 1) {
+            requireMethod(method, "POST");
+            String to = field(body, "to");
+            if (!storage.userExists(to)) {
+                throw new ApiException(404, "No user named \"" + to + "\" exists");
+            }
+            int emailId = storage.addEmail(user, to, field(body, "subject"), field(body, "content"));
+            if (emailId < 0) {
+                throw new ApiException(507, "Mailbox quota exceeded");
+            }
+            return Map.of("id", emailId);
+        }
+        if (path.length == 2 && !isId(path[1])) {
+            switch (path[1]) {
+                case "inbox":
+                    requireMethod(method, "GET");
+                    return emailRecords(storage.getInboxEmails(user));
+                case "sent":
+                    requireMethod(method, "GET");
+                    return emailRecords(storage.getSentEmails(user));
+                case "drafts":
+                    if (method.equals("POST")) {
+                        int draftId = storage.saveDraft(user, optionalField(body, "to"),
+                            optionalField(body, "subject"), optionalField(body, "content"));
+                        if (draftId < 0) {
+                            throw new ApiException(507, "Mailbox quota exceeded");
+                        }
+                        return Map.of("id", draftId);
+                    }
+                    requireMethod(method, "GET");
+                    return emailRecords(storage.getDrafts(user));
+                default:
+                    throw new ApiException(404, "Not found");
+            }
+        }
+
+        int emailId = id(path[1]);
+        if (path.length == 2) {
+            requireMethod(method, "DELETE");
+            storage.deleteEmail(emailId, user);
+            return Map.of("success", true);
+        }
+        requireMethod(method, "POST");
+        switch (path[2]) {
+            case "read":
+                storage.markAsRead(emailId, user);
+                return Map.of("success", true);
+            case "send":
+                boolean ownDraft = storage.getDrafts(user).stream().anyMatch(e -> e.getId() == emailId);
+                if (!ownDraft) {
+                    throw new ApiException(404, "No such draft");
+                }
+                storage.sendDraft(emailId);
+                return Map.of("success", true);
+            default:
+                throw new ApiException(404, "Not found");
+        }
+    }
+
+    private Object routeQuestions(HttpExchange exchange, String method, String[] path,
+                                  Map<String, Object> body, String user) {
+        if (path.length == 1) {
+            if (method.equals("POST")) {
+                return Map.of("id", storage.addQuestion(field(body, "title"), field(body, "content"), user));
+            }
+            requireMethod(method, "GET");
+            List<Map<String, Object>> records = new ArrayList<>();
+            storage.searchQuestions(queryParameter(exchange, "q")).forEach(q -> records.add(DataTransfer.toRecord(q)));
+            return records;
+        }
+
+        int questionId = id(path[1]);
+        Question question = storage.getQuestion(questionId)
+            .orElseThrow(() -> new ApiException(404, "No such question"));
+        if (path.length == 2) {
+            switch (method) {
+                case "GET":
+                    Map<String, Object> record = DataTransfer.toRecord(question);
+                    List<Map<String, Object>> answers = new ArrayList<>();
+                    storage.getAnswersForQuestion(questionId).forEach(a -> answers.add(DataTransfer.toRecord(a)));
+                    record.put("answers", answers);
+                    return record;
+                case "PUT":
+                    requireAuthor(question.getAuthor(), user);
+                    if (body.containsKey("version")) {
+                        return checked(storage.updateQuestionIfVersion(questionId, DataTransfer.integer(body, "version"),
+                            field(body, "title"), field(body, "content")));
+                    }
+                    storage.updateQuestion(questionId, field(body, "title"), field(body, "content"));
+                    return Map.of("success", true);
+                case "DELETE":
+                    requireAuthor(question.getAuthor(), user);
+                    storage.deleteQuestion(questionId);
+                    return Map.of("success", true);
+                default:
+                    throw new ApiException(405, "Method not allowed");
+            }
+        }
+
+        if (!path[2].equals("answers")) {
+            throw new ApiException(404, "Not found");
+        }
+        if (path.length == 3) {
+            requireMethod(method, "POST");
+            return Map.of("id", storage.addAnswer(questionId, field(body, "content"), user));
+        }
+        int answerId = id(path[3]);
+        Answer answer = storage.getAnswersForQuestion(questionId).stream()
+            .filter(a -> a.getId() == answerId)
+            .findFirst()
+            .orElseThrow(() -> new ApiException(404, "No such answer"));
+        if (path.length == 5 && path[4].equals("accept")) {
+            requireMethod(method, "POST");
+            // Only the question's author can accept
+            requireAuthor(question.getAuthor(), user);
+            if (body.containsKey("version")) {
+                return checked(storage.acceptAnswerIfVersion(answerId, questionId, DataTransfer.integer(body, "version")));
+            }
+            storage.acceptAnswer(answerId, questionId);
+            return Map.of("success", true);
+        }
+        switch (method) {
+            case "PUT":
+                requireAuthor(answer.getAuthor(), user);
+                if (body.containsKey("version")) {
+                    return checked(storage.updateAnswerIfVersion(answerId, DataTransfer.integer(body, "version"),
+                        field(body, "content")));
+                }
+                storage.updateAnswer(answerId, field(body, "content"));
+                return Map.of("success", true);
+            case "DELETE":
+                requireAuthor(answer.getAuthor(), user);
+                storage.deleteAnswer(answerId);
+                return Map.of("success", true);
+            default:
+                throw new ApiException(405, "Method not allowed");
+        }
+    }
+
+    private static Map<String, Object> checked(UpdateResult<?> result) {
+        switch (result.status) {
+            case NOT_FOUND:
+                throw new ApiException(404, "Not found");
+            case CONFLICT:
+                throw new ApiException(409, "Changed by someone else since it was read");
+            default:
+                return Map.of("success", true);
+        }
+    }
+
+    private String authenticate(HttpExchange exchange) {
+        String token = token(exchange);
+        String user = token != null ? storage.getUserFromSession(token) : null;
+        if (user == null) {
+            throw new ApiException(401, "Not logged in");
+        }
+        return user;
+    }
+
+    private static String token(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        return header != null && header.startsWith("Bearer ") ? header.substring("Bearer ".length()).trim() : null;
+    }
+
+    private static Map<String, Object> authResult(UserManager.AuthResult result) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("success", result.success);
+        response.put("message", result.message);
+        response.put("token", result.sessionToken);
+        return response;
+    }
+
+    private static List<Map<String, Object>> emailRecords(List<Email> emails) {
+        List<Map<String, Object>> records = new ArrayList<>(emails.size());
+        emails.forEach(e -> records.add(DataTransfer.toRecord(e)));
+        return records;
+    }
+
+    private static Map<String, Object> readBody(HttpExchange exchange) throws IOException {
+        // Read one byte past the limit, so an oversized body is refused without buffering it all
+        byte[] bytes = exchange.getRequestBody().readNBytes(MAX_BODY_BYTES + 1);
+        if (bytes.length > MAX_BODY_BYTES) {
+            throw new ApiException(413, "Request body exceeds " + MAX_BODY_BYTES + " bytes");
+        }
+        if (bytes.length == 0) {
+            return Map.of();
+        }
+        return Json.parseObject(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                    return URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String field(Map<String, Object> body, String name) {
+        String value = optionalField(body, name);
+        if (value == null || value.trim().isEmpty()) {
+            throw new ApiException(400, "Missing field: " + name);
+        }
+        return value;
+    }
+
+    private static String optionalField(Map<String, Object> body, String name) {
+        return DataTransfer.string(body, name);
+    }
+
+    private static void requireMethod(String method, String expected) {
+        if (!method.equals(expected)) {
+            throw new ApiException(405, "Method not allowed");
+        }
+    }
+
+    private static void requireAuthor(String author, String user) {
+        if (!author.equals(user)) {
+            throw new ApiException(403, "Only the author can do that");
+        }
+    }
+
+    private static boolean isId(String segment) {
+        return !segment.isEmpty() && segment.chars().allMatch(Character::isDigit);
+    }
+
+    private static int id(String segment) {
+        if (!isId(segment)) {
+            throw new ApiException(404, "Not found");
+        }
+        return Integer.parseInt(segment);
+    }
+}
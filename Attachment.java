@@ -0,0 +1,23 @@
+/**
+ * A file attached to an email. The email only carries this small reference; the bytes live in
+ * an {@link AttachmentStore} under their SHA-256, so identical files attached to many emails
+ * are stored once.
+ */
+public final class Attachment {
+    private final String hash;
+    private final String fileName;
+    private final long size;
+
+    public Attachment(String hash, String fileName, long size) {
+        this.hash = hash;
+        this.fileName = fileName;
+        this.size = size;
+    }
+
+    // Hex SHA-256 of the content
+    public String getHash() { return hash; }
+
+    public String getFileName() { return fileName; }
+
+    public long getSize() { return size; }
+}
@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed file store for email attachments.
+ *
+ * Each file is named by the SHA-256 of its bytes, under a subdirectory named by the first two
+ * hex digits, so the same file attached to any number of emails is stored once. Files are
+ * written once and never modified.
+ *
+ * Content never passes through the heap: uploads are copied in 64 KB chunks through one
+ * direct buffer, hashed on the way into a temporary file and then moved into place, and
+ * reads go straight from the file to the caller's channel with
+ * {@link FileChannel#transferTo}, or through a read-only memory mapping.
+ *
+ * The store does not know which files are in use. An upload can be split into
+ * {@link #upload}, which does the slow copy, and {@link #commit}, which only moves the file
+ * into place, so a caller that deletes unused files under a lock can commit and record the
+ * new reference under the same lock.
+ */
+public class AttachmentStore {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final String TEMP_PREFIX = "upload";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * A copied and hashed file waiting in a temporary file to be committed or discarded.
+     */
+    public static final class Upload {
+        private final Path temp;
+        private final Attachment attachment;
+
+        private Upload(Path temp, Attachment attachment) {
+            this.temp = temp;
+            this.attachment = attachment;
+        }
+
+        public Attachment getAttachment() {
+            return attachment;
+        }
+    }
+
+    private final Path directory;
+
+    public AttachmentStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Copies the stream into the store and returns a reference to it. If a file with the
+     * same content is already stored, the new copy is discarded.
+     */
+    public Attachment put(InputStream in, String fileName) throws IOException {
+        return put(Channels.newChannel(in), fileName);
+    }
+
+    public Attachment put(ReadableByteChannel source, String fileName) throws IOException {
+        Upload upload = upload(source, fileName);
+        try {
+            commit(upload);
+            return upload.attachment;
+        } finally {
+            discard(upload);
+        }
+    }
+
+    /**
+     * Copies the stream into a temporary file in the store and hashes it. The file does not
+     * count as stored until it is passed to {@link #commit}.
+     */
+    public Upload upload(InputStream in, String fileName) throws IOException {
+        return upload(Channels.newChannel(in), fileName);
+    }
+
+    public Upload upload(ReadableByteChannel source, String fileName) throws IOException {
+        MessageDigest digest = sha256();
+        Path temp = Files.createTempFile(directory, TEMP_PREFIX, TEMP_SUFFIX);
+        boolean done = false;
+        try {
+            long size = 0;
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                while (source.read(buffer) >= 0) {
+                    buffer.flip();
+                    // Hash a view, so the buffer's own position is left for the write
+                    digest.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        size += out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                out.force(true);
+            }
+
+            done = true;
+            return new Upload(temp, new Attachment(hex(digest.digest()), fileName, size));
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Moves an upload into place under its hash. If a file with the same content is already
+     * stored, the new copy is discarded.
+     */
+    public void commit(Upload upload) throws IOException {
+        Path path = pathOf(upload.attachment.getHash());
+        if (!Files.exists(path)) {
+            Files.createDirectories(path.getParent());
+            // Two uploads of the same file may race here; either copy will do
+            Files.move(upload.temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(upload.temp);
+    }
+
+    /**
+     * Deletes an upload's temporary file, if it has not been committed.
+     */
+    public void discard(Upload upload) throws IOException {
+        Files.deleteIfExists(upload.temp);
+    }
+
+    /**
+     * Returns the hashes of all stored files.
+     */
+    public List<String> list() throws IOException {
+        List<String> hashes = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(directory, 2)) {
+            files.map(path -> path.getFileName().toString())
+                .filter(name -> name.matches("[0-9a-f]{64}"))
+                .forEach(hashes::add);
+        }
+        return hashes;
+    }
+
+    /**
+     * Deletes temporary files of uploads that were neither committed nor discarded, e.g.
+     * because the process died during the copy, once they are older than {@code age}.
+     */
+    public void deleteStaleUploads(Duration age) throws IOException {
+        long cutoff = System.currentTimeMillis() - age.toMillis();
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(directory, TEMP_PREFIX + "*" + TEMP_SUFFIX)) {
+            for (Path temp : temps) {
+                if (Files.getLastModifiedTime(temp).toMillis() < cutoff) {
+                    Files.deleteIfExists(temp);
+                }
+            }
+        }
+    }
+
+    public boolean contains(String hash) {
+        return Files.exists(pathOf(hash));
+    }
+
+    /**
+     * Writes the whole file to {@code target} and returns the number of bytes written. When
+     * the target is a file or socket channel the kernel copies the bytes directly.
+     */
+    public long transferTo(String hash, WritableByteChannel target) throws IOException {
+        try (FileChannel in = FileChannel.open(pathOf(hash), StandardOpenOption.READ)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, target);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Maps the file read-only. The mapping stays valid after the file is deleted.
+     */
+    public MappedByteBuffer map(String hash) throws IOException {
+        try (FileChannel in = FileChannel.open(pathOf(hash), StandardOpenOption.READ)) {
+            return in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        }
+    }
+
+    public void delete(String hash) throws IOException {
+        Files.deleteIfExists(pathOf(hash));
+    }
+
+    // Hashes come from records and requests, so check they cannot name anything else
+    private Path pathOf(String hash) {
+        if (hash == null || !hash.matches("[0-9a-fA-F]{64}")) {
+            throw new IllegalArgumentException("Not an attachment hash: " + hash);
+        }
+        String name = hash.toLowerCase(Locale.ROOT);
+        return directory.resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[2 * i] = HEX[(bytes[i] >> 4) & 0x0F];
+            out[2 * i + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(out);
+    }
+}
@@ -0,0 +1,70 @@
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Shows a suggestion popup under a text field while the user types.
+ */
+public class AutoCompleteSupport {
+    private final JTextField field;
+    private final Function<String, List<String>> completer;
+    private final JPopupMenu popup = new JPopupMenu();
+    private boolean applying;
+
+    private AutoCompleteSupport(JTextField field, Function<String, List<String>> completer) {
+        this.field = field;
+        this.completer = completer;
+        popup.setFocusable(false);
+    }
+
+    public static void install(JTextField field, Function<String, List<String>> completer) {
+        AutoCompleteSupport support = new AutoCompleteSupport(field, completer);
+        field.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) { support.scheduleUpdate(); }
+            @Override
+            public void removeUpdate(DocumentEvent e) { support.scheduleUpdate(); }
+            @Override
+            public void changedUpdate(DocumentEvent e) { }
+        });
+        field.addActionListener(e -> support.popup.setVisible(false));
+    }
+
+    // The document cannot be touched from inside its own listener, so update afterwards
+    private void scheduleUpdate() {
+        if (!applying) {
+            SwingUtilities.invokeLater(this::updateSuggestions);
+        }
+    }
+
+    private void updateSuggestions() {
+        popup.setVisible(false);
+        popup.removeAll();
+
+        String text = field.getText().trim();
+        if (text.isEmpty() || !field.isShowing()) {
+            return;
+        }
+
+        List<String> suggestions = completer.apply(text);
+        if (suggestions.isEmpty() || (suggestions.size() == 1 && suggestions.get(0).equals(text))) {
+            return;
+        }
+
+        for (String suggestion : suggestions) {
+            JMenuItem item = new JMenuItem(suggestion);
+            item.addActionListener(e -> {
+                applying = true;
+                field.setText(suggestion);
+                applying = false;
+                popup.setVisible(false);
+                field.requestFocusInWindow();
+            });
+            popup.add(item);
+        }
+        popup.show(field, 0, field.getHeight());
+        field.requestFocusInWindow();
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * The text body of an email, question or answer: held as a String, or, once moved, in an
+ * {@link OffHeapBodyStore} until it is released.
+ *
+ * Releasing the off-heap copy brings the text back onto the heap first, since entities that
+ * leave the store (spilled to disk, deleted, compacted away) may still be on screen.
+ *
+ * Readers take no lock; the UI and the API read bodies outside the storage lock. The current
+ * String or Body is published through one volatile field, and a Body is only freed after its
+ * replacement has been published, so a reader that finds its Body freed under it reads again.
+ */
+final class BodyText {
+    // A String, an OffHeapBodyStore.Body, or null
+    private volatile Object value;
+
+    String get() {
+        while (true) {
+            Object current = value;
+            if (!(current instanceof OffHeapBodyStore.Body)) {
+                return (String) current;
+            }
+            // A freed Body decodes to "", but by then 'value' no longer refers to it
+            String text = ((OffHeapBodyStore.Body) current).decode();
+            if (value == current) {
+                return text;
+            }
+        }
+    }
+
+    synchronized void set(String text) {
+        Object previous = value;
+        value = text;
+        if (previous instanceof OffHeapBodyStore.Body) {
+            ((OffHeapBodyStore.Body) previous).free();
+        }
+    }
+
+    synchronized void moveOffHeap(OffHeapBodyStore store) {
+        if (value instanceof String) {
+            value = store.put((String) value);
+        }
+    }
+
+    boolean isOffHeap() {
+        return value instanceof OffHeapBodyStore.Body;
+    }
+
+    // Frees the off-heap copy, keeping the text readable
+    synchronized void releaseOffHeap() {
+        Object current = value;
+        if (current instanceof OffHeapBodyStore.Body) {
+            OffHeapBodyStore.Body body = (OffHeapBodyStore.Body) current;
+            value = body.decode();
+            body.free();
+        }
+    }
+}
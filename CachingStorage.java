@@ -0,0 +1,444 @@
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Read-through cache in front of another {@link StorageBackend}, for backends where reads are
+ * expensive, such as a database.
+ *
+ * Single questions, each question's answers, the question list and every user's inbox, sent
+ * mail and drafts are cached in a {@link TinyLfuCache}, so popular questions and the
+ * logged-in users' mailboxes stay cached while one-off lookups do not displace them. All
+ * other operations go straight to the backend.
+ *
+ * Writes made through this class invalidate the entries they affect once the backend has
+ * applied them. Writes made to the backend by someone else can be fed in as mutation records
+ * through {@link #onMutation}, e.g. {@code MemoryStorage.addMutationListener(cache::onMutation)}.
+ * A load that overlaps an invalidation is returned but not cached, so a stale read can never
+ * be stored. Entities are copied going into the cache and again coming out, so neither the
+ * backend nor a caller can change what the cache holds.
+ */
+public class CachingStorage implements StorageBackend {
+    private enum Kind { QUESTION, ANSWERS, QUESTIONS, INBOX, SENT, DRAFTS }
+
+    private static final class Key {
+        final Kind kind;
+        final Object id;
+
+        Key(Kind kind, Object id) {
+            this.kind = kind;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).kind == kind && Objects.equals(((Key) o).id, id);
+        }
+
+        @Override
+        public int hashCode() {
+            return kind.hashCode() * 31 + Objects.hashCode(id);
+        }
+    }
+
+    private static final Key ALL_QUESTIONS = new Key(Kind.QUESTIONS, null);
+
+    private final StorageBackend backend;
+    private final TinyLfuCache<Key, Object> cache;
+    // Bumped by every invalidation; guarded by this
+    private long generation;
+
+    public CachingStorage(StorageBackend backend) {
+        this(backend, 10_000);
+    }
+
+    public CachingStorage(StorageBackend backend, int maximumEntries) {
+        this.backend = backend;
+        this.cache = new TinyLfuCache<>(maximumEntries);
+    }
+
+    /**
+     * Publishes hit, miss and eviction counts and the entry count as gauges named
+     * {@code <name>.hits} and so on.
+     */
+    public void registerMetrics(String name) {
+        Metrics.gauge(name + ".hits", this::getHitCount);
+        Metrics.gauge(name + ".misses", this::getMissCount);
+        Metrics.gauge(name + ".evictions", this::getEvictionCount);
+        Metrics.gauge(name + ".entries", this::size);
+    }
+
+    public synchronized long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public synchronized long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    public synchronized long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    public synchronized double getHitRate() {
+        long requests = cache.getHitCount() + cache.getMissCount();
+        return requests == 0 ? 0 : (double) cache.getHitCount() / requests;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized void invalidateAll() {
+        cache.clear();
+        generation++;
+    }
+
+    // User, session and login state are cheap point lookups and are not cached
+
+    @Override public void addUser(String username, String password) { backend.addUser(username, password); }
+    @Override public boolean addUserIfAbsent(String username, String password) { return backend.addUserIfAbsent(username, password); }
+    @Override public boolean userExists(String username) { return backend.userExists(username); }
+    @Override public String getPassword(String username) { return backend.getPassword(username); }
+
+    @Override public String createSession(String username) { return backend.createSession(username); }
+    @Override public void logout(String token) { backend.logout(token); }
+    @Override public String getUserFromSession(String token) { return backend.getUserFromSession(token); }
+
+    @Override public void incrementLoginAttempts(String username) { backend.incrementLoginAttempts(username); }
+    @Override public void resetLoginAttempts(String username) { backend.resetLoginAttempts(username); }
+    @Override public boolean isLockedOut(String username) { return backend.isLockedOut(username); }
+    @Override public long getLockoutTimeRemaining(String username) { return backend.getLockoutTimeRemaining(username); }
+
+    // Email Management
+
+    @Override
+    public int addEmail(String fromUser, String toUser, String subject, String content) {
+        int id = backend.addEmail(fromUser, toUser, subject, content);
+        invalidateMail(fromUser, toUser);
+        return id;
+    }
+
+    @Override
+    public int saveDraft(String fromUser, String toUser, String subject, String content) {
+        int id = backend.saveDraft(fromUser, toUser, subject, content);
+        invalidate(new Key(Kind.DRAFTS, fromUser));
+        return id;
+    }
+
+    @Override
+    public void sendDraft(int emailId) {
+        Email draft = findCachedEmail(emailId);
+        backend.sendDraft(emailId);
+        if (draft != null) {
+            invalidateMail(draft.getFromUser(), draft.getToUser());
+        } else {
+            // Without the draft we cannot tell whose mailboxes changed
+            invalidateKinds(EnumSet.of(Kind.INBOX, Kind.SENT, Kind.DRAFTS));
+        }
+    }
+
+    @Override
+    public List<Email> getInboxEmails(String username) {
+        return readList(new Key(Kind.INBOX, username), () -> backend.getInboxEmails(username), CachingStorage::copy);
+    }
+
+    @Override
+    public List<Email> getSentEmails(String username) {
+        return readList(new Key(Kind.SENT, username), () -> backend.getSentEmails(username), CachingStorage::copy);
+    }
+
+    @Override
+    public List<Email> getDrafts(String username) {
+        return readList(new Key(Kind.DRAFTS, username), () -> backend.getDrafts(username), CachingStorage::copy);
+    }
+
+    @Override
+    public void markAsRead(int emailId, String username) {
+        backend.markAsRead(emailId, username);
+        invalidate(new Key(Kind.INBOX, username));
+    }
+
+    @Override
+    public void deleteEmail(int emailId, String username) {
+        backend.deleteEmail(emailId, username);
+        synchronized (this) {
+            invalidateMailContaining(emailId);
+            cache.invalidate(new Key(Kind.INBOX, username));
+            cache.invalidate(new Key(Kind.SENT, username));
+            cache.invalidate(new Key(Kind.DRAFTS, username));
+            generation++;
+        }
+    }
+
+    // Question Management
+
+    @Override
+    public int addQuestion(String title, String content, String author) {
+        int id = backend.addQuestion(title, content, author);
+        invalidateQuestion(id);
+        return id;
+    }
+
+    @Override
+    public List<Question> getQuestions() {
+        return readList(ALL_QUESTIONS, backend::getQuestions, CachingStorage::copy);
+    }
+
+    @Override
+    public Optional<Question> getQuestion(int questionId) {
+        Optional<Question> question = read(new Key(Kind.QUESTION, questionId),
+            () -> backend.getQuestion(questionId).map(CachingStorage::copy));
+        return question.map(CachingStorage::copy);
+    }
+
+    @Override
+    public void updateQuestion(int questionId, String title, String content) {
+        backend.updateQuestion(questionId, title, content);
+        invalidateQuestion(questionId);
+    }
+
+    @Override
+    public UpdateResult<Question> updateQuestionIfVersion(int questionId, int expectedVersion, String title, String content) {
+        UpdateResult<Question> result = backend.updateQuestionIfVersion(questionId, expectedVersion, title, content);
+        // A conflict may mean the cached copy the caller edited is stale, so drop it either way
+        invalidateQuestion(questionId);
+        return result;
+    }
+
+    @Override
+    public void deleteQuestion(int questionId) {
+        backend.deleteQuestion(questionId);
+        invalidateQuestion(questionId);
+    }
+
+    @Override
+    public List<Question> searchQuestions(String query) {
+        return backend.searchQuestions(query);
+    }
+
+    // Answer Management
+
+    @Override
+    public int addAnswer(int questionId, String content, String author) {
+        int id = backend.addAnswer(questionId, content, author);
+        // Adding an answer can change the question's status
+        invalidateQuestion(questionId);
+        return id;
+    }
+
+    @Override
+    public List<Answer> getAnswersForQuestion(int questionId) {
+        return readList(new Key(Kind.ANSWERS, questionId), () -> backend.getAnswersForQuestion(questionId), CachingStorage::copy);
+    }
+
+    @Override
+    public void updateAnswer(int answerId, String content) {
+        backend.updateAnswer(answerId, content);
+        synchronized (this) {
+            cache.invalidateIf((key, value) -> key.kind == Kind.ANSWERS && containsAnswer(value, answerId));
+            generation++;
+        }
+    }
+
+    @Override
+    public UpdateResult<Answer> updateAnswerIfVersion(int answerId, int expectedVersion, String content) {
+        UpdateResult<Answer> result = backend.updateAnswerIfVersion(answerId, expectedVersion, content);
+        if (result.current != null) {
+            invalidate(new Key(Kind.ANSWERS, result.current.getQuestionId()));
+        }
+        return result;
+    }
+
+    @Override
+    public void deleteAnswer(int answerId) {
+        Integer questionId = findCachedQuestionOfAnswer(answerId);
+        backend.deleteAnswer(answerId);
+        if (questionId != null) {
+            invalidateQuestion(questionId);
+        } else {
+            // The question's status may have changed, and we do not know which question it is
+            invalidateKinds(EnumSet.of(Kind.QUESTION, Kind.QUESTIONS, Kind.ANSWERS));
+        }
+    }
+
+    @Override
+    public void acceptAnswer(int answerId, int questionId) {
+        backend.acceptAnswer(answerId, questionId);
+        invalidateQuestion(questionId);
+    }
+
+    @Override
+    public UpdateResult<Answer> acceptAnswerIfVersion(int answerId, int questionId, int expectedVersion) {
+        UpdateResult<Answer> result = backend.acceptAnswerIfVersion(answerId, questionId, expectedVersion);
+        invalidateQuestion(questionId);
+        return result;
+    }
+
+    /**
+     * Invalidates whatever a {@link MemoryStorage} mutation record affects, for writes that
+     * reach the backend without going through this cache.
+     */
+    public void onMutation(Map<String, Object> mutation) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> record = (Map<String, Object>) mutation.get("record");
+        String type = DataTransfer.string(record, "type");
+        boolean delete = "delete".equals(mutation.get("op"));
+        if ("email".equals(type)) {
+            if (delete) {
+                int id = DataTransfer.integer(record, "id");
+                synchronized (this) {
+                    invalidateMailContaining(id);
+                    generation++;
+                }
+            } else {
+                invalidateMail(DataTransfer.string(record, "from"), DataTransfer.string(record, "to"));
+            }
+        } else if ("question".equals(type)) {
+            invalidateQuestion(DataTransfer.integer(record, "id"));
+        } else if ("answer".equals(type)) {
+            if (delete) {
+                int id = DataTransfer.integer(record, "id");
+                synchronized (this) {
+                    cache.invalidateIf((key, value) -> key.kind == Kind.ANSWERS && containsAnswer(value, id));
+                    generation++;
+                }
+            } else {
+                invalidate(new Key(Kind.ANSWERS, DataTransfer.integer(record, "questionId")));
+            }
+        }
+    }
+
+    // Read-through: on a miss the backend is read without holding the lock
+    @SuppressWarnings("unchecked")
+    private <T> T read(Key key, Supplier<T> loader) {
+        long loadGeneration;
+        synchronized (this) {
+            Object cached = cache.get(key);
+            if (cached != null) {
+                return (T) cached;
+            }
+            loadGeneration = generation;
+        }
+        T value = loader.get();
+        synchronized (this) {
+            if (loadGeneration == generation) {
+                cache.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    // Lists are cached immutable, holding copies of what the backend returned, and handed out
+    // as new lists of new copies the caller may change
+    private <T> List<T> readList(Key key, Supplier<List<T>> loader, UnaryOperator<T> copy) {
+        List<T> cached = read(key, () -> {
+            List<T> loaded = new ArrayList<>();
+            loader.get().forEach(item -> loaded.add(copy.apply(item)));
+            return List.copyOf(loaded);
+        });
+        List<T> result = new ArrayList<>(cached.size());
+        cached.forEach(item -> result.add(copy.apply(item)));
+        return result;
+    }
+
+    private synchronized void invalidate(Key key) {
+        cache.invalidate(key);
+        generation++;
+    }
+
+    private synchronized void invalidateMail(String fromUser, String toUser) {
+        cache.invalidate(new Key(Kind.INBOX, toUser));
+        cache.invalidate(new Key(Kind.SENT, fromUser));
+        cache.invalidate(new Key(Kind.DRAFTS, fromUser));
+        generation++;
+    }
+
+    private synchronized void invalidateQuestion(int questionId) {
+        cache.invalidate(new Key(Kind.QUESTION, questionId));
+        cache.invalidate(new Key(Kind.ANSWERS, questionId));
+        cache.invalidate(ALL_QUESTIONS);
+        generation++;
+    }
+
+    private synchronized void invalidateKinds(Set<Kind> kinds) {
+        cache.invalidateIf((key, value) -> kinds.contains(key.kind));
+        generation++;
+    }
+
+    // Any cached mailbox holding the email, whoever's it is; caller holds the lock
+    private void invalidateMailContaining(int emailId) {
+        cache.invalidateIf((key, value) -> isMailbox(key) && findEmail(value, emailId) != null);
+    }
+
+    private synchronized Email findCachedEmail(int emailId) {
+        Email[] found = new Email[1];
+        cache.forEach((key, value) -> {
+            if (found[0] == null && isMailbox(key)) {
+                found[0] = findEmail(value, emailId);
+            }
+        });
+        return found[0];
+    }
+
+    private synchronized Integer findCachedQuestionOfAnswer(int answerId) {
+        Integer[] found = new Integer[1];
+        cache.forEach((key, value) -> {
+            if (found[0] == null && key.kind == Kind.ANSWERS && containsAnswer(value, answerId)) {
+                found[0] = (Integer) key.id;
+            }
+        });
+        return found[0];
+    }
+
+    private static boolean isMailbox(Key key) {
+        return key.kind == Kind.INBOX || key.kind == Kind.SENT || key.kind == Kind.DRAFTS;
+    }
+
+    private static Email findEmail(Object mailbox, int emailId) {
+        for (Object email : (List<?>) mailbox) {
+            if (((Email) email).getId() == emailId) {
+                return (Email) email;
+            }
+        }
+        return null;
+    }
+
+    private static boolean containsAnswer(Object answers, int answerId) {
+        for (Object answer : (List<?>) answers) {
+            if (((Answer) answer).getId() == answerId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Email copy(Email e) {
+        Email copy = new Email();
+        copy.setId(e.getId());
+        copy.setFromUser(e.getFromUser());
+        copy.setToUser(e.getToUser());
+        copy.setSubject(e.getSubject());
+        copy.setContent(e.getContent());
+        copy.setSentDate(e.getSentDate());
+        copy.setStatus(e.getStatus());
+        copy.setRead(e.isRead());
+        copy.setDeletedAt(e.getDeletedAt());
+        copy.setScheduledAt(e.getScheduledAt());
+        copy.setAttachments(e.getAttachments());
+        copy.setVersion(e.getVersion());
+        return copy;
+    }
+
+    private static Question copy(Question q) {
+        Question copy = new Question(q.getId(), q.getTitle(), q.getContent(), q.getAuthor(), q.getCreatedAt(), q.getStatus());
+        copy.setVersion(q.getVersion());
+        return copy;
+    }
+
+    private static Answer copy(Answer a) {
+        Answer copy = new Answer(a.getId(), a.getQuestionId(), a.getContent(), a.getAuthor(), a.getCreatedAt(), a.isAccepted());
+        copy.setVersion(a.getVersion());
+        return copy;
+    }
+}
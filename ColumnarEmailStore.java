@@ -0,0 +1,243 @@
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Compact email storage laid out as parallel arrays, one per field.
+ *
+ * Usernames are dictionary-encoded to int ids, send times are kept as epoch millis and the
+ * status and read flag share one byte, so a message costs a few dozen bytes plus its subject
+ * and body instead of an Email object with its own LocalDateTime and username Strings.
+ * Email objects are only created for the messages a query returns.
+ *
+ * Rows are appended in id order, so lookups by id are binary searches over the id column.
+ */
+public class ColumnarEmailStore {
+    private static final int STATUS_MASK = 0x03;
+    private static final int READ_FLAG = 0x04;
+    private static final long NOT_SCHEDULED = Long.MIN_VALUE;
+    private static final Email.EmailStatus[] STATUSES = Email.EmailStatus.values();
+
+    private final Map<String, Integer> userIds = new HashMap<>();
+    private final List<String> usernames = new ArrayList<>();
+
+    private int size;
+    private int[] ids = new int[64];
+    private int[] fromUsers = new int[64];
+    private int[] toUsers = new int[64];
+    private long[] sentMillis = new long[64];
+    private long[] scheduledMillis = new long[64];
+    private byte[] flags = new byte[64];
+    private int[] versions = new int[64];
+    private String[] subjects = new String[64];
+    private String[] contents = new String[64];
+    // Null for the common case of no attachments
+    private Attachment[][] attachments = new Attachment[64][];
+
+    public void add(int id, String fromUser, String toUser, String subject, String content,
+                    LocalDateTime sentDate, LocalDateTime scheduledAt, Email.EmailStatus status, boolean read,
+                    int version) {
+        if (size > 0 && id <= ids[size - 1]) {
+            throw new IllegalArgumentException("Email ids must be added in increasing order");
+        }
+        if (size == ids.length) {
+            grow();
+        }
+        ids[size] = id;
+        fromUsers[size] = userId(fromUser);
+        toUsers[size] = userId(toUser);
+        sentMillis[size] = toMillis(sentDate);
+        scheduledMillis[size] = scheduledAt != null ? toMillis(scheduledAt) : NOT_SCHEDULED;
+        flags[size] = (byte) (status.ordinal() | (read ? READ_FLAG : 0));
+        versions[size] = version;
+        subjects[size] = subject;
+        contents[size] = content;
+        size++;
+    }
+
+    public void add(Email email) {
+        add(email.getId(), email.getFromUser(), email.getToUser(), email.getSubject(),
+            email.getContent(), email.getSentDate(), email.getScheduledAt(), email.getStatus(), email.isRead(),
+            email.getVersion());
+        if (!email.getAttachments().isEmpty()) {
+            attachments[size - 1] = email.getAttachments().toArray(new Attachment[0]);
+        }
+    }
+
+    public Optional<Email> get(int emailId) {
+        int row = rowOf(emailId);
+        return row < 0 ? Optional.empty() : Optional.of(materialize(row));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int[] getIds() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * Materializes every stored email in id order, one at a time.
+     */
+    public void forEach(Consumer<Email> action) {
+        for (int row = 0; row < size; row++) {
+            action.accept(materialize(row));
+        }
+    }
+
+    public List<Email> getInboxEmails(String username) {
+        Integer user = userIds.get(username);
+        List<Email> result = new ArrayList<>();
+        if (user != null) {
+            for (int row = 0; row < size; row++) {
+                if (toUsers[row] == user && status(row) != Email.EmailStatus.DELETED) {
+                    result.add(materialize(row));
+                }
+            }
+        }
+        return newestFirst(result);
+    }
+
+    public List<Email> getSentEmails(String username) {
+        return fromUserWithStatus(username, Email.EmailStatus.SENT);
+    }
+
+    public List<Email> getDrafts(String username) {
+        return fromUserWithStatus(username, Email.EmailStatus.DRAFT);
+    }
+
+    /**
+     * Sends a draft that has a recipient and subject. Returns the sent email, or empty if
+     * there was no such draft or it was incomplete.
+     */
+    public Optional<Email> sendDraft(int emailId, LocalDateTime sentDate) {
+        int row = rowOf(emailId);
+        if (row < 0 || status(row) != Email.EmailStatus.DRAFT ||
+            usernames.get(toUsers[row]).trim().isEmpty() || subjects[row].trim().isEmpty()) {
+            return Optional.empty();
+        }
+        setStatus(row, Email.EmailStatus.SENT);
+        sentMillis[row] = toMillis(sentDate);
+        scheduledMillis[row] = NOT_SCHEDULED;
+        versions[row]++;
+        return Optional.of(materialize(row));
+    }
+
+    /**
+     * Sets or, with null, clears the time a draft is due to be sent. Returns the updated
+     * draft, or empty if there was no such draft.
+     */
+    public Optional<Email> schedule(int emailId, LocalDateTime scheduledAt) {
+        int row = rowOf(emailId);
+        if (row < 0 || status(row) != Email.EmailStatus.DRAFT) {
+            return Optional.empty();
+        }
+        scheduledMillis[row] = scheduledAt != null ? toMillis(scheduledAt) : NOT_SCHEDULED;
+        versions[row]++;
+        return Optional.of(materialize(row));
+    }
+
+    public void markAsRead(int emailId, String username) {
+        int row = rowOf(emailId);
+        if (row >= 0 && usernames.get(toUsers[row]).equals(username) && (flags[row] & READ_FLAG) == 0) {
+            flags[row] |= READ_FLAG;
+            versions[row]++;
+        }
+    }
+
+    public void deleteEmail(int emailId, String username) {
+        int row = rowOf(emailId);
+        if (row >= 0 && (usernames.get(fromUsers[row]).equals(username) ||
+                         usernames.get(toUsers[row]).equals(username))) {
+            setStatus(row, Email.EmailStatus.DELETED);
+            scheduledMillis[row] = NOT_SCHEDULED;
+            versions[row]++;
+        }
+    }
+
+    private List<Email> fromUserWithStatus(String username, Email.EmailStatus status) {
+        Integer user = userIds.get(username);
+        List<Email> result = new ArrayList<>();
+        if (user != null) {
+            for (int row = 0; row < size; row++) {
+                if (fromUsers[row] == user && status(row) == status) {
+                    result.add(materialize(row));
+                }
+            }
+        }
+        return newestFirst(result);
+    }
+
+    private static List<Email> newestFirst(List<Email> emails) {
+        emails.sort((e1, e2) -> e2.getSentDate().compareTo(e1.getSentDate()));
+        return emails;
+    }
+
+    private Email materialize(int row) {
+        Email email = new Email();
+        email.setId(ids[row]);
+        email.setFromUser(usernames.get(fromUsers[row]));
+        email.setToUser(usernames.get(toUsers[row]));
+        email.setSubject(subjects[row]);
+        email.setContent(contents[row]);
+        if (attachments[row] != null) {
+            email.setAttachments(Arrays.asList(attachments[row]));
+        }
+        email.setSentDate(toDateTime(sentMillis[row]));
+        if (scheduledMillis[row] != NOT_SCHEDULED) {
+            email.setScheduledAt(toDateTime(scheduledMillis[row]));
+        }
+        email.setStatus(status(row));
+        email.setRead((flags[row] & READ_FLAG) != 0);
+        email.setVersion(versions[row]);
+        return email;
+    }
+
+    private Email.EmailStatus status(int row) {
+        return STATUSES[flags[row] & STATUS_MASK];
+    }
+
+    private void setStatus(int row, Email.EmailStatus status) {
+        flags[row] = (byte) ((flags[row] & ~STATUS_MASK) | status.ordinal());
+    }
+
+    private int rowOf(int emailId) {
+        int row = Arrays.binarySearch(ids, 0, size, emailId);
+        return row >= 0 ? row : -1;
+    }
+
+    private int userId(String username) {
+        Integer id = userIds.get(username);
+        if (id == null) {
+            id = usernames.size();
+            userIds.put(username, id);
+            usernames.add(username);
+        }
+        return id;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime toDateTime(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        fromUsers = Arrays.copyOf(fromUsers, capacity);
+        toUsers = Arrays.copyOf(toUsers, capacity);
+        sentMillis = Arrays.copyOf(sentMillis, capacity);
+        scheduledMillis = Arrays.copyOf(scheduledMillis, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        versions = Arrays.copyOf(versions, capacity);
+        subjects = Arrays.copyOf(subjects, capacity);
+        contents = Arrays.copyOf(contents, capacity);
+        attachments = Arrays.copyOf(attachments, capacity);
+    }
+}
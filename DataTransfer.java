@@ -0,0 +1,356 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.IntFunction;
+
+/**
+ * Streams the whole of MemoryStorage to and from JSON Lines files: one JSON object per
+ * line, tagged with a "type" of user, email, question, answer or counters.
+ *
+ * Export copies the usernames, question and answer references and email ids under the storage
+ * lock, then converts the entities to records in chunks of 1000, each chunk under the lock,
+ * and writes them through a buffered file channel outside it. Users are never blocked for
+ * more than a chunk. The copies are not constant-memory: they cost a reference or an int per
+ * entity, a small fraction of the entities themselves. Emails are written in id order across
+ * the hot and cold tiers, so the file can be imported into the columnar store. Each record is
+ * consistent, but the dump as a whole is not a single point in time: a record changed during
+ * the export shows its state when its chunk was converted, entities added meanwhile are left
+ * out, and questions and emails deleted meanwhile are skipped, as are answers to a
+ * question that is gone. Import reads batches of lines, parses them into entities on a
+ * pool of worker threads and applies the parsed batches in file order, with a bounded number
+ * of batches in flight.
+ */
+public class DataTransfer {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int BATCH_SIZE = 2_000;
+    private static final int EXPORT_CHUNK_SIZE = 1_000;
+
+    /**
+     * Writes every user, email, question, answer and the id counters to {@code file}.
+     *
+     * @return the number of records written
+     */
+    public static long exportTo(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            RecordWriter out = new RecordWriter(writer);
+            List<String> usernames;
+            List<Question> questions;
+            List<Answer> answers;
+            int[] emailIds;
+            synchronized (MemoryStorage.class) {
+                usernames = MemoryStorage.getUsernames();
+                questions = MemoryStorage.getAllQuestions();
+                answers = MemoryStorage.getAllAnswers();
+                emailIds = MemoryStorage.getEmailIds();
+            }
+            writeChunked(usernames.size(), i -> {
+                String password = MemoryStorage.getPassword(usernames.get(i));
+                return password != null ? userRecord(usernames.get(i), password) : null;
+            }, out);
+            // Skip questions deleted since the copy
+            writeChunked(questions.size(), i -> {
+                Question question = questions.get(i);
+                return MemoryStorage.getQuestion(question.getId()).isPresent() ? toRecord(question) : null;
+            }, out);
+            // An answer whose question was deleted since the copy, or never restored, would
+            // import as an orphan
+            writeChunked(answers.size(), i -> {
+                Answer answer = answers.get(i);
+                return MemoryStorage.getQuestion(answer.getQuestionId()).isPresent() ? toRecord(answer) : null;
+            }, out);
+            writeChunked(emailIds.length, i -> {
+                Email email = MemoryStorage.getEmail(emailIds[i]);
+                return email != null ? toRecord(email) : null;
+            }, out);
+            // Taken last, so the counters are past every id written
+            int[] counters = MemoryStorage.getIdCounters();
+            out.write(countersRecord(counters[0], counters[1], counters[2]));
+            return out.count;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Builds records 0 to count - 1 a chunk at a time under the storage lock, and writes each
+    // chunk outside it; a null record is an entity no longer stored, and is skipped
+    private static void writeChunked(int count, IntFunction<Map<String, Object>> recordAt, RecordWriter out) {
+        List<Map<String, Object>> records = new ArrayList<>(EXPORT_CHUNK_SIZE);
+        for (int from = 0; from < count; from += EXPORT_CHUNK_SIZE) {
+            int to = Math.min(from + EXPORT_CHUNK_SIZE, count);
+            synchronized (MemoryStorage.class) {
+                for (int i = from; i < to; i++) {
+                    Map<String, Object> record = recordAt.apply(i);
+                    if (record != null) {
+                        records.add(record);
+                    }
+                }
+            }
+            records.forEach(out::write);
+            records.clear();
+        }
+    }
+
+    /**
+     * Loads every record in {@code file} into MemoryStorage, which is expected to be empty.
+     *
+     * @param workers number of threads parsing lines in parallel
+     * @return the number of records loaded, per record type
+     */
+    public static Map<String, Long> importFrom(Path file, int workers) throws IOException {
+        Map<String, Long> counts = new TreeMap<>();
+        ExecutorService parsers = Executors.newFixedThreadPool(workers);
+        Deque<Future<List<Object>>> inFlight = new ArrayDeque<>();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             BufferedReader reader = new BufferedReader(
+                 Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1), BUFFER_SIZE)) {
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    batch.add(line);
+                }
+                if (batch.size() == BATCH_SIZE) {
+                    inFlight.add(parsers.submit(parseTask(batch)));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                    // Keep a couple of batches per worker queued, applying the oldest first
+                    if (inFlight.size() >= workers * 2) {
+                        apply(await(inFlight.poll()), counts);
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                inFlight.add(parsers.submit(parseTask(batch)));
+            }
+            while (!inFlight.isEmpty()) {
+                apply(await(inFlight.poll()), counts);
+            }
+        } finally {
+            parsers.shutdownNow();
+        }
+        return counts;
+    }
+
+    // Parses lines into entities on a worker thread, so applying them is only insertion
+    private static Callable<List<Object>> parseTask(List<String> lines) {
+        return () -> {
+            List<Object> entities = new ArrayList<>(lines.size());
+            for (String line : lines) {
+                Map<String, Object> record = Json.parseObject(line);
+                String type = String.valueOf(record.get("type"));
+                switch (type) {
+                    case "email": entities.add(emailFromRecord(record)); break;
+                    case "question": entities.add(questionFromRecord(record)); break;
+                    case "answer": entities.add(answerFromRecord(record)); break;
+                    case "user":
+                    case "counters": entities.add(record); break;
+                    default: throw new IllegalArgumentException("Unknown record type: " + type);
+                }
+            }
+            return entities;
+        };
+    }
+
+    private static List<Object> await(Future<List<Object>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Malformed record: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void apply(List<Object> entities, Map<String, Long> counts) {
+        synchronized (MemoryStorage.class) {
+            for (Object entity : entities) {
+                String type;
+                if (entity instanceof Email) {
+                    MemoryStorage.restoreEmail((Email) entity);
+                    type = "email";
+                } else if (entity instanceof Question) {
+                    MemoryStorage.restoreQuestion((Question) entity);
+                    type = "question";
+                } else if (entity instanceof Answer) {
+                    MemoryStorage.restoreAnswer((Answer) entity);
+                    type = "answer";
+                } else {
+                    Map<String, Object> record = (Map<String, Object>) entity;
+                    type = String.valueOf(record.get("type"));
+                    if (type.equals("user")) {
+                        MemoryStorage.restoreUser(string(record, "username"), string(record, "password"));
+                    } else {
+                        MemoryStorage.restoreIdCounters(integer(record, "nextEmailId"),
+                            integer(record, "nextQuestionId"), integer(record, "nextAnswerId"));
+                    }
+                }
+                counts.merge(type, 1L, Long::sum);
+            }
+        }
+    }
+
+    // Record mappings, shared with the other components that move entities around as JSON
+    public static Map<String, Object> userRecord(String username, String password) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("type", "user");
+        record.put("username", username);
+        record.put("password", password);
+        return record;
+    }
+
+    public static Map<String, Object> countersRecord(int nextEmailId, int nextQuestionId, int nextAnswerId) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("type", "counters");
+        record.put("nextEmailId", nextEmailId);
+        record.put("nextQuestionId", nextQuestionId);
+        record.put("nextAnswerId", nextAnswerId);
+        return record;
+    }
+
+    public static Map<String, Object> toRecord(Email email) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("type", "email");
+        record.put("id", email.getId());
+        record.put("from", email.getFromUser());
+        record.put("to", email.getToUser());
+        record.put("subject", email.getSubject());
+        record.put("content", email.getContent());
+        record.put("sentDate", String.valueOf(email.getSentDate()));
+        record.put("status", email.getStatus().name());
+        record.put("read", email.isRead());
+        record.put("deletedAt", email.getDeletedAt() != null ? email.getDeletedAt().toString() : null);
+        record.put("scheduledAt", email.getScheduledAt() != null ? email.getScheduledAt().toString() : null);
+        if (!email.getAttachments().isEmpty()) {
+            List<Map<String, Object>> attachments = new ArrayList<>();
+            for (Attachment attachment : email.getAttachments()) {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("hash", attachment.getHash());
+                entry.put("name", attachment.getFileName());
+                entry.put("size", attachment.getSize());
+                attachments.add(entry);
+            }
+            record.put("attachments", attachments);
+        }
+        record.put("version", email.getVersion());
+        return record;
+    }
+
+    public static Email emailFromRecord(Map<String, Object> record) {
+        Email email = new Email();
+        email.setId(integer(record, "id"));
+        email.setFromUser(string(record, "from"));
+        email.setToUser(string(record, "to"));
+        email.setSubject(string(record, "subject"));
+        email.setContent(string(record, "content"));
+        email.setSentDate(dateTime(record, "sentDate"));
+        email.setStatus(Email.EmailStatus.valueOf(string(record, "status")));
+        email.setRead(Boolean.TRUE.equals(record.get("read")));
+        email.setDeletedAt(dateTime(record, "deletedAt"));
+        email.setScheduledAt(dateTime(record, "scheduledAt"));
+        if (record.get("attachments") instanceof List) {
+            List<Attachment> attachments = new ArrayList<>();
+            for (Object entry : (List<?>) record.get("attachments")) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> fields = (Map<String, Object>) entry;
+                Object size = fields.get("size");
+                attachments.add(new Attachment(string(fields, "hash"), string(fields, "name"),
+                    size instanceof Number ? ((Number) size).longValue() : 0));
+            }
+            email.setAttachments(attachments);
+        }
+        email.setVersion(version(record));
+        return email;
+    }
+
+    public static Map<String, Object> toRecord(Question question) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("type", "question");
+        record.put("id", question.getId());
+        record.put("title", question.getTitle());
+        record.put("content", question.getContent());
+        record.put("author", question.getAuthor());
+        record.put("createdAt", String.valueOf(question.getCreatedAt()));
+        record.put("status", question.getStatus());
+        record.put("version", question.getVersion());
+        return record;
+    }
+
+    public static Question questionFromRecord(Map<String, Object> record) {
+        Question question = new Question(integer(record, "id"), string(record, "title"), string(record, "content"),
+            string(record, "author"), dateTime(record, "createdAt"), string(record, "status"));
+        question.setVersion(version(record));
+        return question;
+    }
+
+    public static Map<String, Object> toRecord(Answer answer) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("type", "answer");
+        record.put("id", answer.getId());
+        record.put("questionId", answer.getQuestionId());
+        record.put("content", answer.getContent());
+        record.put("author", answer.getAuthor());
+        record.put("createdAt", String.valueOf(answer.getCreatedAt()));
+        record.put("accepted", answer.isAccepted());
+        record.put("version", answer.getVersion());
+        return record;
+    }
+
+    public static Answer answerFromRecord(Map<String, Object> record) {
+        Answer answer = new Answer(integer(record, "id"), integer(record, "questionId"), string(record, "content"),
+            string(record, "author"), dateTime(record, "createdAt"), Boolean.TRUE.equals(record.get("accepted")));
+        answer.setVersion(version(record));
+        return answer;
+    }
+
+    static String string(Map<String, Object> record, String field) {
+        Object value = record.get(field);
+        return value != null ? value.toString() : null;
+    }
+
+    static int integer(Map<String, Object> record, String field) {
+        Object value = record.get(field);
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    // Records written before entities were versioned start at version 1
+    private static int version(Map<String, Object> record) {
+        return record.containsKey("version") ? integer(record, "version") : 1;
+    }
+
+    private static LocalDateTime dateTime(Map<String, Object> record, String field) {
+        Object value = record.get(field);
+        return value != null ? LocalDateTime.parse(value.toString()) : null;
+    }
+
+    private static class RecordWriter {
+        private final Writer writer;
+        private final StringBuilder line = new StringBuilder(256);
+        long count;
+
+        RecordWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        void write(Map<String, Object> record) {
+            line.setLength(0);
+            Json.write(line, record);
+            line.append('\n');
+            try {
+                writer.append(line);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            count++;
+        }
+    }
+}
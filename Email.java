@@ -1,14 +1,22 @@
 import java.time.LocalDateTime;
+import java.util.List;
 
 public class Email {
     private int id;
     private String fromUser;
     private String toUser;
     private String subject;
-    private String content;
+    private final BodyText content = new BodyText();
     private LocalDateTime sentDate;
     private EmailStatus status;
     private boolean isRead;
+    private LocalDateTime deletedAt;
+    // References into the AttachmentStore; the files themselves never live on the heap
+    private List<Attachment> attachments = List.of();
+    // When a draft is due to be sent automatically; null if it is not scheduled
+    private LocalDateTime scheduledAt;
+    // Incremented by the store on every change, for conditional updates
+    private int version = 1;
 
     public enum EmailStatus {
         SENT,
@@ -35,8 +43,13 @@ public class Email {
     public String getSubject() { return subject; }
     public void setSubject(String subject) { this.subject = subject; }
 
-    public String getContent() { return content; }
-    public void setContent(String content) { this.content = content; }
+    public String getContent() { return content.get(); }
+    public void setContent(String content) { this.content.set(content); }
+
+    public void moveContentOffHeap(OffHeapBodyStore store) { content.moveOffHeap(store); }
+    public boolean isContentOffHeap() { return content.isOffHeap(); }
+    // Frees the off-heap copy; the content stays readable from the heap
+    public void releaseOffHeapContent() { content.releaseOffHeap(); }
 
     public LocalDateTime getSentDate() { return sentDate; }
     public void setSentDate(LocalDateTime sentDate) { this.sentDate = sentDate; }
@@ -47,10 +60,23 @@ public class Email {
     public boolean isRead() { return isRead; }
     public void setRead(boolean read) { isRead = read; }
 
+    public LocalDateTime getDeletedAt() { return deletedAt; }
+    public void setDeletedAt(LocalDateTime deletedAt) { this.deletedAt = deletedAt; }
+
+    public List<Attachment> getAttachments() { return attachments; }
+    public void setAttachments(List<Attachment> attachments) { this.attachments = List.copyOf(attachments); }
+
+    public LocalDateTime getScheduledAt() { return scheduledAt; }
+    public void setScheduledAt(LocalDateTime scheduledAt) { this.scheduledAt = scheduledAt; }
+
+    public int getVersion() { return version; }
+    public void setVersion(int version) { this.version = version; }
+    public void incrementVersion() { version++; }
+
     public boolean isValid() {
         return fromUser != null && !fromUser.trim().isEmpty() &&
                toUser != null && !toUser.trim().isEmpty() &&
                subject != null && !subject.trim().isEmpty() &&
-               content != null;
+               getContent() != null;
     }
 }
\ No newline at end of file
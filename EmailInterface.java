@@ -1,10 +1,24 @@
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
 
 public class EmailInterface extends JPanel {
+    private static final int SEARCH_LIMIT = 500;
+    private static final DateTimeFormatter SCHEDULE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
     private final String currentUser;
     private final String sessionToken;
     private JTable emailTable;
@@ -13,8 +27,13 @@ public class EmailInterface extends JPanel {
     private JButton replyButton;
     private JButton forwardButton;
     private JButton deleteButton;
+    private JButton saveAttachmentsButton;
     private JToolBar toolbar;
     private JButton sendDraftButton;
+    private JButton scheduleButton;
+    private JTextField searchField;
+    // The emails listed in the table, row for row
+    private List<Email> displayedEmails = new ArrayList<>();
 
     public EmailInterface(String username, String sessionToken) {
         this.currentUser = username;
@@ -35,23 +54,35 @@ public class EmailInterface extends JPanel {
         replyButton = new JButton("Reply");
         forwardButton = new JButton("Forward");
         deleteButton = new JButton("Delete");
+        saveAttachmentsButton = new JButton("Save Attachments");
         sendDraftButton = new JButton("Send Draft");
         sendDraftButton.setVisible(false);
+        scheduleButton = new JButton("Schedule Send");
+        scheduleButton.setVisible(false);
+        searchField = new JTextField(20);
+        searchField.setToolTipText("Words, from:user, to:user or subject:word");
+        JButton searchButton = new JButton("Search");
 
         toolbar.add(composeButton);
         toolbar.addSeparator();
         toolbar.add(sendDraftButton);
+        toolbar.add(scheduleButton);
         toolbar.addSeparator();
         toolbar.add(replyButton);
         toolbar.add(forwardButton);
+        toolbar.add(saveAttachmentsButton);
         toolbar.addSeparator();
         toolbar.add(deleteButton);
+        toolbar.addSeparator();
+        toolbar.add(searchField);
+        toolbar.add(searchButton);
         toolbar.add(refreshButton);
 
         // Initially disable email-specific buttons
         replyButton.setEnabled(false);
         forwardButton.setEnabled(false);
         deleteButton.setEnabled(false);
+        saveAttachmentsButton.setEnabled(false);
 
         // Create email list
         String[] columns = {"From", "Subject", "Date", "Status"};
@@ -79,10 +110,14 @@ public class EmailInterface extends JPanel {
         // Add listeners
         composeButton.addActionListener(e -> showEmailDialog("Compose Email", "", "", ""));
         refreshButton.addActionListener(e -> loadEmails());
+        searchField.addActionListener(e -> loadEmails());
+        searchButton.addActionListener(e -> loadEmails());
         replyButton.addActionListener(e -> replyToEmail());
         forwardButton.addActionListener(e -> forwardEmail());
         deleteButton.addActionListener(e -> deleteSelectedEmail());
+        saveAttachmentsButton.addActionListener(e -> saveSelectedAttachments());
         sendDraftButton.addActionListener(e -> sendSelectedDraft());
+        scheduleButton.addActionListener(e -> scheduleSelectedDraft());
 
         emailTable.getSelectionModel().addListSelectionListener(e -> {
             if (!e.getValueIsAdjusting()) {
@@ -98,34 +133,43 @@ public class EmailInterface extends JPanel {
             replyButton.setEnabled(false);
             forwardButton.setEnabled(false);
             deleteButton.setEnabled(false);
+            saveAttachmentsButton.setEnabled(false);
             sendDraftButton.setVisible(false);
+            scheduleButton.setVisible(false);
             return;
         }
 
-        List<Email> allEmails = getAllEmails();
         int selectedRow = emailTable.getSelectedRow();
-        if (selectedRow >= 0 && selectedRow < allEmails.size()) {
-            Email email = allEmails.get(selectedRow);
+        if (selectedRow >= 0 && selectedRow < displayedEmails.size()) {
+            Email email = displayedEmails.get(selectedRow);
             boolean isDraft = email.getStatus() == Email.EmailStatus.DRAFT;
             boolean isAuthor = email.getFromUser().equals(currentUser);
 
             sendDraftButton.setVisible(isDraft && isAuthor);
+            scheduleButton.setVisible(isDraft && isAuthor);
             replyButton.setEnabled(!isDraft);
             forwardButton.setEnabled(!isDraft);
             deleteButton.setEnabled(true);
+            saveAttachmentsButton.setEnabled(!email.getAttachments().isEmpty());
         }
     }
 
+    // Shows the search results while there is a query, otherwise the whole mailbox
     private void loadEmails() {
         tableModel.setRowCount(0);
-        List<Email> allEmails = getAllEmails();
+        String query = searchField.getText().trim();
+        displayedEmails = query.isEmpty()
+            ? getAllEmails()
+            : MemoryStorage.searchEmails(currentUser, query, SEARCH_LIMIT);
 
-        for (Email email : allEmails) {
+        for (Email email : displayedEmails) {
             Object[] row = {
                 email.getFromUser(),
                 email.getSubject(),
                 email.getSentDate(),
-                email.getStatus()
+                email.getScheduledAt() != null
+                    ? "SCHEDULED " + email.getScheduledAt().format(SCHEDULE_FORMAT)
+                    : email.getStatus()
             };
             tableModel.addRow(row);
         }
@@ -141,6 +185,11 @@ public class EmailInterface extends JPanel {
     }
 
     private void showEmailDialog(String title, String to, String subject, String content) {
+        showEmailDialog(title, to, subject, content, List.of());
+    }
+
+    private void showEmailDialog(String title, String to, String subject, String content,
+                                 List<Attachment> initialAttachments) {
         JDialog dialog = new JDialog((Frame)SwingUtilities.getWindowAncestor(this), title, true);
         dialog.setSize(500, 400);
         dialog.setLocationRelativeTo(this);
@@ -157,6 +206,7 @@ public class EmailInterface extends JPanel {
         gbc.gridx = 0; gbc.gridy = 0;
         formPanel.add(new JLabel("To:"), gbc);
         JTextField toField = new JTextField(to, 30);
+        AutoCompleteSupport.install(toField, prefix -> MemoryStorage.completeUsernames(prefix, currentUser, 8));
         gbc.gridx = 1;
         formPanel.add(toField, gbc);
 
@@ -167,6 +217,42 @@ public class EmailInterface extends JPanel {
         gbc.gridx = 1;
         formPanel.add(subjectField, gbc);
 
+        // Attachments: files are streamed into the attachment store as they are picked. The
+        // dialog holds a pin on each until the email is stored, or gives them up when closed.
+        List<Attachment> attachments = new ArrayList<>(MemoryStorage.pinAttachments(initialAttachments));
+        boolean[] stored = {false};
+        dialog.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        dialog.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                if (!stored[0]) {
+                    MemoryStorage.unpinAttachments(attachments);
+                }
+            }
+        });
+        gbc.gridx = 0; gbc.gridy = 2;
+        formPanel.add(new JLabel("Attachments:"), gbc);
+        JPanel attachmentPanel = new JPanel(new BorderLayout(4, 0));
+        JLabel attachmentLabel = new JLabel(describeAttachments(attachments));
+        JButton attachButton = new JButton("Attach...");
+        attachmentPanel.add(attachmentLabel, BorderLayout.CENTER);
+        attachmentPanel.add(attachButton, BorderLayout.EAST);
+        gbc.gridx = 1;
+        formPanel.add(attachmentPanel, gbc);
+        attachButton.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(dialog) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File file = chooser.getSelectedFile();
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                attachments.add(MemoryStorage.storeAttachment(in, file.getName()));
+                attachmentLabel.setText(describeAttachments(attachments));
+            } catch (IOException | IllegalStateException ex) {
+                JOptionPane.showMessageDialog(dialog, "Could not attach " + file.getName() + ": " + ex.getMessage());
+            }
+        });
+
         // Content area
         JTextArea contentArea = new JTextArea(content, 15, 30);
         contentArea.setLineWrap(true);
@@ -188,23 +274,40 @@ public class EmailInterface extends JPanel {
                 JOptionPane.showMessageDialog(dialog, "Please specify a recipient");
                 return;
             }
+            if (!MemoryStorage.userExists(toField.getText().trim())) {
+                JOptionPane.showMessageDialog(dialog, "No user named \"" + toField.getText().trim() + "\" exists");
+                return;
+            }
             if (subjectField.getText().trim().isEmpty()) {
                 JOptionPane.showMessageDialog(dialog, "Please specify a subject");
                 return;
             }
 
-            MemoryStorage.addEmail(currentUser, toField.getText(), 
-                                 subjectField.getText(), contentArea.getText());
+            int id = MemoryStorage.addEmail(currentUser, toField.getText(), 
+                                 subjectField.getText(), contentArea.getText(), attachments);
+            if (id < 0) {
+                repinAttachments(attachments, attachmentLabel);
+                showMailboxFull(dialog);
+                return;
+            }
+            stored[0] = true;
             dialog.dispose();
             loadEmails();
             JOptionPane.showMessageDialog(this, "Email sent successfully!");
         });
 
         saveButton.addActionListener(e -> {
-            MemoryStorage.saveDraft(currentUser,
+            int id = MemoryStorage.saveDraft(currentUser,
                                   toField.getText().trim(),
                                   subjectField.getText().trim(),
-                                  contentArea.getText().trim());
+                                  contentArea.getText().trim(),
+                                  attachments);
+            if (id < 0) {
+                repinAttachments(attachments, attachmentLabel);
+                showMailboxFull(dialog);
+                return;
+            }
+            stored[0] = true;
             dialog.dispose();
             loadEmails();
             JOptionPane.showMessageDialog(this, "Draft saved successfully!");
@@ -223,8 +326,7 @@ public class EmailInterface extends JPanel {
     private void sendSelectedDraft() {
         int selectedRow = emailTable.getSelectedRow();
         if (selectedRow >= 0) {
-            List<Email> allEmails = getAllEmails();
-            Email email = allEmails.get(selectedRow);
+            Email email = displayedEmails.get(selectedRow);
 
             if (email.getStatus() == Email.EmailStatus.DRAFT) {
                 int confirm = JOptionPane.showConfirmDialog(this,
@@ -241,11 +343,110 @@ public class EmailInterface extends JPanel {
         }
     }
 
+    // Asks when to send the selected draft; clearing the time takes it off the schedule
+    private void scheduleSelectedDraft() {
+        int selectedRow = emailTable.getSelectedRow();
+        if (selectedRow < 0) {
+            return;
+        }
+        Email email = displayedEmails.get(selectedRow);
+        LocalDateTime current = email.getScheduledAt() != null
+            ? email.getScheduledAt() : LocalDateTime.now().plusHours(1);
+        String input = (String) JOptionPane.showInputDialog(this,
+            "Send at (yyyy-MM-dd HH:mm), or leave empty to cancel the schedule:",
+            "Schedule Send", JOptionPane.PLAIN_MESSAGE, null, null, current.format(SCHEDULE_FORMAT));
+        if (input == null) {
+            return;
+        }
+        if (input.trim().isEmpty()) {
+            MemoryStorage.cancelScheduledSend(email.getId());
+            loadEmails();
+            return;
+        }
+
+        LocalDateTime sendAt;
+        try {
+            sendAt = LocalDateTime.parse(input.trim(), SCHEDULE_FORMAT);
+        } catch (DateTimeParseException ex) {
+            JOptionPane.showMessageDialog(this, "Please enter a time like " + current.format(SCHEDULE_FORMAT));
+            return;
+        }
+        if (MemoryStorage.scheduleDraft(email.getId(), sendAt)) {
+            loadEmails();
+            JOptionPane.showMessageDialog(this, "Draft will be sent at " + sendAt.format(SCHEDULE_FORMAT));
+        } else {
+            JOptionPane.showMessageDialog(this, "Only drafts with a recipient and subject can be scheduled.");
+        }
+    }
+
+    private void showMailboxFull(Component parent) {
+        MailboxQuota.Usage usage = MemoryStorage.getMailboxUsage(currentUser);
+        String detail = "This message could not be stored: your mailbox is full or the mail server is out of space.";
+        if (usage.maxMessages != Integer.MAX_VALUE || usage.maxBytes != Long.MAX_VALUE) {
+            detail += "\nYou are using " + usage.messages + " of " + usage.maxMessages + " messages and " +
+                formatSize(usage.bytes) + " of " + formatSize(usage.maxBytes) + ".";
+        }
+        JOptionPane.showMessageDialog(parent, detail, "Mailbox Full", JOptionPane.WARNING_MESSAGE);
+    }
+
+    // Saves each attachment of the selected email where the user picks, copying file to file
+    private void saveSelectedAttachments() {
+        int selectedRow = emailTable.getSelectedRow();
+        if (selectedRow < 0) {
+            return;
+        }
+        for (Attachment attachment : displayedEmails.get(selectedRow).getAttachments()) {
+            JFileChooser chooser = new JFileChooser();
+            chooser.setSelectedFile(new File(attachment.getFileName()));
+            if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            try (FileChannel out = FileChannel.open(chooser.getSelectedFile().toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                MemoryStorage.transferAttachment(attachment.getHash(), out);
+            } catch (IOException | IllegalStateException ex) {
+                JOptionPane.showMessageDialog(this, "Could not save " + attachment.getFileName() + ": " + ex.getMessage());
+                return;
+            }
+        }
+    }
+
+    // A refused email gives up the pins on its attachments; take them again while the dialog stays open
+    private static void repinAttachments(List<Attachment> attachments, JLabel label) {
+        List<Attachment> pinned = MemoryStorage.pinAttachments(attachments);
+        attachments.clear();
+        attachments.addAll(pinned);
+        label.setText(describeAttachments(attachments));
+    }
+
+    private static String describeAttachments(List<Attachment> attachments) {
+        if (attachments.isEmpty()) {
+            return "none";
+        }
+        StringBuilder text = new StringBuilder();
+        for (Attachment attachment : attachments) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(attachment.getFileName()).append(" (").append(formatSize(attachment.getSize())).append(")");
+        }
+        return text.toString();
+    }
+
+    private static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return (bytes / 1024) + " KB";
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
     private void replyToEmail() {
         int selectedRow = emailTable.getSelectedRow();
         if (selectedRow >= 0) {
-            List<Email> allEmails = getAllEmails();
-            Email email = allEmails.get(selectedRow);
+            Email email = displayedEmails.get(selectedRow);
             String subject = "Re: " + email.getSubject();
             showEmailDialog("Reply", email.getFromUser(), subject, 
                 "\n\n-------- Original Message --------\n" + email.getContent());
@@ -255,24 +456,23 @@ public class EmailInterface extends JPanel {
     private void forwardEmail() {
         int selectedRow = emailTable.getSelectedRow();
         if (selectedRow >= 0) {
-            List<Email> allEmails = getAllEmails();
-            Email email = allEmails.get(selectedRow);
+            Email email = displayedEmails.get(selectedRow);
             String subject = "Fwd: " + email.getSubject();
             showEmailDialog("Forward", "", subject,
                 "\n\n-------- Forwarded Message --------\n" +
                 "From: " + email.getFromUser() + "\n" +
                 "Date: " + email.getSentDate() + "\n" +
                 "Subject: " + email.getSubject() + "\n\n" +
-                email.getContent());
+                email.getContent(),
+                email.getAttachments());
         }
     }
 
     private void deleteSelectedEmail() {
         int selectedRow = emailTable.getSelectedRow();
         if (selectedRow >= 0) {
-            List<Email> allEmails = getAllEmails();
-            if (selectedRow < allEmails.size()) {
-                Email email = allEmails.get(selectedRow);
+            if (selectedRow < displayedEmails.size()) {
+                Email email = displayedEmails.get(selectedRow);
 
                 int confirm = JOptionPane.showConfirmDialog(this,
                     "Are you sure you want to delete this email?",
@@ -291,16 +491,19 @@ public class EmailInterface extends JPanel {
     private void displaySelectedEmail() {
         int selectedRow = emailTable.getSelectedRow();
         if (selectedRow >= 0) {
-            List<Email> allEmails = getAllEmails();
-            if (selectedRow < allEmails.size()) {
-                Email email = allEmails.get(selectedRow);
+            if (selectedRow < displayedEmails.size()) {
+                Email email = displayedEmails.get(selectedRow);
 
                 StringBuilder content = new StringBuilder();
                 content.append("From: ").append(email.getFromUser()).append("\n");
                 content.append("To: ").append(email.getToUser()).append("\n");
                 content.append("Subject: ").append(email.getSubject()).append("\n");
                 content.append("Date: ").append(email.getSentDate()).append("\n");
-                content.append("Status: ").append(email.getStatus()).append("\n\n");
+                content.append("Status: ").append(email.getStatus()).append("\n");
+                if (!email.getAttachments().isEmpty()) {
+                    content.append("Attachments: ").append(describeAttachments(email.getAttachments())).append("\n");
+                }
+                content.append("\n");
                 content.append(email.getContent());
 
                 emailContent.setText(content.toString());
@@ -1,5 +1,8 @@
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 
 public class EmailLoginUI extends JFrame {
     private final UserManager userManager;
@@ -207,6 +210,33 @@ public class EmailLoginUI extends JFrame {
             e.printStackTrace();
         }
 
+        // Attachment files, one per distinct content; -Dattachments.dir=... moves them
+        try {
+            MemoryStorage.useAttachmentStore(Path.of(System.getProperty("attachments.dir", "attachments")));
+        } catch (IOException e) {
+            System.err.println("Attachments are disabled: " + e.getMessage());
+        }
+
+        // Mailbox limits per user, unlimited unless set, and a cap on the heap all mail may
+        // use, half the maximum heap unless set
+        MemoryStorage.setDefaultMailboxQuota(Integer.getInteger("mail.quota.messages", Integer.MAX_VALUE),
+            Long.getLong("mail.quota.bytes", Long.MAX_VALUE));
+        MemoryStorage.setEmailMemoryLimit(Long.getLong("mail.memoryLimitBytes", Runtime.getRuntime().maxMemory() / 2));
+
+        // Purge mail deleted more than 30 days ago, a couple of milliseconds at a time
+        new StorageCompactor(Duration.ofDays(30), Duration.ofSeconds(1), Duration.ofMillis(2)).start();
+
+        // Operation latencies and collection sizes; -Dmetrics.dumpSeconds=N also prints them
+        Metrics.enableJmx();
+        long dumpSeconds = Long.getLong("metrics.dumpSeconds", 0);
+        if (dumpSeconds > 0) {
+            Metrics.startPeriodicDump(Duration.ofSeconds(dumpSeconds), System.out);
+        }
+        // Searches run on the UI thread, so flag them well before the 100 ms default;
+        // -Dmetrics.sampleRate=0.01 also traces one call in a hundred
+        SlowOperationLog.setThreshold("MemoryStorage.searchQuestions", Duration.ofMillis(50));
+        SlowOperationLog.setSampleRate(Double.parseDouble(System.getProperty("metrics.sampleRate", "0")));
+
         SwingUtilities.invokeLater(() -> {
             EmailLoginUI ui = new EmailLoginUI();
             ui.setVisible(true);
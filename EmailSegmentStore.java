@@ -0,0 +1,730 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Cold email tier: immutable segment files on disk, each with its own id and user index.
+ *
+ * A segment is written once from a batch of old messages and never rewritten. Its footer
+ * holds the sorted id -> offset index and, per user, the positions of the messages they sent
+ * and received; those indexes are loaded into memory when the segment is opened, while the
+ * messages themselves are read on demand through a bounded LRU cache.
+ *
+ * Since the files cannot change, later read and delete flags, with the time of the delete,
+ * are kept in an overlay that is also appended to a flags file next to the segments, and
+ * replayed from it on open. Once a quarter of a segment's messages are read flags or mail
+ * deleted long enough ago to purge, {@link #startCompaction} rewrites the segment with the
+ * read flags folded in and that mail dropped. The rewritten file takes the old one's place in
+ * the segment order, and the flags file is rewritten with only the flags still needed, so
+ * neither the overlay nor the file grows without bound.
+ */
+public class EmailSegmentStore implements Closeable {
+    private static final int MAGIC = 0x454D5347;  // "EMSG"
+    // Segments written since emails have attachments; each message ends with its attachment list
+    private static final int MAGIC_WITH_ATTACHMENTS = 0x454D5341;  // "EMSA"
+    // Segments written since emails have versions; each message then ends with its version,
+    // deletedAt and scheduledAt, and the footer ends with an index of the deleted messages
+    private static final int MAGIC_WITH_VERSIONS = 0x454D5356;  // "EMSV"
+    private static final String SUFFIX = ".seg";
+    private static final String FLAGS_FILE = "flags.log";
+    // Flags file records: the email id, then one of these; FLAG_DELETED_AT is followed by the
+    // epoch millis of the delete. Files from before delete times were kept hold FLAG_DELETED.
+    private static final byte FLAG_READ = 1;
+    private static final byte FLAG_DELETED = 2;
+    private static final byte FLAG_DELETED_AT = 3;
+    // Stands for a missing deletedAt or scheduledAt in a segment
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final Email.EmailStatus[] STATUSES = Email.EmailStatus.values();
+
+    private static class Segment {
+        final Path path;
+        // Segment files are named number.seg, or number.generation.seg once rewritten
+        final int number;
+        final int generation;
+        final FileChannel channel;
+        final int magic;
+        final int[] ids;
+        final long[] offsets;
+        final Map<String, int[]> received;
+        final Map<String, int[]> sent;
+        // Positions of the messages written already deleted, and when they were deleted
+        final int[] deletedPositions;
+        final long[] deletedAt;
+
+        Segment(Path path, int number, int generation, FileChannel channel, int magic, int[] ids, long[] offsets,
+                Map<String, int[]> received, Map<String, int[]> sent, int[] deletedPositions, long[] deletedAt) {
+            this.path = path;
+            this.number = number;
+            this.generation = generation;
+            this.channel = channel;
+            this.magic = magic;
+            this.ids = ids;
+            this.offsets = offsets;
+            this.received = received;
+            this.sent = sent;
+            this.deletedPositions = deletedPositions;
+            this.deletedAt = deletedAt;
+        }
+    }
+
+    /**
+     * A segment rewrite started by {@link #startCompaction}. {@link #write} does the slow part
+     * and needs no lock; {@link #commit} then puts the new file in place.
+     */
+    public final class Compaction {
+        private final Segment target;
+        private final Path path;
+        private final Set<Integer> foldedReads;
+        private final Set<Integer> purgedIds;
+        private final List<Email> purged = new ArrayList<>();
+        private boolean written;
+
+        private Compaction(Segment target, Path path, Set<Integer> foldedReads, Set<Integer> purgedIds) {
+            this.target = target;
+            this.path = path;
+            this.foldedReads = foldedReads;
+            this.purgedIds = purgedIds;
+        }
+
+        /**
+         * Writes the new segment file from the old one. Flags set meanwhile stay in the
+         * overlay and apply to the new file as well.
+         */
+        public void write() throws IOException {
+            List<Email> kept = new ArrayList<>(target.ids.length - purgedIds.size());
+            for (int position = 0; position < target.ids.length; position++) {
+                Email email = decode(target, target.offsets[position]);
+                if (purgedIds.contains(email.getId())) {
+                    purged.add(email);
+                    continue;
+                }
+                if (foldedReads.contains(email.getId()) && !email.isRead()) {
+                    email.setRead(true);
+                    email.incrementVersion();
+                }
+                kept.add(email);
+            }
+            writeFile(path, kept);
+            written = true;
+        }
+    }
+
+    private final Path directory;
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<Integer, Email> cache;
+    private final Map<Integer, LocalDateTime> deletedOverrides = new HashMap<>();
+    private final Set<Integer> readOverrides = new HashSet<>();
+    private Compaction compaction;
+    private FileChannel flagsLog;
+    private int nextSegment = 1;
+    private int emailCount;
+    private int maxId;
+
+    /**
+     * Opens the store in {@code directory}, loading the indexes of any segments already there.
+     *
+     * @param cacheSize how many decoded cold emails to keep in memory
+     */
+    public EmailSegmentStore(Path directory, int cacheSize) throws IOException {
+        this.directory = directory;
+        this.cache = new LinkedHashMap<Integer, Email>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Email> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        Files.createDirectories(directory);
+        // The newest generation of each segment; an older one is left only if a rewrite was
+        // cut short after the new file was in place
+        TreeMap<Integer, Path> latest = new TreeMap<>();
+        Map<Integer, Integer> generations = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String[] parts = path.getFileName().toString().split("\\.");
+                int number = Integer.parseInt(parts[0]);
+                int generation = parts.length > 2 ? Integer.parseInt(parts[1]) : 0;
+                Integer newest = generations.get(number);
+                if (newest != null && newest > generation) {
+                    Files.delete(path);
+                    continue;
+                }
+                if (newest != null) {
+                    Files.delete(latest.get(number));
+                }
+                latest.put(number, path);
+                generations.put(number, generation);
+            }
+        }
+        for (Map.Entry<Integer, Path> entry : latest.entrySet()) {
+            nextSegment = Math.max(nextSegment, entry.getKey() + 1);
+            openSegment(entry.getValue(), entry.getKey(), generations.get(entry.getKey()), segments.size());
+        }
+        loadFlags();
+    }
+
+    /**
+     * Writes the given emails, in id order, as a new immutable segment.
+     */
+    public synchronized void writeSegment(List<Email> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        int number = nextSegment++;
+        Path path = segmentPath(number, 0);
+        writeFile(path, batch);
+        openSegment(path, number, 0, segments.size());
+    }
+
+    private Path segmentPath(int number, int generation) {
+        return directory.resolve(generation == 0
+            ? String.format("%08d%s", number, SUFFIX)
+            : String.format("%08d.%d%s", number, generation, SUFFIX));
+    }
+
+    // Writes the emails, in id order, to a temporary file and moves it to 'path'
+    private static void writeFile(Path path, List<Email> batch) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        int[] ids = new int[batch.size()];
+        long[] offsets = new long[batch.size()];
+        Map<String, List<Integer>> received = new HashMap<>();
+        Map<String, List<Integer>> sent = new HashMap<>();
+        List<Integer> deleted = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CountingOutputStream counter = new CountingOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(counter);
+
+            for (int i = 0; i < batch.size(); i++) {
+                Email email = batch.get(i);
+                ids[i] = email.getId();
+                offsets[i] = counter.count;
+                received.computeIfAbsent(email.getToUser(), k -> new ArrayList<>()).add(i);
+                sent.computeIfAbsent(email.getFromUser(), k -> new ArrayList<>()).add(i);
+                if (email.getStatus() == Email.EmailStatus.DELETED) {
+                    deleted.add(i);
+                }
+
+                out.writeInt(email.getId());
+                writeString(out, email.getFromUser());
+                writeString(out, email.getToUser());
+                writeString(out, email.getSubject());
+                writeString(out, email.getContent());
+                out.writeLong(toMillis(email.getSentDate()));
+                out.writeByte(email.getStatus().ordinal());
+                out.writeBoolean(email.isRead());
+                out.writeInt(email.getAttachments().size());
+                for (Attachment attachment : email.getAttachments()) {
+                    writeString(out, attachment.getHash());
+                    writeString(out, attachment.getFileName());
+                    out.writeLong(attachment.getSize());
+                }
+                out.writeInt(email.getVersion());
+                out.writeLong(toMillis(email.getDeletedAt()));
+                out.writeLong(toMillis(email.getScheduledAt()));
+            }
+
+            // Footer: id index, then the per-user indexes, then where the footer starts
+            long indexOffset = counter.count;
+            out.writeInt(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                out.writeInt(ids[i]);
+                out.writeLong(offsets[i]);
+            }
+            writeUserIndex(out, received);
+            writeUserIndex(out, sent);
+            out.writeInt(deleted.size());
+            for (int position : deleted) {
+                out.writeInt(position);
+                out.writeLong(toMillis(batch.get(position).getDeletedAt()));
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(MAGIC_WITH_VERSIONS);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized Optional<Email> get(int emailId) {
+        for (Segment segment : segments) {
+            int position = Arrays.binarySearch(segment.ids, emailId);
+            if (position >= 0) {
+                return Optional.of(read(segment, position));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Returns every cold email received by {@code username} that has not been deleted.
+     */
+    public synchronized List<Email> getReceived(String username) {
+        List<Email> result = new ArrayList<>();
+        for (Segment segment : segments) {
+            for (int position : segment.received.getOrDefault(username, new int[0])) {
+                Email email = read(segment, position);
+                if (email.getStatus() != Email.EmailStatus.DELETED) {
+                    result.add(email);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns every cold email sent by {@code username} that is still in the SENT state.
+     */
+    public synchronized List<Email> getSent(String username) {
+        List<Email> result = new ArrayList<>();
+        for (Segment segment : segments) {
+            for (int position : segment.sent.getOrDefault(username, new int[0])) {
+                Email email = read(segment, position);
+                if (email.getStatus() == Email.EmailStatus.SENT) {
+                    result.add(email);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Marks a cold email read if {@code username} received it. Returns whether the email is
+     * stored here at all.
+     */
+    public synchronized boolean markAsRead(int emailId, String username) {
+        Optional<Email> email = get(emailId);
+        if (email.isPresent() && email.get().getToUser().equals(username) && !email.get().isRead()) {
+            readOverrides.add(emailId);
+            appendFlag(emailId, FLAG_READ, NO_TIME);
+            applyOverrides(email.get());
+        }
+        return email.isPresent();
+    }
+
+    /**
+     * Deletes a cold email if {@code username} sent or received it. Returns whether the email
+     * is stored here at all.
+     */
+    public synchronized boolean deleteEmail(int emailId, String username) {
+        Optional<Email> email = get(emailId);
+        if (email.isPresent() && (email.get().getFromUser().equals(username) ||
+                                  email.get().getToUser().equals(username)) &&
+                email.get().getStatus() != Email.EmailStatus.DELETED) {
+            // Whole millis, as stored in the flags file
+            LocalDateTime deletedAt = fromMillis(toMillis(LocalDateTime.now()));
+            deletedOverrides.put(emailId, deletedAt);
+            appendFlag(emailId, FLAG_DELETED_AT, toMillis(deletedAt));
+            applyOverrides(email.get());
+        }
+        return email.isPresent();
+    }
+
+    /**
+     * Reads every cold email in id order without going through the cache.
+     */
+    public synchronized void forEach(Consumer<Email> action) {
+        for (Segment segment : segments) {
+            for (int position = 0; position < segment.ids.length; position++) {
+                Email email = decode(segment, segment.offsets[position]);
+                applyOverrides(email);
+                action.accept(email);
+            }
+        }
+    }
+
+    /**
+     * Picks the segment with the most messages to fold in or purge, if they make up at least a
+     * quarter of it: read flags, and deleted messages whose delete was before
+     * {@code deletedBefore}. Returns null if no segment needs rewriting or a rewrite is
+     * already under way. The caller runs {@link Compaction#write}, then {@link #commit}, and
+     * in any case {@link #abandon}.
+     */
+    public synchronized Compaction startCompaction(LocalDateTime deletedBefore) {
+        if (compaction != null) {
+            return null;
+        }
+        long cutoff = toMillis(deletedBefore);
+        Segment target = null;
+        Set<Integer> targetReads = null;
+        Set<Integer> targetPurged = null;
+        for (Segment segment : segments) {
+            Set<Integer> reads = new HashSet<>();
+            Set<Integer> purged = new HashSet<>();
+            for (int emailId : segment.ids) {
+                if (readOverrides.contains(emailId)) {
+                    reads.add(emailId);
+                }
+                LocalDateTime deletedAt = deletedOverrides.get(emailId);
+                if (deletedAt != null && toMillis(deletedAt) < cutoff) {
+                    purged.add(emailId);
+                }
+            }
+            for (int i = 0; i < segment.deletedPositions.length; i++) {
+                if (segment.deletedAt[i] != NO_TIME && segment.deletedAt[i] < cutoff) {
+                    purged.add(segment.ids[segment.deletedPositions[i]]);
+                }
+            }
+            reads.removeAll(purged);
+            int count = reads.size() + purged.size();
+            if (count * 4 >= segment.ids.length && count > 0 &&
+                    (target == null || count > targetReads.size() + targetPurged.size())) {
+                target = segment;
+                targetReads = reads;
+                targetPurged = purged;
+            }
+        }
+        if (target == null) {
+            return null;
+        }
+        compaction = new Compaction(target, segmentPath(target.number, target.generation + 1), targetReads, targetPurged);
+        return compaction;
+    }
+
+    /**
+     * Puts a written compaction's new segment in place of the old one and passes the purged
+     * messages to {@code purged}. Returns how many there were.
+     */
+    public synchronized int commit(Compaction done, Consumer<Email> purged) throws IOException {
+        Segment target = done.target;
+        int index = segments.indexOf(target);
+        if (done != compaction || !done.written || index < 0) {
+            throw new IllegalStateException("Compaction is not ready to commit");
+        }
+        segments.remove(index);
+        emailCount -= target.ids.length;
+        openSegment(done.path, target.number, target.generation + 1, index);
+        target.channel.close();
+        Files.delete(target.path);
+        for (int emailId : target.ids) {
+            cache.remove(emailId);
+        }
+        readOverrides.removeAll(done.foldedReads);
+        deletedOverrides.keySet().removeAll(done.purgedIds);
+        rewriteFlags();
+        compaction = null;
+        done.purged.forEach(purged);
+        return done.purged.size();
+    }
+
+    /**
+     * Ends a compaction that was not committed. Does nothing once it has been.
+     */
+    public synchronized void abandon(Compaction done) {
+        if (done == compaction) {
+            compaction = null;
+        }
+    }
+
+    /**
+     * Returns the ids of every stored email, deleted or not, one segment after another.
+     */
+    public synchronized int[] getIds() {
+        int[] result = new int[emailCount];
+        int next = 0;
+        for (Segment segment : segments) {
+            System.arraycopy(segment.ids, 0, result, next, segment.ids.length);
+            next += segment.ids.length;
+        }
+        return result;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized int getEmailCount() {
+        return emailCount;
+    }
+
+    public synchronized int getMaxId() {
+        return maxId;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments) {
+            segment.channel.close();
+        }
+        segments.clear();
+        cache.clear();
+        if (flagsLog != null) {
+            flagsLog.close();
+            flagsLog = null;
+        }
+    }
+
+    private Email read(Segment segment, int position) {
+        int emailId = segment.ids[position];
+        Email email = cache.get(emailId);
+        if (email == null) {
+            email = decode(segment, segment.offsets[position]);
+            cache.put(emailId, email);
+        }
+        applyOverrides(email);
+        return email;
+    }
+
+    // Overrides only ever mark mail read or deleted, each once, so applying them to cached
+    // copies again changes nothing
+    private void applyOverrides(Email email) {
+        if (readOverrides.contains(email.getId()) && !email.isRead()) {
+            email.setRead(true);
+            email.incrementVersion();
+        }
+        LocalDateTime deletedAt = deletedOverrides.get(email.getId());
+        if (deletedAt != null && email.getStatus() != Email.EmailStatus.DELETED) {
+            email.setStatus(Email.EmailStatus.DELETED);
+            email.setDeletedAt(deletedAt);
+            email.incrementVersion();
+        }
+    }
+
+    // Replays the flags file into the overlay, ignoring a record cut short by a crash. Deletes
+    // recorded without a time count from now, so their mail is kept for a full retention period.
+    private void loadFlags() throws IOException {
+        Path path = directory.resolve(FLAGS_FILE);
+        long valid = 0;
+        if (Files.exists(path)) {
+            LocalDateTime now = fromMillis(toMillis(LocalDateTime.now()));
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                while (true) {
+                    int emailId;
+                    byte flag;
+                    long deletedAt = NO_TIME;
+                    try {
+                        emailId = in.readInt();
+                        flag = in.readByte();
+                        if (flag == FLAG_DELETED_AT) {
+                            deletedAt = in.readLong();
+                        }
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    valid += flag == FLAG_DELETED_AT ? 13 : 5;
+                    if (flag == FLAG_READ) {
+                        readOverrides.add(emailId);
+                    } else if (flag == FLAG_DELETED) {
+                        deletedOverrides.putIfAbsent(emailId, now);
+                    } else if (flag == FLAG_DELETED_AT) {
+                        deletedOverrides.putIfAbsent(emailId, fromMillis(deletedAt));
+                    }
+                }
+            }
+        }
+        // Append after the last whole record, dropping a torn one
+        flagsLog = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        flagsLog.truncate(valid);
+        flagsLog.position(flagsLog.size());
+    }
+
+    private void appendFlag(int emailId, byte flag, long deletedAt) {
+        ByteBuffer record = ByteBuffer.allocate(13).putInt(emailId).put(flag);
+        if (flag == FLAG_DELETED_AT) {
+            record.putLong(deletedAt);
+        }
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                flagsLog.write(record);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not record email flag", e);
+        }
+    }
+
+    // Replaces the flags file with one record per flag still in the overlay
+    private void rewriteFlags() throws IOException {
+        Path path = directory.resolve(FLAGS_FILE);
+        Path temp = directory.resolve(FLAGS_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            for (int emailId : readOverrides) {
+                out.writeInt(emailId);
+                out.writeByte(FLAG_READ);
+            }
+            for (Map.Entry<Integer, LocalDateTime> entry : deletedOverrides.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeByte(FLAG_DELETED_AT);
+                out.writeLong(toMillis(entry.getValue()));
+            }
+        }
+        flagsLog.close();
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        flagsLog = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Email decode(Segment segment, long offset) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new ChannelInputStream(segment.channel, offset), 8 * 1024));
+            Email email = new Email();
+            email.setId(in.readInt());
+            email.setFromUser(readString(in));
+            email.setToUser(readString(in));
+            email.setSubject(readString(in));
+            email.setContent(readString(in));
+            email.setSentDate(fromMillis(in.readLong()));
+            email.setStatus(STATUSES[in.readByte()]);
+            email.setRead(in.readBoolean());
+            if (segment.magic != MAGIC) {
+                int count = in.readInt();
+                if (count > 0) {
+                    List<Attachment> attachments = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        attachments.add(new Attachment(readString(in), readString(in), in.readLong()));
+                    }
+                    email.setAttachments(attachments);
+                }
+            }
+            if (segment.magic == MAGIC_WITH_VERSIONS) {
+                email.setVersion(in.readInt());
+                email.setDeletedAt(fromMillis(in.readLong()));
+                email.setScheduledAt(fromMillis(in.readLong()));
+            }
+            return email;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read email segment", e);
+        }
+    }
+
+    private void openSegment(Path path, int number, int generation, int index) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        ByteBuffer tail = ByteBuffer.allocate(12);
+        channel.read(tail, channel.size() - 12);
+        tail.flip();
+        long indexOffset = tail.getLong();
+        int magic = tail.getInt();
+        if (magic != MAGIC && magic != MAGIC_WITH_ATTACHMENTS && magic != MAGIC_WITH_VERSIONS) {
+            channel.close();
+            throw new IOException("Not an email segment: " + path);
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new ChannelInputStream(channel, indexOffset), 64 * 1024));
+        int count = in.readInt();
+        int[] ids = new int[count];
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = in.readInt();
+            offsets[i] = in.readLong();
+        }
+        Map<String, int[]> received = readUserIndex(in);
+        Map<String, int[]> sent = readUserIndex(in);
+        int[] deletedPositions = new int[magic == MAGIC_WITH_VERSIONS ? in.readInt() : 0];
+        long[] deletedAt = new long[deletedPositions.length];
+        for (int i = 0; i < deletedPositions.length; i++) {
+            deletedPositions[i] = in.readInt();
+            deletedAt[i] = in.readLong();
+        }
+
+        segments.add(index, new Segment(path, number, generation, channel, magic, ids, offsets, received, sent,
+                                        deletedPositions, deletedAt));
+        emailCount += count;
+        if (count > 0) {
+            maxId = Math.max(maxId, ids[count - 1]);
+        }
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time != null ? time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() : NO_TIME;
+    }
+
+    private static LocalDateTime fromMillis(long millis) {
+        return millis != NO_TIME ? LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()) : null;
+    }
+
+    private static void writeUserIndex(DataOutputStream out, Map<String, List<Integer>> index) throws IOException {
+        out.writeInt(index.size());
+        for (Map.Entry<String, List<Integer>> entry : index.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (int position : entry.getValue()) {
+                out.writeInt(position);
+            }
+        }
+    }
+
+    private static Map<String, int[]> readUserIndex(DataInputStream in) throws IOException {
+        int users = in.readInt();
+        Map<String, int[]> index = new HashMap<>(users * 2);
+        for (int i = 0; i < users; i++) {
+            String username = readString(in);
+            int[] positions = new int[in.readInt()];
+            for (int j = 0; j < positions.length; j++) {
+                positions[j] = in.readInt();
+            }
+            index.put(username, positions);
+        }
+        return index;
+    }
+
+    // Length-prefixed UTF-8, since writeUTF is limited to 64 KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    // Positional reads, so concurrent readers of one channel do not disturb each other
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+
+        ChannelInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+    }
+}
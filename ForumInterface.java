@@ -1,6 +1,8 @@
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 
 public class ForumInterface extends JPanel {
@@ -12,6 +14,11 @@ public class ForumInterface extends JPanel {
     private JButton editQuestionButton;
     private JButton deleteQuestionButton;
     private JSplitPane splitPane;
+    private JComboBox<String> statusFilter;
+    private JComboBox<String> dateFilter;
+    private JComboBox<String> sortOrder;
+    private JCheckBox mineOnly;
+    private List<Question> displayedQuestions = new ArrayList<>();
 
     public ForumInterface(String username, String sessionToken) {
         this.currentUser = username;
@@ -20,6 +27,7 @@ public class ForumInterface extends JPanel {
         setLayout(new BorderLayout());
         setupUI();
         loadQuestions();
+        displayHotQuestions();
     }
 
     private void setupUI() {
@@ -33,7 +41,12 @@ public class ForumInterface extends JPanel {
         editQuestionButton = new JButton("Edit");
         deleteQuestionButton = new JButton("Delete");
         JTextField searchField = new JTextField(20);
+        AutoCompleteSupport.install(searchField, prefix -> MemoryStorage.completeQuestionTitles(prefix, 8));
         JButton searchButton = new JButton("Search");
+        statusFilter = new JComboBox<>(new String[] {"All", "OPEN", "IN_PROGRESS", "ANSWERED"});
+        dateFilter = new JComboBox<>(new String[] {"Any time", "Last 24 hours", "Last 7 days", "Last 30 days"});
+        sortOrder = new JComboBox<>(new String[] {"Newest first", "Oldest first"});
+        mineOnly = new JCheckBox("My Questions");
 
         toolbar.add(askButton);
         toolbar.addSeparator();
@@ -43,6 +56,11 @@ public class ForumInterface extends JPanel {
         toolbar.addSeparator();
         toolbar.add(deleteQuestionButton);
         toolbar.addSeparator();
+        toolbar.add(statusFilter);
+        toolbar.add(dateFilter);
+        toolbar.add(sortOrder);
+        toolbar.add(mineOnly);
+        toolbar.addSeparator();
         toolbar.add(searchField);
         toolbar.add(searchButton);
         toolbar.add(refreshButton);
@@ -79,6 +97,10 @@ public class ForumInterface extends JPanel {
         answerButton.addActionListener(e -> showAnswerDialog());
         editQuestionButton.addActionListener(e -> editSelectedQuestion());
         deleteQuestionButton.addActionListener(e -> deleteSelectedQuestion());
+        statusFilter.addActionListener(e -> refreshDisplay());
+        dateFilter.addActionListener(e -> refreshDisplay());
+        sortOrder.addActionListener(e -> refreshDisplay());
+        mineOnly.addActionListener(e -> refreshDisplay());
 
         questionsTable.getSelectionModel().addListSelectionListener(e -> {
             if (!e.getValueIsAdjusting()) {
@@ -86,7 +108,7 @@ public class ForumInterface extends JPanel {
                 boolean hasSelection = selectedRow != -1;
 
                 if (hasSelection) {
-                    Question question = MemoryStorage.getQuestions().get(selectedRow);
+                    Question question = displayedQuestions.get(selectedRow);
                     boolean isAuthor = question.getAuthor().equals(currentUser);
                     editQuestionButton.setEnabled(isAuthor);
                     deleteQuestionButton.setEnabled(isAuthor);
@@ -96,6 +118,7 @@ public class ForumInterface extends JPanel {
                     editQuestionButton.setEnabled(false);
                     deleteQuestionButton.setEnabled(false);
                     answerButton.setEnabled(false);
+                    displayHotQuestions();
                 }
             }
         });
@@ -168,8 +191,7 @@ public class ForumInterface extends JPanel {
     private void showAnswerDialog() {
         int selectedRow = questionsTable.getSelectedRow();
         if (selectedRow >= 0) {
-            List<Question> questions = MemoryStorage.getQuestions();
-            Question question = questions.get(selectedRow);
+            Question question = displayedQuestions.get(selectedRow);
 
             JDialog dialog = new JDialog((Frame)SwingUtilities.getWindowAncestor(this), "Answer Question", true);
             dialog.setMinimumSize(new Dimension(500, 400));
@@ -265,13 +287,17 @@ public class ForumInterface extends JPanel {
         buttonPanel.add(updateButton);
         buttonPanel.add(cancelButton);
 
+        // The version the user started editing from
+        int[] baseVersion = { answer.getVersion() };
         updateButton.addActionListener(e -> {
             if (answerArea.getText().trim().isEmpty()) {
                 JOptionPane.showMessageDialog(dialog, "Answer cannot be empty");
                 return;
             }
 
-            MemoryStorage.updateAnswer(answer.getId(), answerArea.getText().trim());
+            if (!AnswerDialog.saveAnswerEdit(dialog, answer, baseVersion, answerArea)) {
+                return;
+            }
             dialog.dispose();
             refreshDisplay();
         });
@@ -294,8 +320,7 @@ public class ForumInterface extends JPanel {
     private void editSelectedQuestion() {
         int selectedRow = questionsTable.getSelectedRow();
         if (selectedRow >= 0) {
-            List<Question> questions = MemoryStorage.getQuestions();
-            Question question = questions.get(selectedRow);
+            Question question = displayedQuestions.get(selectedRow);
 
             if (!question.getAuthor().equals(currentUser)) {
                 JOptionPane.showMessageDialog(this, 
@@ -339,6 +364,8 @@ public class ForumInterface extends JPanel {
             buttonPanel.add(updateButton);
             buttonPanel.add(cancelButton);
 
+            // The version the user started editing from
+            int[] baseVersion = { question.getVersion() };
             updateButton.addActionListener(e -> {
                 if (titleField.getText().trim().isEmpty()) {
                     JOptionPane.showMessageDialog(dialog, "Please enter a title");
@@ -349,9 +376,29 @@ public class ForumInterface extends JPanel {
                     return;
                 }
 
-                MemoryStorage.updateQuestion(question.getId(), 
-                                           titleField.getText().trim(), 
-                                           contentArea.getText().trim());
+                String title = titleField.getText().trim();
+                String content = contentArea.getText().trim();
+                UpdateResult<Question> result = MemoryStorage.updateQuestionIfVersion(question.getId(),
+                                                                                      baseVersion[0], title, content);
+                while (result.isConflict()) {
+                    int theirVersion = result.current.getVersion();
+                    String theirTitle = result.current.getTitle();
+                    String theirContent = result.current.getContent();
+                    int choice = AnswerDialog.resolveConflict(dialog, "question",
+                                                              theirTitle + "\n\n" + theirContent);
+                    if (choice != AnswerDialog.OVERWRITE) {
+                        if (choice == AnswerDialog.USE_THEIRS) {
+                            titleField.setText(theirTitle);
+                            contentArea.setText(theirContent);
+                            baseVersion[0] = theirVersion;
+                        }
+                        return;
+                    }
+                    result = MemoryStorage.updateQuestionIfVersion(question.getId(), theirVersion, title, content);
+                }
+                if (result.status == UpdateResult.Status.NOT_FOUND) {
+                    JOptionPane.showMessageDialog(dialog, "This question has been deleted.");
+                }
                 dialog.dispose();
                 refreshDisplay();
             });
@@ -372,8 +419,7 @@ public class ForumInterface extends JPanel {
     private void deleteSelectedQuestion() {
         int selectedRow = questionsTable.getSelectedRow();
         if (selectedRow >= 0) {
-            List<Question> questions = MemoryStorage.getQuestions();
-            Question question = questions.get(selectedRow);
+            Question question = displayedQuestions.get(selectedRow);
 
             if (!question.getAuthor().equals(currentUser)) {
                 JOptionPane.showMessageDialog(this, 
@@ -398,18 +444,11 @@ public class ForumInterface extends JPanel {
 
                         private void loadQuestions() {
                             int selectedRow = questionsTable.getSelectedRow();
-                            tableModel.setRowCount(0);
-                            List<Question> questions = MemoryStorage.getQuestions();
-
-                            for (Question question : questions) {
-                                Object[] row = {
-                                    question.getTitle(),
-                                    question.getAuthor(),
-                                    question.getCreatedAt(),
-                                    question.getStatus()
-                                };
-                                tableModel.addRow(row);
-                            }
+                            String status = statusFilter.getSelectedIndex() == 0
+                                ? null : (String) statusFilter.getSelectedItem();
+                            String author = mineOnly.isSelected() ? currentUser : null;
+                            showQuestions(MemoryStorage.queryQuestions(status, author,
+                                getDateFilterStart(), sortOrder.getSelectedIndex() == 0));
 
                             if (selectedRow >= 0 && selectedRow < tableModel.getRowCount()) {
                                 questionsTable.setRowSelectionInterval(selectedRow, selectedRow);
@@ -419,8 +458,7 @@ public class ForumInterface extends JPanel {
                         private void displaySelectedQuestion() {
                             int selectedRow = questionsTable.getSelectedRow();
                             if (selectedRow >= 0) {
-                                List<Question> questions = MemoryStorage.getQuestions();
-                                Question question = questions.get(selectedRow);
+                                Question question = displayedQuestions.get(selectedRow);
                                 List<Answer> answers = MemoryStorage.getAnswersForQuestion(question.getId());
 
                                 JPanel contentPanel = new JPanel();
@@ -497,10 +535,9 @@ public class ForumInterface extends JPanel {
 
                                         if (question.getAuthor().equals(currentUser) && !answer.isAccepted()) {
                                             JButton acceptButton = new JButton("Accept Answer");
-                                            acceptButton.addActionListener(e -> {
-                                                MemoryStorage.acceptAnswer(answer.getId(), question.getId());
-                                                refreshDisplay();
-                                            });
+                                            int shownVersion = answer.getVersion();
+                                            acceptButton.addActionListener(e -> AnswerDialog.acceptAnswer(
+                                                this, answer, shownVersion, question, currentUser, this::refreshDisplay));
                                             answerControls.add(acceptButton);
                                         }
 
@@ -534,7 +571,44 @@ public class ForumInterface extends JPanel {
 
                         private void refreshDisplay() {
                             loadQuestions();
-                            displaySelectedQuestion();
+                            if (questionsTable.getSelectedRow() >= 0) {
+                                displaySelectedQuestion();
+                            } else {
+                                displayHotQuestions();
+                            }
+                        }
+
+                        private void displayHotQuestions() {
+                            List<Question> hot = MemoryStorage.getHotQuestions(50);
+
+                            JPanel hotPanel = new JPanel(new BorderLayout());
+                            hotPanel.setBorder(BorderFactory.createTitledBorder("Hot Questions"));
+
+                            if (hot.isEmpty()) {
+                                JLabel emptyLabel = new JLabel("No recent activity yet.", SwingConstants.CENTER);
+                                hotPanel.add(emptyLabel, BorderLayout.CENTER);
+                            } else {
+                                DefaultListModel<String> listModel = new DefaultListModel<>();
+                                for (Question question : hot) {
+                                    listModel.addElement(question.getTitle() + "  -  " +
+                                        question.getAuthor() + " (" + question.getStatus() + ")");
+                                }
+                                JList<String> hotList = new JList<>(listModel);
+                                hotList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+
+                                // Selecting a hot question selects it in the table when it is listed there
+                                hotList.addListSelectionListener(e -> {
+                                    if (!e.getValueIsAdjusting() && hotList.getSelectedIndex() >= 0) {
+                                        int row = displayedQuestions.indexOf(hot.get(hotList.getSelectedIndex()));
+                                        if (row >= 0) {
+                                            questionsTable.setRowSelectionInterval(row, row);
+                                        }
+                                    }
+                                });
+                                hotPanel.add(new JScrollPane(hotList), BorderLayout.CENTER);
+                            }
+
+                            splitPane.setBottomComponent(hotPanel);
                         }
 
                         private void searchQuestions(String query) {
@@ -543,8 +617,12 @@ public class ForumInterface extends JPanel {
                                 return;
                             }
 
+                            showQuestions(MemoryStorage.searchQuestions(query));
+                        }
+
+                        private void showQuestions(List<Question> questions) {
+                            displayedQuestions = questions;
                             tableModel.setRowCount(0);
-                            List<Question> questions = MemoryStorage.searchQuestions(query);
 
                             for (Question question : questions) {
                                 Object[] row = {
@@ -556,4 +634,13 @@ public class ForumInterface extends JPanel {
                                 tableModel.addRow(row);
                             }
                         }
+
+                        private LocalDateTime getDateFilterStart() {
+                            switch (dateFilter.getSelectedIndex()) {
+                                case 1: return LocalDateTime.now().minusHours(24);
+                                case 2: return LocalDateTime.now().minusDays(7);
+                                case 3: return LocalDateTime.now().minusDays(30);
+                                default: return null;
+                            }
+                        }
                     }
\ No newline at end of file
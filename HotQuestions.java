@@ -0,0 +1,144 @@
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Ranks questions by recent answer activity with exponential time decay.
+ *
+ * Each answer contributes e^(lambda * t) to its question's score (forward decay), so all
+ * scores decay at the same rate and the ranking only changes when answers are added or
+ * removed. Scores are kept as logarithms to avoid overflow. Only the best {@code capacity}
+ * questions are kept ranked; reading the top K is a walk over that bounded set.
+ */
+public class HotQuestions {
+    private static final double HALF_LIFE_HOURS = 24.0;
+    private static final double LAMBDA = Math.log(2) / (HALF_LIFE_HOURS * 3600_000.0);
+    private static final long EPOCH_MILLIS =
+        LocalDateTime.of(2024, 1, 1, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+
+    private static class Score implements Comparable<Score> {
+        final int questionId;
+        double logScore = Double.NEGATIVE_INFINITY;
+        int answerCount;
+
+        Score(int questionId) {
+            this.questionId = questionId;
+        }
+
+        @Override
+        public int compareTo(Score other) {
+            int byScore = Double.compare(other.logScore, logScore);
+            return byScore != 0 ? byScore : Integer.compare(questionId, other.questionId);
+        }
+    }
+
+    private final int capacity;
+    private final Map<Integer, Score> scores = new HashMap<>();
+    private final TreeSet<Score> top = new TreeSet<>();
+    // Upper bound on the score of any question that is not in 'top'
+    private double maxOutside = Double.NEGATIVE_INFINITY;
+
+    public HotQuestions(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void recordAnswer(int questionId, LocalDateTime answeredAt) {
+        Score score = scores.computeIfAbsent(questionId, Score::new);
+        boolean ranked = top.remove(score);
+        score.logScore = logAdd(score.logScore, weight(answeredAt));
+        score.answerCount++;
+        // Everything in 'top' must score at least maxOutside, or a better question we are not
+        // tracking could be missing from the ranking; a room left by removals is no exception
+        boolean admit = ranked || (score.logScore >= maxOutside
+            && (top.size() < capacity || score.compareTo(top.last()) < 0));
+        if (admit) {
+            top.add(score);
+            if (top.size() > capacity) {
+                maxOutside = Math.max(maxOutside, top.pollLast().logScore);
+            }
+        } else {
+            maxOutside = Math.max(maxOutside, score.logScore);
+        }
+    }
+
+    public void removeAnswer(int questionId, LocalDateTime answeredAt) {
+        Score score = scores.get(questionId);
+        if (score == null) {
+            return;
+        }
+        boolean ranked = top.remove(score);
+        if (--score.answerCount <= 0) {
+            scores.remove(questionId);
+        } else {
+            score.logScore = logSubtract(score.logScore, weight(answeredAt));
+            // A lowered score may now rank below a question we are not tracking, so drop it
+            if (ranked && score.logScore >= maxOutside) {
+                top.add(score);
+            }
+        }
+        if (ranked) {
+            refillIfNeeded();
+        }
+    }
+
+    public void removeQuestion(int questionId) {
+        Score score = scores.remove(questionId);
+        if (score != null && top.remove(score)) {
+            refillIfNeeded();
+        }
+    }
+
+    /**
+     * Returns the ids of the {@code limit} hottest questions, best first. Costs O(limit).
+     * The result is exact for any limit up to half the capacity.
+     */
+    public List<Integer> top(int limit) {
+        List<Integer> result = new ArrayList<>(Math.min(limit, top.size()));
+        for (Score score : top) {
+            if (result.size() >= limit) {
+                break;
+            }
+            result.add(score.questionId);
+        }
+        return result;
+    }
+
+    // Rebuild the ranked set from all scores once removals have left it less than half full
+    private void refillIfNeeded() {
+        if (top.size() >= capacity / 2 || scores.size() == top.size()) {
+            return;
+        }
+        PriorityQueue<Score> best = new PriorityQueue<>(Comparator.reverseOrder());
+        for (Score score : scores.values()) {
+            best.add(score);
+            if (best.size() > capacity) {
+                best.poll();
+            }
+        }
+        top.clear();
+        top.addAll(best);
+        maxOutside = Double.NEGATIVE_INFINITY;
+        if (scores.size() > top.size()) {
+            for (Score score : scores.values()) {
+                if (!top.contains(score)) {
+                    maxOutside = Math.max(maxOutside, score.logScore);
+                }
+            }
+        }
+    }
+
+    private static double weight(LocalDateTime time) {
+        return LAMBDA * (time.toInstant(ZoneOffset.UTC).toEpochMilli() - EPOCH_MILLIS);
+    }
+
+    private static double logAdd(double a, double b) {
+        if (a == Double.NEGATIVE_INFINITY) return b;
+        double max = Math.max(a, b);
+        return max + Math.log1p(Math.exp(Math.min(a, b) - max));
+    }
+
+    private static double logSubtract(double a, double b) {
+        double diff = Math.exp(b - a);
+        return diff >= 1.0 ? Double.NEGATIVE_INFINITY : a + Math.log1p(-diff);
+    }
+}
@@ -0,0 +1,436 @@
+import javax.sql.DataSource;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The question and answer operations of {@link MemoryStorage}, on the questions and answers
+ * tables of schema.sql.
+ *
+ * Lists are paged with keyset pagination: instead of an OFFSET, the caller passes the last
+ * row of the previous page (or null for the first) and the next page starts right after it
+ * in index order. Each page is then a range scan of one composite index, however deep the
+ * caller pages. Questions are listed newest first by (created_at, question_id), answers in
+ * display order by (is_accepted, created_at, answer_id).
+ *
+ * Changes that touch several rows, such as accepting an answer and updating the question's
+ * status, run in one transaction. SQL errors are rethrown as IllegalStateException.
+ *
+ * Every update increments the row's version column. The {@code ...IfVersion} methods add
+ * {@code AND version = ?} to their UPDATE, so a concurrent change makes them match no row
+ * and report a conflict instead of overwriting it; no row is locked while the user edits.
+ *
+ * This class is standalone: it is not a {@link StorageBackend}, as it covers only the forum
+ * and has no users, sessions or mail, and nothing in the application uses it yet. It is the
+ * forum half of a database-backed store, tested on its own in test/JdbcForumStoreTest.
+ */
+public class JdbcForumStore {
+    private static final String QUESTION_COLUMNS = "question_id, title, content, author, created_at, status, version";
+    private static final String ANSWER_COLUMNS = "answer_id, question_id, content, author, created_at, is_accepted, version";
+    // Rows after (created_at, question_id) in newest-first order
+    private static final String AFTER_QUESTION = "(created_at < ? OR (created_at = ? AND question_id < ?))";
+    // Rows after (is_accepted, created_at, answer_id) in display order
+    private static final String AFTER_ANSWER =
+        "(is_accepted < ? OR (is_accepted = ? AND (created_at < ? OR (created_at = ? AND answer_id < ?))))";
+    // OPEN without answers, ANSWERED with an accepted one, IN_PROGRESS otherwise
+    private static final String QUESTION_STATUS = "CASE" +
+        " WHEN EXISTS (SELECT 1 FROM answers WHERE question_id = ? AND is_accepted) THEN 'ANSWERED'" +
+        " WHEN EXISTS (SELECT 1 FROM answers WHERE question_id = ?) THEN 'IN_PROGRESS'" +
+        " ELSE 'OPEN' END";
+
+    private final DataSource dataSource;
+
+    public JdbcForumStore(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    private interface Work<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    // Runs 'work' in one transaction
+    private <T> T transaction(Work<T> work) {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                T result = work.run(connection);
+                connection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Database error: " + e.getMessage(), e);
+        }
+    }
+
+    // Question Management
+    public int addQuestion(String title, String content, String author) {
+        return transaction(connection -> {
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO questions (title, content, author, created_at, status) VALUES (?, ?, ?, ?, 'OPEN')",
+                    Statement.RETURN_GENERATED_KEYS)) {
+                insert.setString(1, title);
+                insert.setString(2, content);
+                insert.setString(3, author);
+                insert.setTimestamp(4, Timestamp.valueOf(LocalDateTime.now()));
+                insert.executeUpdate();
+                return generatedId(insert);
+            }
+        });
+    }
+
+    public Optional<Question> getQuestion(int questionId) {
+        return transaction(connection -> Optional.ofNullable(selectQuestion(connection, questionId)));
+    }
+
+    /**
+     * Returns up to {@code limit} questions matching every non-null filter, newest first,
+     * starting after {@code after}, the last question of the previous page.
+     */
+    public List<Question> queryQuestions(String status, String author, Question after, int limit) {
+        StringBuilder sql = new StringBuilder("SELECT " + QUESTION_COLUMNS + " FROM questions WHERE 1 = 1");
+        if (status != null) {
+            sql.append(" AND status = ?");
+        }
+        if (author != null) {
+            sql.append(" AND author = ?");
+        }
+        if (after != null) {
+            sql.append(" AND ").append(AFTER_QUESTION);
+        }
+        sql.append(" ORDER BY created_at DESC, question_id DESC FETCH FIRST ? ROWS ONLY");
+
+        return transaction(connection -> {
+            try (PreparedStatement select = connection.prepareStatement(sql.toString())) {
+                int i = 1;
+                if (status != null) {
+                    select.setString(i++, status);
+                }
+                if (author != null) {
+                    select.setString(i++, author);
+                }
+                if (after != null) {
+                    Timestamp createdAt = Timestamp.valueOf(after.getCreatedAt());
+                    select.setTimestamp(i++, createdAt);
+                    select.setTimestamp(i++, createdAt);
+                    select.setInt(i++, after.getId());
+                }
+                select.setInt(i, limit);
+                return readQuestions(select);
+            }
+        });
+    }
+
+    /**
+     * Returns up to {@code limit} questions whose title, body or author contains
+     * {@code query}, ignoring case, newest first and starting after {@code after}.
+     */
+    public List<Question> searchQuestions(String query, Question after, int limit) {
+        if (query == null || query.trim().isEmpty()) {
+            return queryQuestions(null, null, after, limit);
+        }
+        String pattern = "%" + query.trim().toLowerCase()
+            .replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+        String sql = "SELECT " + QUESTION_COLUMNS + " FROM questions" +
+            " WHERE (LOWER(title) LIKE ? ESCAPE '\\' OR LOWER(content) LIKE ? ESCAPE '\\' OR LOWER(author) LIKE ? ESCAPE '\\')" +
+            (after != null ? " AND " + AFTER_QUESTION : "") +
+            " ORDER BY created_at DESC, question_id DESC FETCH FIRST ? ROWS ONLY";
+
+        return transaction(connection -> {
+            try (PreparedStatement select = connection.prepareStatement(sql)) {
+                int i = 1;
+                for (; i <= 3; i++) {
+                    select.setString(i, pattern);
+                }
+                if (after != null) {
+                    Timestamp createdAt = Timestamp.valueOf(after.getCreatedAt());
+                    select.setTimestamp(i++, createdAt);
+                    select.setTimestamp(i++, createdAt);
+                    select.setInt(i++, after.getId());
+                }
+                select.setInt(i, limit);
+                return readQuestions(select);
+            }
+        });
+    }
+
+    public void updateQuestion(int questionId, String title, String content) {
+        transaction(connection -> {
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE questions SET title = ?, content = ?, version = version + 1 WHERE question_id = ?")) {
+                update.setString(1, title);
+                update.setString(2, content);
+                update.setInt(3, questionId);
+                return update.executeUpdate();
+            }
+        });
+    }
+
+    public UpdateResult<Question> updateQuestionIfVersion(int questionId, int expectedVersion, String title, String content) {
+        return transaction(connection -> {
+            int updated;
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE questions SET title = ?, content = ?, version = version + 1" +
+                    " WHERE question_id = ? AND version = ?")) {
+                update.setString(1, title);
+                update.setString(2, content);
+                update.setInt(3, questionId);
+                update.setInt(4, expectedVersion);
+                updated = update.executeUpdate();
+            }
+            Question current = selectQuestion(connection, questionId);
+            if (current == null) {
+                return UpdateResult.notFound();
+            }
+            return updated == 1 ? UpdateResult.updated(current) : UpdateResult.conflict(current);
+        });
+    }
+
+    /**
+     * Deletes the question; its answers go with it through the foreign key's ON DELETE CASCADE.
+     */
+    public void deleteQuestion(int questionId) {
+        transaction(connection -> {
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM questions WHERE question_id = ?")) {
+                delete.setInt(1, questionId);
+                return delete.executeUpdate();
+            }
+        });
+    }
+
+    // Answer Management
+    public int addAnswer(int questionId, String content, String author) {
+        return transaction(connection -> {
+            int id;
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO answers (question_id, content, author, created_at, is_accepted) VALUES (?, ?, ?, ?, false)",
+                    Statement.RETURN_GENERATED_KEYS)) {
+                insert.setInt(1, questionId);
+                insert.setString(2, content);
+                insert.setString(3, author);
+                insert.setTimestamp(4, Timestamp.valueOf(LocalDateTime.now()));
+                insert.executeUpdate();
+                id = generatedId(insert);
+            }
+            // Update question status when first answer is added
+            updateQuestionStatus(connection, questionId);
+            return id;
+        });
+    }
+
+    /**
+     * Returns up to {@code limit} answers to the question, accepted first and then newest
+     * first, starting after {@code after}, the last answer of the previous page.
+     */
+    public List<Answer> getAnswersForQuestion(int questionId, Answer after, int limit) {
+        String sql = "SELECT " + ANSWER_COLUMNS + " FROM answers WHERE question_id = ?" +
+            (after != null ? " AND " + AFTER_ANSWER : "") +
+            " ORDER BY is_accepted DESC, created_at DESC, answer_id DESC FETCH FIRST ? ROWS ONLY";
+
+        return transaction(connection -> {
+            try (PreparedStatement select = connection.prepareStatement(sql)) {
+                int i = 1;
+                select.setInt(i++, questionId);
+                if (after != null) {
+                    Timestamp createdAt = Timestamp.valueOf(after.getCreatedAt());
+                    select.setBoolean(i++, after.isAccepted());
+                    select.setBoolean(i++, after.isAccepted());
+                    select.setTimestamp(i++, createdAt);
+                    select.setTimestamp(i++, createdAt);
+                    select.setInt(i++, after.getId());
+                }
+                select.setInt(i, limit);
+                return readAnswers(select);
+            }
+        });
+    }
+
+    public void updateAnswer(int answerId, String content) {
+        transaction(connection -> {
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE answers SET content = ?, version = version + 1 WHERE answer_id = ?")) {
+                update.setString(1, content);
+                update.setInt(2, answerId);
+                return update.executeUpdate();
+            }
+        });
+    }
+
+    public UpdateResult<Answer> updateAnswerIfVersion(int answerId, int expectedVersion, String content) {
+        return transaction(connection -> {
+            int updated;
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE answers SET content = ?, version = version + 1 WHERE answer_id = ? AND version = ?")) {
+                update.setString(1, content);
+                update.setInt(2, answerId);
+                update.setInt(3, expectedVersion);
+                updated = update.executeUpdate();
+            }
+            Answer current = selectAnswer(connection, answerId);
+            if (current == null) {
+                return UpdateResult.notFound();
+            }
+            return updated == 1 ? UpdateResult.updated(current) : UpdateResult.conflict(current);
+        });
+    }
+
+    public void deleteAnswer(int answerId) {
+        transaction(connection -> {
+            Integer questionId = null;
+            try (PreparedStatement select = connection.prepareStatement(
+                    "SELECT question_id FROM answers WHERE answer_id = ?")) {
+                select.setInt(1, answerId);
+                try (ResultSet rows = select.executeQuery()) {
+                    if (rows.next()) {
+                        questionId = rows.getInt(1);
+                    }
+                }
+            }
+            if (questionId == null) {
+                return null;
+            }
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM answers WHERE answer_id = ?")) {
+                delete.setInt(1, answerId);
+                delete.executeUpdate();
+            }
+            updateQuestionStatus(connection, questionId);
+            return null;
+        });
+    }
+
+    public void acceptAnswer(int answerId, int questionId) {
+        transaction(connection -> {
+            unacceptOthers(connection, answerId, questionId);
+            try (PreparedStatement accept = connection.prepareStatement(
+                    "UPDATE answers SET is_accepted = true, version = version + 1" +
+                    " WHERE answer_id = ? AND question_id = ? AND NOT is_accepted")) {
+                accept.setInt(1, answerId);
+                accept.setInt(2, questionId);
+                accept.executeUpdate();
+            }
+            updateQuestionStatus(connection, questionId);
+            return null;
+        });
+    }
+
+    /**
+     * Accepts the answer only if it is still at {@code expectedVersion}, i.e. it has not been
+     * edited, accepted or unaccepted since the caller read it.
+     */
+    public UpdateResult<Answer> acceptAnswerIfVersion(int answerId, int questionId, int expectedVersion) {
+        return transaction(connection -> {
+            unacceptOthers(connection, answerId, questionId);
+            int updated;
+            try (PreparedStatement accept = connection.prepareStatement(
+                    "UPDATE answers SET is_accepted = true," +
+                    " version = CASE WHEN is_accepted THEN version ELSE version + 1 END" +
+                    " WHERE answer_id = ? AND question_id = ? AND version = ?")) {
+                accept.setInt(1, answerId);
+                accept.setInt(2, questionId);
+                accept.setInt(3, expectedVersion);
+                updated = accept.executeUpdate();
+            }
+            if (updated == 0) {
+                // Put the other answers back as they were
+                connection.rollback();
+                Answer current = selectAnswer(connection, answerId);
+                return current == null || current.getQuestionId() != questionId
+                    ? UpdateResult.notFound() : UpdateResult.conflict(current);
+            }
+            updateQuestionStatus(connection, questionId);
+            return UpdateResult.updated(selectAnswer(connection, answerId));
+        });
+    }
+
+    // Done before accepting, as the unique index allows only one accepted answer at a time
+    private static void unacceptOthers(Connection connection, int answerId, int questionId) throws SQLException {
+        try (PreparedStatement unaccept = connection.prepareStatement(
+                "UPDATE answers SET is_accepted = false, version = version + 1" +
+                " WHERE question_id = ? AND is_accepted AND answer_id <> ?")) {
+            unaccept.setInt(1, questionId);
+            unaccept.setInt(2, answerId);
+            unaccept.executeUpdate();
+        }
+    }
+
+    // Only writes the row if the status actually changes; the version is left alone
+    private static void updateQuestionStatus(Connection connection, int questionId) throws SQLException {
+        try (PreparedStatement update = connection.prepareStatement(
+                "UPDATE questions SET status = " + QUESTION_STATUS +
+                " WHERE question_id = ? AND status <> " + QUESTION_STATUS)) {
+            for (int i = 1; i <= 5; i++) {
+                update.setInt(i, questionId);
+            }
+            update.executeUpdate();
+        }
+    }
+
+    private static Question selectQuestion(Connection connection, int questionId) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT " + QUESTION_COLUMNS + " FROM questions WHERE question_id = ?")) {
+            select.setInt(1, questionId);
+            List<Question> result = readQuestions(select);
+            return result.isEmpty() ? null : result.get(0);
+        }
+    }
+
+    private static Answer selectAnswer(Connection connection, int answerId) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT " + ANSWER_COLUMNS + " FROM answers WHERE answer_id = ?")) {
+            select.setInt(1, answerId);
+            List<Answer> result = readAnswers(select);
+            return result.isEmpty() ? null : result.get(0);
+        }
+    }
+
+    private static int generatedId(PreparedStatement insert) throws SQLException {
+        try (ResultSet keys = insert.getGeneratedKeys()) {
+            if (!keys.next()) {
+                throw new SQLException("No generated key returned");
+            }
+            return keys.getInt(1);
+        }
+    }
+
+    private static List<Question> readQuestions(PreparedStatement select) throws SQLException {
+        List<Question> result = new ArrayList<>();
+        try (ResultSet rows = select.executeQuery()) {
+            while (rows.next()) {
+                Question question = new Question(
+                    rows.getInt("question_id"),
+                    rows.getString("title"),
+                    rows.getString("content"),
+                    rows.getString("author"),
+                    rows.getTimestamp("created_at").toLocalDateTime(),
+                    rows.getString("status")
+                );
+                question.setVersion(rows.getInt("version"));
+                result.add(question);
+            }
+        }
+        return result;
+    }
+
+    private static List<Answer> readAnswers(PreparedStatement select) throws SQLException {
+        List<Answer> result = new ArrayList<>();
+        try (ResultSet rows = select.executeQuery()) {
+            while (rows.next()) {
+                Answer answer = new Answer(
+                    rows.getInt("answer_id"),
+                    rows.getInt("question_id"),
+                    rows.getString("content"),
+                    rows.getString("author"),
+                    rows.getTimestamp("created_at").toLocalDateTime(),
+                    rows.getBoolean("is_accepted")
+                );
+                answer.setVersion(rows.getInt("version"));
+                result.add(answer);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds, safe to record into from any number of
+ * threads.
+ *
+ * Values below 32 get a bucket each; larger values are bucketed by their top five bits, so
+ * every bucket is at most 1/16 (about 6%) wide relative to its values. Recording is an index
+ * computation and one atomic increment, and percentiles are read by walking the 960 buckets.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 960;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        sum.add(value);
+        // The maximum rarely changes, so mostly this is a plain read
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Returns the value at or below which {@code percentile} percent of the recorded values
+     * fall, rounded up to the top of its bucket and capped at the maximum seen.
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * Formats count, mean and the p50/p99/p999 latencies in milliseconds.
+     */
+    public String summary() {
+        return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+            getCount(), getMean() / 1e6, getPercentile(50) / 1e6, getPercentile(99) / 1e6,
+            getPercentile(99.9) / 1e6, getMax() / 1e6);
+    }
+
+    static int bucketOf(long value) {
+        if (value < 32) {
+            return (int) value;
+        }
+        int shift = 59 - Long.numberOfLeadingZeros(value);
+        return (shift << 4) + (int) (value >>> shift);
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < 32) {
+            return bucket;
+        }
+        int shift = (bucket >> 4) - 1;
+        long mantissa = (bucket & 15) + 16;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates a population of users against a {@link StorageBackend} and reports throughput and
+ * latency percentiles per operation.
+ *
+ * Every simulated user registers and logs in through {@link UserManager}, then repeatedly
+ * picks either a read (browse or search the forum, open a question, check the inbox) or, with
+ * probability 1 - readRatio, a write (ask, answer, send mail, mark mail read), pausing for a
+ * random think time between operations. Each user runs on its own (virtual, where available)
+ * thread. An operation that throws is counted as an error against its name, and the user
+ * carries on with the next one.
+ *
+ * Run from the command line with e.g. {@code java LoadGenerator --users=200 --seconds=30
+ * --think-ms=5 --read-ratio=0.9 --backend=sharded}; the backend is memory, sharded, versioned
+ * or cached (memory behind a {@link CachingStorage}).
+ */
+public class LoadGenerator {
+    private static final String PASSWORD = "Passw0rd!";
+    private static final String[] WORDS = {
+        "java", "recursion", "threads", "swing", "exception", "generics", "lambda", "stream",
+        "hashmap", "interface", "inheritance", "database", "sorting", "testing", "maven"
+    };
+
+    private final StorageBackend backend;
+    private int users = 50;
+    private Duration duration = Duration.ofSeconds(10);
+    private Duration thinkTime = Duration.ZERO;
+    private double readRatio = 0.8;
+
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    // Ids of recently asked questions, for the answer and open-question operations
+    private final AtomicIntegerArray recentQuestions = new AtomicIntegerArray(1024);
+    private final AtomicLong questionCursor = new AtomicLong();
+    private final Map<String, AtomicLong> errors = new ConcurrentSkipListMap<>();
+    private String runId;
+    private long elapsedNanos;
+
+    public LoadGenerator(StorageBackend backend) {
+        this.backend = backend;
+    }
+
+    public LoadGenerator users(int users) {
+        this.users = users;
+        return this;
+    }
+
+    public LoadGenerator duration(Duration duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    /**
+     * Sets the mean pause between one user's operations; pauses are exponentially distributed.
+     */
+    public LoadGenerator thinkTime(Duration thinkTime) {
+        this.thinkTime = thinkTime;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of operations that are reads, from 0 to 1.
+     */
+    public LoadGenerator readRatio(double readRatio) {
+        this.readRatio = readRatio;
+        return this;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] pair = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(pair[0], pair.length > 1 ? pair[1] : "true");
+        }
+        String backendName = options.getOrDefault("backend", "memory");
+        StorageBackend backend;
+        switch (backendName) {
+            case "memory":
+                backend = MemoryStorageBackend.INSTANCE;
+                break;
+            case "sharded":
+                backend = new ShardedStorage();
+                break;
+            case "versioned":
+                backend = new VersionedStorage();
+                break;
+            case "cached":
+                CachingStorage cached = new CachingStorage(MemoryStorageBackend.INSTANCE);
+                cached.registerMetrics("CachingStorage");
+                // MemoryStorage also changes without going through the cache, e.g. scheduled
+                // sends; its mutation records keep the cache from serving stale lists
+                MemoryStorage.addMutationListener(cached::onMutation);
+                backend = cached;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown backend '" + backendName +
+                    "'; expected memory, sharded, versioned or cached");
+        }
+
+        LoadGenerator generator = new LoadGenerator(backend)
+            .users(Integer.parseInt(options.getOrDefault("users", "50")))
+            .duration(Duration.ofSeconds(Long.parseLong(options.getOrDefault("seconds", "10"))))
+            .thinkTime(Duration.ofMillis(Long.parseLong(options.getOrDefault("think-ms", "0"))))
+            .readRatio(Double.parseDouble(options.getOrDefault("read-ratio", "0.8")));
+        System.out.println("Running " + generator.users + " users against " + backendName + " storage for " +
+            generator.duration.getSeconds() + "s");
+        generator.run();
+        generator.printReport(System.out);
+    }
+
+    /**
+     * Runs the workload for the configured duration and returns the per-operation latencies.
+     * Histograms accumulate across runs of the same generator.
+     */
+    public Map<String, LatencyHistogram> run() throws InterruptedException {
+        runId = Long.toString(System.nanoTime() % 1_000_000, 36);
+        long deadline = System.nanoTime() + duration.toNanos();
+        long started = System.nanoTime();
+        ExecutorService executor = ApiServer.newRequestExecutor();
+        for (int i = 0; i < users; i++) {
+            int userNumber = i;
+            executor.execute(() -> simulateUser(userNumber, deadline));
+        }
+        executor.shutdown();
+        executor.awaitTermination(duration.toMillis() + 60_000, TimeUnit.MILLISECONDS);
+        elapsedNanos = System.nanoTime() - started;
+        return histograms;
+    }
+
+    public long getErrorCount() {
+        return errors.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    /**
+     * Returns the number of failed calls per operation.
+     */
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        errors.forEach((operation, count) -> counts.put(operation, count.get()));
+        return counts;
+    }
+
+    public void printReport(PrintStream out) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            total += h.getCount();
+            AtomicLong failed = errors.get(entry.getKey());
+            out.printf("%-16s %10.1f ops/s  %s%s%n", entry.getKey(), h.getCount() / seconds, h.summary(),
+                failed != null ? "  errors=" + failed.get() : "");
+        }
+        out.printf("%-16s %10.1f ops/s  errors=%d%n", "total", total / seconds, getErrorCount());
+    }
+
+    private void simulateUser(int userNumber, long deadline) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        UserManager userManager = new UserManager(backend);
+        String username = "load" + runId + "u" + userNumber;
+        try {
+            timed("register", () -> userManager.registerUser(username, PASSWORD));
+            UserManager.AuthResult login = timed("login", () -> userManager.login(username, PASSWORD));
+            if (!login.success) {
+                recordError("login");
+                return;
+            }
+
+            while (System.nanoTime() < deadline) {
+                try {
+                    if (random.nextDouble() < readRatio) {
+                        read(username, random);
+                    } else {
+                        write(username, userNumber, random);
+                    }
+                } catch (RuntimeException e) {
+                    // Already counted against its operation by timed()
+                }
+                think(random);
+            }
+            timed("logout", () -> {
+                backend.logout(login.sessionToken);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            // Registering, logging in or out failed; counted by timed()
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void read(String username, ThreadLocalRandom random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                timed("browse", backend::getQuestions);
+                break;
+            case 1:
+                String word = WORDS[random.nextInt(WORDS.length)];
+                timed("search", () -> backend.searchQuestions(word));
+                break;
+            case 2:
+                int questionId = recentQuestion(random);
+                if (questionId > 0) {
+                    timed("openQuestion", () -> {
+                        backend.getQuestion(questionId);
+                        return backend.getAnswersForQuestion(questionId);
+                    });
+                }
+                break;
+            default:
+                timed("inbox", () -> backend.getInboxEmails(username));
+        }
+    }
+
+    private void write(String username, int userNumber, ThreadLocalRandom random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                String title = "How do I use " + WORDS[random.nextInt(WORDS.length)] + " in Java?";
+                int questionId = timed("ask", () -> backend.addQuestion(title, "Details about " + title, username));
+                recentQuestions.set((int) (questionCursor.getAndIncrement() & 1023), questionId);
+                break;
+            case 1:
+                int answered = recentQuestion(random);
+                if (answered > 0) {
+                    timed("answer", () -> backend.addAnswer(answered, "Try reading the documentation.", username));
+                }
+                break;
+            case 2:
+                String to = "load" + runId + "u" + random.nextInt(users);
+                timed("sendMail", () -> backend.addEmail(username, to, "Hello from user " + userNumber,
+                    "Just checking in."));
+                break;
+            default:
+                timed("readMail", () -> {
+                    List<Email> inbox = backend.getInboxEmails(username);
+                    inbox.stream().filter(e -> !e.isRead()).findFirst()
+                        .ifPresent(e -> backend.markAsRead(e.getId(), username));
+                    return inbox.size();
+                });
+        }
+    }
+
+    private int recentQuestion(ThreadLocalRandom random) {
+        long asked = questionCursor.get();
+        if (asked == 0) {
+            return 0;
+        }
+        return recentQuestions.get(random.nextInt((int) Math.min(asked, 1024)));
+    }
+
+    private void think(ThreadLocalRandom random) throws InterruptedException {
+        if (!thinkTime.isZero()) {
+            long pause = (long) (-Math.log(1 - random.nextDouble()) * thinkTime.toNanos());
+            TimeUnit.NANOSECONDS.sleep(pause);
+        }
+    }
+
+    private <T> T timed(String operation, Callable<T> action) {
+        long start = System.nanoTime();
+        try {
+            return action.call();
+        } catch (RuntimeException e) {
+            recordError(operation);
+            throw e;
+        } catch (Exception e) {
+            recordError(operation);
+            throw new IllegalStateException(e);
+        } finally {
+            histograms.computeIfAbsent(operation, k -> new LatencyHistogram()).record(System.nanoTime() - start);
+        }
+    }
+
+    private void recordError(String operation) {
+        errors.computeIfAbsent(operation, k -> new AtomicLong()).incrementAndGet();
+    }
+}
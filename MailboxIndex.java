@@ -0,0 +1,273 @@
+import java.time.ZoneId;
+import java.util.*;
+
+/**
+ * Full-text search over each user's mailbox: the mail they received, sent and drafted.
+ *
+ * Every user has an inverted index from terms to the messages containing them. Words of the
+ * subject and body and the sender and recipient names are indexed as plain terms; subject
+ * words, the sender and the recipient are also indexed under field terms, so a query can mix
+ * {@code word}, {@code subject:word}, {@code from:name} and {@code to:name} clauses. Every
+ * clause must match, and results come back newest first.
+ *
+ * Messages are numbered per mailbox in the order they are indexed, so posting lists are
+ * sorted arrays that only ever grow at the end, and a message's send time is an array
+ * lookup while ranking. Removing a message only marks its number dead; once dead numbers
+ * make up half the mailbox the lists are rewritten without them.
+ *
+ * Not thread-safe; MemoryStorage calls it under its lock.
+ */
+public class MailboxIndex {
+    private static final int MIN_WORD_LENGTH = 2;
+    private static final int MIN_DEAD_TO_COMPACT = 1024;
+
+    // Sorted message numbers containing one term
+    private static final class Postings {
+        int[] docs = new int[2];
+        int size;
+
+        void append(int doc) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+
+        boolean contains(int doc) {
+            return Arrays.binarySearch(docs, 0, size, doc) >= 0;
+        }
+    }
+
+    private static final class Mailbox {
+        final Map<String, Postings> terms = new HashMap<>();
+        // email id -> live message number
+        final Map<Integer, Integer> docOf = new HashMap<>();
+        // message number -> email id (-1 once removed) and send time in epoch millis
+        int[] emailIds = new int[16];
+        long[] sentMillis = new long[16];
+        int docCount;
+        int deadCount;
+
+        int addDocument(int emailId, long time) {
+            if (docCount == emailIds.length) {
+                emailIds = Arrays.copyOf(emailIds, docCount * 2);
+                sentMillis = Arrays.copyOf(sentMillis, docCount * 2);
+            }
+            emailIds[docCount] = emailId;
+            sentMillis[docCount] = time;
+            docOf.put(emailId, docCount);
+            return docCount++;
+        }
+
+        void removeDocument(int emailId) {
+            Integer doc = docOf.remove(emailId);
+            if (doc == null) {
+                return;
+            }
+            emailIds[doc] = -1;
+            deadCount++;
+            if (deadCount >= MIN_DEAD_TO_COMPACT && deadCount * 2 >= docCount) {
+                compact();
+            }
+        }
+
+        // Renumbers the live messages densely and drops dead numbers from every list
+        private void compact() {
+            int[] renumbered = new int[docCount];
+            int live = 0;
+            for (int doc = 0; doc < docCount; doc++) {
+                if (emailIds[doc] < 0) {
+                    renumbered[doc] = -1;
+                    continue;
+                }
+                renumbered[doc] = live;
+                emailIds[live] = emailIds[doc];
+                sentMillis[live] = sentMillis[doc];
+                live++;
+            }
+            for (Iterator<Postings> it = terms.values().iterator(); it.hasNext(); ) {
+                Postings postings = it.next();
+                int kept = 0;
+                for (int i = 0; i < postings.size; i++) {
+                    int doc = renumbered[postings.docs[i]];
+                    if (doc >= 0) {
+                        postings.docs[kept++] = doc;
+                    }
+                }
+                postings.size = kept;
+                if (kept == 0) {
+                    it.remove();
+                }
+            }
+            docOf.replaceAll((emailId, doc) -> renumbered[doc]);
+            docCount = live;
+            deadCount = 0;
+        }
+    }
+
+    private final Map<String, Mailbox> mailboxes = new HashMap<>();
+
+    /**
+     * Indexes the email in the mailboxes it shows up in: the author's for sent mail and
+     * drafts, and the recipient's for sent mail. Indexing an email again replaces it, so
+     * this is also how a sent draft or a moved send date is updated.
+     */
+    public void add(Email email) {
+        remove(email);
+        if (email.getStatus() == Email.EmailStatus.DELETED) {
+            return;
+        }
+        Set<String> terms = termsOf(email);
+        long time = email.getSentDate().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        addTo(email.getFromUser(), email.getId(), time, terms);
+        String to = email.getToUser() != null ? email.getToUser().trim() : "";
+        if (email.getStatus() == Email.EmailStatus.SENT && !to.isEmpty() && !to.equals(email.getFromUser())) {
+            addTo(to, email.getId(), time, terms);
+        }
+    }
+
+    /**
+     * Removes the email from its author's and recipient's mailboxes.
+     */
+    public void remove(Email email) {
+        removeFrom(email.getFromUser(), email.getId());
+        if (email.getToUser() != null) {
+            removeFrom(email.getToUser().trim(), email.getId());
+        }
+    }
+
+    /**
+     * Returns the ids of up to {@code limit} emails in the user's mailbox matching every
+     * clause of {@code query}, newest first. An empty query matches nothing.
+     */
+    public List<Integer> search(String username, String query, int limit) {
+        Mailbox mailbox = mailboxes.get(username);
+        List<String> clauses = parse(query);
+        if (mailbox == null || clauses.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        List<Postings> lists = new ArrayList<>(clauses.size());
+        for (String clause : clauses) {
+            Postings postings = mailbox.terms.get(clause);
+            if (postings == null) {
+                return new ArrayList<>();
+            }
+            lists.add(postings);
+        }
+        // Walk the shortest list and probe the others
+        lists.sort(Comparator.comparingInt(p -> p.size));
+        Postings shortest = lists.get(0);
+
+        long[] times = mailbox.sentMillis;
+        PriorityQueue<Integer> newest = new PriorityQueue<>(limit + 1,
+            (a, b) -> times[a] != times[b] ? Long.compare(times[a], times[b]) : Integer.compare(a, b));
+        for (int i = shortest.size - 1; i >= 0; i--) {
+            int doc = shortest.docs[i];
+            if (mailbox.emailIds[doc] < 0 || !containedInAll(lists, doc)) {
+                continue;
+            }
+            if (newest.size() < limit) {
+                newest.add(doc);
+            } else if (times[doc] > times[newest.peek()]) {
+                newest.poll();
+                newest.add(doc);
+            }
+        }
+
+        List<Integer> ranked = new ArrayList<>(newest.size());
+        while (!newest.isEmpty()) {
+            ranked.add(mailbox.emailIds[newest.poll()]);
+        }
+        Collections.reverse(ranked);
+        return ranked;
+    }
+
+    /**
+     * Returns the number of emails indexed for the user.
+     */
+    public int size(String username) {
+        Mailbox mailbox = mailboxes.get(username);
+        return mailbox == null ? 0 : mailbox.docOf.size();
+    }
+
+    private void addTo(String username, int emailId, long time, Set<String> terms) {
+        Mailbox mailbox = mailboxes.computeIfAbsent(username, k -> new Mailbox());
+        int doc = mailbox.addDocument(emailId, time);
+        for (String term : terms) {
+            mailbox.terms.computeIfAbsent(term, k -> new Postings()).append(doc);
+        }
+    }
+
+    private void removeFrom(String username, int emailId) {
+        Mailbox mailbox = mailboxes.get(username);
+        if (mailbox != null) {
+            mailbox.removeDocument(emailId);
+        }
+    }
+
+    private static boolean containedInAll(List<Postings> lists, int doc) {
+        for (int i = 1; i < lists.size(); i++) {
+            if (!lists.get(i).contains(doc)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set<String> termsOf(Email email) {
+        Set<String> terms = new HashSet<>();
+        for (String word : words(email.getSubject())) {
+            terms.add(word);
+            terms.add("subject:" + word);
+        }
+        terms.addAll(words(email.getContent()));
+        addCorrespondent(terms, "from:", email.getFromUser());
+        addCorrespondent(terms, "to:", email.getToUser());
+        return terms;
+    }
+
+    private static void addCorrespondent(Set<String> terms, String field, String username) {
+        if (username == null || username.trim().isEmpty()) {
+            return;
+        }
+        terms.add(field + username.trim().toLowerCase(Locale.ROOT));
+        terms.addAll(words(username));
+    }
+
+    // from: and to: take a whole username; subject: and plain clauses are split into words
+    private static List<String> parse(String query) {
+        List<String> clauses = new ArrayList<>();
+        if (query == null) {
+            return clauses;
+        }
+        for (String token : query.trim().toLowerCase(Locale.ROOT).split("\\s+")) {
+            if (token.startsWith("from:") || token.startsWith("to:")) {
+                int colon = token.indexOf(':');
+                if (colon + 1 < token.length()) {
+                    clauses.add(token);
+                }
+            } else if (token.startsWith("subject:")) {
+                for (String word : words(token.substring("subject:".length()))) {
+                    clauses.add("subject:" + word);
+                }
+            } else {
+                clauses.addAll(words(token));
+            }
+        }
+        return clauses;
+    }
+
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{Nd}]+")) {
+            if (word.length() >= MIN_WORD_LENGTH) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-user limits on stored mail: how many messages a user has sent or drafted that are not
+ * deleted, and how many bytes their subjects and bodies take as UTF-16. Attachments are not
+ * counted; they live on disk and are stored once however often they are sent.
+ *
+ * Usage is kept as running counters, charged when mail is stored and credited when it is
+ * deleted, so checking a new message against the limit is two map lookups. Every user gets
+ * the default limits unless they have limits of their own.
+ *
+ * Not thread-safe; MemoryStorage calls it under its lock.
+ */
+public class MailboxQuota {
+    public static final class Usage {
+        public final int messages;
+        public final long bytes;
+        public final int maxMessages;
+        public final long maxBytes;
+
+        Usage(int messages, long bytes, int maxMessages, long maxBytes) {
+            this.messages = messages;
+            this.bytes = bytes;
+            this.maxMessages = maxMessages;
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    private static final class Counter {
+        int messages;
+        long bytes;
+    }
+
+    private static final class Limit {
+        final int maxMessages;
+        final long maxBytes;
+
+        Limit(int maxMessages, long maxBytes) {
+            this.maxMessages = maxMessages;
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    private static final Limit UNLIMITED = new Limit(Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    private Limit defaultLimit = UNLIMITED;
+    private final Map<String, Limit> limits = new HashMap<>();
+    private final Map<String, Counter> usage = new HashMap<>();
+
+    public void setDefaultLimit(int maxMessages, long maxBytes) {
+        defaultLimit = new Limit(maxMessages, maxBytes);
+    }
+
+    public void setLimit(String username, int maxMessages, long maxBytes) {
+        limits.put(username, new Limit(maxMessages, maxBytes));
+    }
+
+    /**
+     * Puts the user back on the default limits.
+     */
+    public void clearLimit(String username) {
+        limits.remove(username);
+    }
+
+    /**
+     * Returns whether one more message of {@code bytes} fits in the user's quota.
+     */
+    public boolean allows(String username, long bytes) {
+        Limit limit = limitOf(username);
+        Counter counter = usage.get(username);
+        int messages = counter != null ? counter.messages : 0;
+        long used = counter != null ? counter.bytes : 0;
+        return messages < limit.maxMessages && bytes <= limit.maxBytes - used;
+    }
+
+    public void charge(String username, long bytes) {
+        Counter counter = usage.computeIfAbsent(username, k -> new Counter());
+        counter.messages++;
+        counter.bytes += bytes;
+    }
+
+    public void credit(String username, long bytes) {
+        Counter counter = usage.get(username);
+        if (counter == null) {
+            return;
+        }
+        counter.messages--;
+        counter.bytes -= bytes;
+        if (counter.messages <= 0) {
+            usage.remove(username);
+        }
+    }
+
+    public Usage getUsage(String username) {
+        Limit limit = limitOf(username);
+        Counter counter = usage.get(username);
+        return counter == null
+            ? new Usage(0, 0, limit.maxMessages, limit.maxBytes)
+            : new Usage(counter.messages, counter.bytes, limit.maxMessages, limit.maxBytes);
+    }
+
+    public static long sizeOf(Email email) {
+        return sizeOf(email.getSubject(), email.getContent());
+    }
+
+    public static long sizeOf(String subject, String content) {
+        return 2L * ((subject != null ? subject.length() : 0) + (content != null ? content.length() : 0));
+    }
+
+    private Limit limitOf(String username) {
+        return limits.getOrDefault(username, defaultLimit);
+    }
+}
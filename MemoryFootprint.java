@@ -0,0 +1,166 @@
+import java.util.*;
+
+/**
+ * Running estimate of the heap retained by {@link MemoryStorage}, per entity type and per user.
+ *
+ * The store charges an entity's estimated size when it is added and credits the same amount
+ * when it is removed or resized, so the totals are always current without walking the heap.
+ * Estimates assume a 64-bit JVM with compressed references: object headers, fields, the
+ * String objects and their Latin-1 or UTF-16 arrays, dates and the collection slot or hash
+ * entry that holds the entity. Bodies moved off the heap count only their handle. Secondary
+ * indexes are not included.
+ *
+ * Users own their account, sessions and login state, the mail they send and their questions
+ * and answers. Not thread-safe; MemoryStorage updates it under its lock.
+ */
+public final class MemoryFootprint {
+    public enum EntityType {
+        USERS("users"),
+        SESSIONS("sessions"),
+        LOGIN_ATTEMPTS("loginAttempts"),
+        LOCKOUTS("lockouts"),
+        EMAILS("emails"),
+        QUESTIONS("questions"),
+        ANSWERS("answers");
+
+        private final String label;
+
+        EntityType(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final int HEADER = 12;
+    private static final int REFERENCE = 4;
+    // HashMap.Node plus its table slot, and an ArrayList slot
+    private static final int MAP_ENTRY = 32 + REFERENCE;
+    private static final int LIST_SLOT = REFERENCE;
+    // LocalDateTime with its LocalDate and LocalTime
+    private static final int DATE_TIME = 3 * 24;
+    private static final int INTEGER = 16;
+    private static final int OFF_HEAP_BODY = 24;
+
+    static final int LOGIN_ATTEMPT_BYTES = MAP_ENTRY + INTEGER;
+    static final int LOCKOUT_BYTES = MAP_ENTRY + DATE_TIME;
+
+    private final long[] bytes = new long[EntityType.values().length];
+    private final long[] counts = new long[EntityType.values().length];
+    private final Map<String, Long> bytesByUser = new HashMap<>();
+
+    /**
+     * Charges a new entity of {@code size} bytes to its type and owner.
+     */
+    void add(EntityType type, String user, long size) {
+        counts[type.ordinal()]++;
+        resize(type, user, size);
+    }
+
+    /**
+     * Credits back an entity that was charged {@code size} bytes.
+     */
+    void remove(EntityType type, String user, long size) {
+        counts[type.ordinal()]--;
+        resize(type, user, -size);
+    }
+
+    /**
+     * Adjusts for an entity that grew by {@code delta} bytes, negative if it shrank.
+     */
+    void resize(EntityType type, String user, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        bytes[type.ordinal()] += delta;
+        if (user != null) {
+            Long total = bytesByUser.merge(user, delta, Long::sum);
+            if (total <= 0) {
+                bytesByUser.remove(user);
+            }
+        }
+    }
+
+    public long getBytes(EntityType type) {
+        return bytes[type.ordinal()];
+    }
+
+    public long getCount(EntityType type) {
+        return counts[type.ordinal()];
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (long b : bytes) {
+            total += b;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the {@code limit} users owning the most bytes, largest first.
+     */
+    public List<Map.Entry<String, Long>> topUsers(int limit) {
+        // Min-heap of the best so far, so this is one pass over the users
+        PriorityQueue<Map.Entry<String, Long>> best = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (Map.Entry<String, Long> entry : bytesByUser.entrySet()) {
+            if (best.size() < limit) {
+                best.add(Map.entry(entry.getKey(), entry.getValue()));
+            } else if (limit > 0 && entry.getValue() > best.peek().getValue()) {
+                best.poll();
+                best.add(Map.entry(entry.getKey(), entry.getValue()));
+            }
+        }
+        List<Map.Entry<String, Long>> result = new ArrayList<>(best);
+        result.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        return result;
+    }
+
+    // Size estimates
+
+    static long estimate(Email email) {
+        // id, five references, status, read flag and deletedAt
+        return LIST_SLOT + align(HEADER + 4 + 7 * REFERENCE + 1) + 2 * DATE_TIME +
+            stringBytes(email.getFromUser()) + stringBytes(email.getToUser()) +
+            stringBytes(email.getSubject()) +
+            (email.isContentOffHeap() ? OFF_HEAP_BODY : stringBytes(email.getContent()));
+    }
+
+    static long estimate(Question question) {
+        return LIST_SLOT + align(HEADER + 4 + 5 * REFERENCE) + DATE_TIME +
+            stringBytes(question.getTitle()) + stringBytes(question.getAuthor()) +
+            (question.isContentOffHeap() ? OFF_HEAP_BODY : stringBytes(question.getContent()));
+    }
+
+    static long estimate(Answer answer) {
+        return LIST_SLOT + align(HEADER + 8 + 3 * REFERENCE + 1) + DATE_TIME +
+            stringBytes(answer.getAuthor()) +
+            (answer.isContentOffHeap() ? OFF_HEAP_BODY : stringBytes(answer.getContent()));
+    }
+
+    static long estimateUser(String username, String password) {
+        return MAP_ENTRY + stringBytes(username) + stringBytes(password);
+    }
+
+    static long estimateSession(String token) {
+        // The username value is shared with the users map
+        return MAP_ENTRY + stringBytes(token);
+    }
+
+    static long stringBytes(String s) {
+        if (s == null) {
+            return 0;
+        }
+        boolean latin1 = true;
+        for (int i = 0; i < s.length() && latin1; i++) {
+            latin1 = s.charAt(i) <= 0xFF;
+        }
+        return align(HEADER + 4 + 4 + REFERENCE) + align(16 + (long) s.length() * (latin1 ? 1 : 2));
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
@@ -1,8 +1,21 @@
 import java.util.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+/**
+ * In-memory store for users, sessions, mail and the forum. Every public operation holds the
+ * class lock, so the store can be shared by the UI and background tasks such as
+ * {@link StorageCompactor}.
+ */
 public class MemoryStorage {
     private static final Map<String, String> users = new HashMap<>();  // username -> password
     private static final Map<String, String> sessions = new HashMap<>();  // token -> username
@@ -10,299 +23,1848 @@ public class MemoryStorage {
     private static final Map<String, LocalDateTime> lockouts = new HashMap<>();  // username -> lockout time
 
     private static final List<Email> emails = new ArrayList<>();
+    // The same emails by id, while they are in the 'emails' list
+    private static final Map<Integer, Email> emailsById = new HashMap<>();
     private static final List<Question> questions = new ArrayList<>();
     private static final List<Answer> answers = new ArrayList<>();
+    // When set, emails live here instead of in the 'emails' list
+    private static ColumnarEmailStore columnarEmails;
+    // When set, message, question and answer bodies are kept off the Java heap
+    private static OffHeapBodyStore offHeapBodies;
+    // When set, old sent mail is spilled from 'emails' to immutable segment files
+    private static EmailSegmentStore coldEmails;
+    private static Duration coldEmailAge;
+    private static int maxHotEmails;
+    private static LocalDateTime nextColdSweep;
+    // Attachment files by content hash, and how many stored emails and pins refer to each, so
+    // a file is deleted along with the last reference to it
+    private static AttachmentStore attachmentStore;
+    private static final Map<String, Integer> attachmentRefs = new HashMap<>();
+    // Pins held on attachments not yet in a stored email, by hash: when each pin expires,
+    // soonest first. A pin keeps an uploaded file alive until its email is stored.
+    private static final Map<String, ArrayDeque<Long>> attachmentPins = new HashMap<>();
+    private static final Duration ATTACHMENT_PIN_LEASE = Duration.ofHours(24);
+
+    // Per-user limits on live mail sent or drafted, and a cap on the heap all mail may hold
+    private static final MailboxQuota quota = new MailboxQuota();
+    private static long maxEmailHeapBytes = Long.MAX_VALUE;
+    private static long quotaRejections;
+    // Where the next compaction slice resumes in 'emails' and 'answers'
+    private static int emailCompactionCursor;
+    private static int answerCompactionCursor;
+
+    // Secondary question indexes, all ordered by creation date so queries can be served directly
+    private static final Comparator<Question> BY_CREATED_AT =
+        Comparator.comparing(Question::getCreatedAt).thenComparingInt(Question::getId);
+    private static final Map<Integer, Question> questionsById = new HashMap<>();
+    private static final Map<String, NavigableSet<Question>> questionsByStatus = new HashMap<>();
+    private static final Map<String, NavigableSet<Question>> questionsByAuthor = new HashMap<>();
+    private static final NavigableSet<Question> questionsByDate = new TreeSet<>(BY_CREATED_AT);
+    private static final HotQuestions hotQuestions = new HotQuestions(200);
+
+    // Prefix indexes for autocomplete; contacts counts how often each user writes to each name
+    private static final PrefixIndex usernameIndex = new PrefixIndex();
+    private static final PrefixIndex titleIndex = new PrefixIndex();
+    private static final Map<String, PrefixIndex> contacts = new HashMap<>();
+    private static final TrigramIndex fuzzyIndex = new TrigramIndex();
+    // Per-user full-text index over every stored email, hot, columnar or cold
+    private static final MailboxIndex mailboxIndex = new MailboxIndex();
+
+    // Drafts waiting for a scheduled send; the wheel and its thread start with the first one
+    private static final Duration SCHEDULED_SEND_TICK = Duration.ofMillis(100);
+    private static final int SCHEDULED_SEND_BATCH = 500;
+    private static TimingWheel<Integer> sendScheduler;
+    private static final Map<Integer, TimingWheel.Timeout<Integer>> scheduledSends = new HashMap<>();
+
+    // Estimated heap held by each entity type and user, kept current by every mutation
+    private static final MemoryFootprint footprint = new MemoryFootprint();
+
     private static int nextEmailId = 1;
     private static int nextQuestionId = 1;
     private static int nextAnswerId = 1;
 
+    // Latency of each public operation, measured while holding the class lock. Slow calls and
+    // sampled traces of these, plus updateQuestionStatus, go to the SlowOperationLog
+    private static final Metrics.Operation OP_ADD_USER = Metrics.operation("MemoryStorage.addUser");
+    private static final Metrics.Operation OP_USER_EXISTS = Metrics.operation("MemoryStorage.userExists");
+    private static final Metrics.Operation OP_GET_PASSWORD = Metrics.operation("MemoryStorage.getPassword");
+    private static final Metrics.Operation OP_COMPLETE_USERNAMES = Metrics.operation("MemoryStorage.completeUsernames");
+    private static final Metrics.Operation OP_CREATE_SESSION = Metrics.operation("MemoryStorage.createSession");
+    private static final Metrics.Operation OP_LOGOUT = Metrics.operation("MemoryStorage.logout");
+    private static final Metrics.Operation OP_GET_USER_FROM_SESSION = Metrics.operation("MemoryStorage.getUserFromSession");
+    private static final Metrics.Operation OP_INCREMENT_LOGIN_ATTEMPTS = Metrics.operation("MemoryStorage.incrementLoginAttempts");
+    private static final Metrics.Operation OP_RESET_LOGIN_ATTEMPTS = Metrics.operation("MemoryStorage.resetLoginAttempts");
+    private static final Metrics.Operation OP_IS_LOCKED_OUT = Metrics.operation("MemoryStorage.isLockedOut");
+    private static final Metrics.Operation OP_GET_LOCKOUT_TIME_REMAINING = Metrics.operation("MemoryStorage.getLockoutTimeRemaining");
+    private static final Metrics.Operation OP_SPILL_COLD_EMAILS = Metrics.operation("MemoryStorage.spillColdEmails");
+    private static final Metrics.Operation OP_COMPACT_COLD_EMAILS = Metrics.operation("MemoryStorage.compactColdEmails");
+    private static final Metrics.Operation OP_ADD_SAMPLE_EMAILS = Metrics.operation("MemoryStorage.addSampleEmails");
+    private static final Metrics.Operation OP_ADD_EMAIL = Metrics.operation("MemoryStorage.addEmail");
+    private static final Metrics.Operation OP_SAVE_DRAFT = Metrics.operation("MemoryStorage.saveDraft");
+    private static final Metrics.Operation OP_SEND_DRAFT = Metrics.operation("MemoryStorage.sendDraft");
+    private static final Metrics.Operation OP_SCHEDULE_DRAFT = Metrics.operation("MemoryStorage.scheduleDraft");
+    private static final Metrics.Operation OP_CANCEL_SCHEDULED_SEND = Metrics.operation("MemoryStorage.cancelScheduledSend");
+    private static final Metrics.Operation OP_SEND_SCHEDULED = Metrics.operation("MemoryStorage.sendScheduled");
+    private static final Metrics.Operation OP_GET_INBOX_EMAILS = Metrics.operation("MemoryStorage.getInboxEmails");
+    private static final Metrics.Operation OP_GET_SENT_EMAILS = Metrics.operation("MemoryStorage.getSentEmails");
+    private static final Metrics.Operation OP_GET_DRAFTS = Metrics.operation("MemoryStorage.getDrafts");
+    private static final Metrics.Operation OP_MARK_AS_READ = Metrics.operation("MemoryStorage.markAsRead");
+    private static final Metrics.Operation OP_DELETE_EMAIL = Metrics.operation("MemoryStorage.deleteEmail");
+    private static final Metrics.Operation OP_SEARCH_EMAILS = Metrics.operation("MemoryStorage.searchEmails");
+    private static final Metrics.Operation OP_COMPACT_SLICE = Metrics.operation("MemoryStorage.compactSlice");
+    private static final Metrics.Operation OP_ADD_QUESTION = Metrics.operation("MemoryStorage.addQuestion");
+    private static final Metrics.Operation OP_GET_QUESTIONS = Metrics.operation("MemoryStorage.getQuestions");
+    private static final Metrics.Operation OP_GET_QUESTION = Metrics.operation("MemoryStorage.getQuestion");
+    private static final Metrics.Operation OP_UPDATE_QUESTION = Metrics.operation("MemoryStorage.updateQuestion");
+    private static final Metrics.Operation OP_UPDATE_QUESTION_IF_VERSION = Metrics.operation("MemoryStorage.updateQuestionIfVersion");
+    private static final Metrics.Operation OP_DELETE_QUESTION = Metrics.operation("MemoryStorage.deleteQuestion");
+    private static final Metrics.Operation OP_COMPLETE_QUESTION_TITLES = Metrics.operation("MemoryStorage.completeQuestionTitles");
+    private static final Metrics.Operation OP_GET_HOT_QUESTIONS = Metrics.operation("MemoryStorage.getHotQuestions");
+    private static final Metrics.Operation OP_QUERY_QUESTIONS = Metrics.operation("MemoryStorage.queryQuestions");
+    private static final Metrics.Operation OP_SEARCH_QUESTIONS = Metrics.operation("MemoryStorage.searchQuestions");
+    private static final Metrics.Operation OP_FUZZY_SEARCH_QUESTIONS = Metrics.operation("MemoryStorage.fuzzySearchQuestions");
+    private static final Metrics.Operation OP_ADD_ANSWER = Metrics.operation("MemoryStorage.addAnswer");
+    private static final Metrics.Operation OP_GET_ANSWERS_FOR_QUESTION = Metrics.operation("MemoryStorage.getAnswersForQuestion");
+    private static final Metrics.Operation OP_UPDATE_ANSWER = Metrics.operation("MemoryStorage.updateAnswer");
+    private static final Metrics.Operation OP_UPDATE_ANSWER_IF_VERSION = Metrics.operation("MemoryStorage.updateAnswerIfVersion");
+    private static final Metrics.Operation OP_DELETE_ANSWER = Metrics.operation("MemoryStorage.deleteAnswer");
+    private static final Metrics.Operation OP_ACCEPT_ANSWER = Metrics.operation("MemoryStorage.acceptAnswer");
+    private static final Metrics.Operation OP_ACCEPT_ANSWER_IF_VERSION = Metrics.operation("MemoryStorage.acceptAnswerIfVersion");
+    private static final Metrics.Operation OP_UPDATE_QUESTION_STATUS = Metrics.operation("MemoryStorage.updateQuestionStatus");
+
+    static {
+        // Sizes are read without the lock; a momentarily stale count is fine for monitoring
+        Metrics.gauge("MemoryStorage.users", users::size);
+        Metrics.gauge("MemoryStorage.sessions", sessions::size);
+        Metrics.gauge("MemoryStorage.lockouts", lockouts::size);
+        Metrics.gauge("MemoryStorage.emails", () -> columnarEmails != null ? columnarEmails.size() : emails.size());
+        Metrics.gauge("MemoryStorage.questions", questions::size);
+        Metrics.gauge("MemoryStorage.answers", answers::size);
+        Metrics.gauge("MemoryStorage.scheduledSends", scheduledSends::size);
+        Metrics.gauge("MemoryStorage.quotaRejections", () -> quotaRejections);
+        for (MemoryFootprint.EntityType type : MemoryFootprint.EntityType.values()) {
+            Metrics.gauge("MemoryStorage.bytes." + type.getLabel(), () -> footprint.getBytes(type));
+        }
+        Metrics.gauge("MemoryStorage.bytes.total", footprint::getTotalBytes);
+    }
+
+    // Receive a record of every change to users, mail and the forum; guarded by the class lock
+    private static final List<Consumer<Map<String, Object>>> mutationListeners = new ArrayList<>();
+
+    /**
+     * Registers a receiver of the mutation log, such as a {@link ReplicationLeader} or a
+     * {@link CachingStorage}. Each listener is called in order, under the class lock, with
+     * {"op":"put","record":...} carrying the entity's full {@link DataTransfer} record after
+     * the change, or {"op":"delete","record":{"type":...,"id":...}}. Sessions and login
+     * attempts are local and are not logged.
+     */
+    public static synchronized void addMutationListener(Consumer<Map<String, Object>> listener) {
+        mutationListeners.add(listener);
+    }
+
+    public static synchronized void removeMutationListener(Consumer<Map<String, Object>> listener) {
+        mutationListeners.remove(listener);
+    }
+
+    /**
+     * Returns the estimated heap bytes held by each entity type, in {@link MemoryFootprint}
+     * order. The same figures are published as the MemoryStorage.bytes.* gauges.
+     */
+    public static synchronized Map<MemoryFootprint.EntityType, Long> getMemoryFootprint() {
+        Map<MemoryFootprint.EntityType, Long> result = new EnumMap<>(MemoryFootprint.EntityType.class);
+        for (MemoryFootprint.EntityType type : MemoryFootprint.EntityType.values()) {
+            result.put(type, footprint.getBytes(type));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the {@code limit} users owning the most estimated heap bytes, largest first.
+     */
+    public static synchronized List<Map.Entry<String, Long>> getTopUsersByMemory(int limit) {
+        return footprint.topUsers(limit);
+    }
+
     // User Management
-    public static void addUser(String username, String password) {
-        users.put(username, password);
-        addSampleEmails(username);
+    public static synchronized void addUser(String username, String password) {
+        long start = OP_ADD_USER.start();
+        try {
+            putUser(username, password);
+            if (!mutationListeners.isEmpty()) {
+                logMutation("put", DataTransfer.userRecord(username, password));
+            }
+            addSampleEmails(username);
+        } finally {
+            OP_ADD_USER.stop(start);
+        }
     }
 
-    public static boolean userExists(String username) {
-        return users.containsKey(username);
+    /**
+     * Adds the user unless the name is already taken, in one step, so two registrations of
+     * the same name cannot both succeed. Returns whether the user was added.
+     */
+    public static synchronized boolean addUserIfAbsent(String username, String password) {
+        if (users.containsKey(username)) {
+            return false;
+        }
+        addUser(username, password);
+        return true;
     }
 
-    public static String getPassword(String username) {
-        return users.get(username);
+    private static void putUser(String username, String password) {
+        String previous = users.put(username, password);
+        if (previous == null) {
+            usernameIndex.add(username);
+            footprint.add(MemoryFootprint.EntityType.USERS, username, MemoryFootprint.estimateUser(username, password));
+        } else {
+            footprint.resize(MemoryFootprint.EntityType.USERS, username,
+                MemoryFootprint.stringBytes(password) - MemoryFootprint.stringBytes(previous));
+        }
+    }
+
+    public static synchronized boolean userExists(String username) {
+        long start = OP_USER_EXISTS.start();
+        try {
+            return users.containsKey(username);
+        } finally {
+            OP_USER_EXISTS.stop(start);
+        }
+    }
+
+    public static synchronized String getPassword(String username) {
+        long start = OP_GET_PASSWORD.start();
+        try {
+            return users.get(username);
+        } finally {
+            OP_GET_PASSWORD.stop(start);
+        }
+    }
+
+    /**
+     * Suggests existing usernames starting with {@code prefix}. Names the user writes to most
+     * often come first, followed by the remaining matches in alphabetical order.
+     */
+    public static synchronized List<String> completeUsernames(String prefix, String currentUser, int limit) {
+        long start = OP_COMPLETE_USERNAMES.start();
+        try {
+            LinkedHashSet<String> result = new LinkedHashSet<>();
+            PrefixIndex userContacts = contacts.get(currentUser);
+            if (userContacts != null) {
+                for (String name : userContacts.completeByWeight(prefix, limit)) {
+                    if (users.containsKey(name)) {
+                        result.add(name);
+                    }
+                }
+            }
+            for (String name : usernameIndex.complete(prefix, limit)) {
+                if (result.size() >= limit) {
+                    break;
+                }
+                result.add(name);
+            }
+            return shaped(OP_COMPLETE_USERNAMES, currentUser, prefix.length(), new ArrayList<>(result));
+        } finally {
+            OP_COMPLETE_USERNAMES.stop(start);
+        }
     }
 
     // Session Management
-    public static String createSession(String username) {
-        String token = UUID.randomUUID().toString();
-        sessions.put(token, username);
-        return token;
+    public static synchronized String createSession(String username) {
+        long start = OP_CREATE_SESSION.start();
+        try {
+            String token = UUID.randomUUID().toString();
+            sessions.put(token, username);
+            footprint.add(MemoryFootprint.EntityType.SESSIONS, username, MemoryFootprint.estimateSession(token));
+            return token;
+        } finally {
+            OP_CREATE_SESSION.stop(start);
+        }
     }
 
-    public static void logout(String token) {
-        sessions.remove(token);
+    public static synchronized void logout(String token) {
+        long start = OP_LOGOUT.start();
+        try {
+            String username = sessions.remove(token);
+            if (username != null) {
+                footprint.remove(MemoryFootprint.EntityType.SESSIONS, username, MemoryFootprint.estimateSession(token));
+            }
+        } finally {
+            OP_LOGOUT.stop(start);
+        }
     }
 
-    public static String getUserFromSession(String token) {
-        return sessions.get(token);
+    public static synchronized String getUserFromSession(String token) {
+        long start = OP_GET_USER_FROM_SESSION.start();
+        try {
+            return sessions.get(token);
+        } finally {
+            OP_GET_USER_FROM_SESSION.stop(start);
+        }
     }
 
     // Login Attempt Management
-    public static void incrementLoginAttempts(String username) {
-        loginAttempts.put(username, loginAttempts.getOrDefault(username, 0) + 1);
-        if (loginAttempts.get(username) >= 5) {
-            lockouts.put(username, LocalDateTime.now().plusMinutes(15));
+    public static synchronized void incrementLoginAttempts(String username) {
+        long start = OP_INCREMENT_LOGIN_ATTEMPTS.start();
+        try {
+            Integer previous = loginAttempts.put(username, loginAttempts.getOrDefault(username, 0) + 1);
+            if (previous == null) {
+                footprint.add(MemoryFootprint.EntityType.LOGIN_ATTEMPTS, username, MemoryFootprint.LOGIN_ATTEMPT_BYTES);
+            }
+            if (loginAttempts.get(username) >= 5 &&
+                lockouts.put(username, LocalDateTime.now().plusMinutes(15)) == null) {
+                footprint.add(MemoryFootprint.EntityType.LOCKOUTS, username, MemoryFootprint.LOCKOUT_BYTES);
+            }
+        } finally {
+            OP_INCREMENT_LOGIN_ATTEMPTS.stop(start);
         }
     }
 
-    public static void resetLoginAttempts(String username) {
-        loginAttempts.remove(username);
-        lockouts.remove(username);
+    public static synchronized void resetLoginAttempts(String username) {
+        long start = OP_RESET_LOGIN_ATTEMPTS.start();
+        try {
+            if (loginAttempts.remove(username) != null) {
+                footprint.remove(MemoryFootprint.EntityType.LOGIN_ATTEMPTS, username, MemoryFootprint.LOGIN_ATTEMPT_BYTES);
+            }
+            if (lockouts.remove(username) != null) {
+                footprint.remove(MemoryFootprint.EntityType.LOCKOUTS, username, MemoryFootprint.LOCKOUT_BYTES);
+            }
+        } finally {
+            OP_RESET_LOGIN_ATTEMPTS.stop(start);
+        }
     }
 
-    public static boolean isLockedOut(String username) {
-        LocalDateTime lockoutTime = lockouts.get(username);
-        return lockoutTime != null && lockoutTime.isAfter(LocalDateTime.now());
+    public static synchronized boolean isLockedOut(String username) {
+        long start = OP_IS_LOCKED_OUT.start();
+        try {
+            LocalDateTime lockoutTime = lockouts.get(username);
+            return lockoutTime != null && lockoutTime.isAfter(LocalDateTime.now());
+        } finally {
+            OP_IS_LOCKED_OUT.stop(start);
+        }
     }
 
-    public static long getLockoutTimeRemaining(String username) {
-        LocalDateTime lockoutTime = lockouts.get(username);
-        if (lockoutTime == null || lockoutTime.isBefore(LocalDateTime.now())) {
-            return 0;
+    public static synchronized long getLockoutTimeRemaining(String username) {
+        long start = OP_GET_LOCKOUT_TIME_REMAINING.start();
+        try {
+            LocalDateTime lockoutTime = lockouts.get(username);
+            if (lockoutTime == null || lockoutTime.isBefore(LocalDateTime.now())) {
+                return 0;
+            }
+            return ChronoUnit.MINUTES.between(LocalDateTime.now(), lockoutTime);
+        } finally {
+            OP_GET_LOCKOUT_TIME_REMAINING.stop(start);
         }
-        return ChronoUnit.MINUTES.between(LocalDateTime.now(), lockoutTime);
     }
 
     // Email Management
-    public static void addSampleEmails(String username) {
-        addEmail("system@forum.com", username, "Welcome to the Forum", 
-            "Welcome to our forum system! Feel free to ask questions and help others.");
+
+    /**
+     * Switches email storage to the compact columnar layout, moving any existing messages over.
+     * Meant to be called once at startup, before the UI is shown.
+     */
+    public static synchronized void useColumnarEmailStore() {
+        if (columnarEmails != null) {
+            return;
+        }
+        columnarEmails = new ColumnarEmailStore();
+        for (Email email : emails) {
+            columnarEmails.add(email);
+        }
+        emails.clear();
+        emailsById.clear();
+    }
+
+    /**
+     * Moves email, question and answer bodies into direct-memory arenas, including the ones
+     * already stored. Emails in the columnar store keep their bodies on the heap.
+     */
+    public static synchronized void useOffHeapBodies() {
+        if (offHeapBodies != null) {
+            return;
+        }
+        offHeapBodies = new OffHeapBodyStore();
+        for (Email email : emails) {
+            long before = MemoryFootprint.estimate(email);
+            moveOffHeap(email);
+            footprint.resize(MemoryFootprint.EntityType.EMAILS, email.getFromUser(), MemoryFootprint.estimate(email) - before);
+        }
+        for (Question question : questions) {
+            long before = MemoryFootprint.estimate(question);
+            moveOffHeap(question);
+            footprint.resize(MemoryFootprint.EntityType.QUESTIONS, question.getAuthor(), MemoryFootprint.estimate(question) - before);
+        }
+        for (Answer answer : answers) {
+            long before = MemoryFootprint.estimate(answer);
+            moveOffHeap(answer);
+            footprint.resize(MemoryFootprint.EntityType.ANSWERS, answer.getAuthor(), MemoryFootprint.estimate(answer) - before);
+        }
+    }
+
+    /**
+     * Keeps at most {@code maxHotEmails} messages, none older than {@code maxAge}, in memory and
+     * spills older ones to segment files in {@code directory}. Drafts always stay in memory.
+     * Only supported with the default list-backed email store.
+     */
+    public static synchronized void useTieredEmailStorage(Path directory, Duration maxAge, int maxHotEmails) throws IOException {
+        if (columnarEmails != null) {
+            throw new IllegalStateException("Tiered email storage requires the list-backed email store");
+        }
+        if (coldEmails != null) {
+            // The mail below is charged again when it is reopened, so give back what it holds now
+            coldEmails.forEach(e -> {
+                if (e.getStatus() != Email.EmailStatus.DELETED) {
+                    quota.credit(e.getFromUser(), MailboxQuota.sizeOf(e));
+                }
+                // Only the counts; the files are still wanted if the mail is reopened
+                for (Attachment attachment : e.getAttachments()) {
+                    attachmentRefs.computeIfPresent(attachment.getHash(), (hash, refs) -> refs > 1 ? refs - 1 : null);
+                }
+            });
+            coldEmails.close();
+        }
+        coldEmails = new EmailSegmentStore(directory, 10_000);
+        // Segments left by an earlier run hold mail the index, quotas and attachment counts
+        // have not seen; deleted mail keeps its attachments until its segment is rewritten
+        coldEmails.forEach(e -> {
+            mailboxIndex.add(e);
+            if (e.getStatus() != Email.EmailStatus.DELETED) {
+                quota.charge(e.getFromUser(), MailboxQuota.sizeOf(e));
+            }
+            for (Attachment attachment : e.getAttachments()) {
+                attachmentRefs.merge(attachment.getHash(), 1, Integer::sum);
+            }
+        });
+        coldEmailAge = maxAge;
+        MemoryStorage.maxHotEmails = maxHotEmails;
+        nextEmailId = Math.max(nextEmailId, coldEmails.getMaxId() + 1);
+        spillColdEmails();
+    }
+
+    /**
+     * Keeps attachment files in {@code directory}. Meant to be called once at startup, before
+     * any mail is restored.
+     */
+    public static synchronized void useAttachmentStore(Path directory) throws IOException {
+        attachmentStore = new AttachmentStore(directory);
+    }
+
+    /**
+     * Streams a file into the attachment store and returns the reference to pass to
+     * {@link #addEmail(String, String, String, String, List)} or
+     * {@link #saveDraft(String, String, String, String, List)}. The copy runs outside the
+     * storage lock, so a large upload does not hold up other users.
+     *
+     * The returned attachment is pinned, so the file stays even though no email uses it yet.
+     * Storing or refusing the email that carries it gives the pin up, and so does
+     * {@link #unpinAttachments}, e.g. when the user cancels; a pin never given up expires
+     * after a day.
+     */
+    public static Attachment storeAttachment(InputStream in, String fileName) throws IOException {
+        AttachmentStore store = attachments();
+        AttachmentStore.Upload upload = store.upload(in, fileName);
+        try {
+            return commitAttachment(store, upload);
+        } finally {
+            store.discard(upload);
+        }
+    }
+
+    // Under the lock, so a file with the same content cannot be deleted between being found
+    // in the store and being pinned
+    private static synchronized Attachment commitAttachment(AttachmentStore store, AttachmentStore.Upload upload)
+            throws IOException {
+        store.commit(upload);
+        pinAttachment(upload.getAttachment().getHash());
+        return upload.getAttachment();
+    }
+
+    /**
+     * Pins attachments that are already stored, e.g. those of an email being forwarded, and
+     * returns the ones still stored; the others have been deleted and cannot be sent again.
+     */
+    public static synchronized List<Attachment> pinAttachments(List<Attachment> attachments) {
+        List<Attachment> pinned = new ArrayList<>(attachments.size());
+        for (Attachment attachment : attachments) {
+            if (attachmentRefs.containsKey(attachment.getHash())) {
+                pinAttachment(attachment.getHash());
+                pinned.add(attachment);
+            }
+        }
+        return pinned;
+    }
+
+    /**
+     * Gives up one pin on each attachment, deleting files nothing else refers to.
+     */
+    public static synchronized void unpinAttachments(List<Attachment> attachments) {
+        for (Attachment attachment : attachments) {
+            ArrayDeque<Long> pins = attachmentPins.get(attachment.getHash());
+            if (pins == null) {
+                continue;
+            }
+            pins.pollFirst();
+            if (pins.isEmpty()) {
+                attachmentPins.remove(attachment.getHash());
+            }
+            releaseAttachment(attachment.getHash());
+        }
+    }
+
+    /**
+     * Drops expired pins and deletes attachment files that no email or pin refers to, such as
+     * uploads left behind by a crash, along with abandoned temporary files. Only run once all
+     * mail has been restored, or the files of mail not yet restored look unused. Returns the
+     * number of files deleted.
+     */
+    public static int sweepAttachments() throws IOException {
+        AttachmentStore store;
+        synchronized (MemoryStorage.class) {
+            store = attachmentStore;
+            if (store == null) {
+                return 0;
+            }
+            expireAttachmentPins();
+        }
+        // List the directory outside the lock; whether a file is unused is checked under it
+        List<String> stored = store.list();
+        int deleted = deleteUnusedAttachments(store, stored);
+        store.deleteStaleUploads(ATTACHMENT_PIN_LEASE);
+        return deleted;
+    }
+
+    private static synchronized int deleteUnusedAttachments(AttachmentStore store, List<String> hashes)
+            throws IOException {
+        int deleted = 0;
+        for (String hash : hashes) {
+            if (!attachmentRefs.containsKey(hash)) {
+                store.delete(hash);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private static void pinAttachment(String hash) {
+        attachmentRefs.merge(hash, 1, Integer::sum);
+        attachmentPins.computeIfAbsent(hash, k -> new ArrayDeque<>())
+            .addLast(System.currentTimeMillis() + ATTACHMENT_PIN_LEASE.toMillis());
+    }
+
+    private static void expireAttachmentPins() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, ArrayDeque<Long>>> entries = attachmentPins.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, ArrayDeque<Long>> entry = entries.next();
+            ArrayDeque<Long> pins = entry.getValue();
+            while (!pins.isEmpty() && pins.peekFirst() <= now) {
+                pins.pollFirst();
+                releaseAttachment(entry.getKey());
+            }
+            if (pins.isEmpty()) {
+                entries.remove();
+            }
+        }
     }
 
-    public static int addEmail(String fromUser, String toUser, String subject, String content) {
+    /**
+     * Writes an attachment's content to {@code target} straight from its file.
+     */
+    public static long transferAttachment(String hash, WritableByteChannel target) throws IOException {
+        return attachments().transferTo(hash, target);
+    }
+
+    private static synchronized AttachmentStore attachments() {
+        if (attachmentStore == null) {
+            throw new IllegalStateException("Attachments are not enabled");
+        }
+        return attachmentStore;
+    }
+
+    /**
+     * Moves every non-draft email past the age limit into a new segment, and once the memory
+     * budget is exceeded also the oldest ones down to three quarters of the budget, so
+     * segments are written in large batches. Runs automatically as mail is stored.
+     */
+    public static synchronized void spillColdEmails() {
+        long start = OP_SPILL_COLD_EMAILS.start();
+        try {
+            if (coldEmails == null) {
+                return;
+            }
+            LocalDateTime cutoff = LocalDateTime.now().minus(coldEmailAge);
+            int overflow = emails.size() > maxHotEmails ? emails.size() - maxHotEmails * 3 / 4 : 0;
+            List<Email> batch = new ArrayList<>();
+            for (Email email : emails) {
+                if (overflow <= 0 && !email.getSentDate().isBefore(cutoff)) {
+                    break;
+                }
+                if (email.getStatus() != Email.EmailStatus.DRAFT) {
+                    batch.add(email);
+                    overflow--;
+                }
+            }
+            nextColdSweep = LocalDateTime.now().plusMinutes(1);
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            try {
+                coldEmails.writeSegment(batch);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not spill emails to disk", e);
+            }
+            Set<Email> spilled = Collections.newSetFromMap(new IdentityHashMap<>());
+            spilled.addAll(batch);
+            emails.removeIf(spilled::contains);
+            batch.forEach(e -> {
+                emailsById.remove(e.getId());
+                forget(e);
+                e.releaseOffHeapContent();
+            });
+        } finally {
+            OP_SPILL_COLD_EMAILS.stop(start);
+        }
+    }
+
+    public static synchronized void addSampleEmails(String username) {
+        long start = OP_ADD_SAMPLE_EMAILS.start();
+        try {
+            // System mail is not held to a quota
+            sendEmail("system@forum.com", username, "Welcome to the Forum", 
+                "Welcome to our forum system! Feel free to ask questions and help others.", List.of());
+        } finally {
+            OP_ADD_SAMPLE_EMAILS.stop(start);
+        }
+    }
+
+    /**
+     * Sends an email and returns its id, or -1 if it was refused because the sender is over
+     * their mailbox quota or mail already fills the node's email memory limit.
+     */
+    public static synchronized int addEmail(String fromUser, String toUser, String subject, String content) {
+        return addEmail(fromUser, toUser, subject, content, List.of());
+    }
+
+    public static synchronized int addEmail(String fromUser, String toUser, String subject, String content,
+                                            List<Attachment> attachments) {
+        long start = OP_ADD_EMAIL.start();
+        try {
+            if (!admit(fromUser, MailboxQuota.sizeOf(subject, content))) {
+                unpinAttachments(attachments);
+                return -1;
+            }
+            int id = sendEmail(fromUser, toUser, subject, content, attachments);
+            // The email now holds its own references
+            unpinAttachments(attachments);
+            OP_ADD_EMAIL.shape(fromUser, content != null ? content.length() : 0, -1);
+            return id;
+        } finally {
+            OP_ADD_EMAIL.stop(start);
+        }
+    }
+
+    private static int sendEmail(String fromUser, String toUser, String subject, String content,
+                                 List<Attachment> attachments) {
         Email email = new Email();
         email.setId(nextEmailId++);
         email.setFromUser(fromUser);
         email.setToUser(toUser);
         email.setSubject(subject);
         email.setContent(content);
+        email.setAttachments(attachments);
         email.setSentDate(LocalDateTime.now());
         email.setStatus(Email.EmailStatus.SENT);
         email.setRead(false);
-        emails.add(email);
+        storeEmail(email);
+        recordContact(fromUser, toUser);
+        logPut(email);
         return email.getId();
     }
 
-    public static void saveDraft(String fromUser, String toUser, String subject, String content) {
-        Email email = new Email();
-        email.setId(nextEmailId++);
-        email.setFromUser(fromUser);
-        email.setToUser(toUser != null ? toUser : "");
-        email.setSubject(subject != null ? subject : "");
-        email.setContent(content != null ? content : "");
-        email.setSentDate(LocalDateTime.now());
-        email.setStatus(Email.EmailStatus.DRAFT);
-        email.setRead(false);
-        emails.add(email);
-    }
-
-    public static void sendDraft(int emailId) {
-        emails.stream()
-            .filter(e -> e.getId() == emailId && e.getStatus() == Email.EmailStatus.DRAFT)
-            .findFirst()
-            .ifPresent(e -> {
-                // Only send if recipient and subject are specified
-                if (!e.getToUser().trim().isEmpty() && !e.getSubject().trim().isEmpty()) {
-                    e.setStatus(Email.EmailStatus.SENT);
-                    e.setSentDate(LocalDateTime.now());  // Update sent date to now
-                }
+    /**
+     * Saves a draft and returns its id, or -1 if it was refused for the same reasons as
+     * {@link #addEmail(String, String, String, String)}.
+     */
+    public static synchronized int saveDraft(String fromUser, String toUser, String subject, String content) {
+        return saveDraft(fromUser, toUser, subject, content, List.of());
+    }
+
+    public static synchronized int saveDraft(String fromUser, String toUser, String subject, String content,
+                                             List<Attachment> attachments) {
+        long start = OP_SAVE_DRAFT.start();
+        try {
+            if (!admit(fromUser, MailboxQuota.sizeOf(subject, content))) {
+                unpinAttachments(attachments);
+                return -1;
+            }
+            Email email = new Email();
+            email.setId(nextEmailId++);
+            email.setFromUser(fromUser);
+            email.setToUser(toUser != null ? toUser : "");
+            email.setSubject(subject != null ? subject : "");
+            email.setContent(content != null ? content : "");
+            email.setAttachments(attachments);
+            email.setSentDate(LocalDateTime.now());
+            email.setStatus(Email.EmailStatus.DRAFT);
+            email.setRead(false);
+            storeEmail(email);
+            unpinAttachments(attachments);
+            logPut(email);
+            return email.getId();
+        } finally {
+            OP_SAVE_DRAFT.stop(start);
+        }
+    }
+
+    // Whether the node and the sender have room for one more message of 'size' bytes
+    private static boolean admit(String fromUser, long size) {
+        if (footprint.getBytes(MemoryFootprint.EntityType.EMAILS) >= maxEmailHeapBytes ||
+            !quota.allows(fromUser, size)) {
+            quotaRejections++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Limits every user to {@code maxMessages} sent and drafted emails that are not deleted,
+     * with subjects and bodies of at most {@code maxBytes} in total, unless they have limits
+     * of their own. Mail already stored is kept even if it is over the new limits.
+     */
+    public static synchronized void setDefaultMailboxQuota(int maxMessages, long maxBytes) {
+        quota.setDefaultLimit(maxMessages, maxBytes);
+    }
+
+    public static synchronized void setMailboxQuota(String username, int maxMessages, long maxBytes) {
+        quota.setLimit(username, maxMessages, maxBytes);
+    }
+
+    public static synchronized void clearMailboxQuota(String username) {
+        quota.clearLimit(username);
+    }
+
+    public static synchronized MailboxQuota.Usage getMailboxUsage(String username) {
+        return quota.getUsage(username);
+    }
+
+    /**
+     * Refuses new mail from anyone while the estimated heap held by emails, including deleted
+     * mail not yet compacted away, is at or above {@code maxBytes}.
+     */
+    public static synchronized void setEmailMemoryLimit(long maxBytes) {
+        maxEmailHeapBytes = maxBytes;
+    }
+
+    private static void storeEmail(Email email) {
+        if (email.getStatus() != Email.EmailStatus.DELETED) {
+            quota.charge(email.getFromUser(), MailboxQuota.sizeOf(email));
+        }
+        mailboxIndex.add(email);
+        for (Attachment attachment : email.getAttachments()) {
+            attachmentRefs.merge(attachment.getHash(), 1, Integer::sum);
+        }
+        if (columnarEmails != null) {
+            footprint.add(MemoryFootprint.EntityType.EMAILS, email.getFromUser(), MemoryFootprint.estimate(email));
+            columnarEmails.add(email);
+        } else {
+            moveOffHeap(email);
+            emails.add(email);
+            emailsById.put(email.getId(), email);
+            footprint.add(MemoryFootprint.EntityType.EMAILS, email.getFromUser(), MemoryFootprint.estimate(email));
+            // Spill once over budget, and sweep for old mail once a minute
+            if (coldEmails != null && (emails.size() > maxHotEmails ||
+                                       LocalDateTime.now().isAfter(nextColdSweep))) {
+                spillColdEmails();
+            }
+        }
+    }
+
+    public static synchronized void sendDraft(int emailId) {
+        long start = OP_SEND_DRAFT.start();
+        try {
+            send(emailId);
+        } finally {
+            OP_SEND_DRAFT.stop(start);
+        }
+    }
+
+    private static void send(int emailId) {
+        if (columnarEmails != null) {
+            columnarEmails.sendDraft(emailId, LocalDateTime.now()).ifPresent(e -> {
+                unschedule(emailId);
+                mailboxIndex.add(e);
+                recordContact(e.getFromUser(), e.getToUser());
+                logPut(e);
             });
+            return;
+        }
+        Email e = emailsById.get(emailId);
+        // Only send if recipient and subject are specified
+        if (e != null && e.getStatus() == Email.EmailStatus.DRAFT && isComplete(e)) {
+            e.setStatus(Email.EmailStatus.SENT);
+            e.setSentDate(LocalDateTime.now());  // Update sent date to now
+            e.setScheduledAt(null);
+            e.incrementVersion();
+            unschedule(emailId);
+            mailboxIndex.add(e);
+            recordContact(e.getFromUser(), e.getToUser());
+            logPut(e);
+        }
+    }
+
+    private static boolean isComplete(Email draft) {
+        return !draft.getToUser().trim().isEmpty() && !draft.getSubject().trim().isEmpty();
+    }
+
+    /**
+     * Schedules a draft to be sent automatically at {@code sendAt}, replacing any earlier
+     * schedule; a time already past sends it on the next tick. Only drafts with a recipient
+     * and subject can be scheduled. Returns false if there is no such draft.
+     */
+    public static synchronized boolean scheduleDraft(int emailId, LocalDateTime sendAt) {
+        long start = OP_SCHEDULE_DRAFT.start();
+        try {
+            Email draft = findEmail(emailId);
+            if (draft == null || draft.getStatus() != Email.EmailStatus.DRAFT || !isComplete(draft)) {
+                return false;
+            }
+            setScheduledAt(draft, sendAt);
+            arm(emailId, sendAt);
+            return true;
+        } finally {
+            OP_SCHEDULE_DRAFT.stop(start);
+        }
+    }
+
+    /**
+     * Takes a draft off the schedule, leaving it a plain draft. Returns false if it was not
+     * scheduled.
+     */
+    public static synchronized boolean cancelScheduledSend(int emailId) {
+        long start = OP_CANCEL_SCHEDULED_SEND.start();
+        try {
+            Email draft = findEmail(emailId);
+            if (draft == null || draft.getStatus() != Email.EmailStatus.DRAFT || draft.getScheduledAt() == null) {
+                return false;
+            }
+            setScheduledAt(draft, null);
+            unschedule(emailId);
+            return true;
+        } finally {
+            OP_CANCEL_SCHEDULED_SEND.stop(start);
+        }
+    }
+
+    private static void setScheduledAt(Email draft, LocalDateTime sendAt) {
+        if (columnarEmails != null) {
+            columnarEmails.schedule(draft.getId(), sendAt).ifPresent(MemoryStorage::logPut);
+        } else {
+            draft.setScheduledAt(sendAt);
+            draft.incrementVersion();
+            logPut(draft);
+        }
+    }
+
+    private static void arm(int emailId, LocalDateTime sendAt) {
+        if (sendScheduler == null) {
+            sendScheduler = new TimingWheel<>("scheduled-send", SCHEDULED_SEND_TICK, MemoryStorage::sendScheduled);
+        }
+        TimingWheel.Timeout<Integer> previous = scheduledSends.put(emailId, sendScheduler.schedule(emailId, toMillis(sendAt)));
+        if (previous != null) {
+            sendScheduler.cancel(previous);
+        }
+    }
+
+    private static void unschedule(int emailId) {
+        TimingWheel.Timeout<Integer> timeout = scheduledSends.remove(emailId);
+        if (timeout != null) {
+            sendScheduler.cancel(timeout);
+        }
+    }
+
+    // Runs on the scheduler thread with the drafts that came due, taking the lock per batch
+    private static void sendScheduled(List<Integer> emailIds) {
+        for (int from = 0; from < emailIds.size(); from += SCHEDULED_SEND_BATCH) {
+            sendScheduledBatch(emailIds.subList(from, Math.min(from + SCHEDULED_SEND_BATCH, emailIds.size())));
+        }
     }
 
-    public static List<Email> getInboxEmails(String username) {
-        return emails.stream()
-            .filter(e -> e.getToUser().equals(username) && 
-                        e.getStatus() != Email.EmailStatus.DELETED)
-            .sorted((e1, e2) -> e2.getSentDate().compareTo(e1.getSentDate()))
-            .collect(Collectors.toList());
+    private static synchronized void sendScheduledBatch(List<Integer> emailIds) {
+        long start = OP_SEND_SCHEDULED.start();
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            for (int emailId : emailIds) {
+                // The draft may have been sent, deleted or rescheduled while the batch waited
+                Email draft = findEmail(emailId);
+                if (draft != null && draft.getStatus() == Email.EmailStatus.DRAFT &&
+                    draft.getScheduledAt() != null && !draft.getScheduledAt().isAfter(now)) {
+                    send(emailId);
+                }
+            }
+        } finally {
+            OP_SEND_SCHEDULED.stop(start);
+        }
     }
 
-    public static List<Email> getSentEmails(String username) {
-        return emails.stream()
-            .filter(e -> e.getFromUser().equals(username) && 
-                        e.getStatus() == Email.EmailStatus.SENT)
-            .sorted((e1, e2) -> e2.getSentDate().compareTo(e1.getSentDate()))
-            .collect(Collectors.toList());
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
-    public static List<Email> getDrafts(String username) {
-        return emails.stream()
-            .filter(e -> e.getFromUser().equals(username) && 
-                        e.getStatus() == Email.EmailStatus.DRAFT)
-            .sorted((e1, e2) -> e2.getSentDate().compareTo(e1.getSentDate()))
-            .collect(Collectors.toList());
+    private static void recordContact(String fromUser, String toUser) {
+        contacts.computeIfAbsent(fromUser, k -> new PrefixIndex()).add(toUser.trim());
     }
 
-    public static void markAsRead(int emailId, String username) {
-        emails.stream()
-            .filter(e -> e.getId() == emailId && e.getToUser().equals(username))
-            .findFirst()
-            .ifPresent(e -> e.setRead(true));
+    public static synchronized List<Email> getInboxEmails(String username) {
+        long start = OP_GET_INBOX_EMAILS.start();
+        try {
+            if (columnarEmails != null) {
+                return shaped(OP_GET_INBOX_EMAILS, username, -1, columnarEmails.getInboxEmails(username));
+            }
+            List<Email> inbox = emails.stream()
+                .filter(e -> e.getToUser().equals(username) && 
+                            e.getStatus() != Email.EmailStatus.DELETED)
+                .collect(Collectors.toList());
+            if (coldEmails != null) {
+                inbox.addAll(coldEmails.getReceived(username));
+            }
+            inbox.sort((e1, e2) -> e2.getSentDate().compareTo(e1.getSentDate()));
+            return shaped(OP_GET_INBOX_EMAILS, username, -1, inbox);
+        } finally {
+            OP_GET_INBOX_EMAILS.stop(start);
+        }
     }
 
-    public static void deleteEmail(int emailId, String username) {
-        emails.stream()
-            .filter(e -> e.getId() == emailId && 
-                        (e.getFromUser().equals(username) || e.getToUser().equals(username)))
-            .findFirst()
-            .ifPresent(e -> e.setStatus(Email.EmailStatus.DELETED));
+    public static synchronized List<Email> getSentEmails(String username) {
+        long start = OP_GET_SENT_EMAILS.start();
+        try {
+            if (columnarEmails != null) {
+                return shaped(OP_GET_SENT_EMAILS, username, -1, columnarEmails.getSentEmails(username));
+            }
+            List<Email> sent = emails.stream()
+                .filter(e -> e.getFromUser().equals(username) && 
+                            e.getStatus() == Email.EmailStatus.SENT)
+                .collect(Collectors.toList());
+            if (coldEmails != null) {
+                sent.addAll(coldEmails.getSent(username));
+            }
+            sent.sort((e1, e2) -> e2.getSentDate().compareTo(e1.getSentDate()));
+            return shaped(OP_GET_SENT_EMAILS, username, -1, sent);
+        } finally {
+            OP_GET_SENT_EMAILS.stop(start);
+        }
+    }
+
+    public static synchronized List<Email> getDrafts(String username) {
+        long start = OP_GET_DRAFTS.start();
+        try {
+            if (columnarEmails != null) {
+                return shaped(OP_GET_DRAFTS, username, -1, columnarEmails.getDrafts(username));
+            }
+            return shaped(OP_GET_DRAFTS, username, -1, emails.stream()
+                .filter(e -> e.getFromUser().equals(username) && 
+                            e.getStatus() == Email.EmailStatus.DRAFT)
+                .sorted((e1, e2) -> e2.getSentDate().compareTo(e1.getSentDate()))
+                .collect(Collectors.toList()));
+        } finally {
+            OP_GET_DRAFTS.stop(start);
+        }
+    }
+
+    public static synchronized void markAsRead(int emailId, String username) {
+        long start = OP_MARK_AS_READ.start();
+        try {
+            if (columnarEmails != null) {
+                columnarEmails.markAsRead(emailId, username);
+                logColumnarEmail(emailId);
+                return;
+            }
+            emails.stream()
+                .filter(e -> e.getId() == emailId && e.getToUser().equals(username))
+                .findFirst()
+                .ifPresentOrElse(e -> {
+                    if (!e.isRead()) {
+                        e.setRead(true);
+                        e.incrementVersion();
+                    }
+                    logPut(e);
+                }, () -> {
+                    if (coldEmails != null && coldEmails.markAsRead(emailId, username)) {
+                        logColdEmail(emailId);
+                    }
+                });
+        } finally {
+            OP_MARK_AS_READ.stop(start);
+        }
+    }
+
+    public static synchronized void deleteEmail(int emailId, String username) {
+        long start = OP_DELETE_EMAIL.start();
+        try {
+            if (columnarEmails != null) {
+                Email.EmailStatus previous = columnarEmails.get(emailId).map(Email::getStatus).orElse(null);
+                columnarEmails.deleteEmail(emailId, username);
+                columnarEmails.get(emailId).ifPresent(e -> unindexIfDeleted(e, previous));
+                logColumnarEmail(emailId);
+                return;
+            }
+            emails.stream()
+                .filter(e -> e.getId() == emailId && 
+                            (e.getFromUser().equals(username) || e.getToUser().equals(username)))
+                .findFirst()
+                .ifPresentOrElse(e -> {
+                    if (e.getStatus() != Email.EmailStatus.DELETED) {
+                        quota.credit(e.getFromUser(), MailboxQuota.sizeOf(e));
+                    }
+                    e.setStatus(Email.EmailStatus.DELETED);
+                    e.setDeletedAt(LocalDateTime.now());
+                    e.setScheduledAt(null);
+                    e.incrementVersion();
+                    unschedule(emailId);
+                    mailboxIndex.remove(e);
+                    logPut(e);
+                }, () -> {
+                    if (coldEmails == null) {
+                        return;
+                    }
+                    // Cold reads may hand back the cached copy the delete updates, so note the status first
+                    Email.EmailStatus previous = coldEmails.get(emailId).map(Email::getStatus).orElse(null);
+                    if (coldEmails.deleteEmail(emailId, username)) {
+                        coldEmails.get(emailId).ifPresent(e -> unindexIfDeleted(e, previous));
+                        logColdEmail(emailId);
+                    }
+                });
+        } finally {
+            OP_DELETE_EMAIL.stop(start);
+        }
+    }
+
+    /**
+     * Rewrites at most one cold segment that has gathered many read flags or deletes older
+     * than {@code deletedBefore}, folding in the read flags and dropping that mail. The new
+     * file is written outside the storage lock, which is only taken to switch over to it.
+     * Returns the number of emails purged.
+     */
+    public static int compactColdEmails(LocalDateTime deletedBefore) throws IOException {
+        long start = OP_COMPACT_COLD_EMAILS.start();
+        try {
+            EmailSegmentStore store;
+            synchronized (MemoryStorage.class) {
+                store = coldEmails;
+            }
+            if (store == null) {
+                return 0;
+            }
+            EmailSegmentStore.Compaction compaction = store.startCompaction(deletedBefore);
+            if (compaction == null) {
+                return 0;
+            }
+            try {
+                compaction.write();
+                synchronized (MemoryStorage.class) {
+                    // Reopened meanwhile; the rewritten file is picked up when it next opens
+                    if (coldEmails != store) {
+                        return 0;
+                    }
+                    return store.commit(compaction, e -> {
+                        releaseAttachments(e);
+                        logDelete("email", e.getId());
+                    });
+                }
+            } finally {
+                store.abandon(compaction);
+            }
+        } finally {
+            OP_COMPACT_COLD_EMAILS.stop(start);
+        }
+    }
+
+    private static void releaseAttachments(Email email) {
+        for (Attachment attachment : email.getAttachments()) {
+            releaseAttachment(attachment.getHash());
+        }
+    }
+
+    // Drops one reference, deleting the file once nothing refers to it
+    private static void releaseAttachment(String hash) {
+        Integer refs = attachmentRefs.get(hash);
+        if (refs == null) {
+            return;
+        }
+        if (refs > 1) {
+            attachmentRefs.put(hash, refs - 1);
+            return;
+        }
+        attachmentRefs.remove(hash);
+        if (attachmentStore != null) {
+            try {
+                attachmentStore.delete(hash);
+            } catch (IOException e) {
+                System.err.println("Could not delete attachment " + hash + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void unindexIfDeleted(Email email, Email.EmailStatus previous) {
+        if (email.getStatus() == Email.EmailStatus.DELETED) {
+            if (previous != Email.EmailStatus.DELETED) {
+                quota.credit(email.getFromUser(), MailboxQuota.sizeOf(email));
+            }
+            unschedule(email.getId());
+            mailboxIndex.remove(email);
+        }
+    }
+
+    /**
+     * Searches everything in the user's mailbox: received and sent mail and drafts. Plain
+     * words match the subject, body or a correspondent's name, and {@code from:name},
+     * {@code to:name} and {@code subject:word} restrict a clause to one field. Every clause
+     * must match. Returns up to {@code limit} emails, newest first.
+     */
+    public static synchronized List<Email> searchEmails(String username, String query, int limit) {
+        long start = OP_SEARCH_EMAILS.start();
+        try {
+            List<Email> result = new ArrayList<>();
+            for (int emailId : mailboxIndex.search(username, query, limit)) {
+                Email email = findEmail(emailId);
+                if (email != null) {
+                    result.add(email);
+                }
+            }
+            return shaped(OP_SEARCH_EMAILS, username, query != null ? query.length() : 0, result);
+        } finally {
+            OP_SEARCH_EMAILS.stop(start);
+        }
+    }
+
+    private static Email findEmail(int emailId) {
+        if (columnarEmails != null) {
+            return columnarEmails.get(emailId).orElse(null);
+        }
+        Email email = emailsById.get(emailId);
+        if (email == null && coldEmails != null) {
+            email = coldEmails.get(emailId).orElse(null);
+        }
+        return email;
+    }
+
+    /**
+     * Runs one bounded slice of compaction: physically removes emails that were deleted before
+     * {@code deletedBefore}, answers whose question no longer exists and expired lockouts.
+     * Cold mail is compacted separately, by {@link #compactColdEmails}.
+     * Work resumes where the previous slice stopped, and stops once {@code budgetNanos} has
+     * been spent, so callers can spread a full pass over many short slices.
+     *
+     * @return the number of records removed
+     */
+    static synchronized int compactSlice(LocalDateTime deletedBefore, long budgetNanos) {
+        long start = OP_COMPACT_SLICE.start();
+        try {
+            final int chunk = 512;
+            long deadline = System.nanoTime() + budgetNanos;
+            int purged = 0;
+
+            while (System.nanoTime() < deadline) {
+                if (emailCompactionCursor < emails.size()) {
+                    int end = Math.min(emailCompactionCursor + chunk, emails.size());
+                    List<Email> slice = emails.subList(emailCompactionCursor, end);
+                    int before = slice.size();
+                    slice.removeIf(e -> {
+                        if (e.getStatus() != Email.EmailStatus.DELETED || e.getDeletedAt() == null ||
+                            !e.getDeletedAt().isBefore(deletedBefore)) {
+                            return false;
+                        }
+                        emailsById.remove(e.getId());
+                        forget(e);
+                        e.releaseOffHeapContent();
+                        releaseAttachments(e);
+                        logDelete("email", e.getId());
+                        return true;
+                    });
+                    purged += before - slice.size();
+                    emailCompactionCursor += slice.size();
+                } else if (answerCompactionCursor < answers.size()) {
+                    int end = Math.min(answerCompactionCursor + chunk, answers.size());
+                    List<Answer> slice = answers.subList(answerCompactionCursor, end);
+                    int before = slice.size();
+                    slice.removeIf(a -> {
+                        if (questionsById.containsKey(a.getQuestionId())) {
+                            return false;
+                        }
+                        forget(a);
+                        a.releaseOffHeapContent();
+                        logDelete("answer", a.getId());
+                        return true;
+                    });
+                    purged += before - slice.size();
+                    answerCompactionCursor += slice.size();
+                } else {
+                    // End of a full pass: lockouts are few, so prune them in one go and start over
+                    LocalDateTime now = LocalDateTime.now();
+                    int lockoutCount = lockouts.size();
+                    lockouts.entrySet().removeIf(e -> {
+                        if (!e.getValue().isBefore(now)) {
+                            return false;
+                        }
+                        footprint.remove(MemoryFootprint.EntityType.LOCKOUTS, e.getKey(), MemoryFootprint.LOCKOUT_BYTES);
+                        return true;
+                    });
+                    purged += lockoutCount - lockouts.size();
+                    emailCompactionCursor = 0;
+                    answerCompactionCursor = 0;
+                    break;
+                }
+            }
+            OP_COMPACT_SLICE.shape(null, -1, purged);
+            return purged;
+        } finally {
+            OP_COMPACT_SLICE.stop(start);
+        }
     }
 
     // Question Management
-    public static int addQuestion(String title, String content, String author) {
-        Question question = new Question(
-            nextQuestionId++,
-            title,
-            content,
-            author,
-            LocalDateTime.now(),
-            "OPEN"
-        );
-        questions.add(question);
-        return question.getId();
+    public static synchronized int addQuestion(String title, String content, String author) {
+        long start = OP_ADD_QUESTION.start();
+        try {
+            Question question = new Question(
+                nextQuestionId++,
+                title,
+                content,
+                author,
+                LocalDateTime.now(),
+                "OPEN"
+            );
+            moveOffHeap(question);
+            questions.add(question);
+            indexQuestion(question);
+            footprint.add(MemoryFootprint.EntityType.QUESTIONS, author, MemoryFootprint.estimate(question));
+            logPut(question);
+            OP_ADD_QUESTION.shape(author, content != null ? content.length() : 0, -1);
+            return question.getId();
+        } finally {
+            OP_ADD_QUESTION.stop(start);
+        }
     }
 
-    public static List<Question> getQuestions() {
-        return new ArrayList<>(questions);
+    public static synchronized List<Question> getQuestions() {
+        long start = OP_GET_QUESTIONS.start();
+        try {
+            return shaped(OP_GET_QUESTIONS, null, -1, new ArrayList<>(questions));
+        } finally {
+            OP_GET_QUESTIONS.stop(start);
+        }
     }
 
-    public static Optional<Question> getQuestion(int questionId) {
-        return questions.stream()
-            .filter(q -> q.getId() == questionId)
-            .findFirst();
+    public static synchronized Optional<Question> getQuestion(int questionId) {
+        long start = OP_GET_QUESTION.start();
+        try {
+            return Optional.ofNullable(questionsById.get(questionId));
+        } finally {
+            OP_GET_QUESTION.stop(start);
+        }
     }
 
-    public static void updateQuestion(int questionId, String title, String content) {
-        questions.stream()
-            .filter(q -> q.getId() == questionId)
-            .findFirst()
-            .ifPresent(q -> {
+    public static synchronized void updateQuestion(int questionId, String title, String content) {
+        long start = OP_UPDATE_QUESTION.start();
+        try {
+            getQuestion(questionId).ifPresent(q -> {
+                long before = MemoryFootprint.estimate(q);
+                titleIndex.remove(q.getTitle());
+                titleIndex.add(title);
                 q.setTitle(title);
                 q.setContent(content);
+                q.incrementVersion();
+                moveOffHeap(q);
+                footprint.resize(MemoryFootprint.EntityType.QUESTIONS, q.getAuthor(), MemoryFootprint.estimate(q) - before);
+                fuzzyIndex.remove(questionId);
+                fuzzyIndex.add(questionId, title, content);
+                logPut(q);
+            });
+        } finally {
+            OP_UPDATE_QUESTION.stop(start);
+        }
+    }
+
+    /**
+     * Updates the question only if it is still at {@code expectedVersion}, the version the
+     * caller read before editing it. Otherwise nothing changes and the result holds the
+     * question as someone else left it.
+     */
+    public static synchronized UpdateResult<Question> updateQuestionIfVersion(int questionId, int expectedVersion,
+                                                                              String title, String content) {
+        long start = OP_UPDATE_QUESTION_IF_VERSION.start();
+        try {
+            Question question = questionsById.get(questionId);
+            if (question == null) {
+                return UpdateResult.notFound();
+            }
+            if (question.getVersion() != expectedVersion) {
+                return UpdateResult.conflict(question);
+            }
+            updateQuestion(questionId, title, content);
+            return UpdateResult.updated(question);
+        } finally {
+            OP_UPDATE_QUESTION_IF_VERSION.stop(start);
+        }
+    }
+
+    public static synchronized void deleteQuestion(int questionId) {
+        long start = OP_DELETE_QUESTION.start();
+        try {
+            Question question = questionsById.get(questionId);
+            if (question == null) {
+                return;
+            }
+            questions.remove(question);
+            unindexQuestion(question);
+            hotQuestions.removeQuestion(questionId);
+            forget(question);
+            question.releaseOffHeapContent();
+            // Followers remove the answers along with the question
+            logDelete("question", questionId);
+            // Also remove all associated answers
+            answers.removeIf(a -> {
+                if (a.getQuestionId() != questionId) {
+                    return false;
+                }
+                forget(a);
+                a.releaseOffHeapContent();
+                return true;
             });
+        } finally {
+            OP_DELETE_QUESTION.stop(start);
+        }
+    }
+
+    /**
+     * Suggests question titles starting with {@code prefix}, in alphabetical order.
+     */
+    public static synchronized List<String> completeQuestionTitles(String prefix, int limit) {
+        long start = OP_COMPLETE_QUESTION_TITLES.start();
+        try {
+            return shaped(OP_COMPLETE_QUESTION_TITLES, null, prefix.length(), titleIndex.complete(prefix, limit));
+        } finally {
+            OP_COMPLETE_QUESTION_TITLES.stop(start);
+        }
     }
 
-    public static void deleteQuestion(int questionId) {
-        questions.removeIf(q -> q.getId() == questionId);
-        // Also remove all associated answers
-        answers.removeIf(a -> a.getQuestionId() == questionId);
+    /**
+     * Returns up to {@code limit} questions ranked by recent answer activity, hottest first.
+     */
+    public static synchronized List<Question> getHotQuestions(int limit) {
+        long start = OP_GET_HOT_QUESTIONS.start();
+        try {
+            List<Question> result = new ArrayList<>();
+            for (int questionId : hotQuestions.top(limit)) {
+                Question question = questionsById.get(questionId);
+                if (question != null) {
+                    result.add(question);
+                }
+            }
+            return result;
+        } finally {
+            OP_GET_HOT_QUESTIONS.stop(start);
+        }
+    }
+
+    /**
+     * Lists questions matching every non-null filter, read straight from the secondary indexes.
+     * The smallest applicable index is walked in date order, so no full scan or sort is needed.
+     *
+     * @param status only questions with this status, or null for any
+     * @param author only questions by this author, or null for anyone
+     * @param since only questions created at or after this time, or null for all time
+     * @param newestFirst true to list the most recent questions first
+     */
+    public static synchronized List<Question> queryQuestions(String status, String author,
+                                                LocalDateTime since, boolean newestFirst) {
+        long start = OP_QUERY_QUESTIONS.start();
+        try {
+            NavigableSet<Question> source = questionsByDate;
+            if (author != null) {
+                source = questionsByAuthor.getOrDefault(author, Collections.emptyNavigableSet());
+            }
+            if (status != null) {
+                NavigableSet<Question> byStatus = questionsByStatus.getOrDefault(status, Collections.emptyNavigableSet());
+                if (author == null || byStatus.size() < source.size()) {
+                    source = byStatus;
+                }
+            }
+            if (since != null) {
+                // Ids start at 1, so a probe with id 0 sorts before every question created at 'since'
+                source = source.tailSet(new Question(0, null, null, null, since, null), true);
+            }
+            if (newestFirst) {
+                source = source.descendingSet();
+            }
+
+            List<Question> result = new ArrayList<>();
+            for (Question q : source) {
+                if ((status == null || status.equals(q.getStatus())) &&
+                    (author == null || author.equals(q.getAuthor()))) {
+                    result.add(q);
+                }
+            }
+            return shaped(OP_QUERY_QUESTIONS, author, -1, result);
+        } finally {
+            OP_QUERY_QUESTIONS.stop(start);
+        }
     }
 
-    public static List<Question> searchQuestions(String query) {
-        if (query == null || query.trim().isEmpty()) {
-            return getQuestions();
+    public static synchronized List<Question> searchQuestions(String query) {
+        long start = OP_SEARCH_QUESTIONS.start();
+        try {
+            if (query == null || query.trim().isEmpty()) {
+                return shaped(OP_SEARCH_QUESTIONS, null, 0, getQuestions());
+            }
+
+            String searchQuery = query.toLowerCase().trim();
+            List<Question> results = questions.stream()
+                .filter(q -> q.getTitle().toLowerCase().contains(searchQuery) || 
+                            q.getContent().toLowerCase().contains(searchQuery) ||
+                            q.getAuthor().toLowerCase().contains(searchQuery))
+                .collect(Collectors.toList());
+
+            // Follow exact matches with close spellings, e.g. "recusion" finds "recursion"
+            Set<Question> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            seen.addAll(results);
+            for (Question q : fuzzySearchQuestions(query, 50)) {
+                if (seen.add(q)) {
+                    results.add(q);
+                }
+            }
+            return shaped(OP_SEARCH_QUESTIONS, null, query.length(), results);
+        } finally {
+            OP_SEARCH_QUESTIONS.stop(start);
         }
+    }
 
-        String searchQuery = query.toLowerCase().trim();
-        return questions.stream()
-            .filter(q -> q.getTitle().toLowerCase().contains(searchQuery) || 
-                        q.getContent().toLowerCase().contains(searchQuery) ||
-                        q.getAuthor().toLowerCase().contains(searchQuery))
-            .collect(Collectors.toList());
+    /**
+     * Finds questions whose title or body contains words within a small edit distance of the
+     * query words, best match first. Candidates come from the trigram index, so this does not
+     * compare the query against every question.
+     */
+    public static synchronized List<Question> fuzzySearchQuestions(String query, int limit) {
+        long start = OP_FUZZY_SEARCH_QUESTIONS.start();
+        try {
+            List<Question> result = new ArrayList<>();
+            for (int questionId : fuzzyIndex.search(query, limit)) {
+                Question question = questionsById.get(questionId);
+                if (question != null) {
+                    result.add(question);
+                }
+            }
+            return shaped(OP_FUZZY_SEARCH_QUESTIONS, null, query.length(), result);
+        } finally {
+            OP_FUZZY_SEARCH_QUESTIONS.stop(start);
+        }
     }
 
     // Answer Management
-    public static int addAnswer(int questionId, String content, String author) {
-        Answer answer = new Answer(
-            nextAnswerId++,
-            questionId,
-            content,
-            author,
-            LocalDateTime.now(),
-            false
-        );
-        answers.add(answer);
+    public static synchronized int addAnswer(int questionId, String content, String author) {
+        long start = OP_ADD_ANSWER.start();
+        try {
+            Answer answer = new Answer(
+                nextAnswerId++,
+                questionId,
+                content,
+                author,
+                LocalDateTime.now(),
+                false
+            );
+            moveOffHeap(answer);
+            answers.add(answer);
+            footprint.add(MemoryFootprint.EntityType.ANSWERS, author, MemoryFootprint.estimate(answer));
+            hotQuestions.recordAnswer(questionId, answer.getCreatedAt());
+            logPut(answer);
 
-        // Update question status when first answer is added
-        updateQuestionStatus(questionId);
+            // Update question status when first answer is added
+            updateQuestionStatus(questionId);
 
-        return answer.getId();
+            OP_ADD_ANSWER.shape(author, content != null ? content.length() : 0, -1);
+            return answer.getId();
+        } finally {
+            OP_ADD_ANSWER.stop(start);
+        }
+    }
+
+    public static synchronized List<Answer> getAnswersForQuestion(int questionId) {
+        long start = OP_GET_ANSWERS_FOR_QUESTION.start();
+        try {
+            return shaped(OP_GET_ANSWERS_FOR_QUESTION, null, answers.size(), answers.stream()
+                .filter(a -> a.getQuestionId() == questionId)
+                .sorted((a1, a2) -> {
+                    // Show accepted answer first, then sort by date
+                    if (a1.isAccepted() && !a2.isAccepted()) return -1;
+                    if (!a1.isAccepted() && a2.isAccepted()) return 1;
+                    return a2.getCreatedAt().compareTo(a1.getCreatedAt());
+                })
+                .collect(Collectors.toList()));
+        } finally {
+            OP_GET_ANSWERS_FOR_QUESTION.stop(start);
+        }
     }
 
-    public static List<Answer> getAnswersForQuestion(int questionId) {
-        return answers.stream()
-            .filter(a -> a.getQuestionId() == questionId)
-            .sorted((a1, a2) -> {
-                // Show accepted answer first, then sort by date
-                if (a1.isAccepted() && !a2.isAccepted()) return -1;
-                if (!a1.isAccepted() && a2.isAccepted()) return 1;
-                return a2.getCreatedAt().compareTo(a1.getCreatedAt());
-            })
-            .collect(Collectors.toList());
+    public static synchronized void updateAnswer(int answerId, String content) {
+        long start = OP_UPDATE_ANSWER.start();
+        try {
+            answers.stream()
+                .filter(a -> a.getId() == answerId)
+                .findFirst()
+                .ifPresent(a -> {
+                    long before = MemoryFootprint.estimate(a);
+                    a.setContent(content);
+                    a.incrementVersion();
+                    moveOffHeap(a);
+                    footprint.resize(MemoryFootprint.EntityType.ANSWERS, a.getAuthor(), MemoryFootprint.estimate(a) - before);
+                    logPut(a);
+                });
+        } finally {
+            OP_UPDATE_ANSWER.stop(start);
+        }
     }
 
-    public static void updateAnswer(int answerId, String content) {
-        answers.stream()
-            .filter(a -> a.getId() == answerId)
-            .findFirst()
-            .ifPresent(a -> a.setContent(content));
+    /**
+     * Updates the answer only if it is still at {@code expectedVersion}; see
+     * {@link #updateQuestionIfVersion}.
+     */
+    public static synchronized UpdateResult<Answer> updateAnswerIfVersion(int answerId, int expectedVersion, String content) {
+        long start = OP_UPDATE_ANSWER_IF_VERSION.start();
+        try {
+            Answer answer = findAnswer(answerId);
+            if (answer == null) {
+                return UpdateResult.notFound();
+            }
+            if (answer.getVersion() != expectedVersion) {
+                return UpdateResult.conflict(answer);
+            }
+            updateAnswer(answerId, content);
+            return UpdateResult.updated(answer);
+        } finally {
+            OP_UPDATE_ANSWER_IF_VERSION.stop(start);
+        }
     }
 
-    public static void deleteAnswer(int answerId) {
-        // First find the associated question
-        Optional<Answer> answer = answers.stream()
-            .filter(a -> a.getId() == answerId)
-            .findFirst();
+    public static synchronized void deleteAnswer(int answerId) {
+        long start = OP_DELETE_ANSWER.start();
+        try {
+            // First find the associated question
+            Optional<Answer> answer = answers.stream()
+                .filter(a -> a.getId() == answerId)
+                .findFirst();
 
-        if (answer.isPresent()) {
-            int questionId = answer.get().getQuestionId();
-            boolean wasAccepted = answer.get().isAccepted();
+            if (answer.isPresent()) {
+                int questionId = answer.get().getQuestionId();
+                boolean wasAccepted = answer.get().isAccepted();
 
-            // Remove the answer
-            answers.removeIf(a -> a.getId() == answerId);
+                // Remove the answer
+                answers.removeIf(a -> a.getId() == answerId);
+                forget(answer.get());
+                answer.get().releaseOffHeapContent();
+                hotQuestions.removeAnswer(questionId, answer.get().getCreatedAt());
+                logDelete("answer", answerId);
 
-            // If this was the accepted answer or the last answer, update question status
-            List<Answer> remainingAnswers = getAnswersForQuestion(questionId);
-            if (remainingAnswers.isEmpty() || wasAccepted) {
-                questions.stream()
-                    .filter(q -> q.getId() == questionId)
-                    .findFirst()
-                    .ifPresent(q -> q.setStatus("OPEN"));
+                // If this was the accepted answer or the last answer, update question status
+                List<Answer> remainingAnswers = getAnswersForQuestion(questionId);
+                if (remainingAnswers.isEmpty() || wasAccepted) {
+                    getQuestion(questionId).ifPresent(q -> setQuestionStatus(q, "OPEN"));
+                }
             }
+        } finally {
+            OP_DELETE_ANSWER.stop(start);
         }
     }
 
-    public static void acceptAnswer(int answerId, int questionId) {
-        // First, unaccept any previously accepted answers
-        answers.stream()
-            .filter(a -> a.getQuestionId() == questionId)
-            .forEach(a -> a.setAccepted(false));
+    public static synchronized void acceptAnswer(int answerId, int questionId) {
+        long start = OP_ACCEPT_ANSWER.start();
+        try {
+            // First, unaccept any previously accepted answers
+            answers.stream()
+                .filter(a -> a.getQuestionId() == questionId && a.isAccepted() && a.getId() != answerId)
+                .forEach(a -> {
+                    a.setAccepted(false);
+                    a.incrementVersion();
+                    logPut(a);
+                });
 
-        // Then accept the new answer
-        answers.stream()
-            .filter(a -> a.getId() == answerId)
-            .findFirst()
-            .ifPresent(a -> {
-                a.setAccepted(true);
-                // Update question status
-                questions.stream()
-                    .filter(q -> q.getId() == questionId)
-                    .findFirst()
-                    .ifPresent(q -> q.setStatus("ANSWERED"));
-            });
+            // Then accept the new answer
+            answers.stream()
+                .filter(a -> a.getId() == answerId)
+                .findFirst()
+                .ifPresent(a -> {
+                    if (!a.isAccepted()) {
+                        a.setAccepted(true);
+                        a.incrementVersion();
+                    }
+                    logPut(a);
+                    // Update question status
+                    getQuestion(questionId).ifPresent(q -> setQuestionStatus(q, "ANSWERED"));
+                });
+        } finally {
+            OP_ACCEPT_ANSWER.stop(start);
+        }
+    }
+
+    /**
+     * Accepts the answer only if it is still at {@code expectedVersion}, i.e. it has not been
+     * edited, accepted or unaccepted since the caller read it.
+     */
+    public static synchronized UpdateResult<Answer> acceptAnswerIfVersion(int answerId, int questionId, int expectedVersion) {
+        long start = OP_ACCEPT_ANSWER_IF_VERSION.start();
+        try {
+            Answer answer = findAnswer(answerId);
+            if (answer == null || answer.getQuestionId() != questionId) {
+                return UpdateResult.notFound();
+            }
+            if (answer.getVersion() != expectedVersion) {
+                return UpdateResult.conflict(answer);
+            }
+            acceptAnswer(answerId, questionId);
+            return UpdateResult.updated(answer);
+        } finally {
+            OP_ACCEPT_ANSWER_IF_VERSION.stop(start);
+        }
+    }
+
+    private static Answer findAnswer(int answerId) {
+        for (Answer answer : answers) {
+            if (answer.getId() == answerId) {
+                return answer;
+            }
+        }
+        return null;
     }
 
     private static void updateQuestionStatus(int questionId) {
-        List<Answer> questionAnswers = getAnswersForQuestion(questionId);
-        questions.stream()
-            .filter(q -> q.getId() == questionId)
-            .findFirst()
-            .ifPresent(q -> {
+        long start = OP_UPDATE_QUESTION_STATUS.start();
+        try {
+            List<Answer> questionAnswers = getAnswersForQuestion(questionId);
+            getQuestion(questionId).ifPresent(q -> {
                 if (questionAnswers.isEmpty()) {
-                    q.setStatus("OPEN");
+                    setQuestionStatus(q, "OPEN");
                 } else if (questionAnswers.stream().anyMatch(Answer::isAccepted)) {
-                    q.setStatus("ANSWERED");
+                    setQuestionStatus(q, "ANSWERED");
                 } else {
-                    q.setStatus("IN_PROGRESS");
+                    setQuestionStatus(q, "IN_PROGRESS");
                 }
             });
+        } finally {
+            OP_UPDATE_QUESTION_STATUS.stop(start);
+        }
+    }
+
+    // Reports a list result's size to the slow-operation log on its way out
+    private static <T> List<T> shaped(Metrics.Operation operation, String user, int argumentSize, List<T> result) {
+        operation.shape(user, argumentSize, result.size());
+        return result;
+    }
+
+    // Question index maintenance; status changes must go through setQuestionStatus. The
+    // status follows from the answers and nobody edits it, so it leaves the version alone.
+    private static void setQuestionStatus(Question question, String status) {
+        if (status.equals(question.getStatus())) {
+            return;
+        }
+        removeFromIndex(questionsByStatus, question.getStatus(), question);
+        question.setStatus(status);
+        addToIndex(questionsByStatus, status, question);
+        logPut(question);
+    }
+
+    private static void indexQuestion(Question question) {
+        questionsById.put(question.getId(), question);
+        questionsByDate.add(question);
+        titleIndex.add(question.getTitle());
+        fuzzyIndex.add(question.getId(), question.getTitle(), question.getContent());
+        addToIndex(questionsByStatus, question.getStatus(), question);
+        addToIndex(questionsByAuthor, question.getAuthor(), question);
+    }
+
+    private static void unindexQuestion(Question question) {
+        questionsById.remove(question.getId());
+        questionsByDate.remove(question);
+        titleIndex.remove(question.getTitle());
+        fuzzyIndex.remove(question.getId());
+        removeFromIndex(questionsByStatus, question.getStatus(), question);
+        removeFromIndex(questionsByAuthor, question.getAuthor(), question);
+    }
+
+    private static void addToIndex(Map<String, NavigableSet<Question>> index, String key, Question question) {
+        index.computeIfAbsent(key, k -> new TreeSet<>(BY_CREATED_AT)).add(question);
+    }
+
+    private static void removeFromIndex(Map<String, NavigableSet<Question>> index, String key, Question question) {
+        NavigableSet<Question> bucket = index.get(key);
+        if (bucket != null) {
+            bucket.remove(question);
+            if (bucket.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    // Mutation log; records are only built when someone is listening
+    private static void logPut(Email email) {
+        if (!mutationListeners.isEmpty()) {
+            logMutation("put", DataTransfer.toRecord(email));
+        }
+    }
+
+    private static void logPut(Question question) {
+        if (!mutationListeners.isEmpty()) {
+            logMutation("put", DataTransfer.toRecord(question));
+        }
+    }
+
+    private static void logPut(Answer answer) {
+        if (!mutationListeners.isEmpty()) {
+            logMutation("put", DataTransfer.toRecord(answer));
+        }
+    }
+
+    private static void logColumnarEmail(int emailId) {
+        if (!mutationListeners.isEmpty()) {
+            columnarEmails.get(emailId).ifPresent(MemoryStorage::logPut);
+        }
+    }
+
+    private static void logColdEmail(int emailId) {
+        if (!mutationListeners.isEmpty()) {
+            coldEmails.get(emailId).ifPresent(MemoryStorage::logPut);
+        }
+    }
+
+    private static void logDelete(String type, int id) {
+        if (!mutationListeners.isEmpty()) {
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("type", type);
+            record.put("id", id);
+            logMutation("delete", record);
+        }
+    }
+
+    // Each listener gets its own envelope, as the replication leader adds its offset to it
+    private static void logMutation(String op, Map<String, Object> record) {
+        for (Consumer<Map<String, Object>> listener : mutationListeners) {
+            Map<String, Object> mutation = new LinkedHashMap<>();
+            mutation.put("op", op);
+            mutation.put("record", record);
+            listener.accept(mutation);
+        }
+    }
+
+    // Credits back a removed entity; call before its off-heap body is released
+    private static void forget(Email email) {
+        footprint.remove(MemoryFootprint.EntityType.EMAILS, email.getFromUser(), MemoryFootprint.estimate(email));
+    }
+
+    private static void forget(Question question) {
+        footprint.remove(MemoryFootprint.EntityType.QUESTIONS, question.getAuthor(), MemoryFootprint.estimate(question));
+    }
+
+    private static void forget(Answer answer) {
+        footprint.remove(MemoryFootprint.EntityType.ANSWERS, answer.getAuthor(), MemoryFootprint.estimate(answer));
+    }
+
+    private static void moveOffHeap(Email email) {
+        if (offHeapBodies != null) {
+            email.moveContentOffHeap(offHeapBodies);
+        }
+    }
+
+    private static void moveOffHeap(Question question) {
+        if (offHeapBodies != null) {
+            question.moveContentOffHeap(offHeapBodies);
+        }
+    }
+
+    private static void moveOffHeap(Answer answer) {
+        if (offHeapBodies != null) {
+            answer.moveContentOffHeap(offHeapBodies);
+        }
+    }
+
+    // Bulk access and restore, used by DataTransfer. Restored records keep their ids. Export
+    // takes these cheap copies of what is stored, then reads the entities back in chunks.
+    static synchronized List<String> getUsernames() {
+        return new ArrayList<>(users.keySet());
+    }
+
+    static synchronized List<Question> getAllQuestions() {
+        return new ArrayList<>(questions);
+    }
+
+    static synchronized List<Answer> getAllAnswers() {
+        return new ArrayList<>(answers);
+    }
+
+    // Both tiers merged into id order; spilling goes by age, so neither tier alone is a
+    // range of ids, and the columnar store only takes ids in increasing order
+    static synchronized int[] getEmailIds() {
+        int[] cold = coldEmails != null ? coldEmails.getIds() : new int[0];
+        int[] hot;
+        if (columnarEmails != null) {
+            hot = columnarEmails.getIds();
+        } else {
+            hot = new int[emails.size()];
+            for (int i = 0; i < hot.length; i++) {
+                hot[i] = emails.get(i).getId();
+            }
+        }
+        int[] ids = Arrays.copyOf(cold, cold.length + hot.length);
+        System.arraycopy(hot, 0, ids, cold.length, hot.length);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    static synchronized Email getEmail(int emailId) {
+        return findEmail(emailId);
+    }
+
+    static synchronized int[] getIdCounters() {
+        return new int[] {nextEmailId, nextQuestionId, nextAnswerId};
+    }
+
+    static synchronized void restoreUser(String username, String password) {
+        putUser(username, password);
+        if (!mutationListeners.isEmpty()) {
+            logMutation("put", DataTransfer.userRecord(username, password));
+        }
+    }
+
+    static synchronized void restoreEmail(Email email) {
+        storeEmail(email);
+        if (email.getStatus() == Email.EmailStatus.SENT) {
+            recordContact(email.getFromUser(), email.getToUser());
+        }
+        // Re-arm sends scheduled before the restart; ones that came due meanwhile go out now
+        if (email.getStatus() == Email.EmailStatus.DRAFT && email.getScheduledAt() != null) {
+            arm(email.getId(), email.getScheduledAt());
+        }
+        logPut(email);
+        nextEmailId = Math.max(nextEmailId, email.getId() + 1);
+    }
+
+    static synchronized void restoreQuestion(Question question) {
+        moveOffHeap(question);
+        questions.add(question);
+        indexQuestion(question);
+        footprint.add(MemoryFootprint.EntityType.QUESTIONS, question.getAuthor(), MemoryFootprint.estimate(question));
+        logPut(question);
+        nextQuestionId = Math.max(nextQuestionId, question.getId() + 1);
+    }
+
+    static synchronized void restoreAnswer(Answer answer) {
+        moveOffHeap(answer);
+        answers.add(answer);
+        footprint.add(MemoryFootprint.EntityType.ANSWERS, answer.getAuthor(), MemoryFootprint.estimate(answer));
+        hotQuestions.recordAnswer(answer.getQuestionId(), answer.getCreatedAt());
+        logPut(answer);
+        nextAnswerId = Math.max(nextAnswerId, answer.getId() + 1);
+    }
+
+    static synchronized void restoreIdCounters(int emailId, int questionId, int answerId) {
+        nextEmailId = Math.max(nextEmailId, emailId);
+        nextQuestionId = Math.max(nextQuestionId, questionId);
+        nextAnswerId = Math.max(nextAnswerId, answerId);
     }
 }
\ No newline at end of file
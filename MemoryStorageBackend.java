@@ -0,0 +1,84 @@
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * {@link StorageBackend} view of the process-wide static {@link MemoryStorage}.
+ */
+public class MemoryStorageBackend implements StorageBackend {
+    public static final MemoryStorageBackend INSTANCE = new MemoryStorageBackend();
+
+    private MemoryStorageBackend() {
+    }
+
+    @Override public void addUser(String username, String password) { MemoryStorage.addUser(username, password); }
+    @Override public boolean addUserIfAbsent(String username, String password) { return MemoryStorage.addUserIfAbsent(username, password); }
+    @Override public boolean userExists(String username) { return MemoryStorage.userExists(username); }
+    @Override public String getPassword(String username) { return MemoryStorage.getPassword(username); }
+
+    @Override public String createSession(String username) { return MemoryStorage.createSession(username); }
+    @Override public void logout(String token) { MemoryStorage.logout(token); }
+    @Override public String getUserFromSession(String token) { return MemoryStorage.getUserFromSession(token); }
+
+    @Override public void incrementLoginAttempts(String username) { MemoryStorage.incrementLoginAttempts(username); }
+    @Override public void resetLoginAttempts(String username) { MemoryStorage.resetLoginAttempts(username); }
+    @Override public boolean isLockedOut(String username) { return MemoryStorage.isLockedOut(username); }
+    @Override public long getLockoutTimeRemaining(String username) { return MemoryStorage.getLockoutTimeRemaining(username); }
+
+    @Override
+    public int addEmail(String fromUser, String toUser, String subject, String content) {
+        return MemoryStorage.addEmail(fromUser, toUser, subject, content);
+    }
+
+    @Override
+    public int saveDraft(String fromUser, String toUser, String subject, String content) {
+        return MemoryStorage.saveDraft(fromUser, toUser, subject, content);
+    }
+
+    @Override public void sendDraft(int emailId) { MemoryStorage.sendDraft(emailId); }
+    @Override public List<Email> getInboxEmails(String username) { return MemoryStorage.getInboxEmails(username); }
+    @Override public List<Email> getSentEmails(String username) { return MemoryStorage.getSentEmails(username); }
+    @Override public List<Email> getDrafts(String username) { return MemoryStorage.getDrafts(username); }
+    @Override public void markAsRead(int emailId, String username) { MemoryStorage.markAsRead(emailId, username); }
+    @Override public void deleteEmail(int emailId, String username) { MemoryStorage.deleteEmail(emailId, username); }
+
+    @Override
+    public int addQuestion(String title, String content, String author) {
+        return MemoryStorage.addQuestion(title, content, author);
+    }
+
+    @Override public List<Question> getQuestions() { return MemoryStorage.getQuestions(); }
+    @Override public Optional<Question> getQuestion(int questionId) { return MemoryStorage.getQuestion(questionId); }
+
+    @Override
+    public void updateQuestion(int questionId, String title, String content) {
+        MemoryStorage.updateQuestion(questionId, title, content);
+    }
+
+    @Override
+    public UpdateResult<Question> updateQuestionIfVersion(int questionId, int expectedVersion, String title, String content) {
+        return MemoryStorage.updateQuestionIfVersion(questionId, expectedVersion, title, content);
+    }
+
+    @Override public void deleteQuestion(int questionId) { MemoryStorage.deleteQuestion(questionId); }
+    @Override public List<Question> searchQuestions(String query) { return MemoryStorage.searchQuestions(query); }
+
+    @Override
+    public int addAnswer(int questionId, String content, String author) {
+        return MemoryStorage.addAnswer(questionId, content, author);
+    }
+
+    @Override public List<Answer> getAnswersForQuestion(int questionId) { return MemoryStorage.getAnswersForQuestion(questionId); }
+    @Override public void updateAnswer(int answerId, String content) { MemoryStorage.updateAnswer(answerId, content); }
+    @Override public void deleteAnswer(int answerId) { MemoryStorage.deleteAnswer(answerId); }
+    @Override public void acceptAnswer(int answerId, int questionId) { MemoryStorage.acceptAnswer(answerId, questionId); }
+
+    @Override
+    public UpdateResult<Answer> updateAnswerIfVersion(int answerId, int expectedVersion, String content) {
+        return MemoryStorage.updateAnswerIfVersion(answerId, expectedVersion, content);
+    }
+
+    @Override
+    public UpdateResult<Answer> acceptAnswerIfVersion(int answerId, int questionId, int expectedVersion) {
+        return MemoryStorage.acceptAnswerIfVersion(answerId, questionId, expectedVersion);
+    }
+}
@@ -0,0 +1,221 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of per-operation latency histograms and gauges.
+ *
+ * Instrumented code declares an {@link Operation} once and brackets each call with
+ * {@code long start = OP.start(); try { ... } finally { OP.stop(start); }}. That costs two
+ * {@code System.nanoTime()} calls, a few uncontended atomic adds and the bookkeeping of
+ * {@link SlowOperationLog}, and nothing at all once metrics are disabled. Gauges are read
+ * only when metrics are dumped or queried over JMX.
+ *
+ * Operations and gauges show up in JMX under {@code forum:type=Operation,name=...} and
+ * {@code forum:type=Gauge,name=...} once {@link #enableJmx()} has been called.
+ */
+public final class Metrics {
+    private static final Map<String, Operation> operations = new ConcurrentSkipListMap<>();
+    private static final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private static volatile boolean enabled = true;
+    private static volatile MBeanServer mbeanServer;
+    private static ScheduledExecutorService dumper;
+
+    private Metrics() {
+    }
+
+    public interface OperationMBean {
+        long getCount();
+        double getMeanMicros();
+        long getP50Micros();
+        long getP99Micros();
+        long getP999Micros();
+        long getMaxMicros();
+        void reset();
+    }
+
+    /**
+     * One instrumented operation: a call counter and latency histogram.
+     */
+    public static final class Operation implements OperationMBean {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        // Set through SlowOperationLog.setThreshold; negative means the default threshold
+        volatile long slowThresholdNanos = -1;
+
+        private Operation(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * Returns the start time to pass to {@link #stop}, or 0 while metrics are disabled.
+         */
+        public long start() {
+            if (!enabled) {
+                return 0;
+            }
+            long start = System.nanoTime();
+            SlowOperationLog.enter(this, start);
+            return start;
+        }
+
+        public void stop(long start) {
+            if (start != 0) {
+                long elapsed = System.nanoTime() - start;
+                latency.record(elapsed);
+                SlowOperationLog.exit(this, elapsed);
+            }
+        }
+
+        /**
+         * Describes the call in progress for the slow-operation log: the user it is for, the
+         * size of its main argument and the size of its result, -1 where not applicable.
+         */
+        public void shape(String user, int argumentSize, int resultSize) {
+            if (enabled) {
+                SlowOperationLog.shape(user, argumentSize, resultSize);
+            }
+        }
+
+        @Override public long getCount() { return latency.getCount(); }
+        @Override public double getMeanMicros() { return latency.getMean() / 1_000; }
+        @Override public long getP50Micros() { return latency.getPercentile(50) / 1_000; }
+        @Override public long getP99Micros() { return latency.getPercentile(99) / 1_000; }
+        @Override public long getP999Micros() { return latency.getPercentile(99.9) / 1_000; }
+        @Override public long getMaxMicros() { return latency.getMax() / 1_000; }
+        @Override public void reset() { latency.reset(); }
+    }
+
+    public interface GaugeMBean {
+        long getValue();
+    }
+
+    public static final class Gauge implements GaugeMBean {
+        private final LongSupplier supplier;
+
+        private Gauge(LongSupplier supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public long getValue() {
+            return supplier.getAsLong();
+        }
+    }
+
+    /**
+     * Returns the operation with this name, creating it on first use.
+     */
+    public static Operation operation(String name) {
+        return operations.computeIfAbsent(name, k -> {
+            Operation operation = new Operation(k);
+            register("Operation", k, operation);
+            return operation;
+        });
+    }
+
+    /**
+     * Registers a gauge, replacing any earlier gauge of the same name. The supplier is called
+     * from monitoring threads and should not block.
+     */
+    public static void gauge(String name, LongSupplier supplier) {
+        Gauge gauge = new Gauge(supplier);
+        gauges.put(name, gauge);
+        register("Gauge", name, gauge);
+    }
+
+    public static Map<String, Operation> getOperations() {
+        return operations;
+    }
+
+    public static long getGauge(String name) {
+        Gauge gauge = gauges.get(name);
+        return gauge != null ? gauge.getValue() : 0;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Publishes every operation and gauge, existing and future, to the platform MBean server.
+     */
+    public static synchronized void enableJmx() {
+        if (mbeanServer != null) {
+            return;
+        }
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        operations.forEach((name, operation) -> register("Operation", name, operation));
+        gauges.forEach((name, gauge) -> register("Gauge", name, gauge));
+    }
+
+    private static void register(String type, String name, Object mbean) {
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName("forum:type=" + type + ",name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+        } catch (JMException e) {
+            System.err.println("Could not register " + name + " with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Formats every gauge, every operation that has been called and any retained slow calls.
+     */
+    public static String dump() {
+        StringBuilder out = new StringBuilder("Metrics at ").append(LocalDateTime.now()).append('\n');
+        gauges.forEach((name, gauge) -> out.append(String.format("  %-40s %d%n", name, gauge.getValue())));
+        operations.forEach((name, operation) -> {
+            if (operation.getCount() > 0) {
+                out.append(String.format("  %-40s %s%n", name, operation.latency.summary()));
+            }
+        });
+        if (!SlowOperationLog.getSlowOperations().isEmpty()) {
+            out.append(SlowOperationLog.dump());
+        }
+        return out.toString();
+    }
+
+    /**
+     * Prints {@link #dump()} to {@code out} every {@code interval} on a daemon thread.
+     */
+    public static synchronized void startPeriodicDump(Duration interval, PrintStream out) {
+        if (dumper != null) {
+            dumper.shutdownNow();
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> out.print(dump()), interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,191 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps large text bodies as UTF-8 bytes in direct ByteBuffer arenas outside the Java heap.
+ *
+ * Each stored body is addressed through a slot in a handle table (arena, offset, length), so
+ * the compactor can move bytes around without touching the entities that refer to them.
+ * Bodies are only decoded back into Strings when read. Freed space is reclaimed by copying
+ * live bodies out of mostly-empty arenas once enough garbage has built up.
+ */
+public class OffHeapBodyStore {
+    private static final int ARENA_SIZE = 4 << 20;
+    private static final double COMPACT_GARBAGE_RATIO = 0.5;
+
+    /**
+     * Reference to one stored body. A freed or stale reference decodes to an empty string.
+     */
+    public static final class Body {
+        private final OffHeapBodyStore store;
+        private final int handle;
+        private final int generation;
+
+        private Body(OffHeapBodyStore store, int handle, int generation) {
+            this.store = store;
+            this.handle = handle;
+            this.generation = generation;
+        }
+
+        public String decode() {
+            return store.read(handle, generation);
+        }
+
+        public void free() {
+            store.free(handle, generation);
+        }
+    }
+
+    private final List<ByteBuffer> arenas = new ArrayList<>();
+    private final List<Integer> arenaGarbage = new ArrayList<>();
+    private int currentArena = -1;
+
+    // Handle table; a slot is free when its arena is -1
+    private int[] slotArena = new int[1024];
+    private int[] slotOffset = new int[1024];
+    private int[] slotLength = new int[1024];
+    private int[] slotGeneration = new int[1024];
+    private int slotCount;
+    private int[] freeSlots = new int[64];
+    private int freeSlotCount;
+
+    private long liveBytes;
+    private long garbageBytes;
+
+    public synchronized Body put(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int handle = allocateSlot();
+        int arena = reserve(bytes.length);
+        ByteBuffer buffer = arenas.get(arena);
+        int offset = buffer.position();
+        buffer.put(bytes);
+
+        slotArena[handle] = arena;
+        slotOffset[handle] = offset;
+        slotLength[handle] = bytes.length;
+        liveBytes += bytes.length;
+        return new Body(this, handle, slotGeneration[handle]);
+    }
+
+    public synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    public synchronized long getGarbageBytes() {
+        return garbageBytes;
+    }
+
+    public synchronized long getCapacityBytes() {
+        long capacity = 0;
+        for (ByteBuffer arena : arenas) {
+            if (arena != null) {
+                capacity += arena.capacity();
+            }
+        }
+        return capacity;
+    }
+
+    private synchronized String read(int handle, int generation) {
+        if (slotGeneration[handle] != generation || slotArena[handle] < 0) {
+            return "";
+        }
+        byte[] bytes = new byte[slotLength[handle]];
+        arenas.get(slotArena[handle]).get(slotOffset[handle], bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private synchronized void free(int handle, int generation) {
+        if (slotGeneration[handle] != generation || slotArena[handle] < 0) {
+            return;
+        }
+        int arena = slotArena[handle];
+        arenaGarbage.set(arena, arenaGarbage.get(arena) + slotLength[handle]);
+        liveBytes -= slotLength[handle];
+        garbageBytes += slotLength[handle];
+
+        slotArena[handle] = -1;
+        slotGeneration[handle]++;
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeSlotCount++] = handle;
+
+        if (garbageBytes > ARENA_SIZE && garbageBytes > liveBytes * COMPACT_GARBAGE_RATIO) {
+            compact();
+        }
+    }
+
+    /**
+     * Moves live bodies out of every arena that is at least half garbage and releases those
+     * arenas. Handles stay valid because only the handle table is updated.
+     */
+    public synchronized void compact() {
+        List<Integer> victims = new ArrayList<>();
+        for (int i = 0; i < arenas.size(); i++) {
+            ByteBuffer arena = arenas.get(i);
+            if (arena != null && i != currentArena &&
+                arenaGarbage.get(i) >= arena.position() * COMPACT_GARBAGE_RATIO) {
+                victims.add(i);
+            }
+        }
+        for (int victim : victims) {
+            ByteBuffer source = arenas.get(victim);
+            for (int handle = 0; handle < slotCount; handle++) {
+                if (slotArena[handle] != victim) {
+                    continue;
+                }
+                int length = slotLength[handle];
+                byte[] bytes = new byte[length];
+                source.get(slotOffset[handle], bytes);
+                int target = reserve(length);
+                ByteBuffer buffer = arenas.get(target);
+                slotArena[handle] = target;
+                slotOffset[handle] = buffer.position();
+                buffer.put(bytes);
+            }
+            garbageBytes -= arenaGarbage.get(victim);
+            arenaGarbage.set(victim, 0);
+            // Dropping the buffer lets its native memory be released
+            arenas.set(victim, null);
+        }
+    }
+
+    // Returns an arena whose position has room for 'length' more bytes
+    private int reserve(int length) {
+        if (currentArena >= 0 && arenas.get(currentArena).remaining() >= length) {
+            return currentArena;
+        }
+        ByteBuffer arena = ByteBuffer.allocateDirect(Math.max(ARENA_SIZE, length));
+        int index = arenas.indexOf(null);
+        if (index < 0) {
+            index = arenas.size();
+            arenas.add(arena);
+            arenaGarbage.add(0);
+        } else {
+            arenas.set(index, arena);
+            arenaGarbage.set(index, 0);
+        }
+        // Oversized bodies get an arena of their own and do not replace the current one
+        if (length <= ARENA_SIZE) {
+            currentArena = index;
+        }
+        return index;
+    }
+
+    private int allocateSlot() {
+        if (freeSlotCount > 0) {
+            return freeSlots[--freeSlotCount];
+        }
+        if (slotCount == slotArena.length) {
+            int capacity = slotArena.length * 2;
+            slotArena = Arrays.copyOf(slotArena, capacity);
+            slotOffset = Arrays.copyOf(slotOffset, capacity);
+            slotLength = Arrays.copyOf(slotLength, capacity);
+            slotGeneration = Arrays.copyOf(slotGeneration, capacity);
+        }
+        return slotCount++;
+    }
+}
@@ -0,0 +1,195 @@
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable sorted map. {@link #plus} and {@link #minus} return a new map and leave this one
+ * unchanged; the two share every subtree the change did not touch, so an update copies only
+ * the O(log n) nodes on one root-to-leaf path.
+ *
+ * Backed by an AVL tree. Instances can be handed between threads freely.
+ */
+public final class PersistentMap<K extends Comparable<? super K>, V> {
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null);
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final Node<K, V> left;
+        final Node<K, V> right;
+        final int height;
+        final int size;
+
+        Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+
+    private final Node<K, V> root;
+
+    private PersistentMap(Node<K, V> root) {
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K extends Comparable<? super K>, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    public V get(K key) {
+        Node<K, V> node = root;
+        while (node != null) {
+            int cmp = key.compareTo(node.key);
+            if (cmp == 0) {
+                return node.value;
+            }
+            node = cmp < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    public V getOrDefault(K key, V defaultValue) {
+        V value = get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * Returns a map with {@code key} mapped to {@code value}, which must not be null.
+     */
+    public PersistentMap<K, V> plus(K key, V value) {
+        Node<K, V> updated = put(root, key, Objects.requireNonNull(value));
+        return updated == root ? this : new PersistentMap<>(updated);
+    }
+
+    public PersistentMap<K, V> minus(K key) {
+        Node<K, V> updated = remove(root, key);
+        if (updated == root) {
+            return this;
+        }
+        return updated == null ? empty() : new PersistentMap<>(updated);
+    }
+
+    /**
+     * Visits the entries in key order.
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        forEach(root, action);
+    }
+
+    /**
+     * Returns the values in key order.
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<>(size());
+        forEach((k, v) -> values.add(v));
+        return values;
+    }
+
+    // The height of the tree, for tests of the AVL balance
+    int height() {
+        return height(root);
+    }
+
+    private static <K, V> void forEach(Node<K, V> node, BiConsumer<? super K, ? super V> action) {
+        // Recursion depth is bounded by the tree height, about 1.44 log2(n)
+        while (node != null) {
+            forEach(node.left, action);
+            action.accept(node.key, node.value);
+            node = node.right;
+        }
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> put(Node<K, V> node, K key, V value) {
+        if (node == null) {
+            return new Node<>(key, value, null, null);
+        }
+        int cmp = key.compareTo(node.key);
+        if (cmp == 0) {
+            return node.value == value ? node : new Node<>(key, value, node.left, node.right);
+        }
+        if (cmp < 0) {
+            Node<K, V> left = put(node.left, key, value);
+            return left == node.left ? node : balance(node.key, node.value, left, node.right);
+        }
+        Node<K, V> right = put(node.right, key, value);
+        return right == node.right ? node : balance(node.key, node.value, node.left, right);
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> remove(Node<K, V> node, K key) {
+        if (node == null) {
+            return null;
+        }
+        int cmp = key.compareTo(node.key);
+        if (cmp < 0) {
+            Node<K, V> left = remove(node.left, key);
+            return left == node.left ? node : balance(node.key, node.value, left, node.right);
+        }
+        if (cmp > 0) {
+            Node<K, V> right = remove(node.right, key);
+            return right == node.right ? node : balance(node.key, node.value, node.left, right);
+        }
+        if (node.left == null) {
+            return node.right;
+        }
+        if (node.right == null) {
+            return node.left;
+        }
+        // Replace with the smallest node of the right subtree
+        Node<K, V> successor = node.right;
+        while (successor.left != null) {
+            successor = successor.left;
+        }
+        return balance(successor.key, successor.value, node.left, remove(node.right, successor.key));
+    }
+
+    private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right) {
+        int diff = height(left) - height(right);
+        if (diff > 1) {
+            if (height(left.left) >= height(left.right)) {
+                return rotateRight(key, value, left, right);
+            }
+            Node<K, V> rotatedLeft = rotateLeft(left.key, left.value, left.left, left.right);
+            return rotateRight(key, value, rotatedLeft, right);
+        }
+        if (diff < -1) {
+            if (height(right.right) >= height(right.left)) {
+                return rotateLeft(key, value, left, right);
+            }
+            Node<K, V> rotatedRight = rotateRight(right.key, right.value, right.left, right.right);
+            return rotateLeft(key, value, left, rotatedRight);
+        }
+        return new Node<>(key, value, left, right);
+    }
+
+    private static <K, V> Node<K, V> rotateRight(K key, V value, Node<K, V> left, Node<K, V> right) {
+        return new Node<>(left.key, left.value, left.left, new Node<>(key, value, left.right, right));
+    }
+
+    private static <K, V> Node<K, V> rotateLeft(K key, V value, Node<K, V> left, Node<K, V> right) {
+        return new Node<>(right.key, right.value, new Node<>(key, value, left, right.left), right.right);
+    }
+
+    private static int height(Node<?, ?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static int size(Node<?, ?> node) {
+        return node == null ? 0 : node.size;
+    }
+}
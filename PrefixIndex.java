@@ -0,0 +1,93 @@
+import java.util.*;
+
+/**
+ * Case-insensitive prefix index over a multiset of strings, backed by a sorted map so a
+ * completion is a range lookup instead of a scan. Each value carries a weight (how many
+ * times it was added) that can be used to rank completions.
+ */
+public class PrefixIndex {
+    private static class Entry {
+        final String value;
+        int weight;
+
+        Entry(String value) {
+            this.value = value;
+        }
+    }
+
+    // Keyed by lower-cased value plus the original, so "Bob" and "bob" stay distinct
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    public void add(String value) {
+        add(value, 1);
+    }
+
+    public void add(String value, int weight) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        entries.computeIfAbsent(key(value), k -> new Entry(value)).weight += weight;
+    }
+
+    public void remove(String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        String key = key(value);
+        Entry entry = entries.get(key);
+        if (entry != null && --entry.weight <= 0) {
+            entries.remove(key);
+        }
+    }
+
+    public boolean contains(String value) {
+        return value != null && entries.containsKey(key(value));
+    }
+
+    /**
+     * Returns up to {@code limit} values starting with {@code prefix}, in alphabetical order.
+     */
+    public List<String> complete(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        for (Entry entry : range(prefix).values()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            result.add(entry.value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns up to {@code limit} values starting with {@code prefix}, heaviest first.
+     * Walks the whole prefix range, so it is meant for small indexes such as one user's contacts.
+     */
+    public List<String> completeByWeight(String prefix, int limit) {
+        PriorityQueue<Entry> best = new PriorityQueue<>(Comparator.comparingInt(e -> e.weight));
+        for (Entry entry : range(prefix).values()) {
+            best.add(entry);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+        List<String> result = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            result.add(best.poll().value);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private SortedMap<String, Entry> range(String prefix) {
+        String from = prefix == null ? "" : prefix.toLowerCase(Locale.ROOT);
+        return entries.subMap(from, from + Character.MAX_VALUE);
+    }
+
+    private static String key(String value) {
+        return value.toLowerCase(Locale.ROOT) + '\0' + value;
+    }
+}
@@ -3,17 +3,20 @@ import java.time.LocalDateTime;
 public class Question {
     private int id;
     private String title;
-    private String content;
+    private final BodyText content = new BodyText();
     private String author;
     private LocalDateTime createdAt;
     private String status;
+    // Incremented by the store when the title or content changes, for conditional updates;
+    // status changes follow from the answers and do not count
+    private int version = 1;
 
     // Constructor
     public Question(int id, String title, String content, String author, 
                    LocalDateTime createdAt, String status) {
         this.id = id;
         this.title = title;
-        this.content = content;
+        this.content.set(content);
         this.author = author;
         this.createdAt = createdAt;
         this.status = status;
@@ -26,8 +29,13 @@ public class Question {
     public String getTitle() { return title; }
     public void setTitle(String title) { this.title = title; }
 
-    public String getContent() { return content; }
-    public void setContent(String content) { this.content = content; }
+    public String getContent() { return content.get(); }
+    public void setContent(String content) { this.content.set(content); }
+
+    public void moveContentOffHeap(OffHeapBodyStore store) { content.moveOffHeap(store); }
+    public boolean isContentOffHeap() { return content.isOffHeap(); }
+    // Frees the off-heap copy; the content stays readable from the heap
+    public void releaseOffHeapContent() { content.releaseOffHeap(); }
 
     public String getAuthor() { return author; }
     public void setAuthor(String author) { this.author = author; }
@@ -37,4 +45,8 @@ public class Question {
 
     public String getStatus() { return status; }
     public void setStatus(String status) { this.status = status; }
+
+    public int getVersion() { return version; }
+    public void setVersion(int version) { this.version = version; }
+    public void incrementVersion() { version++; }
 }
\ No newline at end of file
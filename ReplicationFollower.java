@@ -0,0 +1,204 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Keeps a read-only replica of a {@link ReplicationLeader}'s MemoryStorage in a
+ * {@link ShardedStorage}, so reads such as getInboxEmails and searchQuestions can be served
+ * from another process. Writes must go to the leader.
+ *
+ * The follower starts from a snapshot and then applies log entries in order. If the
+ * connection drops it reconnects and resumes from the next offset it has not applied. A
+ * snapshot is loaded into a separate store and swapped in once complete, so while it loads,
+ * readers keep seeing the previous data rather than a store that is empty or half-filled.
+ */
+public class ReplicationFollower implements Closeable {
+    private static final long RETRY_MILLIS = 1_000;
+
+    private final String host;
+    private final int port;
+    private final ShardedStorage storage = new ShardedStorage();
+    // The snapshot being received, swapped into 'storage' at its end; only used by the
+    // replication thread
+    private ShardedStorage loading;
+
+    // Offset of the next entry to apply in the leader's log 'logId'; -1 until a snapshot has
+    // been loaded
+    private volatile long appliedOffset = -1;
+    private volatile String logId = "";
+    private volatile long leaderOffset;
+    // Leader clock time of the last applied entry
+    private volatile long appliedTime;
+    private volatile boolean closed;
+    private volatile Socket socket;
+
+    public ReplicationFollower(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::run, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the replica for reads. Changes made through it are not sent to the leader and
+     * will be overwritten by the log.
+     */
+    public StorageBackend getStorage() {
+        return storage;
+    }
+
+    public long getAppliedOffset() {
+        return appliedOffset;
+    }
+
+    public long getLeaderOffset() {
+        return Math.max(leaderOffset, appliedOffset);
+    }
+
+    /**
+     * Returns the number of log entries the leader has that this follower has not applied.
+     */
+    public long getLagEntries() {
+        return appliedOffset < 0 ? leaderOffset : getLeaderOffset() - appliedOffset;
+    }
+
+    /**
+     * Returns how far behind the leader the replica is in time: zero when caught up, otherwise
+     * the age of the last applied change. Assumes the leader and follower clocks agree.
+     */
+    public long getLagMillis() {
+        if (appliedOffset >= 0 && getLagEntries() == 0) {
+            return 0;
+        }
+        return appliedTime == 0 ? -1 : Math.max(0, System.currentTimeMillis() - appliedTime);
+    }
+
+    /**
+     * Waits until every entry before {@code offset} has been applied.
+     *
+     * @return whether the offset was reached within {@code timeout}
+     */
+    public boolean awaitOffset(long offset, Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (appliedOffset < offset) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private void run() {
+        while (!closed) {
+            try (Socket connection = new Socket(host, port)) {
+                socket = connection;
+                connection.setTcpNoDelay(true);
+                Writer out = new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8);
+                out.write(Json.write(Map.of("offset", appliedOffset, "log", logId)) + "\n");
+                out.flush();
+
+                BufferedReader in = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    handle(Json.parseObject(line));
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    System.err.println("Replication from " + host + ":" + port + " interrupted: " + e.getMessage());
+                }
+            }
+            if (!closed) {
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handle(Map<String, Object> message) {
+        Object op = message.get("op");
+        if (op == null) {
+            // A snapshot record, in the export format
+            put(loading != null ? loading : storage, message);
+            return;
+        }
+        switch (op.toString()) {
+            case "snapshot":
+                appliedOffset = -1;
+                logId = DataTransfer.string(message, "log");
+                loading = new ShardedStorage(storage.getShardCount());
+                break;
+            case "snapshotEnd":
+                if (loading != null) {
+                    storage.replaceWith(loading);
+                    loading = null;
+                }
+                appliedOffset = offset(message);
+                leaderOffset = Math.max(leaderOffset, appliedOffset);
+                break;
+            case "heartbeat":
+                leaderOffset = offset(message);
+                break;
+            case "put":
+            case "delete":
+                Map<String, Object> record = (Map<String, Object>) message.get("record");
+                if (op.equals("put")) {
+                    put(storage, record);
+                } else {
+                    delete(record);
+                }
+                appliedTime = ((Number) message.get("time")).longValue();
+                appliedOffset = offset(message) + 1;
+                leaderOffset = Math.max(leaderOffset, appliedOffset);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown replication message: " + op);
+        }
+    }
+
+    private static void put(ShardedStorage storage, Map<String, Object> record) {
+        switch (String.valueOf(record.get("type"))) {
+            case "user":
+                storage.putUser(DataTransfer.string(record, "username"), DataTransfer.string(record, "password"));
+                break;
+            case "email": storage.putEmail(DataTransfer.emailFromRecord(record)); break;
+            case "question": storage.putQuestion(DataTransfer.questionFromRecord(record)); break;
+            case "answer": storage.putAnswer(DataTransfer.answerFromRecord(record)); break;
+            default: break; // id counters only matter on the leader
+        }
+    }
+
+    private void delete(Map<String, Object> record) {
+        int id = DataTransfer.integer(record, "id");
+        switch (String.valueOf(record.get("type"))) {
+            case "email": storage.removeEmail(id); break;
+            case "question": storage.removeQuestion(id); break;
+            case "answer": storage.removeAnswer(id); break;
+            default: throw new IllegalArgumentException("Cannot delete a " + record.get("type"));
+        }
+    }
+
+    private static long offset(Map<String, Object> message) {
+        return ((Number) message.get("offset")).longValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Socket connection = socket;
+        if (connection != null) {
+            connection.close();
+        }
+    }
+}
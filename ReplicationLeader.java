@@ -0,0 +1,234 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Streams the {@link MemoryStorage} mutation log to {@link ReplicationFollower}s over TCP.
+ *
+ * Every change is appended to an in-memory log under the storage lock, so log order is the
+ * order the changes were made in. The last {@code retainedEntries} entries are kept. A
+ * follower connects and sends the offset it wants to continue from. If that part of the log
+ * is still held the leader streams from there. Otherwise it first sends a snapshot: a
+ * {@link DataTransfer} export, then the log from the offset at which the export began. The
+ * export runs without the storage lock, so it may already include some of the changes the
+ * log then repeats; puts carry whole records and deletes of missing entities do nothing, so
+ * applying them again is harmless.
+ *
+ * Offsets only mean something within one leader's log, so each log has a random id. A
+ * follower that last followed another log, e.g. before the leader restarted, gets a snapshot.
+ *
+ * The protocol is JSON Lines. After the handshake {"offset":n,"log":id} the leader sends:
+ * - an optional {"op":"snapshot","offset":n,"log":id}, the export records and
+ *   {"op":"snapshotEnd","offset":n};
+ * - then log entries {"op":"put"|"delete","offset":n,"time":millis,"record":{...}};
+ * - and {"op":"heartbeat","offset":n,"time":millis} whenever nothing was sent for a second.
+ */
+public class ReplicationLeader implements Closeable {
+    private static final long HEARTBEAT_MILLIS = 1_000;
+    private static final int MAX_BATCH = 1_024;
+
+    private final ServerSocket serverSocket;
+    private final int retainedEntries;
+    private final String logId = UUID.randomUUID().toString();
+
+    // Log entries as JSON lines; entries.get(0) has offset firstOffset
+    private final List<String> entries = new ArrayList<>();
+    private long firstOffset;
+    private int waitingSenders;
+
+    private final Map<Socket, Long> followerOffsets = new ConcurrentHashMap<>();
+    private final Consumer<Map<String, Object>> listener = this::append;
+    private volatile boolean closed;
+
+    public ReplicationLeader(int port, int retainedEntries) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(port));
+        this.retainedEntries = retainedEntries;
+    }
+
+    /**
+     * Starts recording changes to MemoryStorage and accepting followers.
+     */
+    public void start() {
+        MemoryStorage.addMutationListener(listener);
+        Thread acceptor = new Thread(this::acceptFollowers, "replication-leader");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the offset the next log entry will get.
+     */
+    public long getLogOffset() {
+        synchronized (entries) {
+            return firstOffset + entries.size();
+        }
+    }
+
+    /**
+     * Returns, per connected follower, the log offset it has been sent up to.
+     */
+    public Map<String, Long> getFollowerOffsets() {
+        Map<String, Long> offsets = new TreeMap<>();
+        followerOffsets.forEach((socket, offset) -> offsets.put(String.valueOf(socket.getRemoteSocketAddress()), offset));
+        return offsets;
+    }
+
+    // Called under the MemoryStorage lock
+    private void append(Map<String, Object> mutation) {
+        synchronized (entries) {
+            mutation.put("offset", firstOffset + entries.size());
+            mutation.put("time", System.currentTimeMillis());
+            entries.add(Json.write(mutation));
+            // Trim in large steps so appends stay amortized O(1)
+            if (entries.size() >= retainedEntries * 2) {
+                int drop = entries.size() - retainedEntries;
+                entries.subList(0, drop).clear();
+                firstOffset += drop;
+            }
+            if (waitingSenders > 0) {
+                entries.notifyAll();
+            }
+        }
+    }
+
+    private void acceptFollowers() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread sender = new Thread(() -> serve(socket), "replication-sender-" + socket.getPort());
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Replication accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+
+            String handshake = in.readLine();
+            if (handshake == null) {
+                return;
+            }
+            Map<String, Object> hello = Json.parseObject(handshake);
+            long offset = ((Number) hello.get("offset")).longValue();
+            if (!logId.equals(hello.get("log"))) {
+                offset = -1;
+            }
+            followerOffsets.put(socket, offset);
+
+            while (!closed) {
+                List<String> batch = new ArrayList<>();
+                long next = awaitEntries(offset, batch);
+                if (next < 0) {
+                    offset = sendSnapshot(out);
+                } else if (batch.isEmpty()) {
+                    writeLine(out, Json.write(Map.of("op", "heartbeat", "offset", next,
+                        "time", System.currentTimeMillis())));
+                } else {
+                    for (String entry : batch) {
+                        writeLine(out, entry);
+                    }
+                    offset = next;
+                }
+                out.flush();
+                followerOffsets.put(socket, offset);
+            }
+        } catch (IOException e) {
+            // Follower went away; it reconnects with its own offset
+        } finally {
+            followerOffsets.remove(socket);
+        }
+    }
+
+    /**
+     * Waits up to a heartbeat interval for entries from {@code offset} on and copies them into
+     * {@code batch}. Returns the offset after the copied entries, the current end of the log if
+     * there were none, or -1 if {@code offset} is no longer in the log.
+     */
+    private long awaitEntries(long offset, List<String> batch) {
+        synchronized (entries) {
+            long deadline = System.currentTimeMillis() + HEARTBEAT_MILLIS;
+            long end = firstOffset + entries.size();
+            while (offset >= end && !closed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return end;
+                }
+                waitingSenders++;
+                try {
+                    entries.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return end;
+                } finally {
+                    waitingSenders--;
+                }
+                end = firstOffset + entries.size();
+            }
+            if (offset < firstOffset || offset > end) {
+                return -1;
+            }
+            int from = (int) (offset - firstOffset);
+            int to = (int) Math.min(entries.size(), from + (long) MAX_BATCH);
+            batch.addAll(entries.subList(from, to));
+            return firstOffset + to;
+        }
+    }
+
+    // Exports to a temporary file so the follower is not kept waiting on the export. Only the
+    // offset is read under the storage lock: every change logged before it is already applied,
+    // and the export, which takes the lock chunk by chunk, starts after them.
+    private long sendSnapshot(OutputStream out) throws IOException {
+        Path file = Files.createTempFile("replication-snapshot", ".jsonl");
+        try {
+            long offset;
+            synchronized (MemoryStorage.class) {
+                offset = getLogOffset();
+            }
+            DataTransfer.exportTo(file);
+            writeLine(out, Json.write(Map.of("op", "snapshot", "offset", offset, "log", logId)));
+            Files.copy(file, out);
+            writeLine(out, Json.write(Map.of("op", "snapshotEnd", "offset", offset)));
+            return offset;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        MemoryStorage.removeMutationListener(listener);
+        synchronized (entries) {
+            entries.notifyAll();
+        }
+        serverSocket.close();
+        for (Socket socket : followerOffsets.keySet()) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,835 @@
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link StorageBackend} split into independently locked shards.
+ *
+ * Users, their login state and their mailboxes live on the shard their username hashes to:
+ * received mail on the recipient's shard, drafts on the author's shard, and the sender's shard
+ * keeps only the ids of what they sent. Sessions hash by token. Questions are placed by id,
+ * with their answers alongside, so every forum update touches exactly one shard.
+ *
+ * An operation holds at most one shard lock at a time, except sendDraft, which moves the
+ * draft from the author's shard to the recipient's under both locks, taken in shard index
+ * order so two sends cannot deadlock. Shards share nothing but the id
+ * counters and the email directory (email id to home shard), and hand out copies rather than
+ * their own objects, so a shard could later be moved behind a remote call.
+ */
+public class ShardedStorage implements StorageBackend {
+    private static final Comparator<Email> NEWEST_FIRST =
+        (e1, e2) -> e2.getSentDate().compareTo(e1.getSentDate());
+
+    private final Shard[] shards;
+    private final AtomicInteger nextEmailId = new AtomicInteger(1);
+    private final AtomicInteger nextQuestionId = new AtomicInteger(1);
+    private final AtomicInteger nextAnswerId = new AtomicInteger(1);
+    // Emails move from the author's shard to the recipient's when a draft is sent
+    private final Map<Integer, Integer> emailHomes = new ConcurrentHashMap<>();
+    // Answers live on their question's shard
+    private final Map<Integer, Integer> answerQuestions = new ConcurrentHashMap<>();
+
+    public ShardedStorage(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    public ShardedStorage() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    private static class Shard {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        // Keyed by usernames hashing to this shard. Not final only so replaceWith can swap
+        // them all at once; always read under the lock.
+        Map<String, String> users = new HashMap<>();
+        Map<String, Integer> loginAttempts = new HashMap<>();
+        Map<String, LocalDateTime> lockouts = new HashMap<>();
+        Map<String, Map<Integer, Email>> inboxes = new HashMap<>();
+        Map<String, Map<Integer, Email>> drafts = new HashMap<>();
+        Map<String, Set<Integer>> sentIds = new HashMap<>();
+        Map<Integer, Email> emails = new HashMap<>();
+
+        // Keyed by tokens hashing to this shard
+        Map<String, String> sessions = new HashMap<>();
+
+        // Questions whose id maps to this shard, and their answers
+        Map<Integer, Question> questions = new HashMap<>();
+        Map<Integer, Map<Integer, Answer>> answersByQuestion = new HashMap<>();
+        Map<Integer, Answer> answers = new HashMap<>();
+
+        // Takes over all of other's data; caller holds this shard's write lock
+        void takeOver(Shard other) {
+            users = other.users;
+            loginAttempts = other.loginAttempts;
+            lockouts = other.lockouts;
+            inboxes = other.inboxes;
+            drafts = other.drafts;
+            sentIds = other.sentIds;
+            emails = other.emails;
+            sessions = other.sessions;
+            questions = other.questions;
+            answersByQuestion = other.answersByQuestion;
+            answers = other.answers;
+        }
+
+        void link(Email email) {
+            emails.put(email.getId(), email);
+            if (email.getStatus() == Email.EmailStatus.DRAFT) {
+                drafts.computeIfAbsent(email.getFromUser(), k -> new LinkedHashMap<>()).put(email.getId(), email);
+            } else {
+                inboxes.computeIfAbsent(email.getToUser(), k -> new LinkedHashMap<>()).put(email.getId(), email);
+            }
+        }
+
+        Email unlink(int emailId) {
+            Email email = emails.remove(emailId);
+            if (email != null) {
+                // Deleted drafts stay where they were linked, so check both mailboxes
+                removeFrom(drafts, email.getFromUser(), emailId);
+                removeFrom(inboxes, email.getToUser(), emailId);
+            }
+            return email;
+        }
+
+        void link(Answer answer) {
+            answers.put(answer.getId(), answer);
+            answersByQuestion.computeIfAbsent(answer.getQuestionId(), k -> new LinkedHashMap<>())
+                .put(answer.getId(), answer);
+        }
+
+        Answer unlink(Answer answer) {
+            answers.remove(answer.getId());
+            removeFrom(answersByQuestion, answer.getQuestionId(), answer.getId());
+            return answer;
+        }
+    }
+
+    private int indexFor(String key) {
+        return Math.floorMod(key.hashCode(), shards.length);
+    }
+
+    private Shard shardFor(String key) {
+        return shards[indexFor(key)];
+    }
+
+    private Shard shardFor(int id) {
+        return shards[Math.floorMod(id, shards.length)];
+    }
+
+    private static <T> T read(Shard shard, Supplier<T> action) {
+        return locked(shard.lock.readLock(), action);
+    }
+
+    private static <T> T write(Shard shard, Supplier<T> action) {
+        return locked(shard.lock.writeLock(), action);
+    }
+
+    private static void write(Shard shard, Runnable action) {
+        locked(shard.lock.writeLock(), () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    // Holds the write locks of two shards, which may be the same one, lower index first
+    private <T> T writeBoth(int first, int second, Supplier<T> action) {
+        Lock outer = shards[Math.min(first, second)].lock.writeLock();
+        outer.lock();
+        try {
+            return locked(shards[Math.max(first, second)].lock.writeLock(), action);
+        } finally {
+            outer.unlock();
+        }
+    }
+
+    private static <T> T locked(Lock lock, Supplier<T> action) {
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // User Management
+    @Override
+    public void addUser(String username, String password) {
+        Shard shard = shardFor(username);
+        write(shard, () -> shard.users.put(username, password));
+        addEmail("system@forum.com", username, "Welcome to the Forum",
+            "Welcome to our forum system! Feel free to ask questions and help others.");
+    }
+
+    @Override
+    public boolean addUserIfAbsent(String username, String password) {
+        Shard shard = shardFor(username);
+        if (!write(shard, () -> shard.users.putIfAbsent(username, password) == null)) {
+            return false;
+        }
+        addEmail("system@forum.com", username, "Welcome to the Forum",
+            "Welcome to our forum system! Feel free to ask questions and help others.");
+        return true;
+    }
+
+    @Override
+    public boolean userExists(String username) {
+        Shard shard = shardFor(username);
+        return read(shard, () -> shard.users.containsKey(username));
+    }
+
+    @Override
+    public String getPassword(String username) {
+        Shard shard = shardFor(username);
+        return read(shard, () -> shard.users.get(username));
+    }
+
+    // Session Management
+    @Override
+    public String createSession(String username) {
+        String token = UUID.randomUUID().toString();
+        Shard shard = shardFor(token);
+        write(shard, () -> shard.sessions.put(token, username));
+        return token;
+    }
+
+    @Override
+    public void logout(String token) {
+        Shard shard = shardFor(token);
+        write(shard, () -> shard.sessions.remove(token));
+    }
+
+    @Override
+    public String getUserFromSession(String token) {
+        Shard shard = shardFor(token);
+        return read(shard, () -> shard.sessions.get(token));
+    }
+
+    // Login Attempt Management
+    @Override
+    public void incrementLoginAttempts(String username) {
+        Shard shard = shardFor(username);
+        write(shard, () -> {
+            int attempts = shard.loginAttempts.merge(username, 1, Integer::sum);
+            if (attempts >= 5) {
+                shard.lockouts.put(username, LocalDateTime.now().plusMinutes(15));
+            }
+        });
+    }
+
+    @Override
+    public void resetLoginAttempts(String username) {
+        Shard shard = shardFor(username);
+        write(shard, () -> {
+            shard.loginAttempts.remove(username);
+            shard.lockouts.remove(username);
+        });
+    }
+
+    @Override
+    public boolean isLockedOut(String username) {
+        return lockoutOf(username).isAfter(LocalDateTime.now());
+    }
+
+    @Override
+    public long getLockoutTimeRemaining(String username) {
+        LocalDateTime lockoutTime = lockoutOf(username);
+        if (lockoutTime.isBefore(LocalDateTime.now())) {
+            return 0;
+        }
+        return ChronoUnit.MINUTES.between(LocalDateTime.now(), lockoutTime);
+    }
+
+    private LocalDateTime lockoutOf(String username) {
+        Shard shard = shardFor(username);
+        return read(shard, () -> shard.lockouts.getOrDefault(username, LocalDateTime.MIN));
+    }
+
+    // Email Management
+    @Override
+    public int addEmail(String fromUser, String toUser, String subject, String content) {
+        Email email = new Email();
+        email.setId(nextEmailId.getAndIncrement());
+        email.setFromUser(fromUser);
+        email.setToUser(toUser);
+        email.setSubject(subject);
+        email.setContent(content);
+        email.setSentDate(LocalDateTime.now());
+        email.setStatus(Email.EmailStatus.SENT);
+        email.setRead(false);
+        deliver(email);
+        return email.getId();
+    }
+
+    @Override
+    public int saveDraft(String fromUser, String toUser, String subject, String content) {
+        Email email = new Email();
+        email.setId(nextEmailId.getAndIncrement());
+        email.setFromUser(fromUser);
+        email.setToUser(toUser != null ? toUser : "");
+        email.setSubject(subject != null ? subject : "");
+        email.setContent(content != null ? content : "");
+        email.setSentDate(LocalDateTime.now());
+        email.setStatus(Email.EmailStatus.DRAFT);
+        email.setRead(false);
+
+        int home = indexFor(fromUser);
+        Shard shard = shards[home];
+        write(shard, () -> shard.link(email));
+        emailHomes.put(email.getId(), home);
+        return email.getId();
+    }
+
+    @Override
+    public void sendDraft(int emailId) {
+        Integer home = emailHomes.get(emailId);
+        if (home == null) {
+            return;
+        }
+        Shard draftShard = shards[home];
+        String toUser = read(draftShard, () -> {
+            Email e = draftShard.emails.get(emailId);
+            return e != null ? e.getToUser() : null;
+        });
+        if (toUser == null) {
+            return;
+        }
+        // Move the draft to the recipient's shard with both shards locked, so a delete or a
+        // second send never finds it on neither; the author's shard is also the sender's
+        int recipientHome = indexFor(toUser);
+        Shard recipientShard = shards[recipientHome];
+        writeBoth(home, recipientHome, () -> {
+            Email e = draftShard.emails.get(emailId);
+            if (e == null || e.getStatus() != Email.EmailStatus.DRAFT ||
+                e.getToUser().trim().isEmpty() || e.getSubject().trim().isEmpty()) {
+                return null;
+            }
+            draftShard.unlink(emailId);
+            e.setStatus(Email.EmailStatus.SENT);
+            e.setSentDate(LocalDateTime.now());
+            e.incrementVersion();
+            recipientShard.link(e);
+            emailHomes.put(emailId, recipientHome);
+            draftShard.sentIds.computeIfAbsent(e.getFromUser(), k -> new LinkedHashSet<>()).add(emailId);
+            return null;
+        });
+    }
+
+    private void deliver(Email email) {
+        int home = indexFor(email.getToUser());
+        Shard recipientShard = shards[home];
+        write(recipientShard, () -> recipientShard.link(email));
+        emailHomes.put(email.getId(), home);
+
+        Shard senderShard = shardFor(email.getFromUser());
+        write(senderShard, () ->
+            senderShard.sentIds.computeIfAbsent(email.getFromUser(), k -> new LinkedHashSet<>()).add(email.getId()));
+    }
+
+    @Override
+    public List<Email> getInboxEmails(String username) {
+        Shard shard = shardFor(username);
+        List<Email> inbox = read(shard, () -> shard.inboxes.getOrDefault(username, Map.of()).values().stream()
+            .filter(e -> e.getStatus() != Email.EmailStatus.DELETED)
+            .map(ShardedStorage::copy)
+            .collect(Collectors.toList()));
+        inbox.sort(NEWEST_FIRST);
+        return inbox;
+    }
+
+    @Override
+    public List<Email> getSentEmails(String username) {
+        Shard senderShard = shardFor(username);
+        List<Integer> ids = read(senderShard, () -> new ArrayList<>(senderShard.sentIds.getOrDefault(username, Set.of())));
+
+        // Sent mail lives with its recipients; visit each of their shards once
+        Map<Integer, List<Integer>> idsByHome = new TreeMap<>();
+        for (int id : ids) {
+            Integer home = emailHomes.get(id);
+            if (home != null) {
+                idsByHome.computeIfAbsent(home, k -> new ArrayList<>()).add(id);
+            }
+        }
+        List<Email> sent = new ArrayList<>();
+        idsByHome.forEach((home, homeIds) -> {
+            Shard shard = shards[home];
+            read(shard, () -> {
+                for (int id : homeIds) {
+                    Email e = shard.emails.get(id);
+                    if (e != null && e.getStatus() == Email.EmailStatus.SENT) {
+                        sent.add(copy(e));
+                    }
+                }
+                return null;
+            });
+        });
+        sent.sort(NEWEST_FIRST);
+        return sent;
+    }
+
+    @Override
+    public List<Email> getDrafts(String username) {
+        Shard shard = shardFor(username);
+        List<Email> drafts = read(shard, () -> shard.drafts.getOrDefault(username, Map.of()).values().stream()
+            .filter(e -> e.getStatus() == Email.EmailStatus.DRAFT)
+            .map(ShardedStorage::copy)
+            .collect(Collectors.toList()));
+        drafts.sort(NEWEST_FIRST);
+        return drafts;
+    }
+
+    @Override
+    public void markAsRead(int emailId, String username) {
+        Shard shard = shardFor(username);
+        write(shard, () -> {
+            Email e = shard.emails.get(emailId);
+            if (e != null && e.getToUser().equals(username) && !e.isRead()) {
+                e.setRead(true);
+                e.incrementVersion();
+            }
+        });
+    }
+
+    @Override
+    public void deleteEmail(int emailId, String username) {
+        while (true) {
+            Integer home = emailHomes.get(emailId);
+            if (home == null) {
+                return;
+            }
+            Shard shard = shards[home];
+            boolean moved = write(shard, () -> {
+                // A send moved the draft after we looked up its home; look again
+                if (!home.equals(emailHomes.get(emailId))) {
+                    return true;
+                }
+                Email e = shard.emails.get(emailId);
+                if (e != null && (e.getFromUser().equals(username) || e.getToUser().equals(username))) {
+                    e.setStatus(Email.EmailStatus.DELETED);
+                    e.setDeletedAt(LocalDateTime.now());
+                    e.incrementVersion();
+                }
+                return false;
+            });
+            if (!moved) {
+                return;
+            }
+        }
+    }
+
+    // Question Management
+    @Override
+    public int addQuestion(String title, String content, String author) {
+        Question question = new Question(nextQuestionId.getAndIncrement(), title, content, author,
+            LocalDateTime.now(), "OPEN");
+        Shard shard = shardFor(question.getId());
+        write(shard, () -> shard.questions.put(question.getId(), question));
+        return question.getId();
+    }
+
+    @Override
+    public List<Question> getQuestions() {
+        return collectQuestions(q -> true);
+    }
+
+    @Override
+    public Optional<Question> getQuestion(int questionId) {
+        Shard shard = shardFor(questionId);
+        return read(shard, () -> Optional.ofNullable(shard.questions.get(questionId)).map(ShardedStorage::copy));
+    }
+
+    @Override
+    public void updateQuestion(int questionId, String title, String content) {
+        Shard shard = shardFor(questionId);
+        write(shard, () -> {
+            Question q = shard.questions.get(questionId);
+            if (q != null) {
+                q.setTitle(title);
+                q.setContent(content);
+                q.incrementVersion();
+            }
+        });
+    }
+
+    @Override
+    public UpdateResult<Question> updateQuestionIfVersion(int questionId, int expectedVersion, String title, String content) {
+        Shard shard = shardFor(questionId);
+        return write(shard, () -> {
+            Question q = shard.questions.get(questionId);
+            if (q == null) {
+                return UpdateResult.notFound();
+            }
+            if (q.getVersion() != expectedVersion) {
+                return UpdateResult.conflict(copy(q));
+            }
+            q.setTitle(title);
+            q.setContent(content);
+            q.incrementVersion();
+            return UpdateResult.updated(copy(q));
+        });
+    }
+
+    @Override
+    public void deleteQuestion(int questionId) {
+        Shard shard = shardFor(questionId);
+        write(shard, () -> {
+            shard.questions.remove(questionId);
+            // Also remove all associated answers, even if the question itself is missing: a
+            // follower replaying the log after a snapshot may hold answers to a question the
+            // snapshot no longer had
+            Map<Integer, Answer> removed = shard.answersByQuestion.remove(questionId);
+            if (removed != null) {
+                removed.keySet().forEach(answerId -> {
+                    shard.answers.remove(answerId);
+                    answerQuestions.remove(answerId);
+                });
+            }
+        });
+    }
+
+    @Override
+    public List<Question> searchQuestions(String query) {
+        if (query == null || query.trim().isEmpty()) {
+            return getQuestions();
+        }
+        String searchQuery = query.toLowerCase().trim();
+        return collectQuestions(q -> q.getTitle().toLowerCase().contains(searchQuery) ||
+                                     q.getContent().toLowerCase().contains(searchQuery) ||
+                                     q.getAuthor().toLowerCase().contains(searchQuery));
+    }
+
+    // Gathers matching questions from every shard, in id (creation) order
+    private List<Question> collectQuestions(Predicate<Question> filter) {
+        List<Question> result = new ArrayList<>();
+        for (Shard shard : shards) {
+            read(shard, () -> {
+                for (Question q : shard.questions.values()) {
+                    if (filter.test(q)) {
+                        result.add(copy(q));
+                    }
+                }
+                return null;
+            });
+        }
+        result.sort(Comparator.comparingInt(Question::getId));
+        return result;
+    }
+
+    // Answer Management
+    @Override
+    public int addAnswer(int questionId, String content, String author) {
+        Answer answer = new Answer(nextAnswerId.getAndIncrement(), questionId, content, author,
+            LocalDateTime.now(), false);
+        answerQuestions.put(answer.getId(), questionId);
+        Shard shard = shardFor(questionId);
+        write(shard, () -> {
+            shard.link(answer);
+            updateQuestionStatus(shard, questionId);
+        });
+        return answer.getId();
+    }
+
+    @Override
+    public List<Answer> getAnswersForQuestion(int questionId) {
+        Shard shard = shardFor(questionId);
+        List<Answer> result = read(shard, () -> shard.answersByQuestion.getOrDefault(questionId, Map.of()).values().stream()
+            .map(ShardedStorage::copy)
+            .collect(Collectors.toList()));
+        result.sort((a1, a2) -> {
+            // Show accepted answer first, then sort by date
+            if (a1.isAccepted() && !a2.isAccepted()) return -1;
+            if (!a1.isAccepted() && a2.isAccepted()) return 1;
+            return a2.getCreatedAt().compareTo(a1.getCreatedAt());
+        });
+        return result;
+    }
+
+    @Override
+    public void updateAnswer(int answerId, String content) {
+        Shard shard = shardForAnswer(answerId);
+        if (shard == null) {
+            return;
+        }
+        write(shard, () -> {
+            Answer a = shard.answers.get(answerId);
+            if (a != null) {
+                a.setContent(content);
+                a.incrementVersion();
+            }
+        });
+    }
+
+    @Override
+    public UpdateResult<Answer> updateAnswerIfVersion(int answerId, int expectedVersion, String content) {
+        Shard shard = shardForAnswer(answerId);
+        if (shard == null) {
+            return UpdateResult.notFound();
+        }
+        return write(shard, () -> {
+            Answer a = shard.answers.get(answerId);
+            if (a == null) {
+                return UpdateResult.notFound();
+            }
+            if (a.getVersion() != expectedVersion) {
+                return UpdateResult.conflict(copy(a));
+            }
+            a.setContent(content);
+            a.incrementVersion();
+            return UpdateResult.updated(copy(a));
+        });
+    }
+
+    @Override
+    public void deleteAnswer(int answerId) {
+        Shard shard = shardForAnswer(answerId);
+        if (shard == null) {
+            return;
+        }
+        answerQuestions.remove(answerId);
+        write(shard, () -> {
+            Answer answer = shard.answers.get(answerId);
+            if (answer == null) {
+                return;
+            }
+            shard.unlink(answer);
+            // If this was the accepted answer or the last answer, update question status
+            if (!shard.answersByQuestion.containsKey(answer.getQuestionId()) || answer.isAccepted()) {
+                setStatus(shard.questions.get(answer.getQuestionId()), "OPEN");
+            }
+        });
+    }
+
+    @Override
+    public void acceptAnswer(int answerId, int questionId) {
+        Shard shard = shardFor(questionId);
+        write(shard, () -> {
+            Answer accepted = shard.answers.get(answerId);
+            if (accepted != null && accepted.getQuestionId() == questionId) {
+                accept(shard, accepted);
+            }
+        });
+    }
+
+    @Override
+    public UpdateResult<Answer> acceptAnswerIfVersion(int answerId, int questionId, int expectedVersion) {
+        Shard shard = shardFor(questionId);
+        return write(shard, () -> {
+            Answer accepted = shard.answers.get(answerId);
+            if (accepted == null || accepted.getQuestionId() != questionId) {
+                return UpdateResult.notFound();
+            }
+            if (accepted.getVersion() != expectedVersion) {
+                return UpdateResult.conflict(copy(accepted));
+            }
+            accept(shard, accepted);
+            return UpdateResult.updated(copy(accepted));
+        });
+    }
+
+    // Caller holds the shard's write lock
+    private static void accept(Shard shard, Answer accepted) {
+        shard.answersByQuestion.get(accepted.getQuestionId()).values().forEach(a -> {
+            if (a.isAccepted() != (a == accepted)) {
+                a.setAccepted(a == accepted);
+                a.incrementVersion();
+            }
+        });
+        setStatus(shard.questions.get(accepted.getQuestionId()), "ANSWERED");
+    }
+
+    // Replication: followers apply the leader's records with these. They take the record as
+    // given, keep its id and do not derive anything (such as question status) from it.
+    void putUser(String username, String password) {
+        Shard shard = shardFor(username);
+        write(shard, () -> shard.users.put(username, password));
+    }
+
+    void putEmail(Email email) {
+        int emailId = email.getId();
+        int home = indexFor(email.getStatus() == Email.EmailStatus.DRAFT ? email.getFromUser() : email.getToUser());
+        Integer previous = emailHomes.put(emailId, home);
+        if (previous != null && previous != home) {
+            Shard old = shards[previous];
+            write(old, () -> old.unlink(emailId));
+        }
+        Shard shard = shards[home];
+        write(shard, () -> {
+            shard.unlink(emailId);
+            shard.link(email);
+        });
+        if (email.getStatus() != Email.EmailStatus.DRAFT) {
+            Shard senderShard = shardFor(email.getFromUser());
+            write(senderShard, () ->
+                senderShard.sentIds.computeIfAbsent(email.getFromUser(), k -> new LinkedHashSet<>()).add(emailId));
+        }
+        nextEmailId.accumulateAndGet(emailId + 1, Math::max);
+    }
+
+    void removeEmail(int emailId) {
+        Integer home = emailHomes.remove(emailId);
+        if (home == null) {
+            return;
+        }
+        Shard shard = shards[home];
+        Email email = write(shard, () -> shard.unlink(emailId));
+        if (email != null) {
+            Shard senderShard = shardFor(email.getFromUser());
+            write(senderShard, () -> {
+                Set<Integer> ids = senderShard.sentIds.get(email.getFromUser());
+                if (ids != null) {
+                    ids.remove(emailId);
+                }
+            });
+        }
+    }
+
+    void putQuestion(Question question) {
+        Shard shard = shardFor(question.getId());
+        write(shard, () -> shard.questions.put(question.getId(), question));
+        nextQuestionId.accumulateAndGet(question.getId() + 1, Math::max);
+    }
+
+    void removeQuestion(int questionId) {
+        deleteQuestion(questionId);
+    }
+
+    void putAnswer(Answer answer) {
+        Integer previousQuestion = answerQuestions.put(answer.getId(), answer.getQuestionId());
+        if (previousQuestion != null && previousQuestion != answer.getQuestionId()) {
+            removeAnswer(answer.getId());
+            answerQuestions.put(answer.getId(), answer.getQuestionId());
+        }
+        Shard shard = shardFor(answer.getQuestionId());
+        write(shard, () -> {
+            Answer existing = shard.answers.get(answer.getId());
+            if (existing != null) {
+                shard.unlink(existing);
+            }
+            shard.link(answer);
+        });
+        nextAnswerId.accumulateAndGet(answer.getId() + 1, Math::max);
+    }
+
+    void removeAnswer(int answerId) {
+        Shard shard = shardForAnswer(answerId);
+        if (shard == null) {
+            return;
+        }
+        answerQuestions.remove(answerId);
+        write(shard, () -> {
+            Answer answer = shard.answers.get(answerId);
+            if (answer != null) {
+                shard.unlink(answer);
+            }
+        });
+    }
+
+    /**
+     * Replaces all data with that of {@code loaded}, e.g. a follower's freshly loaded
+     * snapshot. {@code loaded} must have as many shards and must not be used afterwards.
+     * Each shard switches over under its write lock, so a reader sees every shard either
+     * before or after and never an empty store, though a read spanning shards may see a mix
+     * while the switch is under way.
+     */
+    void replaceWith(ShardedStorage loaded) {
+        if (loaded.shards.length != shards.length) {
+            throw new IllegalArgumentException("Shard counts differ: " + loaded.shards.length + " and " + shards.length);
+        }
+        // Add the new directory entries before the shards switch and drop stale ones after,
+        // so no email or answer present on either side goes missing from the directory
+        emailHomes.putAll(loaded.emailHomes);
+        answerQuestions.putAll(loaded.answerQuestions);
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[i];
+            Shard source = loaded.shards[i];
+            write(shard, () -> shard.takeOver(source));
+        }
+        emailHomes.keySet().retainAll(loaded.emailHomes.keySet());
+        answerQuestions.keySet().retainAll(loaded.answerQuestions.keySet());
+        nextEmailId.accumulateAndGet(loaded.nextEmailId.get(), Math::max);
+        nextQuestionId.accumulateAndGet(loaded.nextQuestionId.get(), Math::max);
+        nextAnswerId.accumulateAndGet(loaded.nextAnswerId.get(), Math::max);
+    }
+
+    private static void updateQuestionStatus(Shard shard, int questionId) {
+        Question q = shard.questions.get(questionId);
+        if (q == null) {
+            return;
+        }
+        Collection<Answer> questionAnswers = shard.answersByQuestion.getOrDefault(questionId, Map.of()).values();
+        if (questionAnswers.isEmpty()) {
+            setStatus(q, "OPEN");
+        } else if (questionAnswers.stream().anyMatch(Answer::isAccepted)) {
+            setStatus(q, "ANSWERED");
+        } else {
+            setStatus(q, "IN_PROGRESS");
+        }
+    }
+
+    // Derived from the answers, so it leaves the version alone
+    private static void setStatus(Question q, String status) {
+        if (q != null && !status.equals(q.getStatus())) {
+            q.setStatus(status);
+        }
+    }
+
+    private Shard shardForAnswer(int answerId) {
+        Integer questionId = answerQuestions.get(answerId);
+        return questionId != null ? shardFor(questionId) : null;
+    }
+
+    private static <K, V> void removeFrom(Map<K, Map<Integer, V>> maps, K key, int id) {
+        Map<Integer, V> map = maps.get(key);
+        if (map != null) {
+            map.remove(id);
+            if (map.isEmpty()) {
+                maps.remove(key);
+            }
+        }
+    }
+
+    // Shards never hand out the objects they lock over
+    static Email copy(Email e) {
+        Email email = new Email();
+        email.setId(e.getId());
+        email.setFromUser(e.getFromUser());
+        email.setToUser(e.getToUser());
+        email.setSubject(e.getSubject());
+        email.setContent(e.getContent());
+        email.setSentDate(e.getSentDate());
+        email.setStatus(e.getStatus());
+        email.setRead(e.isRead());
+        email.setDeletedAt(e.getDeletedAt());
+        email.setVersion(e.getVersion());
+        return email;
+    }
+
+    static Question copy(Question q) {
+        Question question = new Question(q.getId(), q.getTitle(), q.getContent(), q.getAuthor(), q.getCreatedAt(), q.getStatus());
+        question.setVersion(q.getVersion());
+        return question;
+    }
+
+    static Answer copy(Answer a) {
+        Answer answer = new Answer(a.getId(), a.getQuestionId(), a.getContent(), a.getAuthor(), a.getCreatedAt(), a.isAccepted());
+        answer.setVersion(a.getVersion());
+        return answer;
+    }
+}
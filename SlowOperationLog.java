@@ -0,0 +1,272 @@
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records instrumented {@link Metrics.Operation} calls that take longer than their threshold,
+ * and optionally full traces of a sample of calls.
+ *
+ * A slow call is kept with its elapsed time, thread and argument shape (user, argument size
+ * such as a query's length, result size) in a bounded ring buffer, so the log never grows.
+ * When sampling is on, a fraction of top-level calls is traced: every instrumented call made
+ * inside them is recorded as a child span, e.g. addAnswer -> updateQuestionStatus ->
+ * getAnswersForQuestion. Slow calls that were sampled carry their trace.
+ *
+ * Call nesting is tracked on a per-thread stack of reused frames, so calls that are not
+ * sampled and not slow allocate nothing.
+ */
+public final class SlowOperationLog {
+    private static final int CAPACITY = 256;
+
+    private static final AtomicReferenceArray<Entry> slowCalls = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong slowCallCount = new AtomicLong();
+    private static final AtomicReferenceArray<Span> traces = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong traceCount = new AtomicLong();
+
+    private static volatile long defaultThresholdNanos = Duration.ofMillis(100).toNanos();
+    private static volatile double sampleRate;
+
+    private static final ThreadLocal<CallStack> stacks = ThreadLocal.withInitial(CallStack::new);
+
+    private SlowOperationLog() {
+    }
+
+    /**
+     * One call that exceeded its threshold. Sizes are -1 where the operation does not report them.
+     */
+    public static final class Entry {
+        public final String operation;
+        public final long elapsedNanos;
+        public final String thread;
+        public final LocalDateTime finishedAt;
+        public final String user;
+        public final int argumentSize;
+        public final int resultSize;
+        public final Span trace;
+
+        Entry(String operation, long elapsedNanos, String thread, String user, int argumentSize,
+              int resultSize, Span trace) {
+            this.operation = operation;
+            this.elapsedNanos = elapsedNanos;
+            this.thread = thread;
+            this.finishedAt = LocalDateTime.now();
+            this.user = user;
+            this.argumentSize = argumentSize;
+            this.resultSize = resultSize;
+            this.trace = trace;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(finishedAt).append(' ').append(operation)
+                .append(String.format(" %.3fms", elapsedNanos / 1e6))
+                .append(" thread=").append(thread);
+            appendShape(out, user, argumentSize, resultSize);
+            if (trace != null) {
+                out.append('\n');
+                trace.format(out, 1);
+            }
+            return out.toString();
+        }
+    }
+
+    /**
+     * One traced call and the instrumented calls made inside it.
+     */
+    public static final class Span {
+        public final String operation;
+        public final List<Span> children = new ArrayList<>();
+        private final long startNanos;
+        private long durationNanos;
+        private String user;
+        private int argumentSize = -1;
+        private int resultSize = -1;
+
+        Span(String operation, long startNanos) {
+            this.operation = operation;
+            this.startNanos = startNanos;
+        }
+
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public String format() {
+            StringBuilder out = new StringBuilder();
+            format(out, 0);
+            return out.toString();
+        }
+
+        void format(StringBuilder out, int indent) {
+            out.append("  ".repeat(indent)).append(operation)
+                .append(String.format(" %.3fms", durationNanos / 1e6));
+            appendShape(out, user, argumentSize, resultSize);
+            for (Span child : children) {
+                out.append('\n');
+                child.format(out, indent + 1);
+            }
+        }
+    }
+
+    private static void appendShape(StringBuilder out, String user, int argumentSize, int resultSize) {
+        if (user != null) {
+            out.append(" user=").append(user);
+        }
+        if (argumentSize >= 0) {
+            out.append(" argumentSize=").append(argumentSize);
+        }
+        if (resultSize >= 0) {
+            out.append(" resultSize=").append(resultSize);
+        }
+    }
+
+    /**
+     * Sets the threshold for operations without one of their own. Defaults to 100 ms.
+     */
+    public static void setDefaultThreshold(Duration threshold) {
+        defaultThresholdNanos = threshold.toNanos();
+    }
+
+    /**
+     * Sets the threshold for one operation, by its metrics name such as
+     * "MemoryStorage.searchQuestions".
+     */
+    public static void setThreshold(String operation, Duration threshold) {
+        Metrics.operation(operation).slowThresholdNanos = threshold.toNanos();
+    }
+
+    /**
+     * Sets the fraction of top-level calls to trace, from 0 (off, the default) to 1.
+     */
+    public static void setSampleRate(double rate) {
+        sampleRate = rate;
+    }
+
+    /**
+     * Returns the retained slow calls, oldest first.
+     */
+    public static List<Entry> getSlowOperations() {
+        return drain(slowCalls, slowCallCount);
+    }
+
+    /**
+     * Returns the retained sampled traces, oldest first.
+     */
+    public static List<Span> getTraces() {
+        return drain(traces, traceCount);
+    }
+
+    public static void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            slowCalls.set(i, null);
+            traces.set(i, null);
+        }
+    }
+
+    public static String dump() {
+        StringBuilder out = new StringBuilder("Slow operations:\n");
+        for (Entry entry : getSlowOperations()) {
+            out.append(entry).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static <T> List<T> drain(AtomicReferenceArray<T> ring, AtomicLong count) {
+        long end = count.get();
+        List<T> result = new ArrayList<>();
+        for (long i = Math.max(0, end - CAPACITY); i < end; i++) {
+            T item = ring.get((int) (i % CAPACITY));
+            if (item != null) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    private static <T> void append(AtomicReferenceArray<T> ring, AtomicLong count, T item) {
+        ring.set((int) (count.getAndIncrement() % CAPACITY), item);
+    }
+
+    // Per-thread stack of the instrumented calls in progress
+    private static final class CallStack {
+        Frame[] frames = new Frame[8];
+        int depth;
+        boolean sampled;
+    }
+
+    private static final class Frame {
+        String user;
+        int argumentSize;
+        int resultSize;
+        Span span;
+    }
+
+    // Called by Metrics.Operation around every instrumented call
+    static void enter(Metrics.Operation operation, long startNanos) {
+        CallStack stack = stacks.get();
+        if (stack.depth == 0) {
+            double rate = sampleRate;
+            stack.sampled = rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+        }
+        if (stack.depth == stack.frames.length) {
+            stack.frames = Arrays.copyOf(stack.frames, stack.depth * 2);
+        }
+        Frame frame = stack.frames[stack.depth];
+        if (frame == null) {
+            frame = stack.frames[stack.depth] = new Frame();
+        }
+        frame.user = null;
+        frame.argumentSize = -1;
+        frame.resultSize = -1;
+        frame.span = null;
+        if (stack.sampled) {
+            frame.span = new Span(operation.getName(), startNanos);
+            if (stack.depth > 0) {
+                stack.frames[stack.depth - 1].span.children.add(frame.span);
+            }
+        }
+        stack.depth++;
+    }
+
+    static void shape(String user, int argumentSize, int resultSize) {
+        CallStack stack = stacks.get();
+        if (stack.depth > 0) {
+            Frame frame = stack.frames[stack.depth - 1];
+            frame.user = user;
+            frame.argumentSize = argumentSize;
+            frame.resultSize = resultSize;
+        }
+    }
+
+    static void exit(Metrics.Operation operation, long elapsedNanos) {
+        CallStack stack = stacks.get();
+        if (stack.depth == 0) {
+            return;
+        }
+        Frame frame = stack.frames[--stack.depth];
+        Span span = frame.span;
+        if (span != null) {
+            span.durationNanos = elapsedNanos;
+            span.user = frame.user;
+            span.argumentSize = frame.argumentSize;
+            span.resultSize = frame.resultSize;
+            if (stack.depth == 0) {
+                append(traces, traceCount, span);
+            }
+        }
+        long threshold = operation.slowThresholdNanos;
+        if (elapsedNanos >= (threshold >= 0 ? threshold : defaultThresholdNanos)) {
+            append(slowCalls, slowCallCount, new Entry(operation.getName(), elapsedNanos,
+                Thread.currentThread().getName(), frame.user, frame.argumentSize, frame.resultSize, span));
+        }
+        frame.span = null;
+    }
+}
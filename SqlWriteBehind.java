@@ -0,0 +1,367 @@
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Write-behind buffer for the frequent single-row writes of a database backend: new emails,
+ * answers and sessions and read receipts, in the tables of schema.sql. Emails and answers are
+ * inserted with the ids the caller assigned; the caller also keeps the question's status
+ * current, e.g. through {@link JdbcForumStore}.
+ *
+ * Writes are queued and return at once. A background thread sends them as JDBC batches, one
+ * PreparedStatement batch per kind of write and one transaction per flush, once
+ * {@code maxBatchSize} writes are waiting or the oldest has waited {@code maxDelay}. Within
+ * a flush, inserts run before updates. Writes to the same row are collapsed while they wait:
+ * marking a queued email read sets the flag on its insert, and repeated read receipts for an
+ * email by the same user become one update.
+ *
+ * Readers that need to see their own writes call {@link #flush()}, which returns once
+ * everything queued before the call is committed. A batch that fails is rolled back and
+ * retried twice, after 100 and 200 ms; if it still fails it is dropped. Every flush that was
+ * waiting for writes in the dropped batch throws an IllegalStateException carrying the error,
+ * and if none was, the next write, flush or close throws it instead. Callers block while
+ * {@code 4 * maxBatchSize} writes are already waiting, so a slow database applies back
+ * pressure instead of filling the heap.
+ */
+public class SqlWriteBehind implements Closeable {
+    // Batches are executed in this order within a flush
+    enum Statement {
+        INSERT_EMAIL("INSERT INTO emails (email_id, from_user, to_user, subject, content, sent_date, status, is_read) " +
+                     "VALUES (?, ?, ?, ?, ?, ?, ?, ?)"),
+        INSERT_ANSWER("INSERT INTO answers (answer_id, question_id, content, author, created_at, is_accepted) " +
+                      "VALUES (?, ?, ?, ?, ?, ?)"),
+        INSERT_SESSION("INSERT INTO sessions (user_id, token, created_at, expires_at) " +
+                       "SELECT user_id, ?, ?, ? FROM users WHERE username = ?"),
+        MARK_READ("UPDATE emails SET is_read = true, version = version + 1 WHERE email_id = ? AND to_user = ? AND NOT is_read");
+
+        final String sql;
+
+        Statement(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    private static final class Write {
+        final Statement statement;
+        final Object[] parameters;
+
+        Write(Statement statement, Object... parameters) {
+            this.statement = statement;
+            this.parameters = parameters;
+        }
+    }
+
+    // A dropped batch, which held the writes numbered after 'from'
+    private static final class FailedBatch {
+        final long from;
+        final SQLException error;
+
+        FailedBatch(long from, SQLException error) {
+            this.from = from;
+            this.error = error;
+        }
+    }
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 100;
+
+    private final DataSource dataSource;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final Thread flusher;
+
+    // Queued writes by the row they touch, in arrival order; guarded by this
+    private LinkedHashMap<String, Write> pending = new LinkedHashMap<>();
+    private long firstPendingNanos;
+    private long enqueued;
+    private long committed;
+    private long flushRequested;
+    // The latest dropped batch's error, until some caller has thrown it
+    private SQLException failure;
+    // Batches dropped while a flush was waiting, kept until no flush is
+    private final List<FailedBatch> failedBatches = new ArrayList<>();
+    private int waitingFlushes;
+    private boolean closed;
+
+    private long batches;
+    private long coalesced;
+
+    public SqlWriteBehind(DataSource dataSource, int maxBatchSize, Duration maxDelay) {
+        this.dataSource = dataSource;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.flusher = new Thread(this::runFlusher, "sql-write-behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public void addEmail(Email email) {
+        enqueue("email:" + email.getId(), new Write(Statement.INSERT_EMAIL,
+            email.getId(), email.getFromUser(), email.getToUser(), email.getSubject(), email.getContent(),
+            Timestamp.valueOf(email.getSentDate()), email.getStatus().name(), email.isRead()));
+    }
+
+    public void addAnswer(Answer answer) {
+        enqueue("answer:" + answer.getId(), new Write(Statement.INSERT_ANSWER,
+            answer.getId(), answer.getQuestionId(), answer.getContent(), answer.getAuthor(),
+            Timestamp.valueOf(answer.getCreatedAt()), answer.isAccepted()));
+    }
+
+    public void createSession(String token, String username, LocalDateTime createdAt, LocalDateTime expiresAt) {
+        enqueue("session:" + token, new Write(Statement.INSERT_SESSION,
+            token, Timestamp.valueOf(createdAt), Timestamp.valueOf(expiresAt), username));
+    }
+
+    public void markAsRead(int emailId, String username) {
+        enqueue("email:" + emailId, new Write(Statement.MARK_READ, emailId, username));
+    }
+
+    /**
+     * Blocks until every write queued before this call has been committed.
+     *
+     * @throws IllegalStateException if a batch holding any of those writes was dropped, or a
+     *     batch dropped earlier has not been reported yet
+     */
+    public void flush() {
+        synchronized (this) {
+            long target = enqueued;
+            int failedBefore = failedBatches.size();
+            flushRequested = Math.max(flushRequested, target);
+            notifyAll();
+            waitingFlushes++;
+            try {
+                while (committed < target && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                // Batches run in order, so any dropped since we started that began before our
+                // target held some of our writes
+                for (FailedBatch failed : failedBatches.subList(failedBefore, failedBatches.size())) {
+                    if (failed.from < target) {
+                        failure = null;
+                        throw new IllegalStateException("Queued database writes failed", failed.error);
+                    }
+                }
+            } finally {
+                if (--waitingFlushes == 0) {
+                    failedBatches.clear();
+                }
+            }
+            throwFailure();
+        }
+    }
+
+    /**
+     * Flushes what is queued and stops the background thread, even if the flush fails.
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the number of transactions committed so far.
+     */
+    public synchronized long getBatchCount() {
+        return batches;
+    }
+
+    /**
+     * Returns the number of writes that were folded into an earlier queued write.
+     */
+    public synchronized long getCoalescedCount() {
+        return coalesced;
+    }
+
+    private synchronized void enqueue(String row, Write write) {
+        if (closed) {
+            throw new IllegalStateException("Write-behind buffer is closed");
+        }
+        throwFailure();
+        while (pending.size() >= 4 * maxBatchSize && !closed) {
+            notifyAll();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        enqueued++;
+        Write queued = pending.get(row);
+        if (queued != null && merge(queued, write)) {
+            coalesced++;
+            return;
+        }
+        if (pending.isEmpty()) {
+            firstPendingNanos = System.nanoTime();
+        }
+        if (queued != null) {
+            // Not mergeable: keep both, the later one under its own key
+            row = row + "#" + enqueued;
+        }
+        pending.put(row, write);
+        if (pending.size() >= maxBatchSize) {
+            notifyAll();
+        }
+    }
+
+    // Folds 'write' into the queued write for the same row, if the two combine
+    private static boolean merge(Write queued, Write write) {
+        if (write.statement == Statement.MARK_READ) {
+            if (queued.statement == Statement.MARK_READ) {
+                // A receipt from someone else is a separate update, though only the recipient's applies
+                return queued.parameters[1].equals(write.parameters[1]);
+            }
+            if (queued.statement == Statement.INSERT_EMAIL) {
+                // Only the recipient can mark mail read
+                if (queued.parameters[2].equals(write.parameters[1])) {
+                    queued.parameters[7] = true;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void runFlusher() {
+        while (true) {
+            Collection<Write> batch;
+            long batchStart;
+            long batchEnd;
+            synchronized (this) {
+                while (!closed && !flushDue()) {
+                    try {
+                        if (pending.isEmpty()) {
+                            wait();
+                        } else {
+                            long remaining = firstPendingNanos + maxDelayNanos - System.nanoTime();
+                            wait(Math.max(1, remaining / 1_000_000));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    committed = enqueued;
+                    notifyAll();
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                batch = pending.values();
+                batchStart = committed;
+                batchEnd = enqueued;
+                pending = new LinkedHashMap<>();
+                notifyAll();
+            }
+
+            SQLException error = writeWithRetry(batch);
+            synchronized (this) {
+                committed = batchEnd;
+                if (error != null) {
+                    failure = error;
+                    if (waitingFlushes > 0) {
+                        failedBatches.add(new FailedBatch(batchStart, error));
+                    }
+                } else {
+                    batches++;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    // Caller holds the lock
+    private boolean flushDue() {
+        return pending.size() >= maxBatchSize ||
+            flushRequested > committed ||
+            (!pending.isEmpty() && System.nanoTime() - firstPendingNanos >= maxDelayNanos);
+    }
+
+    private SQLException writeWithRetry(Collection<Write> batch) {
+        SQLException error = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            error = write(batch);
+            if (error == null) {
+                return null;
+            }
+            if (attempt < MAX_ATTEMPTS) {
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS << (attempt - 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        System.err.println("Dropped " + batch.size() + " queued changes: " + error.getMessage());
+        return error;
+    }
+
+    private SQLException write(Collection<Write> batch) {
+        Map<Statement, List<Write>> byStatement = new EnumMap<>(Statement.class);
+        for (Write write : batch) {
+            byStatement.computeIfAbsent(write.statement, k -> new ArrayList<>()).add(write);
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                for (Map.Entry<Statement, List<Write>> entry : byStatement.entrySet()) {
+                    try (PreparedStatement statement = connection.prepareStatement(entry.getKey().sql)) {
+                        for (Write write : entry.getValue()) {
+                            for (int i = 0; i < write.parameters.length; i++) {
+                                statement.setObject(i + 1, write.parameters[i]);
+                            }
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                }
+                connection.commit();
+                return null;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            return e;
+        }
+    }
+
+    // Caller holds the lock
+    private void throwFailure() {
+        if (failure != null) {
+            SQLException e = failure;
+            failure = null;
+            throw new IllegalStateException("Queued database writes failed", e);
+        }
+    }
+}
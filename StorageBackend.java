@@ -0,0 +1,61 @@
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The user, session, mail and forum operations of {@link MemoryStorage}, as an interface so
+ * other implementations (sharded, replicated, cached) can stand in for the static store.
+ * Method contracts match the MemoryStorage methods of the same name.
+ *
+ * Questions, answers and emails carry a version that every change increments, except a
+ * question's status, which follows from its answers and leaves its version alone. The
+ * {@code ...IfVersion} methods apply their change only if the entity is still at the version
+ * the caller read, so two people editing the same post cannot silently overwrite each other.
+ */
+public interface StorageBackend {
+    // User Management
+    void addUser(String username, String password);
+    // Adds the user only if the name is free; returns false, changing nothing, if it is taken
+    boolean addUserIfAbsent(String username, String password);
+    boolean userExists(String username);
+    String getPassword(String username);
+
+    // Session Management
+    String createSession(String username);
+    void logout(String token);
+    String getUserFromSession(String token);
+
+    // Login Attempt Management
+    void incrementLoginAttempts(String username);
+    void resetLoginAttempts(String username);
+    boolean isLockedOut(String username);
+    long getLockoutTimeRemaining(String username);
+
+    // Email Management
+    // Both return the new email's id, or -1 if the sender's mailbox quota refuses it
+    int addEmail(String fromUser, String toUser, String subject, String content);
+    int saveDraft(String fromUser, String toUser, String subject, String content);
+    void sendDraft(int emailId);
+    List<Email> getInboxEmails(String username);
+    List<Email> getSentEmails(String username);
+    List<Email> getDrafts(String username);
+    void markAsRead(int emailId, String username);
+    void deleteEmail(int emailId, String username);
+
+    // Question Management
+    int addQuestion(String title, String content, String author);
+    List<Question> getQuestions();
+    Optional<Question> getQuestion(int questionId);
+    void updateQuestion(int questionId, String title, String content);
+    UpdateResult<Question> updateQuestionIfVersion(int questionId, int expectedVersion, String title, String content);
+    void deleteQuestion(int questionId);
+    List<Question> searchQuestions(String query);
+
+    // Answer Management
+    int addAnswer(int questionId, String content, String author);
+    List<Answer> getAnswersForQuestion(int questionId);
+    void updateAnswer(int answerId, String content);
+    UpdateResult<Answer> updateAnswerIfVersion(int answerId, int expectedVersion, String content);
+    void deleteAnswer(int answerId);
+    void acceptAnswer(int answerId, int questionId);
+    UpdateResult<Answer> acceptAnswerIfVersion(int answerId, int questionId, int expectedVersion);
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background task that physically removes soft-deleted emails once their retention period
+ * has passed, along with orphaned answers and expired lockouts. Once a minute it rewrites a
+ * cold email segment if one needs it, see {@link MemoryStorage#compactColdEmails}, and once
+ * an hour it deletes attachment files nothing refers to any more, see
+ * {@link MemoryStorage#sweepAttachments}.
+ *
+ * Work is done in short slices of {@link MemoryStorage#compactSlice}, each holding the
+ * storage lock for at most {@code sliceBudget}, so a pass over a large store never blocks the
+ * UI for longer than one slice.
+ */
+public class StorageCompactor {
+    private final Duration retention;
+    private final Duration interval;
+    private final Duration sliceBudget;
+    private final AtomicLong purged = new AtomicLong();
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param retention how long deleted emails are kept before they are purged
+     * @param interval pause between slices
+     * @param sliceBudget the longest a single slice may hold the storage lock
+     */
+    public StorageCompactor(Duration retention, Duration interval, Duration sliceBudget) {
+        this.retention = retention;
+        this.interval = interval;
+        this.sliceBudget = sliceBudget;
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "storage-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::runSlice, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::compactColdEmails, 1, 1, TimeUnit.MINUTES);
+        executor.scheduleWithFixedDelay(this::sweepAttachments, 1, 1, TimeUnit.HOURS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Runs one slice on the calling thread. Errors are logged rather than thrown, since an
+     * exception would stop the scheduled slices for good.
+     */
+    public void runSlice() {
+        try {
+            LocalDateTime deletedBefore = LocalDateTime.now().minus(retention);
+            purged.addAndGet(MemoryStorage.compactSlice(deletedBefore, sliceBudget.toNanos()));
+        } catch (RuntimeException e) {
+            System.err.println("Compaction slice failed: " + e);
+        }
+    }
+
+    /**
+     * Rewrites at most one cold email segment on the calling thread.
+     */
+    public void compactColdEmails() {
+        try {
+            purged.addAndGet(MemoryStorage.compactColdEmails(LocalDateTime.now().minus(retention)));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not compact cold emails: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs an attachment sweep on the calling thread.
+     */
+    public void sweepAttachments() {
+        try {
+            purged.addAndGet(MemoryStorage.sweepAttachments());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not sweep attachments: " + e.getMessage());
+        }
+    }
+
+    public long getPurgedCount() {
+        return purged.get();
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel: holds items until a wall-clock deadline and then hands them to a
+ * consumer, in batches, on the wheel's own thread.
+ *
+ * Time is counted in ticks. Level 0 has one slot per tick for the next 64 ticks, level 1 one
+ * slot per 64 ticks, and so on; an item goes into the level of the highest 6-bit group in
+ * which its deadline tick differs from the current tick. Scheduling and cancelling are O(1),
+ * and nothing ever scans the pending items: each tick empties one level-0 slot, and when a
+ * lower level wraps around, the next slot of the level above is moved down a level. An item
+ * is moved at most once per level.
+ *
+ * Items never fire before their deadline and fire within one tick after it while the thread
+ * keeps up. Deadlines already past fire on the next tick.
+ */
+public class TimingWheel<T> implements Closeable {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    // Enough 6-bit levels to cover any long tick
+    private static final int LEVELS = (Long.SIZE + BITS - 1) / BITS;
+    private static final int DUE = LEVELS * SLOTS;
+
+    /**
+     * A scheduled item, for {@link #cancel}.
+     */
+    public static final class Timeout<T> {
+        private final T item;
+        private final long deadlineTick;
+        // Index into 'buckets'; -1 once fired or cancelled
+        private int bucket = -1;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public T getItem() {
+            return item;
+        }
+    }
+
+    private final long tickMillis;
+    private final Consumer<List<T>> deliver;
+    private final Thread ticker;
+
+    // Slot lists of every level, then the list of items already due; guarded by this
+    private final Timeout<T>[] buckets;
+    private long currentTick;
+    private int size;
+    private boolean closed;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(String name, Duration tick, Consumer<List<T>> deliver) {
+        this.tickMillis = tick.toMillis();
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be at least a millisecond");
+        }
+        this.deliver = deliver;
+        this.buckets = (Timeout<T>[]) new Timeout[DUE + 1];
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+        this.ticker = new Thread(this::run, name);
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    /**
+     * Schedules {@code item} to be delivered once the clock reaches {@code deadlineMillis},
+     * in epoch millis.
+     */
+    public synchronized Timeout<T> schedule(T item, long deadlineMillis) {
+        if (closed) {
+            throw new IllegalStateException("Timing wheel is closed");
+        }
+        if (size == 0) {
+            // The wheel was idle and did not advance; start counting from now
+            currentTick = Math.max(currentTick, System.currentTimeMillis() / tickMillis);
+            notifyAll();
+        }
+        Timeout<T> timeout = new Timeout<>(item, Math.floorDiv(deadlineMillis + tickMillis - 1, tickMillis));
+        place(timeout);
+        size++;
+        if (timeout.bucket == DUE) {
+            notifyAll();
+        }
+        return timeout;
+    }
+
+    /**
+     * Cancels a scheduled item. Returns false if it has already fired or been cancelled.
+     */
+    public synchronized boolean cancel(Timeout<T> timeout) {
+        if (timeout.bucket < 0) {
+            return false;
+        }
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * Returns the number of items waiting to fire.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Stops the thread. Items still waiting are dropped.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            ticker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<T> fired = new ArrayList<>();
+            synchronized (this) {
+                while (!closed) {
+                    long now = System.currentTimeMillis();
+                    long nowTick = now / tickMillis;
+                    if (size == 0) {
+                        currentTick = Math.max(currentTick, nowTick);
+                        waitQuietly(0);
+                        continue;
+                    }
+                    drain(DUE, fired);
+                    while (currentTick < nowTick) {
+                        advance(fired);
+                    }
+                    if (!fired.isEmpty()) {
+                        break;
+                    }
+                    waitQuietly((nowTick + 1) * tickMillis - now);
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                deliver.accept(fired);
+            } catch (RuntimeException e) {
+                System.err.println("Could not deliver " + fired.size() + " scheduled items: " + e.getMessage());
+            }
+        }
+    }
+
+    // Caller holds the lock
+    private void advance(List<T> fired) {
+        currentTick++;
+        // Find the highest level that wrapped; refill from the top down, so items moved out of
+        // a higher slot can land in the lower slots that are about to be emptied
+        int top = 0;
+        while (top + 1 < LEVELS && (currentTick & ((1L << (BITS * (top + 1))) - 1)) == 0) {
+            top++;
+        }
+        for (int level = top; level >= 1; level--) {
+            int bucket = level * SLOTS + ((int) (currentTick >>> (BITS * level)) & MASK);
+            Timeout<T> timeout = buckets[bucket];
+            buckets[bucket] = null;
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                place(timeout);
+                timeout = next;
+            }
+        }
+        drain((int) currentTick & MASK, fired);
+        drain(DUE, fired);
+    }
+
+    // Links the timeout into the bucket for its deadline; caller holds the lock
+    private void place(Timeout<T> timeout) {
+        int bucket;
+        if (timeout.deadlineTick <= currentTick) {
+            bucket = DUE;
+        } else {
+            long diff = timeout.deadlineTick ^ currentTick;
+            int level = (Long.SIZE - 1 - Long.numberOfLeadingZeros(diff)) / BITS;
+            bucket = level * SLOTS + ((int) (timeout.deadlineTick >>> (BITS * level)) & MASK);
+        }
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+    }
+
+    // Caller holds the lock
+    private void unlink(Timeout<T> timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.bucket = -1;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    // Caller holds the lock
+    private void drain(int bucket, List<T> fired) {
+        Timeout<T> timeout = buckets[bucket];
+        buckets[bucket] = null;
+        while (timeout != null) {
+            Timeout<T> next = timeout.next;
+            timeout.bucket = -1;
+            timeout.prev = null;
+            timeout.next = null;
+            fired.add(timeout.item);
+            size--;
+            timeout = next;
+        }
+    }
+
+    // Caller holds the lock
+    private void waitQuietly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            closed = true;
+        }
+    }
+}
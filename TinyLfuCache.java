@@ -0,0 +1,241 @@
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Size-bounded cache with W-TinyLFU eviction: a small LRU admission window in front of a
+ * segmented LRU main area, with a frequency sketch deciding which entries are worth keeping.
+ *
+ * New entries land in the window, which holds 1% of the capacity. When the window overflows
+ * its oldest entry competes with the main area's next victim, and only the one that has been
+ * asked for more often (by the sketch's estimate) stays, so one-off lookups cannot flush out
+ * popular entries. In the main area an entry starts on probation and is promoted to the
+ * protected segment (80% of the main area) on its next hit.
+ *
+ * The sketch is a count-min sketch of 4-bit counters, four per key, that are halved once the
+ * number of recorded accesses reaches ten times the capacity, so old popularity fades.
+ *
+ * Not thread-safe.
+ */
+public class TinyLfuCache<K, V> {
+    private final int windowMax;
+    private final int mainMax;
+    private final int protectedMax;
+
+    // All three in access order, least recently used first
+    private final LinkedHashMap<K, V> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, V> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, V> protectedArea = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    public TinyLfuCache(int maximumSize) {
+        if (maximumSize < 2) {
+            throw new IllegalArgumentException("maximumSize must be at least 2");
+        }
+        this.windowMax = Math.max(1, maximumSize / 100);
+        this.mainMax = maximumSize - windowMax;
+        this.protectedMax = mainMax * 8 / 10;
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * Returns the cached value, or null on a miss. Either way the access counts towards the
+     * key's popularity.
+     */
+    public V get(K key) {
+        sketch.increment(key);
+        V value = window.get(key);
+        if (value == null) {
+            value = protectedArea.get(key);
+        }
+        if (value == null) {
+            value = probation.remove(key);
+            if (value != null) {
+                promote(key, value);
+            }
+        }
+        if (value != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        if (window.containsKey(key)) {
+            window.put(key, value);
+        } else if (protectedArea.containsKey(key)) {
+            protectedArea.put(key, value);
+        } else if (probation.remove(key) != null) {
+            promote(key, value);
+        } else {
+            window.put(key, value);
+            if (window.size() > windowMax) {
+                admit(evictEldest(window));
+            }
+        }
+    }
+
+    public void invalidate(K key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedArea.remove(key);
+        }
+    }
+
+    /**
+     * Removes every entry matching {@code predicate}.
+     */
+    public void invalidateIf(BiPredicate<? super K, ? super V> predicate) {
+        window.entrySet().removeIf(e -> predicate.test(e.getKey(), e.getValue()));
+        probation.entrySet().removeIf(e -> predicate.test(e.getKey(), e.getValue()));
+        protectedArea.entrySet().removeIf(e -> predicate.test(e.getKey(), e.getValue()));
+    }
+
+    /**
+     * Visits every entry without counting as an access.
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        window.forEach(action);
+        probation.forEach(action);
+        protectedArea.forEach(action);
+    }
+
+    public void clear() {
+        window.clear();
+        probation.clear();
+        protectedArea.clear();
+    }
+
+    public int size() {
+        return window.size() + probation.size() + protectedArea.size();
+    }
+
+    public long getHitCount() {
+        return hits;
+    }
+
+    public long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of entries dropped for space, including candidates the admission
+     * filter turned away.
+     */
+    public long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of window entries that lost to the main area's victim.
+     */
+    public long getRejectionCount() {
+        return rejections;
+    }
+
+    private void promote(K key, V value) {
+        protectedArea.put(key, value);
+        if (protectedArea.size() > protectedMax) {
+            Map.Entry<K, V> demoted = evictEldest(protectedArea);
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    // Moves a candidate leaving the window into the main area if it beats the main area's victim
+    private void admit(Map.Entry<K, V> candidate) {
+        if (probation.size() + protectedArea.size() < mainMax) {
+            probation.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+        LinkedHashMap<K, V> victimArea = probation.isEmpty() ? protectedArea : probation;
+        K victim = victimArea.keySet().iterator().next();
+        evictions++;
+        if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim)) {
+            victimArea.remove(victim);
+            probation.put(candidate.getKey(), candidate.getValue());
+        } else {
+            rejections++;
+        }
+    }
+
+    private static <K, V> Map.Entry<K, V> evictEldest(LinkedHashMap<K, V> area) {
+        Iterator<Map.Entry<K, V>> it = area.entrySet().iterator();
+        Map.Entry<K, V> eldest = it.next();
+        Map.Entry<K, V> copy = Map.entry(eldest.getKey(), eldest.getValue());
+        it.remove();
+        return copy;
+    }
+
+    // Count-min sketch of 4-bit counters, sixteen to a long
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private static final long HALF_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maximumSize) {
+            int width = Integer.highestOneBit(Math.max(16, maximumSize - 1)) << 1;
+            table = new long[width];
+            sampleSize = 10 * maximumSize;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int shift = counterShift(hash, i);
+                if (((table[index] >>> shift) & 15) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                halve();
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                frequency = Math.min(frequency, (int) ((table[indexOf(hash, i)] >>> counterShift(hash, i)) & 15));
+            }
+            return frequency;
+        }
+
+        private void halve() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & HALF_MASK;
+            }
+            additions /= 2;
+        }
+
+        private int indexOf(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int) h & (table.length - 1);
+        }
+
+        // Each row uses its own four of the sixteen counters in a slot
+        private static int counterShift(int hash, int row) {
+            return ((row << 2) + ((hash >>> (row << 3)) & 3)) << 2;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
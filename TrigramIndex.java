@@ -0,0 +1,181 @@
+import java.util.*;
+
+/**
+ * Typo-tolerant word index for question titles and bodies.
+ *
+ * Every distinct word is broken into trigrams (with ^ and $ marking its ends). A query word
+ * only has to be compared against vocabulary words that share enough trigrams with it, and
+ * those candidates are then verified with a bounded edit distance. Each edit can destroy at
+ * most three trigrams, which gives the candidate threshold.
+ */
+public class TrigramIndex {
+    private static final int TITLE_WEIGHT = 3;
+    private static final int BODY_WEIGHT = 1;
+
+    // word -> (question id -> weight of the word in that question)
+    private final Map<String, Map<Integer, Integer>> postings = new HashMap<>();
+    // trigram -> vocabulary words containing it
+    private final Map<String, Set<String>> trigrams = new HashMap<>();
+    // question id -> words indexed for it, so removal does not need the old text
+    private final Map<Integer, Set<String>> questionWords = new HashMap<>();
+
+    public void add(int questionId, String title, String content) {
+        Map<String, Integer> weights = new HashMap<>();
+        for (String word : tokenize(title)) {
+            weights.merge(word, TITLE_WEIGHT, Integer::sum);
+        }
+        for (String word : tokenize(content)) {
+            weights.merge(word, BODY_WEIGHT, Integer::sum);
+        }
+
+        for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+            String word = entry.getKey();
+            Map<Integer, Integer> posting = postings.get(word);
+            if (posting == null) {
+                posting = new HashMap<>();
+                postings.put(word, posting);
+                for (String trigram : trigramsOf(word)) {
+                    trigrams.computeIfAbsent(trigram, k -> new HashSet<>()).add(word);
+                }
+            }
+            posting.put(questionId, entry.getValue());
+        }
+        questionWords.put(questionId, weights.keySet());
+    }
+
+    public void remove(int questionId) {
+        Set<String> words = questionWords.remove(questionId);
+        if (words == null) {
+            return;
+        }
+        for (String word : words) {
+            Map<Integer, Integer> posting = postings.get(word);
+            posting.remove(questionId);
+            if (posting.isEmpty()) {
+                postings.remove(word);
+                for (String trigram : trigramsOf(word)) {
+                    Set<String> vocabulary = trigrams.get(trigram);
+                    vocabulary.remove(word);
+                    if (vocabulary.isEmpty()) {
+                        trigrams.remove(trigram);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of up to {@code limit} questions containing words close to the query
+     * words, best match first.
+     */
+    public List<Integer> search(String query, int limit) {
+        Map<Integer, Double> scores = new HashMap<>();
+        for (String term : tokenize(query)) {
+            // Best similarity of this term per question, so one term cannot count twice
+            Map<Integer, Double> termScores = new HashMap<>();
+            int maxDistance = term.length() <= 4 ? 1 : 2;
+
+            for (String word : candidates(term, maxDistance)) {
+                int distance = editDistance(term, word, maxDistance);
+                if (distance > maxDistance) {
+                    continue;
+                }
+                double similarity = 1.0 - (double) distance / (maxDistance + 1);
+                for (Map.Entry<Integer, Integer> posting : postings.get(word).entrySet()) {
+                    termScores.merge(posting.getKey(), similarity * posting.getValue(), Math::max);
+                }
+            }
+            termScores.forEach((id, score) -> scores.merge(id, score, Double::sum));
+        }
+
+        List<Integer> result = new ArrayList<>(scores.keySet());
+        result.sort((a, b) -> {
+            int byScore = Double.compare(scores.get(b), scores.get(a));
+            return byScore != 0 ? byScore : Integer.compare(b, a);
+        });
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    private List<String> candidates(String term, int maxDistance) {
+        Set<String> grams = trigramsOf(term);
+        int required = Math.max(1, grams.size() - 3 * maxDistance);
+
+        Map<String, Integer> shared = new HashMap<>();
+        for (String gram : grams) {
+            Set<String> words = trigrams.get(gram);
+            if (words != null) {
+                for (String word : words) {
+                    if (Math.abs(word.length() - term.length()) <= maxDistance) {
+                        shared.merge(word, 1, Integer::sum);
+                    }
+                }
+            }
+        }
+
+        List<String> result = new ArrayList<>();
+        shared.forEach((word, count) -> {
+            if (count >= required) {
+                result.add(word);
+            }
+        });
+        return result;
+    }
+
+    // Levenshtein distance, giving up with max + 1 as soon as it must exceed max. Only the
+    // cells within max of the diagonal are computed: any path through a cell further out
+    // already costs more than max, so cells outside the band count as max + 1.
+    static int editDistance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) {
+            return max + 1;
+        }
+        int over = max + 1;
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = Math.min(j, over);
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            int from = Math.max(1, i - max);
+            int to = Math.min(b.length(), i + max);
+            // The cell left of the band is outside it, except in column 0 near the top
+            current[from - 1] = from == 1 ? Math.min(i, over) : over;
+            int rowMin = current[from - 1];
+            for (int j = from; j <= to; j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                // previous[j] is outside the previous row's band when j = i + max
+                int up = j <= i - 1 + max ? previous[j] : over;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, up + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[b.length()], max + 1);
+    }
+
+    private static Set<String> trigramsOf(String word) {
+        String padded = "^" + word + "$";
+        Set<String> result = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            result.add(padded.substring(i, i + 3));
+        }
+        return result;
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{Nd}]+")) {
+            if (word.length() >= 3) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+}
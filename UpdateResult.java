@@ -0,0 +1,37 @@
+/**
+ * Outcome of a conditional update: the change is applied only if the entity still has the
+ * version the caller read. On a conflict nothing is changed and {@link #current} holds the
+ * entity as it is now, so the caller can show it and let the user decide again.
+ */
+public class UpdateResult<T> {
+    public enum Status { UPDATED, CONFLICT, NOT_FOUND }
+
+    public final Status status;
+    // The entity after the update, or as it now is on a conflict; null if not found
+    public final T current;
+
+    private UpdateResult(Status status, T current) {
+        this.status = status;
+        this.current = current;
+    }
+
+    public static <T> UpdateResult<T> updated(T current) {
+        return new UpdateResult<>(Status.UPDATED, current);
+    }
+
+    public static <T> UpdateResult<T> conflict(T current) {
+        return new UpdateResult<>(Status.CONFLICT, current);
+    }
+
+    public static <T> UpdateResult<T> notFound() {
+        return new UpdateResult<>(Status.NOT_FOUND, null);
+    }
+
+    public boolean isUpdated() {
+        return status == Status.UPDATED;
+    }
+
+    public boolean isConflict() {
+        return status == Status.CONFLICT;
+    }
+}
@@ -0,0 +1,622 @@
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A multi-version {@link StorageBackend}: all data lives in one immutable {@link State} made
+ * of {@link PersistentMap}s, and every change publishes a new State.
+ *
+ * Readers take no lock. They read the current State once and work on it, so a read is a
+ * consistent point-in-time view: a search never sees half of an {@code acceptAnswer} or of a
+ * {@code deleteQuestion} cascade, and a reader that takes as long as it likes never holds up
+ * a writer. Callers that need several reads to agree with each other, such as a screen
+ * showing a question and its answers or a mailbox export, take a {@link #snapshot()} and read
+ * from that.
+ *
+ * Writers are serialized on this object. Each builds the next State from the current one,
+ * copying only the tree paths and entities it changes, and publishes it with a single
+ * volatile write. Entities are never modified once published; readers get copies. A changed
+ * entity is published as a new copy with its own version incremented.
+ *
+ * For now only LoadGenerator runs on this backend ({@code --backend=versioned}). The Swing UI
+ * still calls MemoryStorage directly, because it also needs attachments, mailbox quotas,
+ * scheduled sends and the search indexes, none of which are part of StorageBackend yet.
+ */
+public class VersionedStorage implements StorageBackend {
+    private static final Comparator<Email> NEWEST_FIRST =
+        (e1, e2) -> e2.getSentDate().compareTo(e1.getSentDate());
+
+    // Never modified once published
+    private static final class State {
+        long version;
+        PersistentMap<String, String> users = PersistentMap.empty();
+        PersistentMap<String, String> sessions = PersistentMap.empty();
+        PersistentMap<String, Integer> loginAttempts = PersistentMap.empty();
+        PersistentMap<String, LocalDateTime> lockouts = PersistentMap.empty();
+
+        PersistentMap<Integer, Email> emails = PersistentMap.empty();
+        // Email ids by recipient and by author
+        PersistentMap<String, PersistentMap<Integer, Boolean>> received = PersistentMap.empty();
+        PersistentMap<String, PersistentMap<Integer, Boolean>> authored = PersistentMap.empty();
+
+        PersistentMap<Integer, Question> questions = PersistentMap.empty();
+        PersistentMap<Integer, Answer> answers = PersistentMap.empty();
+        PersistentMap<Integer, PersistentMap<Integer, Boolean>> answersByQuestion = PersistentMap.empty();
+
+        int nextEmailId = 1;
+        int nextQuestionId = 1;
+        int nextAnswerId = 1;
+
+        State next() {
+            State next = new State();
+            next.version = version + 1;
+            next.users = users;
+            next.sessions = sessions;
+            next.loginAttempts = loginAttempts;
+            next.lockouts = lockouts;
+            next.emails = emails;
+            next.received = received;
+            next.authored = authored;
+            next.questions = questions;
+            next.answers = answers;
+            next.answersByQuestion = answersByQuestion;
+            next.nextEmailId = nextEmailId;
+            next.nextQuestionId = nextQuestionId;
+            next.nextAnswerId = nextAnswerId;
+            return next;
+        }
+
+        void putEmail(Email email) {
+            emails = emails.plus(email.getId(), email);
+            received = link(received, email.getToUser(), email.getId());
+            authored = link(authored, email.getFromUser(), email.getId());
+        }
+
+        void putAnswer(Answer answer) {
+            answers = answers.plus(answer.getId(), answer);
+            answersByQuestion = link(answersByQuestion, answer.getQuestionId(), answer.getId());
+        }
+
+        void removeAnswer(Answer answer) {
+            answers = answers.minus(answer.getId());
+            PersistentMap<Integer, Boolean> ids = answersByQuestion.get(answer.getQuestionId()).minus(answer.getId());
+            answersByQuestion = ids.isEmpty()
+                ? answersByQuestion.minus(answer.getQuestionId())
+                : answersByQuestion.plus(answer.getQuestionId(), ids);
+        }
+
+        void setQuestionStatus(int questionId, String status) {
+            Question q = questions.get(questionId);
+            if (q != null && !status.equals(q.getStatus())) {
+                // Derived from the answers, so it keeps the question's version
+                Question updated = copy(q);
+                updated.setStatus(status);
+                questions = questions.plus(questionId, updated);
+            }
+        }
+
+        private static <K extends Comparable<? super K>> PersistentMap<K, PersistentMap<Integer, Boolean>> link(
+                PersistentMap<K, PersistentMap<Integer, Boolean>> index, K key, int id) {
+            return index.plus(key, index.getOrDefault(key, PersistentMap.empty()).plus(id, true));
+        }
+    }
+
+    private volatile State state = new State();
+
+    /**
+     * Returns a consistent read-only view of the store as it is now.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(state);
+    }
+
+    /**
+     * Returns the number of changes published so far.
+     */
+    public long getVersion() {
+        return state.version;
+    }
+
+    // Applies 'change' to a copy of the current state and publishes it
+    private synchronized <T> T write(Function<State, T> change) {
+        State next = state.next();
+        T result = change.apply(next);
+        state = next;
+        return result;
+    }
+
+    private void update(Consumer<State> change) {
+        write(s -> {
+            change.accept(s);
+            return null;
+        });
+    }
+
+    /**
+     * A point-in-time view of the store. Every read from one snapshot sees the same version,
+     * however long ago it was taken and whatever has been written since.
+     */
+    public static final class Snapshot {
+        private final State state;
+
+        private Snapshot(State state) {
+            this.state = state;
+        }
+
+        public long getVersion() {
+            return state.version;
+        }
+
+        public boolean userExists(String username) {
+            return state.users.containsKey(username);
+        }
+
+        public String getPassword(String username) {
+            return state.users.get(username);
+        }
+
+        public List<Email> getInboxEmails(String username) {
+            return mailbox(state.received, username, e -> e.getStatus() != Email.EmailStatus.DELETED);
+        }
+
+        public List<Email> getSentEmails(String username) {
+            return mailbox(state.authored, username, e -> e.getStatus() == Email.EmailStatus.SENT);
+        }
+
+        public List<Email> getDrafts(String username) {
+            return mailbox(state.authored, username, e -> e.getStatus() == Email.EmailStatus.DRAFT);
+        }
+
+        /**
+         * Visits every email, e.g. for an export, in id order.
+         */
+        public void forEachEmail(Consumer<Email> action) {
+            state.emails.forEach((id, e) -> action.accept(copy(e)));
+        }
+
+        public List<Question> getQuestions() {
+            List<Question> result = new ArrayList<>(state.questions.size());
+            state.questions.forEach((id, q) -> result.add(copy(q)));
+            return result;
+        }
+
+        public Optional<Question> getQuestion(int questionId) {
+            return Optional.ofNullable(state.questions.get(questionId)).map(VersionedStorage::copy);
+        }
+
+        public List<Question> searchQuestions(String query) {
+            if (query == null || query.trim().isEmpty()) {
+                return getQuestions();
+            }
+            String searchQuery = query.toLowerCase().trim();
+            List<Question> result = new ArrayList<>();
+            state.questions.forEach((id, q) -> {
+                if (q.getTitle().toLowerCase().contains(searchQuery) ||
+                    q.getContent().toLowerCase().contains(searchQuery) ||
+                    q.getAuthor().toLowerCase().contains(searchQuery)) {
+                    result.add(copy(q));
+                }
+            });
+            return result;
+        }
+
+        public List<Answer> getAnswersForQuestion(int questionId) {
+            List<Answer> result = new ArrayList<>();
+            state.answersByQuestion.getOrDefault(questionId, PersistentMap.empty())
+                .forEach((id, present) -> result.add(copy(state.answers.get(id))));
+            result.sort((a1, a2) -> {
+                // Show accepted answer first, then sort by date
+                if (a1.isAccepted() && !a2.isAccepted()) return -1;
+                if (!a1.isAccepted() && a2.isAccepted()) return 1;
+                return a2.getCreatedAt().compareTo(a1.getCreatedAt());
+            });
+            return result;
+        }
+
+        private List<Email> mailbox(PersistentMap<String, PersistentMap<Integer, Boolean>> index, String username,
+                                    Predicate<Email> filter) {
+            List<Email> result = new ArrayList<>();
+            index.getOrDefault(username, PersistentMap.empty()).forEach((id, present) -> {
+                Email e = state.emails.get(id);
+                if (filter.test(e)) {
+                    result.add(copy(e));
+                }
+            });
+            result.sort(NEWEST_FIRST);
+            return result;
+        }
+    }
+
+    // User Management
+    @Override
+    public void addUser(String username, String password) {
+        update(s -> {
+            s.users = s.users.plus(username, password);
+            s.putEmail(newEmail(s, "system@forum.com", username, "Welcome to the Forum",
+                "Welcome to our forum system! Feel free to ask questions and help others.", Email.EmailStatus.SENT));
+        });
+    }
+
+    // Synchronized with write, so nobody can publish the same name between the check and it
+    @Override
+    public synchronized boolean addUserIfAbsent(String username, String password) {
+        if (state.users.containsKey(username)) {
+            return false;
+        }
+        addUser(username, password);
+        return true;
+    }
+
+    @Override
+    public boolean userExists(String username) {
+        return state.users.containsKey(username);
+    }
+
+    @Override
+    public String getPassword(String username) {
+        return state.users.get(username);
+    }
+
+    // Session Management
+    @Override
+    public String createSession(String username) {
+        String token = UUID.randomUUID().toString();
+        update(s -> s.sessions = s.sessions.plus(token, username));
+        return token;
+    }
+
+    @Override
+    public void logout(String token) {
+        update(s -> s.sessions = s.sessions.minus(token));
+    }
+
+    @Override
+    public String getUserFromSession(String token) {
+        return state.sessions.get(token);
+    }
+
+    // Login Attempt Management
+    @Override
+    public void incrementLoginAttempts(String username) {
+        update(s -> {
+            int attempts = s.loginAttempts.getOrDefault(username, 0) + 1;
+            s.loginAttempts = s.loginAttempts.plus(username, attempts);
+            if (attempts >= 5) {
+                s.lockouts = s.lockouts.plus(username, LocalDateTime.now().plusMinutes(15));
+            }
+        });
+    }
+
+    @Override
+    public void resetLoginAttempts(String username) {
+        update(s -> {
+            s.loginAttempts = s.loginAttempts.minus(username);
+            s.lockouts = s.lockouts.minus(username);
+        });
+    }
+
+    @Override
+    public boolean isLockedOut(String username) {
+        LocalDateTime lockoutTime = state.lockouts.get(username);
+        return lockoutTime != null && lockoutTime.isAfter(LocalDateTime.now());
+    }
+
+    @Override
+    public long getLockoutTimeRemaining(String username) {
+        LocalDateTime lockoutTime = state.lockouts.get(username);
+        if (lockoutTime == null || lockoutTime.isBefore(LocalDateTime.now())) {
+            return 0;
+        }
+        return ChronoUnit.MINUTES.between(LocalDateTime.now(), lockoutTime);
+    }
+
+    // Email Management
+    @Override
+    public int addEmail(String fromUser, String toUser, String subject, String content) {
+        return write(s -> {
+            Email email = newEmail(s, fromUser, toUser, subject, content, Email.EmailStatus.SENT);
+            s.putEmail(email);
+            return email.getId();
+        });
+    }
+
+    @Override
+    public int saveDraft(String fromUser, String toUser, String subject, String content) {
+        return write(s -> {
+            Email email = newEmail(s, fromUser, toUser != null ? toUser : "", subject != null ? subject : "",
+                content != null ? content : "", Email.EmailStatus.DRAFT);
+            s.putEmail(email);
+            return email.getId();
+        });
+    }
+
+    private static Email newEmail(State s, String fromUser, String toUser, String subject, String content,
+                                  Email.EmailStatus status) {
+        Email email = new Email();
+        email.setId(s.nextEmailId++);
+        email.setFromUser(fromUser);
+        email.setToUser(toUser);
+        email.setSubject(subject);
+        email.setContent(content);
+        email.setSentDate(LocalDateTime.now());
+        email.setStatus(status);
+        email.setRead(false);
+        return email;
+    }
+
+    @Override
+    public void sendDraft(int emailId) {
+        update(s -> {
+            Email draft = s.emails.get(emailId);
+            // Only send if recipient and subject are specified
+            if (draft != null && draft.getStatus() == Email.EmailStatus.DRAFT &&
+                !draft.getToUser().trim().isEmpty() && !draft.getSubject().trim().isEmpty()) {
+                Email sent = revise(draft);
+                sent.setStatus(Email.EmailStatus.SENT);
+                sent.setSentDate(LocalDateTime.now());
+                s.putEmail(sent);
+            }
+        });
+    }
+
+    @Override
+    public List<Email> getInboxEmails(String username) {
+        return snapshot().getInboxEmails(username);
+    }
+
+    @Override
+    public List<Email> getSentEmails(String username) {
+        return snapshot().getSentEmails(username);
+    }
+
+    @Override
+    public List<Email> getDrafts(String username) {
+        return snapshot().getDrafts(username);
+    }
+
+    @Override
+    public void markAsRead(int emailId, String username) {
+        update(s -> {
+            Email e = s.emails.get(emailId);
+            if (e != null && e.getToUser().equals(username) && !e.isRead()) {
+                Email read = revise(e);
+                read.setRead(true);
+                s.emails = s.emails.plus(emailId, read);
+            }
+        });
+    }
+
+    @Override
+    public void deleteEmail(int emailId, String username) {
+        update(s -> {
+            Email e = s.emails.get(emailId);
+            if (e != null && (e.getFromUser().equals(username) || e.getToUser().equals(username))) {
+                Email deleted = revise(e);
+                deleted.setStatus(Email.EmailStatus.DELETED);
+                deleted.setDeletedAt(LocalDateTime.now());
+                s.emails = s.emails.plus(emailId, deleted);
+            }
+        });
+    }
+
+    // Question Management
+    @Override
+    public int addQuestion(String title, String content, String author) {
+        return write(s -> {
+            Question question = new Question(s.nextQuestionId++, title, content, author, LocalDateTime.now(), "OPEN");
+            s.questions = s.questions.plus(question.getId(), question);
+            return question.getId();
+        });
+    }
+
+    @Override
+    public List<Question> getQuestions() {
+        return snapshot().getQuestions();
+    }
+
+    @Override
+    public Optional<Question> getQuestion(int questionId) {
+        return snapshot().getQuestion(questionId);
+    }
+
+    @Override
+    public void updateQuestion(int questionId, String title, String content) {
+        update(s -> {
+            Question q = s.questions.get(questionId);
+            if (q != null) {
+                Question updated = revise(q);
+                updated.setTitle(title);
+                updated.setContent(content);
+                s.questions = s.questions.plus(questionId, updated);
+            }
+        });
+    }
+
+    @Override
+    public UpdateResult<Question> updateQuestionIfVersion(int questionId, int expectedVersion, String title, String content) {
+        return write(s -> {
+            Question q = s.questions.get(questionId);
+            if (q == null) {
+                return UpdateResult.notFound();
+            }
+            if (q.getVersion() != expectedVersion) {
+                return UpdateResult.conflict(copy(q));
+            }
+            Question updated = revise(q);
+            updated.setTitle(title);
+            updated.setContent(content);
+            s.questions = s.questions.plus(questionId, updated);
+            return UpdateResult.updated(copy(updated));
+        });
+    }
+
+    @Override
+    public void deleteQuestion(int questionId) {
+        update(s -> {
+            if (!s.questions.containsKey(questionId)) {
+                return;
+            }
+            s.questions = s.questions.minus(questionId);
+            // Also remove all associated answers, in the same version
+            s.answersByQuestion.getOrDefault(questionId, PersistentMap.empty())
+                .forEach((answerId, present) -> s.answers = s.answers.minus(answerId));
+            s.answersByQuestion = s.answersByQuestion.minus(questionId);
+        });
+    }
+
+    @Override
+    public List<Question> searchQuestions(String query) {
+        return snapshot().searchQuestions(query);
+    }
+
+    // Answer Management
+    @Override
+    public int addAnswer(int questionId, String content, String author) {
+        return write(s -> {
+            Answer answer = new Answer(s.nextAnswerId++, questionId, content, author, LocalDateTime.now(), false);
+            s.putAnswer(answer);
+            // Update question status when first answer is added
+            Question q = s.questions.get(questionId);
+            if (q != null && "OPEN".equals(q.getStatus())) {
+                s.setQuestionStatus(questionId, "IN_PROGRESS");
+            }
+            return answer.getId();
+        });
+    }
+
+    @Override
+    public List<Answer> getAnswersForQuestion(int questionId) {
+        return snapshot().getAnswersForQuestion(questionId);
+    }
+
+    @Override
+    public void updateAnswer(int answerId, String content) {
+        update(s -> {
+            Answer a = s.answers.get(answerId);
+            if (a != null) {
+                Answer updated = revise(a);
+                updated.setContent(content);
+                s.answers = s.answers.plus(answerId, updated);
+            }
+        });
+    }
+
+    @Override
+    public UpdateResult<Answer> updateAnswerIfVersion(int answerId, int expectedVersion, String content) {
+        return write(s -> {
+            Answer a = s.answers.get(answerId);
+            if (a == null) {
+                return UpdateResult.notFound();
+            }
+            if (a.getVersion() != expectedVersion) {
+                return UpdateResult.conflict(copy(a));
+            }
+            Answer updated = revise(a);
+            updated.setContent(content);
+            s.answers = s.answers.plus(answerId, updated);
+            return UpdateResult.updated(copy(updated));
+        });
+    }
+
+    @Override
+    public void deleteAnswer(int answerId) {
+        update(s -> {
+            Answer answer = s.answers.get(answerId);
+            if (answer == null) {
+                return;
+            }
+            s.removeAnswer(answer);
+            // If this was the accepted answer or the last answer, update question status
+            if (!s.answersByQuestion.containsKey(answer.getQuestionId()) || answer.isAccepted()) {
+                s.setQuestionStatus(answer.getQuestionId(), "OPEN");
+            }
+        });
+    }
+
+    @Override
+    public void acceptAnswer(int answerId, int questionId) {
+        update(s -> {
+            Answer accepted = s.answers.get(answerId);
+            if (accepted != null && accepted.getQuestionId() == questionId) {
+                accept(s, answerId, questionId);
+            }
+        });
+    }
+
+    @Override
+    public UpdateResult<Answer> acceptAnswerIfVersion(int answerId, int questionId, int expectedVersion) {
+        return write(s -> {
+            Answer accepted = s.answers.get(answerId);
+            if (accepted == null || accepted.getQuestionId() != questionId) {
+                return UpdateResult.notFound();
+            }
+            if (accepted.getVersion() != expectedVersion) {
+                return UpdateResult.conflict(copy(accepted));
+            }
+            accept(s, answerId, questionId);
+            return UpdateResult.updated(copy(s.answers.get(answerId)));
+        });
+    }
+
+    // Unaccepts the previous answer and accepts the new one in one version
+    private static void accept(State s, int answerId, int questionId) {
+        s.answersByQuestion.get(questionId).forEach((id, present) -> {
+            Answer a = s.answers.get(id);
+            if (a.isAccepted() != (id == answerId)) {
+                Answer updated = revise(a);
+                updated.setAccepted(id == answerId);
+                s.answers = s.answers.plus(id, updated);
+            }
+        });
+        s.setQuestionStatus(questionId, "ANSWERED");
+    }
+
+    private static Email copy(Email e) {
+        Email copy = new Email();
+        copy.setId(e.getId());
+        copy.setFromUser(e.getFromUser());
+        copy.setToUser(e.getToUser());
+        copy.setSubject(e.getSubject());
+        copy.setContent(e.getContent());
+        copy.setSentDate(e.getSentDate());
+        copy.setStatus(e.getStatus());
+        copy.setRead(e.isRead());
+        copy.setDeletedAt(e.getDeletedAt());
+        copy.setVersion(e.getVersion());
+        return copy;
+    }
+
+    private static Question copy(Question q) {
+        Question copy = new Question(q.getId(), q.getTitle(), q.getContent(), q.getAuthor(), q.getCreatedAt(), q.getStatus());
+        copy.setVersion(q.getVersion());
+        return copy;
+    }
+
+    private static Answer copy(Answer a) {
+        Answer copy = new Answer(a.getId(), a.getQuestionId(), a.getContent(), a.getAuthor(), a.getCreatedAt(), a.isAccepted());
+        copy.setVersion(a.getVersion());
+        return copy;
+    }
+
+    // A copy to publish in place of 'e', one version on
+    private static Email revise(Email e) {
+        Email revised = copy(e);
+        revised.incrementVersion();
+        return revised;
+    }
+
+    private static Question revise(Question q) {
+        Question revised = copy(q);
+        revised.incrementVersion();
+        return revised;
+    }
+
+    private static Answer revise(Answer a) {
+        Answer revised = copy(a);
+        revised.incrementVersion();
+        return revised;
+    }
+}
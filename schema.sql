@@ -28,7 +28,44 @@ CREATE TABLE emails (
     content TEXT NOT NULL,
     sent_date TIMESTAMP NOT NULL,
     status VARCHAR(20) NOT NULL CHECK (status IN ('SENT', 'DRAFT', 'DELETED')),
-    is_read BOOLEAN DEFAULT false
+    is_read BOOLEAN DEFAULT false,
+    -- When a draft is due to be sent automatically
+    scheduled_at TIMESTAMP,
+    -- Incremented by every update, for optimistic concurrency control
+    version INTEGER NOT NULL DEFAULT 1
+);
+
+-- Files attached to emails; the bytes live in the attachment store, named by their SHA-256,
+-- so a file attached many times is stored once
+CREATE TABLE email_attachments (
+    email_id INTEGER NOT NULL REFERENCES emails(email_id),
+    position INTEGER NOT NULL,
+    sha256 CHAR(64) NOT NULL,
+    file_name VARCHAR(255) NOT NULL,
+    size BIGINT NOT NULL,
+    PRIMARY KEY (email_id, position)
+);
+
+-- Create questions table
+CREATE TABLE questions (
+    question_id SERIAL PRIMARY KEY,
+    title VARCHAR(255) NOT NULL,
+    content TEXT NOT NULL,
+    author VARCHAR(30) NOT NULL REFERENCES users(username),
+    created_at TIMESTAMP NOT NULL,
+    status VARCHAR(20) NOT NULL DEFAULT 'OPEN' CHECK (status IN ('OPEN', 'IN_PROGRESS', 'ANSWERED')),
+    version INTEGER NOT NULL DEFAULT 1
+);
+
+-- Create answers table
+CREATE TABLE answers (
+    answer_id SERIAL PRIMARY KEY,
+    question_id INTEGER NOT NULL REFERENCES questions(question_id) ON DELETE CASCADE,
+    content TEXT NOT NULL,
+    author VARCHAR(30) NOT NULL REFERENCES users(username),
+    created_at TIMESTAMP NOT NULL,
+    is_accepted BOOLEAN NOT NULL DEFAULT false,
+    version INTEGER NOT NULL DEFAULT 1
 );
 
 -- Create indexes
@@ -36,4 +73,20 @@ CREATE INDEX idx_username_lower ON users (LOWER(username));
 CREATE INDEX idx_sessions_token ON sessions(token);
 CREATE INDEX idx_emails_from_user ON emails(from_user);
 CREATE INDEX idx_emails_to_user ON emails(to_user);
-CREATE INDEX idx_emails_sent_date ON emails(sent_date);
\ No newline at end of file
+CREATE INDEX idx_emails_sent_date ON emails(sent_date);
+-- Whether any email still refers to a stored file
+CREATE INDEX idx_email_attachments_sha256 ON email_attachments(sha256);
+-- Drafts waiting for a scheduled send, read back into the scheduler on startup
+CREATE INDEX idx_emails_scheduled ON emails (scheduled_at) WHERE status = 'DRAFT' AND scheduled_at IS NOT NULL;
+
+-- Question lists, newest first, overall and filtered by status or author; the id breaks
+-- ties so keyset pagination on (created_at, question_id) is exact
+CREATE INDEX idx_questions_created ON questions (created_at DESC, question_id DESC);
+CREATE INDEX idx_questions_status_created ON questions (status, created_at DESC, question_id DESC);
+CREATE INDEX idx_questions_author_created ON questions (author, created_at DESC, question_id DESC);
+
+-- Answers in display order: accepted first, then newest first
+CREATE INDEX idx_answers_question_order ON answers (question_id, is_accepted DESC, created_at DESC, answer_id DESC);
+CREATE INDEX idx_answers_author ON answers(author);
+-- At most one accepted answer per question
+CREATE UNIQUE INDEX idx_answers_one_accepted ON answers (question_id) WHERE is_accepted;
@@ -0,0 +1,29 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that {@link CachingStorage} never shares the entities it caches.
+ */
+class CachingStorageTest {
+    @Test
+    void callersCannotChangeCachedEntities() {
+        CachingStorage storage = new CachingStorage(new ShardedStorage(2));
+        storage.addUser("alice", "password");
+        storage.addUser("bob", "password");
+        int question = storage.addQuestion("Title", "Body", "alice");
+        storage.addAnswer(question, "Answer", "bob");
+        storage.addEmail("alice", "bob", "Subject", "Body");
+
+        storage.getQuestions().get(0).setTitle("Changed");
+        storage.getQuestion(question).orElseThrow().setTitle("Changed");
+        storage.getAnswersForQuestion(question).get(0).setAccepted(true);
+        storage.getInboxEmails("bob").get(0).setRead(true);
+
+        assertEquals("Title", storage.getQuestions().get(0).getTitle());
+        assertEquals("Title", storage.getQuestion(question).orElseThrow().getTitle());
+        assertFalse(storage.getAnswersForQuestion(question).get(0).isAccepted());
+        assertFalse(storage.getInboxEmails("bob").get(0).isRead());
+        assertTrue(storage.getHitCount() >= 4);
+    }
+}
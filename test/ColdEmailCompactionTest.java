@@ -0,0 +1,96 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Spills mail to {@link EmailSegmentStore} segments through MemoryStorage's tiered storage and
+ * compacts them. Every test opens its own directory, which also spills whatever mail earlier
+ * tests left in memory, so assertions only look at the test's own emails.
+ */
+class ColdEmailCompactionTest {
+    private static final Duration RETENTION = Duration.ofDays(30);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void coldMailIsKeptUntilItsRetentionHasPassed() throws Exception {
+        List<Integer> ids = send("retain", 8);
+        spillAll();
+        for (int id : ids.subList(0, 4)) {
+            MemoryStorage.deleteEmail(id, "retain_to");
+        }
+        LocalDateTime deletedAt = MemoryStorage.getEmail(ids.get(0)).getDeletedAt();
+        assertNotNull(deletedAt);
+
+        assertEquals(0, MemoryStorage.compactColdEmails(LocalDateTime.now().minus(RETENTION)));
+        assertEquals(Email.EmailStatus.DELETED, MemoryStorage.getEmail(ids.get(0)).getStatus());
+
+        // The delete time survives a restart
+        spillAll();
+        assertEquals(deletedAt, MemoryStorage.getEmail(ids.get(0)).getDeletedAt());
+
+        assertEquals(4, MemoryStorage.compactColdEmails(LocalDateTime.now().plusMinutes(1)));
+        spillAll();
+        for (int id : ids.subList(0, 4)) {
+            assertNull(MemoryStorage.getEmail(id));
+        }
+        for (int id : ids.subList(4, 8)) {
+            assertEquals(Email.EmailStatus.SENT, MemoryStorage.getEmail(id).getStatus());
+        }
+    }
+
+    @Test
+    void mailDeletedBeforeItWasSpilledKeepsItsDeleteTime() throws Exception {
+        List<Integer> ids = send("hotdel", 2);
+        MemoryStorage.deleteEmail(ids.get(0), "hotdel_to");
+        LocalDateTime deletedAt = MemoryStorage.getEmail(ids.get(0)).getDeletedAt();
+        spillAll();
+
+        assertEquals(deletedAt.withNano(deletedAt.getNano() / 1_000_000 * 1_000_000),
+                     MemoryStorage.getEmail(ids.get(0)).getDeletedAt());
+        assertEquals(0, MemoryStorage.compactColdEmails(LocalDateTime.now().minus(RETENTION)));
+        assertEquals(1, MemoryStorage.compactColdEmails(LocalDateTime.now().plusMinutes(1)));
+        assertNull(MemoryStorage.getEmail(ids.get(0)));
+        assertNotNull(MemoryStorage.getEmail(ids.get(1)));
+    }
+
+    @Test
+    void foldedReadFlagsKeepTheirVersion() throws Exception {
+        List<Integer> ids = send("reads", 4);
+        spillAll();
+        int version = MemoryStorage.getEmail(ids.get(0)).getVersion();
+        for (int id : ids) {
+            MemoryStorage.markAsRead(id, "reads_to");
+        }
+        assertEquals(version + 1, MemoryStorage.getEmail(ids.get(0)).getVersion());
+
+        assertEquals(0, MemoryStorage.compactColdEmails(LocalDateTime.now().minus(RETENTION)));
+        spillAll();
+        Email email = MemoryStorage.getEmail(ids.get(0));
+        assertTrue(email.isRead());
+        assertEquals(version + 1, email.getVersion());
+    }
+
+    private static List<Integer> send(String prefix, int count) {
+        MemoryStorage.addUser(prefix + "_from", "password");
+        MemoryStorage.addUser(prefix + "_to", "password");
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(MemoryStorage.addEmail(prefix + "_from", prefix + "_to", "Subject " + i, "Body " + i));
+        }
+        return ids;
+    }
+
+    // (Re)opens the directory, which spills all mail sent so far
+    private void spillAll() throws Exception {
+        MemoryStorage.useTieredEmailStorage(directory, Duration.ZERO, 1_000);
+    }
+}
@@ -0,0 +1,85 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Exports MemoryStorage with mail in both tiers and reads the file back the way an import into
+ * the columnar store would.
+ */
+class DataTransferTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void emailsAreExportedInIdOrderAcrossTiers() throws Exception {
+        MemoryStorage.addUser("transfer_from", "password");
+        MemoryStorage.addUser("transfer_to", "password");
+        // Drafts stay in memory, so the oldest id is hot and the newer ones are cold
+        int draft = MemoryStorage.saveDraft("transfer_from", "transfer_to", "Draft", "Body");
+        List<Integer> sent = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            sent.add(MemoryStorage.addEmail("transfer_from", "transfer_to", "Subject " + i, "Body " + i));
+        }
+        MemoryStorage.useTieredEmailStorage(directory.resolve("cold"), Duration.ZERO, 1_000);
+        int hot = MemoryStorage.addEmail("transfer_from", "transfer_to", "Hot", "Body");
+
+        Path file = directory.resolve("export.jsonl");
+        DataTransfer.exportTo(file);
+
+        List<Integer> exported = new ArrayList<>();
+        ColumnarEmailStore columnar = new ColumnarEmailStore();
+        for (Map<String, Object> record : records(file, "email")) {
+            Email email = DataTransfer.emailFromRecord(record);
+            exported.add(email.getId());
+            columnar.add(email);
+        }
+        assertTrue(exported.containsAll(List.of(draft, sent.get(0), sent.get(1), sent.get(2), hot)));
+        List<Integer> sorted = new ArrayList<>(exported);
+        sorted.sort(null);
+        assertEquals(sorted, exported);
+        assertEquals("Draft", columnar.get(draft).orElseThrow().getSubject());
+        assertEquals("Subject 2", columnar.get(sent.get(2)).orElseThrow().getSubject());
+    }
+
+    @Test
+    void answersToADeletedQuestionAreLeftOut() throws Exception {
+        MemoryStorage.addUser("transfer_author", "password");
+        int deleted = MemoryStorage.addQuestion("Deleted", "Body", "transfer_author");
+        int kept = MemoryStorage.addQuestion("Kept", "Body", "transfer_author");
+        MemoryStorage.addAnswer(deleted, "Orphan", "transfer_author");
+        int answer = MemoryStorage.addAnswer(kept, "Answer", "transfer_author");
+        // An orphan as an import of an older dump could leave it
+        Answer orphan = new Answer(1_000_000, 999_999, "Orphan", "transfer_author", LocalDateTime.now(), false);
+        MemoryStorage.restoreAnswer(orphan);
+        MemoryStorage.deleteQuestion(deleted);
+
+        Path file = directory.resolve("export.jsonl");
+        DataTransfer.exportTo(file);
+
+        List<Integer> answers = new ArrayList<>();
+        for (Map<String, Object> record : records(file, "answer")) {
+            answers.add(DataTransfer.integer(record, "id"));
+        }
+        assertEquals(List.of(answer), answers);
+    }
+
+    private static List<Map<String, Object>> records(Path file, String type) throws Exception {
+        List<Map<String, Object>> records = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            Map<String, Object> record = Json.parseObject(line);
+            if (type.equals(record.get("type"))) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+}
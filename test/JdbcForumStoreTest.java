@@ -0,0 +1,214 @@
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs {@link JdbcForumStore} against schema.sql in an in-memory H2 database.
+ *
+ * H2 has no partial or expression indexes, so those statements are skipped. The one-accepted-
+ * answer index is rebuilt as a unique index on a generated column that holds the question id
+ * only while the answer is accepted, which enforces the same rule.
+ */
+class JdbcForumStoreTest {
+    private static int databases;
+
+    private JdbcDataSource dataSource;
+    private JdbcForumStore store;
+
+    @BeforeEach
+    void createSchema() throws Exception {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:forum" + (++databases) + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        String schema = Files.readString(Path.of("schema.sql")).replaceAll("(?m)--.*$", "");
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            for (String sql : schema.split(";")) {
+                sql = sql.trim();
+                if (sql.isEmpty() || (sql.startsWith("CREATE") && sql.contains("INDEX")
+                        && (sql.contains(" WHERE ") || sql.contains("LOWER(")))) {
+                    continue;
+                }
+                statement.execute(sql);
+            }
+            statement.execute("ALTER TABLE answers ADD COLUMN accepted_question_id INTEGER" +
+                              " GENERATED ALWAYS AS (CASE WHEN is_accepted THEN question_id END)");
+            statement.execute("CREATE UNIQUE INDEX idx_answers_one_accepted ON answers (accepted_question_id)");
+            statement.execute("INSERT INTO users (username, password_hash, created_at) VALUES" +
+                              " ('alice', 'x', CURRENT_TIMESTAMP), ('bob', 'x', CURRENT_TIMESTAMP)");
+        }
+        store = new JdbcForumStore(dataSource);
+    }
+
+    @AfterEach
+    void dropSchema() throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+        }
+    }
+
+    @Test
+    void questionPagesFollowEachOtherWithoutGapsOrRepeats() throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            ids.add(store.addQuestion("Question " + i, "Body", i % 2 == 0 ? "alice" : "bob"));
+        }
+        // Equal timestamps, so only the id orders the rows
+        execute("UPDATE questions SET created_at = TIMESTAMP '2024-01-01 12:00:00'");
+        ids.sort((a, b) -> b - a);
+
+        assertEquals(ids, pageAll(after -> store.queryQuestions(null, null, after, 3), Question::getId));
+        assertEquals(ids.stream().filter(id -> (id - ids.get(ids.size() - 1)) % 2 == 0).collect(Collectors.toList()),
+                     pageAll(after -> store.queryQuestions(null, "alice", after, 2), Question::getId));
+        assertEquals(ids, pageAll(after -> store.searchQuestions("question", after, 2), Question::getId));
+    }
+
+    @Test
+    void answerPagesListTheAcceptedAnswerFirst() throws SQLException {
+        int question = store.addQuestion("Title", "Body", "alice");
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(store.addAnswer(question, "Answer " + i, "bob"));
+        }
+        execute("UPDATE answers SET created_at = TIMESTAMP '2024-01-01 12:00:00'");
+        int accepted = ids.get(1);
+        store.acceptAnswer(accepted, question);
+
+        List<Integer> expected = new ArrayList<>();
+        expected.add(accepted);
+        ids.stream().filter(id -> id != accepted).sorted((a, b) -> b - a).forEach(expected::add);
+        assertEquals(expected, pageAll(after -> store.getAnswersForQuestion(question, after, 2), Answer::getId));
+    }
+
+    @Test
+    void deletingAQuestionDeletesItsAnswers() throws SQLException {
+        int deleted = store.addQuestion("Deleted", "Body", "alice");
+        int kept = store.addQuestion("Kept", "Body", "alice");
+        int answer = store.addAnswer(deleted, "Answer", "bob");
+        store.acceptAnswer(answer, deleted);
+        store.addAnswer(deleted, "Answer", "bob");
+        store.addAnswer(kept, "Answer", "bob");
+
+        store.deleteQuestion(deleted);
+
+        assertFalse(store.getQuestion(deleted).isPresent());
+        assertEquals(0, count("SELECT COUNT(*) FROM answers WHERE question_id = " + deleted));
+        assertEquals(1, store.getAnswersForQuestion(kept, null, 10).size());
+    }
+
+    @Test
+    void aQuestionHasAtMostOneAcceptedAnswer() throws SQLException {
+        int question = store.addQuestion("Title", "Body", "alice");
+        int first = store.addAnswer(question, "First", "bob");
+        int second = store.addAnswer(question, "Second", "bob");
+
+        store.acceptAnswer(first, question);
+        store.acceptAnswer(second, question);
+
+        List<Answer> answers = store.getAnswersForQuestion(question, null, 10);
+        assertEquals(second, answers.get(0).getId());
+        assertTrue(answers.get(0).isAccepted());
+        assertFalse(answers.get(1).isAccepted());
+        assertEquals("ANSWERED", store.getQuestion(question).get().getStatus());
+        // The index itself refuses a second accepted answer
+        assertThrows(SQLException.class, () -> execute("UPDATE answers SET is_accepted = true WHERE answer_id = " + first));
+    }
+
+    @Test
+    void updatesFromAStaleVersionConflict() {
+        int question = store.addQuestion("Title", "Body", "alice");
+        int version = store.getQuestion(question).get().getVersion();
+
+        UpdateResult<Question> updated = store.updateQuestionIfVersion(question, version, "Edited", "Body");
+        assertTrue(updated.isUpdated());
+        assertEquals(version + 1, updated.current.getVersion());
+
+        UpdateResult<Question> stale = store.updateQuestionIfVersion(question, version, "Lost", "Body");
+        assertTrue(stale.isConflict());
+        assertEquals("Edited", stale.current.getTitle());
+        assertEquals("Edited", store.getQuestion(question).get().getTitle());
+        assertEquals(UpdateResult.Status.NOT_FOUND, store.updateQuestionIfVersion(-1, 1, "Title", "Body").status);
+
+        int answer = store.addAnswer(question, "Answer", "bob");
+        int answerVersion = store.getAnswersForQuestion(question, null, 1).get(0).getVersion();
+        assertTrue(store.updateAnswerIfVersion(answer, answerVersion, "Edited").isUpdated());
+        UpdateResult<Answer> staleAnswer = store.updateAnswerIfVersion(answer, answerVersion, "Lost");
+        assertTrue(staleAnswer.isConflict());
+        assertEquals("Edited", staleAnswer.current.getContent());
+    }
+
+    @Test
+    void acceptingAStaleAnswerLeavesTheAcceptedOneInPlace() {
+        int question = store.addQuestion("Title", "Body", "alice");
+        int accepted = store.addAnswer(question, "Accepted", "bob");
+        int edited = store.addAnswer(question, "Edited", "bob");
+        store.acceptAnswer(accepted, question);
+        int shownVersion = answer(question, edited).getVersion();
+        store.updateAnswer(edited, "Edited again");
+
+        UpdateResult<Answer> result = store.acceptAnswerIfVersion(edited, question, shownVersion);
+
+        assertTrue(result.isConflict());
+        assertEquals("Edited again", result.current.getContent());
+        assertTrue(answer(question, accepted).isAccepted());
+        assertFalse(answer(question, edited).isAccepted());
+
+        assertTrue(store.acceptAnswerIfVersion(edited, question, result.current.getVersion()).isUpdated());
+        assertTrue(answer(question, edited).isAccepted());
+        assertFalse(answer(question, accepted).isAccepted());
+    }
+
+    @Test
+    void statusChangesLeaveTheQuestionVersionAlone() {
+        int question = store.addQuestion("Title", "Body", "alice");
+        int version = store.getQuestion(question).get().getVersion();
+        int answer = store.addAnswer(question, "Answer", "bob");
+        store.acceptAnswer(answer, question);
+
+        Question current = store.getQuestion(question).get();
+        assertEquals("ANSWERED", current.getStatus());
+        assertTrue(store.updateQuestionIfVersion(question, version, "Edited", "Body").isUpdated());
+    }
+
+    // Reads every page, each starting after the last row of the one before
+    private static <T> List<Integer> pageAll(Function<T, List<T>> page, Function<T, Integer> id) {
+        List<Integer> ids = new ArrayList<>();
+        T after = null;
+        while (true) {
+            List<T> rows = page.apply(after);
+            if (rows.isEmpty()) {
+                return ids;
+            }
+            rows.forEach(row -> ids.add(id.apply(row)));
+            after = rows.get(rows.size() - 1);
+        }
+    }
+
+    private Answer answer(int questionId, int answerId) {
+        return store.getAnswersForQuestion(questionId, null, 100).stream()
+            .filter(a -> a.getId() == answerId).findFirst().orElseThrow();
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private int count(String sql) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery(sql)) {
+            rows.next();
+            return rows.getInt(1);
+        }
+    }
+}
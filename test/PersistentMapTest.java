@@ -0,0 +1,91 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks {@link PersistentMap} against a TreeMap, and that it stays balanced and leaves earlier
+ * versions untouched.
+ */
+class PersistentMapTest {
+    @Test
+    void sortedInsertsAndRemovesKeepTheTreeBalanced() {
+        PersistentMap<Integer, String> map = PersistentMap.empty();
+        int count = 1 << 14;
+        for (int i = 0; i < count; i++) {
+            map = map.plus(i, "v" + i);
+            assertBalanced(map);
+        }
+        assertEquals(count, map.size());
+        // A perfectly balanced tree of 2^14 - 1 nodes is 14 high; AVL allows about 1.44 times that
+        assertTrue(map.height() <= 15, "height " + map.height());
+
+        for (int i = 0; i < count; i += 2) {
+            map = map.minus(i);
+        }
+        assertEquals(count / 2, map.size());
+        assertBalanced(map);
+        for (int i = 0; i < count; i++) {
+            assertEquals(i % 2 == 0 ? null : "v" + i, map.get(i));
+        }
+    }
+
+    @Test
+    void randomChangesMatchATreeMap() {
+        Random random = new Random(42);
+        PersistentMap<Integer, Integer> map = PersistentMap.empty();
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            int key = random.nextInt(2_000);
+            if (random.nextInt(3) == 0) {
+                map = map.minus(key);
+                expected.remove(key);
+            } else {
+                map = map.plus(key, i);
+                expected.put(key, i);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(new ArrayList<>(expected.values()), map.values());
+        assertBalanced(map);
+    }
+
+    @Test
+    void earlierVersionsAreUnchanged() {
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            keys.add(i);
+        }
+        Collections.shuffle(keys, new Random(7));
+        PersistentMap<Integer, Integer> before = PersistentMap.empty();
+        for (int key : keys) {
+            before = before.plus(key, key);
+        }
+
+        PersistentMap<Integer, Integer> after = before;
+        for (int key : keys.subList(0, 500)) {
+            after = after.minus(key);
+        }
+        after = after.plus(5_000, 5_000).plus(keys.get(600), -1);
+
+        assertEquals(1_000, before.size());
+        for (int i = 0; i < 1_000; i++) {
+            assertEquals(i, before.get(i));
+        }
+        assertNull(before.get(5_000));
+        assertEquals(501, after.size());
+        assertEquals(-1, after.get(keys.get(600)));
+        assertSame(after, after.minus(-1));
+    }
+
+    // Every AVL tree of n nodes is less than 1.45 log2(n + 2) high
+    private static void assertBalanced(PersistentMap<?, ?> map) {
+        double bound = 1.45 * Math.log(map.size() + 2) / Math.log(2);
+        assertTrue(map.height() < bound, "height " + map.height() + " for " + map.size() + " entries");
+    }
+}
@@ -0,0 +1,142 @@
+import org.junit.jupiter.api.Test;
+
+import java.net.BindException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Replicates MemoryStorage to a {@link ReplicationFollower} over a local socket.
+ */
+class ReplicationTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(20);
+
+    @Test
+    void followerJoiningDuringWritesConvergesOnTheLeader() throws Exception {
+        MemoryStorage.addUser("writer1", "password");
+        for (int i = 0; i < 50; i++) {
+            MemoryStorage.addQuestion("Before " + i, "Body", "writer1");
+        }
+        try (ReplicationLeader leader = new ReplicationLeader(0, 100_000)) {
+            leader.start();
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread writer = new Thread(() -> {
+                for (int i = 0; !stop.get() || i < 200; i++) {
+                    int question = MemoryStorage.addQuestion("During " + i, "Body", "writer1");
+                    int answer = MemoryStorage.addAnswer(question, "Answer " + i, "writer1");
+                    if (i % 3 == 0) {
+                        MemoryStorage.acceptAnswer(answer, question);
+                    }
+                    if (i % 5 == 0) {
+                        MemoryStorage.deleteQuestion(question);
+                    } else if (i % 7 == 0) {
+                        MemoryStorage.updateQuestion(question, "Edited " + i, "Body");
+                    }
+                }
+            });
+            writer.start();
+            try (ReplicationFollower follower = new ReplicationFollower("localhost", leader.getPort())) {
+                follower.start();
+                await(() -> follower.getAppliedOffset() >= 0);
+                stop.set(true);
+                writer.join();
+
+                assertTrue(follower.awaitOffset(leader.getLogOffset(), TIMEOUT));
+                assertEquals(forum(MemoryStorageBackend.INSTANCE), forum(follower.getStorage()));
+            }
+        }
+    }
+
+    @Test
+    void resyncReplacesDataTheFollowerMissed() throws Exception {
+        MemoryStorage.addUser("resync1", "password");
+        int kept = MemoryStorage.addQuestion("Kept", "Body", "resync1");
+        int deleted = MemoryStorage.addQuestion("Deleted", "Body", "resync1");
+        MemoryStorage.addAnswer(deleted, "Answer", "resync1");
+
+        ReplicationLeader first = new ReplicationLeader(0, 100_000);
+        int port = first.getPort();
+        first.start();
+        try (ReplicationFollower follower = new ReplicationFollower("localhost", port)) {
+            follower.start();
+            await(() -> follower.getAppliedOffset() >= 0);
+            assertTrue(follower.getStorage().getQuestion(deleted).isPresent());
+
+            // Changes made while no leader logs them only reach the follower through a snapshot
+            first.close();
+            MemoryStorage.deleteQuestion(deleted);
+            int added = MemoryStorage.addQuestion("Added", "Body", "resync1");
+
+            try (ReplicationLeader second = bind(port)) {
+                second.start();
+                StorageBackend replica = follower.getStorage();
+                await(() -> replica.getQuestion(added).isPresent());
+
+                assertTrue(replica.getQuestion(kept).isPresent());
+                assertFalse(replica.getQuestion(deleted).isPresent());
+                assertTrue(replica.getAnswersForQuestion(deleted).isEmpty());
+                assertEquals(forum(MemoryStorageBackend.INSTANCE), forum(replica));
+            }
+        }
+    }
+
+    @Test
+    void leaderLeavesOtherMutationListenersInPlace() throws Exception {
+        AtomicInteger mutations = new AtomicInteger();
+        Consumer<Map<String, Object>> counter = mutation -> mutations.incrementAndGet();
+        MemoryStorage.addMutationListener(counter);
+        try {
+            MemoryStorage.addUser("listen1", "password");
+            try (ReplicationLeader leader = new ReplicationLeader(0, 1_000)) {
+                leader.start();
+                MemoryStorage.addQuestion("With leader", "Body", "listen1");
+                assertEquals(1, leader.getLogOffset());
+            }
+            int before = mutations.get();
+            MemoryStorage.addQuestion("After leader", "Body", "listen1");
+            assertEquals(before + 1, mutations.get());
+        } finally {
+            MemoryStorage.removeMutationListener(counter);
+        }
+    }
+
+    // Questions with their status and answers, keyed by id, as a comparable string
+    private static String forum(StorageBackend storage) {
+        Map<Integer, String> questions = new TreeMap<>();
+        for (Question question : storage.getQuestions()) {
+            Map<Integer, String> answers = new TreeMap<>();
+            for (Answer answer : storage.getAnswersForQuestion(question.getId())) {
+                answers.put(answer.getId(), answer.getContent() + (answer.isAccepted() ? " (accepted)" : ""));
+            }
+            questions.put(question.getId(), question.getTitle() + " " + question.getStatus() + " " + answers);
+        }
+        return questions.toString();
+    }
+
+    // The closed leader's port is released once its accept thread has woken up
+    private static ReplicationLeader bind(int port) throws Exception {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (true) {
+            try {
+                return new ReplicationLeader(port, 100_000);
+            } catch (BindException e) {
+                assertTrue(System.nanoTime() < deadline, "Port " + port + " stayed in use");
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out");
+            Thread.sleep(5);
+        }
+    }
+}
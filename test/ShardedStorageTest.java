@@ -0,0 +1,41 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Races operations that span shards in {@link ShardedStorage}.
+ */
+class ShardedStorageTest {
+    @Test
+    void deletingADraftWhileItIsSentIsNeverLost() throws Exception {
+        ShardedStorage storage = new ShardedStorage(8);
+        storage.addUser("alice", "password");
+        storage.addUser("bob", "password");
+        for (int i = 0; i < 2_000; i++) {
+            int id = storage.saveDraft("alice", "bob", "Subject " + i, "Body");
+            CountDownLatch start = new CountDownLatch(1);
+            Thread sender = new Thread(() -> {
+                await(start);
+                storage.sendDraft(id);
+            });
+            sender.start();
+            start.countDown();
+            storage.deleteEmail(id, "alice");
+            sender.join();
+
+            assertTrue(storage.getInboxEmails("bob").stream().noneMatch(e -> e.getId() == id), "email " + id);
+            assertTrue(storage.getSentEmails("alice").stream().noneMatch(e -> e.getId() == id), "email " + id);
+            assertTrue(storage.getDrafts("alice").stream().noneMatch(e -> e.getId() == id), "email " + id);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs {@link SqlWriteBehind} against an in-memory H2 database whose connections can be made
+ * to fail a number of times.
+ */
+class SqlWriteBehindTest {
+    private static int databases;
+
+    private JdbcDataSource database;
+    // Connections still to refuse
+    private final AtomicInteger failures = new AtomicInteger();
+    private DataSource dataSource;
+
+    @BeforeEach
+    void createTable() throws SQLException {
+        database = new JdbcDataSource();
+        database.setURL("jdbc:h2:mem:writebehind" + (++databases) + ";DB_CLOSE_DELAY=-1");
+        try (Connection connection = database.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE emails (email_id INTEGER PRIMARY KEY, from_user VARCHAR(30)," +
+                              " to_user VARCHAR(30), subject VARCHAR(255) NOT NULL, content TEXT NOT NULL," +
+                              " sent_date TIMESTAMP NOT NULL, status VARCHAR(20) NOT NULL," +
+                              " is_read BOOLEAN DEFAULT false, version INTEGER NOT NULL DEFAULT 1)");
+        }
+        dataSource = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {DataSource.class},
+            (proxy, method, args) -> {
+                if (method.getName().equals("getConnection") && failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                    throw new SQLException("Connection refused");
+                }
+                try {
+                    return method.invoke(database, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+    }
+
+    @Test
+    void aBatchThatFailsOnceIsRetried() throws SQLException {
+        SqlWriteBehind writes = new SqlWriteBehind(dataSource, 100, Duration.ofSeconds(10));
+        failures.set(2);
+        writes.addEmail(email(1));
+        writes.addEmail(email(2));
+        writes.markAsRead(1, "bob");
+
+        writes.flush();
+
+        assertEquals(2, count("SELECT COUNT(*) FROM emails"));
+        assertEquals(1, count("SELECT COUNT(*) FROM emails WHERE is_read"));
+        assertEquals(1, writes.getBatchCount());
+        writes.close();
+    }
+
+    @Test
+    void everyFlushWaitingForADroppedBatchThrows() throws Exception {
+        SqlWriteBehind writes = new SqlWriteBehind(dataSource, 100, Duration.ofSeconds(10));
+        failures.set(Integer.MAX_VALUE);
+        writes.addEmail(email(1));
+        writes.addEmail(email(2));
+
+        // The retries take 300 ms, so all the flushes wait for the same batch
+        int flushes = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(flushes);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < flushes; i++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                writes.flush();
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            ExecutionException thrown = assertThrows(ExecutionException.class, () -> result.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, thrown.getCause());
+        }
+        executor.shutdown();
+
+        // Reported, so the buffer carries on once the database is back
+        failures.set(0);
+        writes.addEmail(email(3));
+        writes.flush();
+        assertEquals(1, count("SELECT COUNT(*) FROM emails"));
+        writes.close();
+    }
+
+    @Test
+    void aDroppedBatchNobodyWaitedForFailsTheNextWrite() throws Exception {
+        SqlWriteBehind writes = new SqlWriteBehind(dataSource, 1, Duration.ofSeconds(10));
+        failures.set(Integer.MAX_VALUE);
+        writes.addEmail(email(1));
+        // Wait for the third and last attempt, and a moment for the batch to be dropped
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (Integer.MAX_VALUE - failures.get() < 3) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+
+        assertThrows(IllegalStateException.class, () -> writes.addEmail(email(2)));
+        failures.set(0);
+        writes.addEmail(email(2));
+        writes.close();
+        assertEquals(1, count("SELECT COUNT(*) FROM emails"));
+    }
+
+    private static Email email(int id) {
+        Email email = new Email();
+        email.setId(id);
+        email.setFromUser("alice");
+        email.setToUser("bob");
+        email.setSubject("Subject " + id);
+        email.setContent("Body");
+        email.setSentDate(LocalDateTime.now());
+        email.setStatus(Email.EmailStatus.SENT);
+        return email;
+    }
+
+    private int count(String sql) throws SQLException {
+        try (Connection connection = database.getConnection(); Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery(sql)) {
+            rows.next();
+            return rows.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that {@link VersionedStorage} snapshots keep showing the state they were taken at.
+ */
+class VersionedStorageTest {
+    private final VersionedStorage storage = new VersionedStorage();
+
+    @Test
+    void aSnapshotIgnoresLaterWrites() {
+        storage.addUser("alice", "password");
+        storage.addUser("bob", "password");
+        int question = storage.addQuestion("Title", "Body", "alice");
+        int answer = storage.addAnswer(question, "Answer", "bob");
+        int email = storage.addEmail("alice", "bob", "Subject", "Body");
+
+        VersionedStorage.Snapshot snapshot = storage.snapshot();
+        long version = snapshot.getVersion();
+        storage.updateQuestion(question, "Edited", "Body");
+        storage.acceptAnswer(answer, question);
+        storage.markAsRead(email, "bob");
+        storage.addQuestion("Later", "Body", "bob");
+        storage.deleteQuestion(question);
+
+        assertEquals(version, snapshot.getVersion());
+        assertTrue(storage.getVersion() > version);
+        assertEquals(1, snapshot.getQuestions().size());
+        assertEquals("Title", snapshot.getQuestion(question).orElseThrow().getTitle());
+        assertFalse(snapshot.getAnswersForQuestion(question).get(0).isAccepted());
+        assertFalse(snapshot.getInboxEmails("bob").get(0).isRead());
+
+        assertFalse(storage.getQuestion(question).isPresent());
+        assertTrue(storage.getAnswersForQuestion(question).isEmpty());
+        assertTrue(storage.getInboxEmails("bob").get(0).isRead());
+    }
+
+    @Test
+    void readersGetCopies() {
+        storage.addUser("alice", "password");
+        int question = storage.addQuestion("Title", "Body", "alice");
+        VersionedStorage.Snapshot snapshot = storage.snapshot();
+
+        snapshot.getQuestion(question).orElseThrow().setTitle("Changed by a reader");
+        storage.getQuestions().get(0).setTitle("Changed by a reader");
+
+        assertEquals("Title", snapshot.getQuestion(question).orElseThrow().getTitle());
+        assertEquals("Title", storage.getQuestion(question).orElseThrow().getTitle());
+    }
+
+    @Test
+    void readersNeverSeeHalfAnAcceptedAnswerSwitch() throws Exception {
+        storage.addUser("alice", "password");
+        int question = storage.addQuestion("Title", "Body", "alice");
+        int first = storage.addAnswer(question, "First", "alice");
+        int second = storage.addAnswer(question, "Second", "alice");
+        storage.acceptAnswer(first, question);
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                List<Answer> answers = storage.snapshot().getAnswersForQuestion(question);
+                long accepted = answers.stream().filter(Answer::isAccepted).count();
+                if (accepted != 1) {
+                    failure.set(accepted + " accepted answers");
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 2_000; i++) {
+            storage.acceptAnswer(i % 2 == 0 ? second : first, question);
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+    }
+}